@@ -0,0 +1,281 @@
+package no.geosoft.ticketmaster;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Log handler that passes log records on to another handler in a
+ * background thread, so that formatting and output of log messages
+ * are kept off the threads doing the actual work.
+ * <p>
+ * Records are buffered in a bounded ring buffer. If the buffer is full,
+ * records below WARNING are dropped (and the number of dropped records
+ * is reported once there is room again), while WARNING and SEVERE
+ * records wait for room so that errors are never lost.
+ * <p>
+ * The source of a record is set to its logger name, which is the class
+ * name throughout this code. This avoids the stack walk that would otherwise
+ * be needed to infer the calling method, and that would give the wrong
+ * result in the background thread.
+ * <p>
+ * Typical usage:
+ * <pre>
+ *   AsyncLogHandler.install(4096);
+ *   :
+ *   AsyncLogHandler.uninstall();  // Drain and restore the original handlers
+ * </pre>
+ *
+ * @author <a href="mailto:jacob.dreyer@geosoft.no">Jacob Dreyer</a>
+ */
+public final class AsyncLogHandler extends Handler
+{
+  /** The logger instance. */
+  private static final Logger logger_ = Logger.getLogger(AsyncLogHandler.class.getName());
+
+  /** Max time to wait for the buffer to drain on flush and close, in milliseconds. */
+  private static final long DRAIN_TIMEOUT = 5000L;
+
+  /** Handler doing the actual output. */
+  private final Handler target_;
+
+  /** Buffer of records not yet passed on to the target. */
+  private final BlockingQueue<LogRecord> buffer_;
+
+  /** Number of records dropped since last reported. */
+  private final AtomicLong nDropped_ = new AtomicLong(0L);
+
+  /** The background thread passing records on to the target. */
+  private final Thread writer_;
+
+  /** Number of records accepted but not yet published. */
+  private final AtomicLong nPending_ = new AtomicLong(0L);
+
+  /** Indicate if the handler is closed. */
+  private volatile boolean isClosed_ = false;
+
+  /**
+   * Create a new asynchronous log handler.
+   *
+   * @param target    Handler to pass records on to. Non-null.
+   * @param capacity  Max number of buffered records. [1,&gt;.
+   * @throws IllegalArgumentException  If target is null or capacity &lt; 1.
+   */
+  public AsyncLogHandler(Handler target, int capacity)
+  {
+    if (target == null)
+      throw new IllegalArgumentException("target cannot be null");
+
+    if (capacity < 1)
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+
+    target_ = target;
+    buffer_ = new ArrayBlockingQueue<>(capacity);
+
+    // Level filtering is done by the target, but checking it
+    // here as well saves buffering records that are discarded anyway
+    setLevel(target.getLevel());
+
+    writer_ = new Thread(this::write, "async-log");
+    writer_.setDaemon(true);
+    writer_.start();
+  }
+
+  /**
+   * Return the handler records are passed on to.
+   *
+   * @return  The target handler. Never null.
+   */
+  public Handler getTarget()
+  {
+    return target_;
+  }
+
+  /**
+   * Pass buffered records on to the target until the handler is closed
+   * and the buffer is empty. Run by the writer thread.
+   */
+  private void write()
+  {
+    while (!isClosed_ || !buffer_.isEmpty()) {
+      try {
+        LogRecord record = buffer_.poll(100, TimeUnit.MILLISECONDS);
+        if (record == null)
+          continue;
+
+        long nDropped = nDropped_.getAndSet(0L);
+        if (nDropped > 0)
+          target_.publish(newRecord(Level.WARNING, nDropped + " log records dropped as the log buffer was full"));
+
+        try {
+          target_.publish(record);
+        }
+        finally {
+          nPending_.decrementAndGet();
+        }
+      }
+      catch (InterruptedException exception) {
+        // Closed with a timeout. Anything left in the buffer is lost
+        return;
+      }
+      catch (RuntimeException exception) {
+        reportError("Log record publish failed", exception, 0);
+      }
+    }
+  }
+
+  /**
+   * Create a log record from this class.
+   *
+   * @param level    Level of record. Non-null.
+   * @param message  Message of record. Non-null.
+   * @return         The requested log record. Never null.
+   */
+  private static LogRecord newRecord(Level level, String message)
+  {
+    assert level != null : "level cannot be null";
+    assert message != null : "message cannot be null";
+
+    LogRecord record = new LogRecord(level, message);
+    record.setLoggerName(logger_.getName());
+    record.setSourceClassName(logger_.getName());
+    return record;
+  }
+
+  /**
+   * Wait until the buffer is empty or the timeout expires.
+   *
+   * @return  True if the buffer was drained, false if the timeout expired.
+   */
+  private boolean drain()
+  {
+    long endTime = System.nanoTime() + DRAIN_TIMEOUT * 1000000L;
+
+    while (nPending_.get() > 0) {
+      if (!writer_.isAlive() || System.nanoTime() > endTime)
+        return false;
+
+      try {
+        Thread.sleep(1);
+      }
+      catch (InterruptedException exception) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  @Override
+  public void publish(LogRecord record)
+  {
+    if (record == null || isClosed_ || !isLoggable(record))
+      return;
+
+    // Keep the source from being inferred, see class comment
+    record.setSourceClassName(record.getLoggerName());
+    record.setSourceMethodName(null);
+
+    nPending_.incrementAndGet();
+
+    if (buffer_.offer(record))
+      return;
+
+    if (record.getLevel().intValue() < Level.WARNING.intValue()) {
+      nPending_.decrementAndGet();
+      nDropped_.incrementAndGet();
+      return;
+    }
+
+    try {
+      buffer_.put(record);
+    }
+    catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      nPending_.decrementAndGet();
+      nDropped_.incrementAndGet();
+    }
+  }
+
+  @Override
+  public void flush()
+  {
+    drain();
+    target_.flush();
+  }
+
+  @Override
+  public void close()
+  {
+    if (isClosed_)
+      return;
+
+    isClosed_ = true;
+
+    if (!drain())
+      writer_.interrupt();
+
+    try {
+      writer_.join(DRAIN_TIMEOUT);
+    }
+    catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    }
+
+    target_.flush();
+    target_.close();
+  }
+
+  /**
+   * Replace all handlers of the root logger with asynchronous
+   * handlers passing records on to the original ones.
+   *
+   * @param capacity  Max number of buffered records per handler. [1,&gt;.
+   * @throws IllegalArgumentException  If capacity &lt; 1.
+   */
+  public static void install(int capacity)
+  {
+    if (capacity < 1)
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+
+    Logger rootLogger = Logger.getLogger("");
+    for (Handler handler : rootLogger.getHandlers()) {
+      if (handler instanceof AsyncLogHandler)
+        continue;
+
+      rootLogger.removeHandler(handler);
+      rootLogger.addHandler(new AsyncLogHandler(handler, capacity));
+    }
+  }
+
+  /**
+   * Replace all asynchronous handlers of the root logger with the
+   * handlers they pass records on to. Buffered records are written first.
+   * Nothing happens for handlers not installed by install().
+   */
+  public static void uninstall()
+  {
+    Logger rootLogger = Logger.getLogger("");
+    for (Handler handler : rootLogger.getHandlers()) {
+      if (!(handler instanceof AsyncLogHandler))
+        continue;
+
+      AsyncLogHandler asyncHandler = (AsyncLogHandler) handler;
+      rootLogger.removeHandler(asyncHandler);
+
+      // Drain without closing the target, which is put back
+      asyncHandler.isClosed_ = true;
+      if (!asyncHandler.drain())
+        asyncHandler.writer_.interrupt();
+
+      asyncHandler.target_.flush();
+      rootLogger.addHandler(asyncHandler.target_);
+    }
+  }
+}
@@ -0,0 +1,225 @@
+package no.geosoft.ticketmaster;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The binary content of an attachment, kept in memory if it fits the
+ * global ByteBudget and spilled to a temporary file otherwise.
+ * <p>
+ * The memory is reserved before it is allocated: up front if the size
+ * is known from the attachment metadata, and as the content grows if not.
+ * The content must be closed when no longer needed. This releases the
+ * reservation or deletes the temporary file.
+ * <p>
+ * Typical usage:
+ * <pre>
+ *   AttachmentContent content = AttachmentContent.read(inputStream, size);
+ *   try (InputStream contentStream = content.openStream()) {
+ *     contentStream.transferTo(outputStream);
+ *   }
+ *   content.close();
+ * </pre>
+ *
+ * @author <a href="mailto:jacob.dreyer@geosoft.no">Jacob Dreyer</a>
+ */
+public final class AttachmentContent
+  implements Closeable
+{
+  /** The logger instance. */
+  private static final Logger logger_ = Logger.getLogger(AttachmentContent.class.getName());
+
+  /** Size of the read buffer. */
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  /** Max size of content kept in memory. Somewhat below the max array size of the JVM. */
+  private static final int MAX_MEMORY_SIZE = Integer.MAX_VALUE - 64;
+
+  /** The content if in memory. Null if spilled. */
+  private final byte[] bytes_;
+
+  /** The temporary file of the content if spilled. Null if in memory. */
+  private final File file_;
+
+  /** Content size in bytes. */
+  private final long size_;
+
+  /** Indicate if the content is closed. */
+  private boolean isClosed_ = false;
+
+  private AttachmentContent(byte[] bytes, File file, long size)
+  {
+    assert bytes != null || file != null : "bytes or file must be non-null";
+
+    bytes_ = bytes;
+    file_ = file;
+    size_ = size;
+  }
+
+  /**
+   * Read content from the specified stream, in memory if it fits
+   * the global budget, and to a temporary file if not.
+   *
+   * @param inputStream  Stream to read. Non-null. Not closed by this method.
+   * @param size         Expected size in bytes, like from the attachment metadata. -1 if unknown.
+   * @return             The content. Never null.
+   * @throws IllegalArgumentException  If inputStream is null.
+   * @throws IOException  If the stream cannot be read or the content cannot be spilled.
+   */
+  public static AttachmentContent read(InputStream inputStream, long size)
+    throws IOException
+  {
+    if (inputStream == null)
+      throw new IllegalArgumentException("inputStream cannot be null");
+
+    ByteBudget budget = ByteBudget.getInstance();
+
+    byte[] bytes = new byte[0];
+    long nReserved = 0L;
+    long nKept = 0L;
+
+    try {
+      // Reserve the expected size up front, so the content is allocated once
+      if (size > 0) {
+        if (size > MAX_MEMORY_SIZE || !budget.tryReserve(size))
+          return spill(inputStream);
+
+        nReserved = size;
+        bytes = new byte[(int) size];
+      }
+
+      byte[] chunk = new byte[CHUNK_SIZE];
+      int length = 0;
+
+      while (true) {
+        int n = inputStream.read(chunk);
+        if (n == -1)
+          break;
+
+        // Grow if the size was unknown or wrong
+        if (n > bytes.length - length) {
+          long capacity = Math.min(MAX_MEMORY_SIZE, Math.max((long) length + n, 2L * bytes.length));
+          if ((long) length + n > capacity || !budget.tryReserve(capacity - bytes.length)) {
+            InputStream head = new SequenceInputStream(new ByteArrayInputStream(bytes, 0, length), new ByteArrayInputStream(chunk, 0, n));
+            return spill(new SequenceInputStream(head, inputStream));
+          }
+
+          nReserved += capacity - bytes.length;
+          bytes = Arrays.copyOf(bytes, (int) capacity);
+        }
+
+        System.arraycopy(chunk, 0, bytes, length, n);
+        length += n;
+      }
+
+      if (length < bytes.length)
+        bytes = Arrays.copyOf(bytes, length);
+
+      nKept = length;
+      return new AttachmentContent(bytes, null, length);
+    }
+    finally {
+      budget.release(nReserved - nKept);
+    }
+  }
+
+  /**
+   * Write the specified stream to a temporary file.
+   *
+   * @param inputStream  Stream to write. Non-null.
+   * @return             The spilled content. Never null.
+   * @throws IOException  If the stream cannot be read or the file cannot be written.
+   */
+  private static AttachmentContent spill(InputStream inputStream)
+    throws IOException
+  {
+    assert inputStream != null : "inputStream cannot be null";
+
+    long startTime = System.nanoTime();
+
+    File file = File.createTempFile("attachment", ".tmp");
+
+    try (OutputStream outputStream = Files.newOutputStream(file.toPath())) {
+      long size = inputStream.transferTo(outputStream);
+
+      logger_.log(Level.INFO, () -> "Attachment spilled to disk, size=" + size);
+      Metrics.getInstance().recordStage("attachments.spill", System.nanoTime() - startTime);
+
+      return new AttachmentContent(null, file, size);
+    }
+    catch (IOException exception) {
+      file.delete();
+      throw exception;
+    }
+  }
+
+  /**
+   * Return the size of this content.
+   *
+   * @return  Content size in bytes. [0,&gt;.
+   */
+  public long getSize()
+  {
+    return size_;
+  }
+
+  /**
+   * Check if this content is spilled to disk.
+   *
+   * @return  True if spilled to disk, false if in memory.
+   */
+  public boolean isSpilled()
+  {
+    return file_ != null;
+  }
+
+  /**
+   * Open a stream of this content. The stream must be closed by the caller.
+   *
+   * @return  A stream of the content. Never null.
+   * @throws IllegalStateException  If the content is closed.
+   * @throws IOException  If the temporary file cannot be opened.
+   */
+  public synchronized InputStream openStream()
+    throws IOException
+  {
+    if (isClosed_)
+      throw new IllegalStateException("Content is closed");
+
+    return bytes_ != null ? new ByteArrayInputStream(bytes_) : Files.newInputStream(file_.toPath());
+  }
+
+  /**
+   * Release the memory of this content or delete its temporary file.
+   * Closing more than once has no effect.
+   */
+  @Override
+  public synchronized void close()
+  {
+    if (isClosed_)
+      return;
+
+    isClosed_ = true;
+
+    if (bytes_ != null)
+      ByteBudget.getInstance().release(size_);
+    else if (!file_.delete())
+      logger_.log(Level.WARNING, "Unable to delete " + file_);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString()
+  {
+    return size_ + " bytes" + (file_ != null ? " in " + file_ : "");
+  }
+}
@@ -1,28 +1,40 @@
 package no.geosoft.ticketmaster;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonNumber;
 import javax.json.JsonObject;
-import javax.json.JsonReader;
 import javax.json.JsonValue;
-import javax.json.JsonWriter;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
 
 /**
  * Class representing an Azure instance.
@@ -36,228 +48,604 @@ public final class Azure
 
   private static final String ORGANIZATION = "<organization>";
   private static final String PROJECT = "<project>";
-  private static final String TOKEN = "<PAT>";
 
-  /** Azure base URL. */
-  private static final String BASE_URL = "https://dev.azure.com/" + ORGANIZATION + "/" + PROJECT;
+  /**
+   * Personal access tokens. Requests are spread across the tokens
+   * to multiply the per-user rate limit.
+   */
+  private static final String[] TOKENS = {
+    "<PAT>",
+  };
+
+  /** Azure base URL override (e.g. for a stub server). Null if not overridden. */
+  private static final String BASE_URL_OVERRIDE = System.getProperty("ticketmaster.azure.url");
 
   /** Apparently needed on (some of) the URLs */
   private static final String API_VERSION = "7.1-preview.3";
 
-  /** HTTP authorization header. */
-  private static final String AUTHORIZATION_HEADER = "Basic " + Base64.getEncoder().encodeToString((":" + TOKEN).getBytes(StandardCharsets.UTF_8));
+  /** HTTP authorization header of each token. */
+  private static final List<String> AUTHORIZATION_HEADERS = Stream.of(TOKENS)
+    .map(token -> "Basic " + Base64.getEncoder().encodeToString((":" + token).getBytes(StandardCharsets.UTF_8)))
+    .toList();
+
+  /** Max number of work items of a workitemsbatch request. */
+  static final int WORK_ITEM_BATCH_SIZE = 200;
+
+  /** Magic number identifying a binary ticket mapping file. */
+  private static final int TICKET_MAPPING_MAGIC = 0x544d4d31; // "TMM1"
+
+  /** Factory of the generators writing request bodies. */
+  private static final JsonGeneratorFactory GENERATOR_FACTORY = Json.createGeneratorFactory(null);
+
+  /**
+   * A field of the JSON patch body creating a work item.
+   */
+  private static final class PatchField
+  {
+    /** Path of the field, like "/fields/System.Title". */
+    private final String path_;
+
+    /** The field value of a given work item. String or Integer. */
+    private final Function<AzureWorkItem,Object> value_;
+
+    private PatchField(String path, Function<AzureWorkItem,Object> value)
+    {
+      path_ = path;
+      value_ = value;
+    }
+  }
+
+  /** The fields of a new work item, in the order they are written. */
+  private static final List<PatchField> WORK_ITEM_FIELDS = List.of(
+    new PatchField("/fields/System.Title", AzureWorkItem::getTitle),
+    new PatchField("/fields/System.Description", AzureWorkItem::getExtendedDescription),
+    new PatchField("/fields/System.Tags", AzureWorkItem::getTagsAsString),
+    new PatchField("/fields/Microsoft.VSTS.CMMI.Blocked", workItem -> workItem.isBlocked() ? "Yes" : "No"),
+    new PatchField("/fields/Custom.Project", AzureWorkItem::getProject),
+    new PatchField("/fields/Custom.Product", AzureWorkItem::getProduct),
+    new PatchField("/fields/Custom.Tester", workItem -> getEmail(workItem.getTester(), "")),
+    new PatchField("/fields/Microsoft.VSTS.Common.Priority", AzureWorkItem::getPriority),
+    new PatchField("/fields/Microsoft.VSTS.Common.Activity", AzureWorkItem::getActivity),
+    new PatchField("/fields/System.CreatedBy", workItem -> getEmail(workItem.getCreatedBy(), "<default email>")),
+    new PatchField("/fields/System.AssignedTo", workItem -> getEmail(workItem.getAssignedTo(), "")),
+    new PatchField("/fields/Microsoft.VSTS.Scheduling.StartDate", workItem -> Objects.requireNonNullElse(Util.toString(workItem.getStartDate()), "")),
+    new PatchField("/fields/Microsoft.VSTS.Scheduling.TargetDate", workItem -> Objects.requireNonNullElse(Util.toString(workItem.getTargetDate()), "")),
+    new PatchField("/fields/Microsoft.VSTS.TCM.SystemInfo", workItem -> Objects.requireNonNullElse(workItem.getSystemInfo(), "")),
+    new PatchField("/fields/Microsoft.VSTS.CMMI.FoundInEnvironment", workItem -> Objects.requireNonNullElse(workItem.getFoundIn(), "")),
+    new PatchField("/fields/Microsoft.VSTS.TCM.ReproSteps", AzureWorkItem::getStepsToReproduce));
+
+  /**
+   * An output stream counting the bytes written through it.
+   */
+  private static final class CountingOutputStream extends FilterOutputStream
+  {
+    /** Number of bytes written. */
+    private long nBytes_ = 0;
+
+    private CountingOutputStream(OutputStream outputStream)
+    {
+      super(outputStream);
+    }
+
+    @Override
+    public void write(int b)
+      throws IOException
+    {
+      out.write(b);
+      nBytes_++;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length)
+      throws IOException
+    {
+      out.write(buffer, offset, length);
+      nBytes_ += length;
+    }
+  }
+
+  /**
+   * Writer of the body of a push request.
+   */
+  @FunctionalInterface
+  private interface BodyWriter
+  {
+    /**
+     * Write the request body to the specified connection.
+     *
+     * @param connection  Connection to write to. Not yet connected. Non-null.
+     * @return            Number of bytes written.
+     * @throws IOException  If the write operation fails.
+     */
+    long write(HttpURLConnection connection)
+      throws IOException;
+  }
+
+  /**
+   * Reader of the response of a successful push request.
+   */
+  @FunctionalInterface
+  private interface ResponseReader
+  {
+    /**
+     * Read the response from the specified stream.
+     *
+     * @param inputStream  Response stream. Non-null.
+     * @throws IOException  If the stream cannot be read.
+     */
+    void read(InputStream inputStream)
+      throws IOException;
+  }
 
   /** All work items loaded. */
   private final List<AzureWorkItem> workItems_ = new ArrayList<>();
 
+  /** Name of the Azure project we are accessing. */
+  private final String project_;
+
+  /**
+   * Base URL of the Azure project. Can be overridden (e.g. by a stub
+   * server) through the ticketmaster.azure.url property.
+   */
+  private final String baseUrl_;
+
+  /** Credentials of all requests, reads and pushes. */
+  private final CredentialPool credentials_;
+
+  /** The client used for all reads from the back-end. */
+  private final RestClient client_;
+
+  /**
+   * Create an instance <em>representing</em> one project of the Azure back-end.
+   *
+   * @param project        Name of Azure project. Non-null.
+   * @param credentials    Credentials for accessing the back-end. May be shared with
+   *                       other instances, see newCredentialPool(). Non-null.
+   * @param responseCache  Cache for recording or replaying back-end responses.
+   *                       Null if responses should not be cached. Note that
+   *                       only reads are cached; pushes always go to the back-end.
+   * @throws IllegalArgumentException  If project or credentials is null.
+   */
+  public Azure(String project, CredentialPool credentials, ResponseCache responseCache)
+  {
+    if (project == null)
+      throw new IllegalArgumentException("project cannot be null");
+
+    if (credentials == null)
+      throw new IllegalArgumentException("credentials cannot be null");
+
+    project_ = project;
+    baseUrl_ = BASE_URL_OVERRIDE != null ? BASE_URL_OVERRIDE : "https://dev.azure.com/" + ORGANIZATION + "/" + project;
+    credentials_ = credentials;
+    client_ = new RestClient(credentials_, responseCache);
+  }
+
+  /**
+   * Create an instance <em>representing</em> the Azure back-end.
+   *
+   * @param responseCache  Cache for recording or replaying back-end responses.
+   *                       Null if responses should not be cached. Note that
+   *                       only reads are cached; pushes always go to the back-end.
+   */
+  public Azure(ResponseCache responseCache)
+  {
+    this(PROJECT, newCredentialPool(), responseCache);
+  }
+
   /**
    * Create an instance <em>representing</em> the Azure back-end.
    */
   public Azure()
   {
-    // Nothing
+    this(null);
   }
 
   /**
-   * Process the attachments of the specified workItem, and upload the content from the
-   * corresponding YouTrack attachment and set the url accordingly.
+   * Create a pool of the configured Azure credentials.
    *
-   * @param workItem  Work item to process. Non-null.
+   * @return  A new credential pool. Never null.
    */
-  public void uploadAttachments(AzureWorkItem workItem)
+  public static CredentialPool newCredentialPool()
   {
-    assert workItem != null : "workItem cannot be null";
+    return new CredentialPool("Azure", AUTHORIZATION_HEADERS);
+  }
 
-    String baseUrl = BASE_URL + "/_apis/wit/attachments";
+  /**
+   * Return the name of the Azure project of this instance.
+   *
+   * @return  The Azure project. Never null.
+   */
+  public String getProject()
+  {
+    return project_;
+  }
 
-    int attachmentNo = 1;
-    for (AzureAttachment attachment : workItem.getAttachments()) {
+  /**
+   * Return the web URL of the specified work item.
+   *
+   * @param workItemId  ID of work item to get URL of.
+   * @return            The URL of the work item. Never null.
+   */
+  public String getWorkItemUrl(int workItemId)
+  {
+    return baseUrl_ + "/_workitems/edit/" + workItemId;
+  }
 
-      // Skip if there is no content
-      if (attachment.getContent() == null)
-        continue;
+  /**
+   * Return the email of the specified user.
+   *
+   * @param user          User to get email of. May be null.
+   * @param defaultEmail  Email to return if user or its email is null. Non-null.
+   * @return              The email of the user, or defaultEmail. Never null.
+   */
+  private static String getEmail(AzureUser user, String defaultEmail)
+  {
+    assert defaultEmail != null : "defaultEmail cannot be null";
+    return user != null && user.getEmail() != null ? user.getEmail() : defaultEmail;
+  }
 
-      String extension = attachment.getExtension();
+  /**
+   * Write a JSON patch "add" operation.
+   *
+   * @param generator  Generator to write to. Non-null.
+   * @param path       Path of value. Non-null.
+   * @param value      Value to add. String or Integer. Null to write JSON null.
+   */
+  private static void writeAddOperation(JsonGenerator generator, String path, Object value)
+  {
+    assert generator != null : "generator cannot be null";
+    assert path != null : "path cannot be null";
+
+    generator.writeStartObject();
+    generator.write("op", "add");
+    generator.write("path", path);
+    if (value instanceof Integer)
+      generator.write("value", ((Integer) value).intValue());
+    else if (value != null)
+      generator.write("value", value.toString());
+    else
+      generator.writeNull("value");
+    generator.writeEnd();
+  }
 
-      String fileName = "attachment-" + workItem.getUniqueId() + "-" + attachmentNo + "." + extension;
-      String urlString = baseUrl + "?filename=" + fileName + "&api-version=" + API_VERSION;
+  /**
+   * Write a JSON patch operation adding a relation.
+   *
+   * @param generator     Generator to write to. Non-null.
+   * @param relationType  Relation type, like "AttachedFile". Non-null.
+   * @param url           URL of relation target. Non-null.
+   */
+  private static void writeRelationOperation(JsonGenerator generator, String relationType, String url)
+  {
+    assert generator != null : "generator cannot be null";
+    assert relationType != null : "relationType cannot be null";
+    assert url != null : "url cannot be null";
+
+    generator.writeStartObject();
+    generator.write("op", "add");
+    generator.write("path", "/relations/-");
+    generator.writeStartObject("value");
+    generator.write("rel", relationType);
+    generator.write("url", url);
+    generator.writeEnd();
+    generator.writeEnd();
+  }
 
-      URL url = Util.newUrl(urlString);
+  /**
+   * Write a JSON request body straight into the request stream of the
+   * specified connection. The body is sent chunked, so it is never held
+   * in memory as a whole.
+   *
+   * @param connection  Connection to write to. Not yet connected. Non-null.
+   * @param body        Writer of the body. Non-null.
+   * @return            Number of bytes written.
+   * @throws IOException  If the write operation fails.
+   */
+  private static long writeBody(HttpURLConnection connection, Consumer<JsonGenerator> body)
+    throws IOException
+  {
+    assert connection != null : "connection cannot be null";
+    assert body != null : "body cannot be null";
+
+    connection.setDoOutput(true);
+    connection.setChunkedStreamingMode(0);
 
-      logger_.log(Level.INFO, "Uploading attachment: " + attachment + " to " + fileName);
+    CountingOutputStream outputStream = new CountingOutputStream(connection.getOutputStream());
+    try (JsonGenerator generator = GENERATOR_FACTORY.createGenerator(outputStream, StandardCharsets.UTF_8)) {
+      body.accept(generator);
+    }
 
+    return outputStream.nBytes_;
+  }
+
+  /**
+   * Send the specified push request to the back-end.
+   * <p>
+   * A request rejected with 429 (Too Many Requests) parks its credential and
+   * is retried with another, like reads, see RestClient. The body is written
+   * anew for each attempt.
+   *
+   * @param method       HTTP method, "POST" or "PATCH". PATCH is sent as POST with a method override. Non-null.
+   * @param urlString    URL of request. Non-null.
+   * @param contentType  Content type of body. Non-null.
+   * @param body         Writer of the request body. Non-null.
+   * @param reader       Reader of the response if successful. Null if the response is not needed.
+   * @param what         What is pushed, like "Comment of 4711". For logging. Non-null.
+   * @return             True if pushed successfully, false otherwise.
+   */
+  private boolean push(String method, String urlString, String contentType, BodyWriter body, ResponseReader reader, String what)
+  {
+    assert method != null : "method cannot be null";
+    assert urlString != null : "urlString cannot be null";
+    assert contentType != null : "contentType cannot be null";
+    assert body != null : "body cannot be null";
+    assert what != null : "what cannot be null";
+
+    URL url = Util.newUrl(urlString);
+
+    for (int attemptNo = 1; ; attemptNo++) {
       HttpURLConnection connection = null;
-      OutputStream outputStream = null;
-      InputStream inputStream = null;
+      RestClient.CountingInputStream inputStream = null;
+
+      CredentialPool.Credential credential = credentials_.acquire();
+      long startTime = System.nanoTime();
+      long nBytesOut = 0;
 
       try {
-        // Make connection
         connection = (HttpURLConnection) url.openConnection();
         connection.setRequestMethod("POST");
-        connection.setDoOutput(true);
-        connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
-        connection.setRequestProperty("Content-Type", "application/octet-stream");
+        if (method.equals("PATCH"))
+          connection.setRequestProperty("X-HTTP-Method-Override", "PATCH");
+        connection.setRequestProperty("Authorization", credential.getAuthorizationHeader());
+        connection.setRequestProperty("Content-Type", contentType);
         connection.setRequestProperty("Accept", "application/json");
 
-        // Upload file data
-        outputStream = connection.getOutputStream();
-        outputStream.write(attachment.getContent());
+        nBytesOut = body.write(connection);
 
-        // Capture response with destination URL
-        inputStream = connection.getInputStream();
-        JsonObject response = Json.createReader(inputStream).readObject();
+        if (RestClient.isRetry(connection, method, urlString, attemptNo))
+          continue;
 
-        String attachmentUrl = response.getString("url");
+        int responseCode = connection.getResponseCode();
+        if (responseCode >= 200 && responseCode < 300) {
+          if (reader != null) {
+            inputStream = new RestClient.CountingInputStream(connection.getInputStream());
+            reader.read(inputStream);
+          }
 
-        // Update attachment accordingly
-        attachment.setFileName(fileName);
-        attachment.setUrl(attachmentUrl);
-        attachmentNo++;
+          logger_.log(Level.INFO, () -> what + " pushed successfully");
+          return true;
+        }
+        else {
+          InputStream errorStream = connection.getErrorStream();
+          inputStream = errorStream != null ? new RestClient.CountingInputStream(errorStream) : null;
+          String error = inputStream != null ? Util.getError(inputStream) : null;
+          logger_.log(Level.INFO, () -> what + " push failed: " + responseCode + " " + error);
+          return false;
+        }
       }
       catch (IOException exception) {
-        logger_.log(Level.WARNING, "Attachment upload failed: " + attachment, exception);
+        logger_.log(Level.WARNING, what + " push failed", exception);
+        return false;
       }
       finally {
-        Util.close(outputStream);
+        Metrics.getInstance().recordRequest(method, urlString, connection, startTime, nBytesOut, inputStream != null ? inputStream.getNBytes() : 0L);
         Util.close(inputStream);
+        credentials_.release(credential, connection);
         Util.close(connection);
       }
     }
   }
 
+  /**
+   * Write the JSON patch body for creating the specified work item.
+   *
+   * @param workItem          Work item to write body of. Non-null.
+   * @param parentWorkItemId  ID of the parent work item to include the parent relation for.
+   *                          -1 if the parent relation is not included.
+   * @param generator         Generator to write to. Non-null.
+   */
+  void writeWorkItemBody(AzureWorkItem workItem, int parentWorkItemId, JsonGenerator generator)
+  {
+    assert workItem != null : "workItem cannot be null";
+    assert generator != null : "generator cannot be null";
+
+    generator.writeStartArray();
+
+    for (PatchField field : WORK_ITEM_FIELDS)
+      writeAddOperation(generator, field.path_, field.value_.apply(workItem));
+
+    // Area path is within the project of this instance
+    writeAddOperation(generator, "/fields/System.AreaPath", project_ + "\\\\" + Objects.requireNonNullElse(workItem.getAreaPath(), "<default area>"));
+
+    // Parent relation, so we save a link push later
+    if (parentWorkItemId != -1)
+      writeRelationOperation(generator, "System.LinkTypes.Hierarchy-Reverse", baseUrl_ + "/_apis/wit/workItems/" + parentWorkItemId);
+
+    generator.writeEnd();
+  }
+
+  /**
+   * Process the attachments of the specified workItem, and upload the content from the
+   * corresponding YouTrack attachment and set the url accordingly. Attachments that
+   * already have a URL, like uploaded by a previous run, are not uploaded again.
+   *
+   * @param workItem  Work item to process. Non-null.
+   * @return          True if all attachments have been uploaded, false otherwise.
+   */
+  public boolean uploadAttachments(AzureWorkItem workItem)
+  {
+    assert workItem != null : "workItem cannot be null";
+
+    String baseUrl = baseUrl_ + "/_apis/wit/attachments";
+
+    boolean isUploaded = true;
+
+    int attachmentNo = 1;
+    for (AzureAttachment attachment : workItem.getAttachments()) {
+      if (attachment.getUrl() != null)
+        continue;
+
+      AttachmentContent content = attachment.getContent();
+
+      // Skip if there is no content, i.e. the download failed
+      if (content == null) {
+        isUploaded = false;
+        continue;
+      }
+
+      String extension = attachment.getExtension();
+
+      String fileName = "attachment-" + workItem.getUniqueId() + "-" + attachmentNo + "." + extension;
+      String urlString = baseUrl + "?filename=" + fileName + "&api-version=" + API_VERSION;
+
+      logger_.log(Level.INFO, () -> "Uploading attachment: " + attachment + " to " + fileName);
+
+      boolean isPushed = push("POST", urlString, "application/octet-stream", connection -> {
+        // Streamed, as the connection would otherwise buffer it all in memory
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(content.getSize());
+        try (OutputStream outputStream = connection.getOutputStream();
+             InputStream contentStream = content.openStream()) {
+          contentStream.transferTo(outputStream);
+        }
+        return content.getSize();
+      }, inputStream -> {
+        // Capture response with destination URL, and update attachment accordingly
+        JsonObject response = Json.createReader(inputStream).readObject();
+        attachment.setFileName(fileName);
+        attachment.setUrl(response.getString("url"));
+      }, "Attachment " + fileName);
+
+      if (isPushed)
+        attachmentNo++;
+      else
+        isUploaded = false;
+    }
+
+    return isUploaded;
+  }
+
+  /**
+   * Push the specified attachment of the given work item.
+   * This associates the work item with the attachment. The attachment itself
+   * must be uploaded separately, see uploadAttachments().
+   *
+   * @param workItem    Work item of attachment to push. Non-null.
+   * @param attachment  Attachment to push. Non-null.
+   * @return            True if the attachment was pushed successfully, false otherwise.
+   * @throws IllegalArgumentException  If workItem or attachment is null.
+   */
+  public boolean pushAttachment(AzureWorkItem workItem, AzureAttachment attachment)
+  {
+    if (workItem == null)
+      throw new IllegalArgumentException("workItem cannot be null");
+
+    if (attachment == null)
+      throw new IllegalArgumentException("attachment cannot be null");
+
+    int id = workItem.getId();
+
+    // Not uploaded
+    if (attachment.getUrl() == null) {
+      logger_.log(Level.INFO, () -> "Attachment not uploaded: " + attachment);
+      return false;
+    }
+
+    String urlString = baseUrl_ + "/_apis/wit/workitems/" + id + "?api-version=" + API_VERSION;
+
+    return push("PATCH", urlString, "application/json-patch+json", connection -> writeBody(connection, generator -> {
+      generator.writeStartArray();
+      writeRelationOperation(generator, "AttachedFile", attachment.getUrl());
+      generator.writeEnd();
+    }), null, "Attachment of " + id);
+  }
+
   /**
    * Push the attachments of the specified work item.
    * This associates the work item with the given attachment. The attachments themselves
    * must be uploaded separately, see uploadAttachments().
    *
    * @param workItem  Work item of attachments to push. Non-null.
+   * @return          True if all attachments were pushed successfully, false otherwise.
    * @throws  IllegalArgumentException  If workItem is null.
    */
-  public void pushAttachments(AzureWorkItem workItem)
+  public boolean pushAttachments(AzureWorkItem workItem)
   {
     if (workItem == null)
       throw new IllegalArgumentException("workItem cannot be null");
 
     int id = workItem.getId();
 
-    String urlString = BASE_URL + "/_apis/wit/workitems/" + id + "?api-version=" + API_VERSION;
-    URL url = Util.newUrl(urlString);
+    boolean isPushed = true;
 
     int nAttachments = workItem.getAttachments().size();
     int attachmentNo = 1;
     for (AzureAttachment attachment : workItem.getAttachments()) {
-      logger_.log(Level.INFO, "Push attachment " + (attachmentNo++) + ":" + nAttachments  + " to " + id);
+      int pushNo = attachmentNo++;
+      logger_.log(Level.INFO, () -> "Push attachment " + pushNo + ":" + nAttachments  + " to " + id);
 
-      if (attachment.getUrl() == null)
-        continue;
+      if (!pushAttachment(workItem, attachment))
+        isPushed = false;
+    }
 
-      JsonArrayBuilder bodyBuilder = Json.createArrayBuilder()
-                                     .add(Json.createObjectBuilder()
-                                          .add("op", "add")
-                                          .add("path", "/relations/-")
-                                          .add("value", Json.createObjectBuilder()
-                                               .add("rel", "AttachedFile")
-                                               .add("url", attachment.getUrl())));
+    return isPushed;
+  }
 
-      String bodyJson = bodyBuilder.build().toString();
+  /**
+   * Push the specified comment to the given work item.
+   *
+   * @param workItem  Work item to push comment to. Non-null.
+   * @param comment   Comment to push. Non-null.
+   * @return          True if the comment was pushed successfully, false otherwise.
+   * @throws IllegalArgumentException  If workItem or comment is null.
+   */
+  public boolean pushComment(AzureWorkItem workItem, AzureComment comment)
+  {
+    if (workItem == null)
+      throw new IllegalArgumentException("workItem cannot be null");
 
-      HttpURLConnection connection = null;
-      OutputStream outputStream = null;
-      InputStream inputStream = null;
+    if (comment == null)
+      throw new IllegalArgumentException("comment cannot be null");
 
-      try {
-        connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("X-HTTP-Method-Override", "PATCH");
-        connection.setRequestProperty("Content-Type", "application/json-patch+json");
-        connection.setRequestProperty("Accept", "application/json");
-        connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
-        connection.setDoOutput(true);
+    int id = workItem.getId();
 
-        outputStream = connection.getOutputStream();
-        outputStream.write(bodyJson.getBytes(StandardCharsets.UTF_8));
+    String urlString = baseUrl_ + "/_apis/wit/workItems/" + id + "/comments?api-version=" + API_VERSION;
 
-        int responseCode = connection.getResponseCode();
-        if (responseCode >= 200 && responseCode < 300) {
-          logger_.log(Level.INFO, "Attachment pushed successfully");
-        }
-        else {
-          inputStream = connection.getInputStream();
-          String error = Util.getError(inputStream);
-          logger_.log(Level.INFO, "Attachment push failed: " + responseCode + " " + error);
-        }
-      }
-      catch (IOException exception) {
-        logger_.log(Level.WARNING, "Attachment push failed", exception);
-      }
-      finally {
-        Util.close(outputStream);
-        Util.close(inputStream);
-        Util.close(connection);
-      }
-    }
+    String text = comment.getExtendedText();
+
+    return push("POST", urlString, "application/json", connection -> writeBody(connection, generator -> {
+      generator.writeStartObject();
+      generator.write("text", text);
+      generator.writeEnd();
+    }), null, "Comment of " + id);
   }
 
   /**
    * Push all comments associated with the specified work item.
    *
    * @param workItem  Work item of comments to push. Non-null.
+   * @return          True if all comments were pushed successfully, false otherwise.
    * @throws IllegalArgumentException  If workItem is null.
    */
-  public void pushComments(AzureWorkItem workItem)
+  public boolean pushComments(AzureWorkItem workItem)
   {
     if (workItem == null)
       throw new IllegalArgumentException("workItem cannot be null");
 
     int id = workItem.getId();
 
-    String urlString = BASE_URL + "/_apis/wit/workItems/" + id + "/comments?api-version=" + API_VERSION;
-    URL url = Util.newUrl(urlString);
+    boolean isPushed = true;
 
     int nComments = workItem.getComments().size();
     int commentNo = 1;
     for (AzureComment comment : workItem.getComments()) {
-      logger_.log(Level.INFO, "Push comment " + (commentNo++) + ":" + nComments + " to " + id);
-
-      String text = comment.getExtendedText();
-
-      JsonObject bodyJson = Json.createObjectBuilder()
-                            .add("text", text)
-                            .build();
-
-      HttpURLConnection connection = null;
-      OutputStream outputStream = null;
-      InputStream inputStream = null;
-      try {
-        connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
-        connection.setRequestProperty("Accept", "application/json");
-        connection.setRequestProperty("Content-Type", "application/json");
-        connection.setDoOutput(true);
-
-        outputStream = connection.getOutputStream();
-        outputStream.write(bodyJson.toString().getBytes(StandardCharsets.UTF_8));
-
-        int responseCode = connection.getResponseCode();
-        if (responseCode >= 200 && responseCode < 300) {
-          logger_.log(Level.INFO, "Comment pushed successfully");
-        }
-        else {
-          inputStream = connection.getInputStream();
-          String error = Util.getError(inputStream);
-          logger_.log(Level.INFO, "Comment pushed failed: " + responseCode + " " + error);
-        }
-      }
-      catch (IOException exception) {
-        logger_.log(Level.WARNING, "Unable to push comment: " + comment, exception);
-      }
-      finally {
-        Util.close(outputStream);
-        Util.close(inputStream);
-        Util.close(connection);
-      }
+      int pushNo = commentNo++;
+      logger_.log(Level.INFO, () -> "Push comment " + pushNo + ":" + nComments + " to " + id);
+      if (!pushComment(workItem, comment))
+        isPushed = false;
     }
+
+    return isPushed;
   }
 
   /**
@@ -265,58 +653,50 @@ public final class Azure
    * to the correct state.
    *
    * @param workItem  Work item to update state on. Non-null.
+   * @return          True if the state was pushed successfully, false otherwise.
    * @throws IllegalArgumentException  If workItem is null.
    */
-  public void pushState(AzureWorkItem workItem)
+  public boolean pushState(AzureWorkItem workItem)
   {
+    if (workItem == null)
+      throw new IllegalArgumentException("workItem cannot be null");
+
     String state = workItem.getState();
 
-    logger_.log(Level.INFO, "Setting state of " + workItem.getId() + " to '" + state + "'");
+    logger_.log(Level.INFO, () -> "Setting state of " + workItem.getId() + " to '" + state + "'");
 
-    String urlString = BASE_URL + "/_apis/wit/workitems/" + workItem.getId() + "?api-version=" + API_VERSION;
-    URL url = Util.newUrl(urlString);
+    String urlString = baseUrl_ + "/_apis/wit/workitems/" + workItem.getId() + "?api-version=" + API_VERSION;
 
-    HttpURLConnection connection = null;
-    OutputStream outputStream = null;
-    InputStream inputStream = null;
+    return push("PATCH", urlString, "application/json-patch+json", connection -> writeBody(connection, generator -> {
+      generator.writeStartArray();
+      writeAddOperation(generator, "/fields/System.State", state);
+      generator.writeEnd();
+    }), null, "State of " + workItem.getId());
+  }
 
-    try {
-      connection = (HttpURLConnection) url.openConnection();
-      connection.setRequestMethod("POST");
-      connection.setRequestProperty("X-HTTP-Method-Override", "PATCH");
-      connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
-      connection.setRequestProperty("Content-Type", "application/json-patch+json");
-      connection.setRequestProperty("Accept", "application/json");
-      connection.setDoOutput(true);
-
-      JsonArrayBuilder bodyBuilder = Json.createArrayBuilder()
-                                     .add(Json.createObjectBuilder() // State
-                                          .add("op", "add")
-                                          .add("path", "/fields/System.State")
-                                          .add("value", state));
-      String bodyJson = bodyBuilder.build().toString();
-
-      outputStream = connection.getOutputStream();
-      outputStream.write(bodyJson.getBytes(StandardCharsets.UTF_8));
-
-      int responseCode = connection.getResponseCode();
-      if (responseCode >= 200 && responseCode < 300) {
-        logger_.log(Level.INFO, "State pushed successfully: " + workItem.getId());
-      }
-      else {
-        inputStream = connection.getInputStream();
-        String error = Util.getError(inputStream);
-        logger_.log(Level.INFO, "State push failed: " + responseCode + " " + error);
-      }
-    }
-    catch (IOException exception) {
-      logger_.log(Level.WARNING, "State push failed", exception);
-    }
-    finally {
-      Util.close(outputStream);
-      Util.close(inputStream);
-      Util.close(connection);
-    }
+  /**
+   * Push the description and the steps to reproduce of the specified work
+   * item, already pushed, so that these are updated after the fact.
+   *
+   * @param workItem  Work item to update description of. Non-null.
+   * @return          True if the description was pushed successfully, false otherwise.
+   * @throws IllegalArgumentException  If workItem is null.
+   */
+  public boolean pushDescription(AzureWorkItem workItem)
+  {
+    if (workItem == null)
+      throw new IllegalArgumentException("workItem cannot be null");
+
+    int id = workItem.getId();
+
+    String urlString = baseUrl_ + "/_apis/wit/workitems/" + id + "?api-version=" + API_VERSION + "&bypassRules=true";
+
+    return push("PATCH", urlString, "application/json-patch+json", connection -> writeBody(connection, generator -> {
+      generator.writeStartArray();
+      writeAddOperation(generator, "/fields/System.Description", workItem.getExtendedDescription());
+      writeAddOperation(generator, "/fields/Microsoft.VSTS.TCM.ReproSteps", workItem.getStepsToReproduce());
+      generator.writeEnd();
+    }), null, "Description of " + id);
   }
 
   /**
@@ -336,23 +716,12 @@ public final class Azure
     assert targetUrl != null : "targetUrl cannot be null";
     assert relationType != null : "relationType cannot be null";
 
-    String urlString = BASE_URL + "/_apis/wit/workitems/" + workItemId + "?$expand=relations&api-version=" + API_VERSION;
-    URL url = Util.newUrl(urlString);
-
-    HttpURLConnection connection = null;
-    InputStream inputStream = null;
+    String urlString = baseUrl_ + "/_apis/wit/workitems/" + workItemId + "?$expand=relations&api-version=" + API_VERSION;
 
     String targetUrlNormalized = Util.normalizeUrl(targetUrl);
 
     try {
-      connection = (HttpURLConnection) url.openConnection();
-      connection.setRequestMethod("GET");
-      connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
-      connection.setRequestProperty("Accept", "application/json");
-
-      inputStream = connection.getInputStream();
-      JsonReader reader = Json.createReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-      JsonObject jsonResponse = reader.readObject();
+      JsonObject jsonResponse = client_.getJson(urlString).asJsonObject();
       JsonArray relations = jsonResponse.getJsonArray("relations");
 
       if (relations != null) {
@@ -370,10 +739,6 @@ public final class Azure
     catch (IOException exception) {
       logger_.log(Level.WARNING, "Error while checking for existing link", exception);
     }
-    finally {
-      Util.close(inputStream);
-      Util.close(connection);
-    }
 
     return false; // Link does not exist
   }
@@ -382,267 +747,115 @@ public final class Azure
    * Push link information for the specified work item.
    *
    * @param workItem  Work item to have link information pushed. Non-null.
+   * @return          True if all links were pushed successfully, false otherwise.
+   * @throws IllegalArgumentException  If workItem is null.
    */
-  public void pushLinks(AzureWorkItem workItem)
+  public boolean pushLinks(AzureWorkItem workItem)
   {
     if (workItem == null)
       throw new IllegalArgumentException("workItem cannot be null");
 
+    return pushLinks(workItem, workItem.getLinks());
+  }
+
+  /**
+   * Push the specified links of the given work item. The linked work
+   * items may be in other projects of the organization.
+   *
+   * @param workItem  Work item to push links of. Non-null.
+   * @param links     Links to push. Non-null.
+   * @return          True if all links were pushed successfully, false otherwise.
+   * @throws IllegalArgumentException  If workItem or links is null.
+   */
+  public boolean pushLinks(AzureWorkItem workItem, Collection<AzureLink> links)
+  {
+    if (workItem == null)
+      throw new IllegalArgumentException("workItem cannot be null");
+
+    if (links == null)
+      throw new IllegalArgumentException("links cannot be null");
+
     int id = workItem.getId();
 
-    for (AzureLink link : workItem.getLinks()) {
+    boolean isPushed = true;
+
+    for (AzureLink link : links) {
       AzureWorkItem linkedWorkItem = link.getLinkedWorkItem();
-      String targetUrl = BASE_URL + "/_apis/wit/workItems/" + linkedWorkItem.getId();
-
-      String relationType = null;
-      switch (link.getType()) {
-        case DUPLICATE  : relationType = "System.LinkTypes.Duplicate-Reverse"; break;
-        case DEPENDS_ON : relationType = "System.LinkTypes.Dependency-Reverse"; break;
-        case SUBTASK    : relationType = "System.LinkTypes.Hierarchy-Reverse"; break;
-        case RELATED    : relationType = "System.LinkTypes.Related"; break;
-        default :
-          assert false : "Unexpected link type: " + link.getType();
-      }
+
+      // Parent relation already included when the work item was created
+      if (link.getType() == AzureLink.Type.SUBTASK && workItem.isParentLinked() && linkedWorkItem == workItem.getParentWorkItem())
+        continue;
+
+      String targetUrl = baseUrl_ + "/_apis/wit/workItems/" + linkedWorkItem.getId();
+      String relationType = getRelationType(link.getType());
 
       if (linkExists(id, targetUrl, relationType)) {
-        logger_.log(Level.INFO, "Link already exists: " + id);
+        logger_.log(Level.INFO, () -> "Link already exists: " + id);
         continue;
       }
 
-      JsonArrayBuilder bodyBuilder = Json.createArrayBuilder()
-                                     .add(Json.createObjectBuilder()
-                                          .add("op", "add")
-                                          .add("path", "/relations/-")
-                                     .add("value", Json.createObjectBuilder()
-                                          .add("rel", relationType)
-                                          .add("url", targetUrl)
-                                     .build()));
-      String bodyJson = bodyBuilder.build().toString();
-
-      String urlString = BASE_URL + "/_apis/wit/workitems/" + id + "?api-version=" + API_VERSION;
-      URL url = Util.newUrl(urlString);
+      String urlString = baseUrl_ + "/_apis/wit/workitems/" + id + "?api-version=" + API_VERSION;
 
-      HttpURLConnection connection = null;
-      OutputStream outputStream = null;
-      InputStream inputStream = null;
+      boolean isLinkPushed = push("PATCH", urlString, "application/json-patch+json", connection -> writeBody(connection, generator -> {
+        generator.writeStartArray();
+        writeRelationOperation(generator, relationType, targetUrl);
+        generator.writeEnd();
+      }), null, "Link " + id + " -> " + linkedWorkItem.getId());
 
-      try {
-        connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("X-HTTP-Method-Override", "PATCH");
-        connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
-        connection.setRequestProperty("Content-Type", "application/json-patch+json");
-        connection.setRequestProperty("Accept", "application/json");
-        connection.setDoOutput(true);
+      if (!isLinkPushed)
+        isPushed = false;
+    }
 
-        outputStream = connection.getOutputStream();
-        outputStream.write(bodyJson.getBytes(StandardCharsets.UTF_8));
+    return isPushed;
+  }
 
-        int responseCode = connection.getResponseCode();
-        if (responseCode >= 200 && responseCode < 300) {
-          logger_.log(Level.INFO, "Link pushed successfully: " + id + " -> " + linkedWorkItem.getId());
-        }
-        else {
-          inputStream = connection.getInputStream();
-          String error = Util.getError(inputStream);
-          logger_.log(Level.INFO, "Link push failed: " + id + " -> " + linkedWorkItem.getId() + ": " + responseCode + " " + error);
-        }
-      }
-      catch (IOException exception) {
-        logger_.log(Level.WARNING, "Link push failed: " + id + " -> " + linkedWorkItem.getId(), exception);
-      }
-      finally {
-        Util.close(inputStream);
-        Util.close(outputStream);
-        Util.close(connection);
-      }
+  /**
+   * Return the Azure relation type of the specified link type, as seen
+   * from the work item the link is pushed to.
+   *
+   * @param linkType  Link type to get relation type of. Non-null.
+   * @return          The relation type, like "System.LinkTypes.Related". Never null.
+   */
+  static String getRelationType(AzureLink.Type linkType)
+  {
+    assert linkType != null : "linkType cannot be null";
+
+    switch (linkType) {
+      case DUPLICATE  : return "System.LinkTypes.Duplicate-Reverse";
+      case DEPENDS_ON : return "System.LinkTypes.Dependency-Reverse";
+      case SUBTASK    : return "System.LinkTypes.Hierarchy-Reverse";
+      case RELATED    : return "System.LinkTypes.Related";
+      default :
+        throw new AssertionError("Unexpected link type: " + linkType);
     }
   }
 
   /**
    * Push the specified Azure work item to the back-end.
+   * The ID of the work item is set if successful.
    *
    * @param workItem  Work item to push. Non-null.
-   * @throws IllegalArgumentEAxception  If workItem is null.
+   * @return          True if the work item was pushed successfully, false otherwise.
+   * @throws IllegalArgumentException  If workItem is null.
    */
-  public void pushWorkItem(AzureWorkItem workItem)
+  public boolean pushWorkItem(AzureWorkItem workItem)
   {
     if (workItem == null)
       throw new IllegalArgumentException("workItem cannot be null");
 
-    String urlString = BASE_URL + "/_apis/wit/workitems/$" + Util.urlEncode(workItem.getWorkItemType()) + "?api-version=" + API_VERSION + "&bypassRules=true";
-    URL url = Util.newUrl(urlString);
-
-    String title = workItem.getTitle();
-    String description = workItem.getExtendedDescription();
-    String assignedToEmail = workItem.getAssignedTo() != null && workItem.getAssignedTo().getEmail() != null ? workItem.getAssignedTo().getEmail() : "";
-    String createdByEmail = workItem.getCreatedBy().getEmail();
-    String testerEmail = workItem.getTester() != null && workItem.getTester().getEmail() != null ? workItem.getTester().getEmail() : "";
-    String tags = workItem.getTagsAsString();
-    String project = workItem.getProject();
-    String product = workItem.getProduct();
-    boolean isBlocked = workItem.isBlocked();
-    int priority = workItem.getPriority();
-    String activity = workItem.getActivity();
-
-    String systemInfo = workItem.getSystemInfo();
-    if (systemInfo == null)
-      systemInfo = "";
-
-    String foundIn = workItem.getFoundIn();
-    if (foundIn == null)
-      foundIn = "";
-
-    String stepsToReproduce = workItem.getStepsToReproduce();
-
-    String startDate = Util.toString(workItem.getStartDate());
-    if (startDate == null)
-      startDate = "";
-
-    String targetDate = Util.toString(workItem.getTargetDate());
-    if (targetDate == null)
-      targetDate = "";
-
-
-    String targetRelease = workItem.getTargetRelease();
-    if (targetRelease == null)
-      targetRelease = "";
-
-    String plcVersion = workItem.getPlcVersion();
-    if (plcVersion == null)
-      plcVersion = "";
-
-    String targetDtApp = workItem.getTargetDtApp();
-    if (targetDtApp == null)
-      targetDtApp = "";
-
-    String areaPath = workItem.getAreaPath();
-    if (areaPath == null)
-      areaPath = "<default area>";
-
-    // Got a NPE, not sure why
-    if (createdByEmail == null)
-      createdByEmail = "<default email>";
-
-    /*
-    */
-
-    // Build JSON PATCH body
-    JsonArrayBuilder bodyBuilder = Json.createArrayBuilder()
-                                   .add(Json.createObjectBuilder() // Title
-                                        .add("op", "add")
-                                        .add("path", "/fields/System.Title")
-                                        .add("value", title))
-                                   .add(Json.createObjectBuilder() // Area
-                                        .add("op", "add")
-                                        .add("path", "/fields/System.AreaPath")
-                                        .add("value", PROJECT + "\\\\" + areaPath))
-                                   .add(Json.createObjectBuilder() // Description
-                                        .add("op", "add")
-                                        .add("path", "/fields/System.Description")
-                                        .add("value", description))
-                                   .add(Json.createObjectBuilder() // Tags
-                                        .add("op", "add")
-                                        .add("path", "/fields/System.Tags")
-                                        .add("value", tags))
-                                   .add(Json.createObjectBuilder() // Blocked
-                                        .add("op", "add")
-                                        .add("path", "/fields/Microsoft.VSTS.CMMI.Blocked")
-                                        .add("value", isBlocked ? "Yes" : "No"))
-                                   .add(Json.createObjectBuilder() // Project
-                                        .add("op", "add")
-                                        .add("path", "/fields/Custom.Project")
-                                        .add("value", project))
-                                   .add(Json.createObjectBuilder() // Product
-                                        .add("op", "add")
-                                        .add("path", "/fields/Custom.Product")
-                                        .add("value", product))
-                                   .add(Json.createObjectBuilder() // Tester
-                                        .add("op", "add")
-                                        .add("path", "/fields/Custom.Tester")
-                                        .add("value", testerEmail))
-                                   .add(Json.createObjectBuilder() // Priority
-                                        .add("op", "add")
-                                        .add("path", "/fields/Microsoft.VSTS.Common.Priority")
-                                        .add("value", priority))
-                                   .add(Json.createObjectBuilder() // Activity
-                                        .add("op", "add")
-                                        .add("path", "/fields/Microsoft.VSTS.Common.Activity")
-                                        .add("value", activity))
-                                   .add(Json.createObjectBuilder() // Created by
-                                        .add("op", "add")
-                                        .add("path", "/fields/System.CreatedBy")
-                                        .add("value", createdByEmail))
-                                   .add(Json.createObjectBuilder() // Assigned to
-                                        .add("op", "add")
-                                        .add("path", "/fields/System.AssignedTo")
-                                        .add("value", assignedToEmail))
-                                   .add(Json.createObjectBuilder() // Start Date
-                                        .add("op", "add")
-                                        .add("path", "/fields/Microsoft.VSTS.Scheduling.StartDate")
-                                        .add("value", startDate))
-                                   .add(Json.createObjectBuilder() // Target Date
-                                        .add("op", "add")
-                                        .add("path", "/fields/Microsoft.VSTS.Scheduling.TargetDate")
-                                        .add("value", targetDate))
-                                   .add(Json.createObjectBuilder() // System Info
-                                        .add("op", "add")
-                                        .add("path", "/fields/Microsoft.VSTS.TCM.SystemInfo")
-                                        .add("value", systemInfo))
-                                   .add(Json.createObjectBuilder() // Found in
-                                        .add("op", "add")
-                                        .add("path", "/fields/Microsoft.VSTS.CMMI.FoundInEnvironment")
-                                        .add("value", foundIn))
-                                   .add(Json.createObjectBuilder() // Steps to reproduce
-                                        .add("op", "add")
-                                        .add("path", "/fields/Microsoft.VSTS.TCM.ReproSteps")
-                                        .add("value", stepsToReproduce));
-
-    String bodyJson = bodyBuilder.build().toString();
-
-    HttpURLConnection connection = null;
-    OutputStream outputStream = null;
-    InputStream inputStream = null;
+    String urlString = baseUrl_ + "/_apis/wit/workitems/$" + Util.urlEncode(workItem.getWorkItemType()) + "?api-version=" + API_VERSION + "&bypassRules=true";
 
-    try {
-      connection = (HttpURLConnection) url.openConnection();
-      connection.setRequestMethod("POST");
-      connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
-      connection.setRequestProperty("Content-Type", "application/json-patch+json");
-      connection.setRequestProperty("Accept", "application/json");
-      connection.setDoOutput(true);
-
-      outputStream = connection.getOutputStream();
-      outputStream.write(bodyJson.getBytes(StandardCharsets.UTF_8));
+    // Parent relation is included if the parent is already created. Decided once
+    // here, as the parent may be created by another thread while we retry
+    AzureWorkItem parentWorkItem = workItem.getParentWorkItem();
+    int parentWorkItemId = parentWorkItem != null ? parentWorkItem.getId() : -1;
 
+    return push("POST", urlString, "application/json-patch+json", connection -> writeBody(connection, generator -> writeWorkItemBody(workItem, parentWorkItemId, generator)), inputStream -> {
       // To get the ID of the created work item
-      inputStream = connection.getInputStream();
-
-      int responseCode = connection.getResponseCode();
-      if (responseCode >= 200 && responseCode < 300) {
-        JsonObject response = Json.createReader(inputStream).readObject();
-        int id = response.getInt("id");
-        workItem.setId(id);
-
-        logger_.log(Level.INFO, "WorkItem push successfully: " + id);
-      }
-      else {
-        inputStream = connection.getInputStream();
-        String error = Util.getError(inputStream);
-        logger_.log(Level.INFO, "WorkItem push failed: " + responseCode + " " + error);
-      }
-    }
-    catch (IOException exception) {
-      if (connection.getErrorStream() != null)
-        System.out.println(Util.getError(connection.getErrorStream()));
-
-      logger_.log(Level.WARNING, "WorkItem push failed", exception);
-    }
-    finally {
-      Util.close(outputStream);
-      Util.close(inputStream);
-      Util.close(connection);
-    }
+      JsonObject response = Json.createReader(inputStream).readObject();
+      workItem.setId(response.getInt("id"));
+      workItem.setParentLinked(parentWorkItemId != -1);
+    }, "Work item " + workItem.getUniqueId());
   }
 
   /**
@@ -655,8 +868,7 @@ public final class Azure
     int start = 1000;
     int batchSize = 10000;
 
-    String urlString = BASE_URL + "/_apis/wit/wiql?api-version=7.0"; // + API_VERSION;
-    URL url = Util.newUrl(urlString);
+    String urlString = baseUrl_ + "/_apis/wit/wiql?api-version=7.0"; // + API_VERSION;
 
     List<Integer> workItemIds = new ArrayList<>();
 
@@ -666,36 +878,15 @@ public final class Azure
                    "FROM " +
                    "  WorkItems " +
                    "WHERE " +
-                   "  [System.TeamProject] = '" + PROJECT + "'" + " AND " +
+                   "  [System.TeamProject] = '" + project_ + "'" + " AND " +
                    "  [System.IsDeleted] <> true" + " AND " +
                    "  [System.Id] >= " + start + " AND " +
                    "  [System.Id] < " + (start + batchSize);
 
       JsonObject query = Json.createObjectBuilder().add("query", sql).build();
 
-      HttpURLConnection connection = null;
-      InputStream responseStream = null;
-      InputStream errorStream = null;
-
       try {
-        connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
-        connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-        connection.setRequestProperty("Accept", "application/json");
-        connection.setDoOutput(true);
-
-        try (OutputStream outputStream = connection.getOutputStream();
-             JsonWriter jsonWriter = Json.createWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8))) {
-          jsonWriter.write(query);
-        }
-
-        // Read response
-        responseStream = connection.getInputStream();
-        InputStreamReader utf8Reader = new InputStreamReader(responseStream, StandardCharsets.UTF_8);
-        JsonReader reader = Json.createReader(utf8Reader);
-
-        JsonObject queryResponse = reader.readObject();
+        JsonObject queryResponse = client_.query(urlString, query).asJsonObject();
         JsonArray workItemsArray = queryResponse.getJsonArray("workItems");
 
         // Check if done
@@ -710,13 +901,7 @@ public final class Azure
         start += batchSize;
       }
       catch (IOException exception) {
-        errorStream = connection.getErrorStream();
-        String error = Util.getError(errorStream);
-        logger_.log(Level.WARNING, "Unable to get IDs: " + error, exception);
-      }
-      finally {
-        Util.close(responseStream);
-        Util.close(connection);
+        logger_.log(Level.WARNING, "Unable to get IDs", exception);
       }
     }
 
@@ -754,24 +939,10 @@ public final class Azure
 
       start += batchSize;
 
-      String urlString = BASE_URL + "/_apis/wit/workitems?ids=" + ids + "&$expand=all&api-version=" + API_VERSION;
-      URL url = Util.newUrl(urlString);
-
-      HttpURLConnection connection = null;
-      InputStream responseStream = null;
-      InputStream errorStream = null;
+      String urlString = baseUrl_ + "/_apis/wit/workitems?ids=" + ids + "&$expand=all&api-version=" + API_VERSION;
 
       try {
-        connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("GET");
-        connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
-        connection.setRequestProperty("Accept", "application/json");
-
-        responseStream = connection.getInputStream();
-        InputStreamReader utf8Reader = new InputStreamReader(responseStream, StandardCharsets.UTF_8);
-        JsonReader reader = Json.createReader(utf8Reader);
-        JsonObject response = reader.readObject();
-        reader.close();
+        JsonObject response = client_.getJson(urlString).asJsonObject();
 
         JsonArray items = response.getJsonArray("value");
 
@@ -782,16 +953,8 @@ public final class Azure
         }
       }
       catch (IOException exception) {
-        errorStream = connection.getErrorStream();
-        System.out.println(Util.getError(errorStream));
-
         logger_.log(Level.WARNING, "Error while pulling Azure DevOps issues", exception);
       }
-      finally {
-        Util.close(errorStream);
-        Util.close(responseStream);
-        Util.close(connection);
-      }
     }
   }
 
@@ -803,24 +966,10 @@ public final class Azure
    */
   private AzureWorkItem pullWorkItem(String id)
   {
-    String urlString = BASE_URL + "/_apis/wit/workitems/" + id + "?$expand=all&api-version=" + API_VERSION;
-    URL url = Util.newUrl(urlString);
-
-    HttpURLConnection connection = null;
-    InputStream responseStream = null;
-    InputStream errorStream = null;
+    String urlString = baseUrl_ + "/_apis/wit/workitems/" + id + "?$expand=all&api-version=" + API_VERSION;
 
     try {
-      connection = (HttpURLConnection) url.openConnection();
-      connection.setRequestMethod("GET");
-      connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
-      connection.setRequestProperty("Accept", "application/json");
-
-      responseStream = connection.getInputStream();
-      InputStreamReader utf8Reader = new InputStreamReader(responseStream, StandardCharsets.UTF_8);
-      JsonReader reader = Json.createReader(utf8Reader);
-      JsonObject response = reader.readObject();
-      reader.close();
+      JsonObject response = client_.getJson(urlString).asJsonObject();
 
       // System.out.println(Util.toPretty(response));
 
@@ -828,15 +977,50 @@ public final class Azure
       return workItem;
     }
     catch (IOException exception) {
-      errorStream = connection.getErrorStream();
-      logger_.log(Level.WARNING, "Error while pulling Azure DevOps issues: \n" + Util.getError(errorStream), exception);
+      logger_.log(Level.WARNING, "Error while pulling Azure DevOps issues", exception);
       return null;
     }
-    finally {
-      Util.close(errorStream);
-      Util.close(responseStream);
-      Util.close(connection);
+  }
+
+  /**
+   * Pull the specified work items, with all fields and relations, in one request.
+   *
+   * @param workItemIds  IDs of work items to pull. Non-null. At most WORK_ITEM_BATCH_SIZE.
+   * @return             The work items as returned by the back-end. Work items not found are
+   *                     not included. Never null.
+   * @throws IllegalArgumentException  If workItemIds is null or too large.
+   * @throws IOException  If the request failed.
+   */
+  public List<JsonObject> pullWorkItemBatch(List<Integer> workItemIds)
+    throws IOException
+  {
+    if (workItemIds == null)
+      throw new IllegalArgumentException("workItemIds cannot be null");
+
+    if (workItemIds.size() > WORK_ITEM_BATCH_SIZE)
+      throw new IllegalArgumentException("Too many work items: " + workItemIds.size());
+
+    String urlString = baseUrl_ + "/_apis/wit/workitemsbatch?api-version=7.0";
+
+    JsonArrayBuilder idsBuilder = Json.createArrayBuilder();
+    for (int workItemId : workItemIds)
+      idsBuilder.add(workItemId);
+
+    // Fields cannot be selected when relations are expanded, so all are returned
+    JsonObject query = Json.createObjectBuilder()
+      .add("ids", idsBuilder)
+      .add("$expand", "Relations")
+      .add("errorPolicy", "omit")
+      .build();
+
+    List<JsonObject> workItems = new ArrayList<>();
+    for (JsonValue value : client_.query(urlString, query).asJsonObject().getJsonArray("value")) {
+      // Omitted (not found) work items are returned as null
+      if (value.getValueType() == JsonValue.ValueType.OBJECT)
+        workItems.add(value.asJsonObject());
     }
+
+    return workItems;
   }
 
   /**
@@ -847,20 +1031,23 @@ public final class Azure
     List<Integer> workItemIds = pullAllWorkItemIds();
 
     for (Integer workItemId : workItemIds) {
-      String urlString = BASE_URL + "/_apis/wit/workitems/" + workItemId + "?destroy=true&api-version=" + API_VERSION;
+      String urlString = baseUrl_ + "/_apis/wit/workitems/" + workItemId + "?destroy=true&api-version=" + API_VERSION;
       URL url = Util.newUrl(urlString);
 
       HttpURLConnection connection = null;
 
+      CredentialPool.Credential credential = credentials_.acquire();
+      long startTime = System.nanoTime();
+
       try {
         connection = (HttpURLConnection) url.openConnection();
         connection.setRequestMethod("DELETE");
-        connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
+        connection.setRequestProperty("Authorization", credential.getAuthorizationHeader());
         connection.setRequestProperty("Accept", "application/json");
 
         int responseCode = connection.getResponseCode();
         if (responseCode == 204) {
-          logger_.log(Level.INFO, "Work item " + workItemId + " has been destroyed.");
+          logger_.log(Level.INFO, () -> "Work item " + workItemId + " has been destroyed.");
         }
         else {
           logger_.log(Level.WARNING, "Unable to detroy " + workItemId + ": " + responseCode);
@@ -870,6 +1057,8 @@ public final class Azure
         logger_.log(Level.WARNING, "Unable to detroy " + workItemId);
       }
       finally  {
+        Metrics.getInstance().recordRequest("DELETE", urlString, connection, startTime, 0L, 0L);
+        credentials_.release(credential, connection);
         Util.close(connection);
       }
     }
@@ -880,30 +1069,15 @@ public final class Azure
    */
   private void listFields()
   {
-    String urlString = BASE_URL + "/_apis/wit/fields?api-version=" + API_VERSION;
-    URL url = Util.newUrl(urlString);
-
-    InputStream inputStream = null;
+    String urlString = baseUrl_ + "/_apis/wit/fields?api-version=" + API_VERSION;
 
     try {
-      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-      connection.setRequestMethod("GET");
-      connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
-      connection.setRequestProperty("Accept", "application/json");
-
-      inputStream = connection.getInputStream();
-
-      JsonReader reader = Json.createReader(inputStream);
-      JsonObject jsonObject = reader.readObject();
-
-      System.out.println(Util.toPretty(jsonObject));
+      JsonValue json = client_.getJson(urlString);
+      System.out.println(Util.toPretty(json));
     }
     catch (IOException exception) {
       logger_.log(Level.WARNING, "Listing Azure fields failed", exception);
     }
-    finally {
-      Util.close(inputStream);
-    }
   }
 
   /**
@@ -923,51 +1097,161 @@ public final class Azure
   }
 
   /**
-   * Create a mapping as a JSON object string in the form:
+   * Pull ID and title of all work items, and stream the ticket mapping
+   * (original issue ID to work item ID) to the specified files.
+   * <p>
+   * The logic relies on the fact that we include the original issue ID
+   * in the title of the Azure work item. Only the <em>System.Id</em> and
+   * <em>System.Title</em> fields are requested, in batches of 200 work items,
+   * and each entry is written as soon as it is received, so memory use is
+   * independent of the number of work items.
+   * <p>
+   * The JSON file is of the form:
    *
    * <pre>
    * {
-   *   "<originalID>": "<newID>",
-   *   "<originalID>": "<newID>",
+   *   "&lt;originalID&gt;": "&lt;newID&gt;",
+   *   "&lt;originalID&gt;": "&lt;newID&gt;",
    *   :
    * }
    * </pre>
    *
-   * The logic relies on the fact that we include the original issue ID
-   * in the title of the Azure work item. The algorithm is to pull all
-   * work items in the database and then extract the original issue ID
-   * from the title of each.
+   * The binary file is a magic number (int) followed by one entry per work item
+   * of the form original ID (modified UTF-8, as of DataOutput.writeUTF())
+   * and work item ID (int), until end of file.
    * <p>
    * The method can be used for issues originating from both Jira and YouTrack.
    *
-   * @return  Mapping from original to new issue ID. Never null.
+   * @param jsonFile    File to write JSON mapping to. Null if not wanted.
+   * @param binaryFile  File to write binary mapping to. Null if not wanted.
+   * @return            Number of entries written.
+   * @throws IOException  If the mapping cannot be written.
    */
-  public String getTicketMapping()
+  public int exportTicketMapping(File jsonFile, File binaryFile)
+    throws IOException
   {
-    List<AzureWorkItem> workItems = getWorkItems();
+    try (Writer writer = jsonFile != null ? new BufferedWriter(new OutputStreamWriter(new FileOutputStream(jsonFile), StandardCharsets.UTF_8)) : null;
+         DataOutputStream binaryStream = binaryFile != null ? new DataOutputStream(new BufferedOutputStream(new FileOutputStream(binaryFile))) : null) {
+      return exportTicketMapping(writer, binaryStream);
+    }
+  }
+
+  /**
+   * Pull ID and title of all work items, and stream the ticket mapping
+   * to the specified destinations.
+   *
+   * @param writer        Destination of JSON mapping. Null if not wanted.
+   * @param binaryStream  Destination of binary mapping. Null if not wanted.
+   * @return              Number of entries written.
+   * @throws IOException  If the mapping cannot be written.
+   */
+  private int exportTicketMapping(Writer writer, DataOutputStream binaryStream)
+    throws IOException
+  {
+    JsonGenerator generator = null;
+    if (writer != null) {
+      generator = Json.createGeneratorFactory(Collections.singletonMap(JsonGenerator.PRETTY_PRINTING, true)).createGenerator(writer);
+      generator.writeStartObject();
+    }
+
+    if (binaryStream != null)
+      binaryStream.writeInt(TICKET_MAPPING_MAGIC);
+
+    List<Integer> workItemIds = pullAllWorkItemIds();
+
+    String urlString = baseUrl_ + "/_apis/wit/workitemsbatch?api-version=7.0";
+
+    int nEntries = 0;
+    int batchSize = WORK_ITEM_BATCH_SIZE;
+
+    for (int start = 0; start < workItemIds.size(); start += batchSize) {
+      JsonArrayBuilder idsBuilder = Json.createArrayBuilder();
+      for (int i = start; i < Math.min(workItemIds.size(), start + batchSize); i++)
+        idsBuilder.add(workItemIds.get(i));
+
+      JsonObject query = Json.createObjectBuilder()
+        .add("ids", idsBuilder)
+        .add("fields", Json.createArrayBuilder().add("System.Id").add("System.Title"))
+        .build();
+
+      logger_.log(Level.INFO, "Pulling Azure work item titles " + start + " to " + (start + batchSize - 1) + "...");
+
+      JsonArray items = client_.query(urlString, query).asJsonObject().getJsonArray("value");
+
+      for (JsonValue value : items) {
+        JsonObject json = value.asJsonObject();
+        JsonObject fields = json.getJsonObject("fields");
+
+        int workItemId = json.getInt("id");
+        String title = fields != null ? fields.getString("System.Title", null) : null;
+        if (title == null)
+          continue;
+
+        // Original ID is the first word of the title
+        int space = title.indexOf(' ');
+        String originalId = space >= 0 ? title.substring(0, space) : title;
+
+        if (generator != null)
+          generator.write(originalId, Integer.toString(workItemId));
+
+        if (binaryStream != null) {
+          binaryStream.writeUTF(originalId);
+          binaryStream.writeInt(workItemId);
+        }
+
+        nEntries++;
+      }
+    }
+
+    if (generator != null) {
+      generator.writeEnd();
+      generator.flush();
+    }
 
-    StringBuilder s = new StringBuilder();
-    s.append("{");
-    for (int i = 0; i < workItems.size(); i++) {
-      AzureWorkItem workItem = workItems.get(i);
+    logger_.log(Level.INFO, nEntries + " ticket mapping entries exported");
 
-      if (i > 0)
-        s.append(",\n");
+    return nEntries;
+  }
 
-      int workItemId = workItem.getId();
-      String originalId = workItem.getTitle().split(" ")[0];
+  /**
+   * Create a mapping as a JSON object string in the form:
+   *
+   * <pre>
+   * {
+   *   "&lt;originalID&gt;": "&lt;newID&gt;",
+   *   "&lt;originalID&gt;": "&lt;newID&gt;",
+   *   :
+   * }
+   * </pre>
+   *
+   * For large projects, use exportTicketMapping() which streams the
+   * mapping to file instead.
+   *
+   * @return  Mapping from original to new issue ID. Never null.
+   */
+  public String getTicketMapping()
+  {
+    StringWriter writer = new StringWriter();
 
-      s.append("  \"" + originalId + "\": \"" + workItemId + "\"");
+    try {
+      exportTicketMapping(writer, null);
+    }
+    catch (IOException exception) {
+      logger_.log(Level.WARNING, "Unable to create ticket mapping", exception);
     }
 
-    s.append("\n}");
-    return s.toString();
+    return writer.toString();
   }
 
   public static void main(String[] arguments)
   {
     Azure azure = new Azure();
-    String s = azure.getTicketMapping();
-    System.out.println(s);
+
+    try {
+      azure.exportTicketMapping(new File("mapping.json"), new File("mapping.bin"));
+    }
+    catch (IOException exception) {
+      logger_.log(Level.SEVERE, "Unable to export ticket mapping", exception);
+    }
   }
 }
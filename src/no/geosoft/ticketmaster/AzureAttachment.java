@@ -7,14 +7,14 @@ package no.geosoft.ticketmaster;
  */
 public final class AzureAttachment
 {
-  private byte[] content_;
+  private AttachmentContent content_;
 
   private String fileName_;
 
   private String url_;
 
   // Content might be null if something failed. We still want the attachment instance.
-  public AzureAttachment(String fileName, byte[] content)
+  public AzureAttachment(String fileName, AttachmentContent content)
   {
     if (fileName == null)
       throw new IllegalArgumentException("fileName cannot be null");
@@ -23,12 +23,12 @@ public final class AzureAttachment
     content_ = content;
   }
 
-  public byte[] getContent()
+  public AttachmentContent getContent()
   {
     return content_;
   }
 
-  public void setContent(byte[] content)
+  public void setContent(AttachmentContent content)
   {
     content_ = content;
   }
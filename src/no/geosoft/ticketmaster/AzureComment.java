@@ -1,22 +1,22 @@
 package no.geosoft.ticketmaster;
 
-import java.util.Date;
+import java.time.Instant;
 
 public final class AzureComment implements Comparable<AzureComment>
 {
   private final AzureUser author_;
 
-  private final Date createdTime_;
+  private final Instant createdTime_;
 
   private String text_;
 
   public AzureComment(String text,
                       AzureUser author,
-                      Date createdTime)
+                      Instant createdTime)
   {
     text_ = text;
     author_ = author;
-    createdTime_ = new Date(createdTime.getTime());
+    createdTime_ = createdTime;
   }
 
   public String getText()
@@ -49,16 +49,16 @@ public final class AzureComment implements Comparable<AzureComment>
     return author_;
   }
 
-  public Date getCreatedTime()
+  public Instant getCreatedTime()
   {
-    return new Date(createdTime_.getTime());
+    return createdTime_;
   }
 
   @Override
   public int compareTo(AzureComment azureComment)
   {
-    Date time1 = createdTime_;
-    Date time2 = azureComment.createdTime_;
+    Instant time1 = createdTime_;
+    Instant time2 = azureComment.createdTime_;
 
     return time1 != null && time2 != null ? time1.compareTo(time2) : 1;
   }
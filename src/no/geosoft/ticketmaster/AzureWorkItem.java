@@ -1,7 +1,7 @@
 package no.geosoft.ticketmaster;
 
+import java.time.Instant;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.TreeSet;
@@ -17,8 +17,8 @@ import javax.json.JsonValue;
  */
 public final class AzureWorkItem
 {
-  /** Work item ID in the Azure database. -1 if the work item has not yet been pushed. */
-  private int id_;
+  /** Work item ID in the Azure database. -1 if the work item has not yet been pushed. Set by the create threads. */
+  private volatile int id_;
 
   /** Unique ID that can identify the work item also before it is injected in Azure. */
   private final long uniqueId_;
@@ -29,7 +29,7 @@ public final class AzureWorkItem
 
   private final AzureUser createdBy_;
 
-  private final Date createdTime_;
+  private final Instant createdTime_;
 
   private final String title_;
 
@@ -45,6 +45,9 @@ public final class AzureWorkItem
 
   private AzureWorkItem parentWorkItem_;
 
+  /** Indicate if the parent relation was included when the work item was created. */
+  private boolean isParentLinked_ = false;
+
   private final String state_;
 
   private final boolean isBlocked_;
@@ -57,9 +60,9 @@ public final class AzureWorkItem
 
   private final String activity_;
 
-  private final Date startDate_;
+  private final Instant startDate_;
 
-  private final Date targetDate_;
+  private final Instant targetDate_;
 
   private final String systemInfo_;
 
@@ -85,7 +88,7 @@ public final class AzureWorkItem
                        String workItemType,
                        String areaPath,
                        AzureUser createdBy,
-                       Date createdTime,
+                       Instant createdTime,
                        String title,
                        String description,
                        AzureUser assignedTo,
@@ -97,8 +100,8 @@ public final class AzureWorkItem
                        String product,
                        int priority,
                        String activity,
-                       Date startDate,
-                       Date targetDate,
+                       Instant startDate,
+                       Instant targetDate,
                        String systemInfo,
                        String foundIn,
                        String stepsToReproduce,
@@ -112,7 +115,7 @@ public final class AzureWorkItem
     workItemType_ = workItemType;
     areaPath_ = areaPath;
     createdBy_ = createdBy;
-    createdTime_ = new Date(createdTime.getTime());
+    createdTime_ = createdTime;
     title_ = title;
     description_ = description;
     assignedTo_ = assignedTo;
@@ -126,8 +129,8 @@ public final class AzureWorkItem
     product_ = product;
     priority_ = priority;
     activity_ = activity;
-    startDate_ = startDate != null ? new Date(startDate.getTime()) : null;
-    targetDate_ = targetDate != null ? new Date(targetDate.getTime()) : null;
+    startDate_ = startDate;
+    targetDate_ = targetDate;
     systemInfo_ = systemInfo;
     foundIn_ = foundIn;
     stepsToReproduce_ = stepsToReproduce;
@@ -216,9 +219,9 @@ public final class AzureWorkItem
     return createdBy_;
   }
 
-  public Date getCreatedTime()
+  public Instant getCreatedTime()
   {
-    return new Date(createdTime_.getTime());
+    return createdTime_;
   }
 
   public String getState()
@@ -236,14 +239,14 @@ public final class AzureWorkItem
     return activity_;
   }
 
-  public Date getStartDate()
+  public Instant getStartDate()
   {
-    return startDate_ != null ? new Date(startDate_.getTime()) : null;
+    return startDate_;
   }
 
-  public Date getTargetDate()
+  public Instant getTargetDate()
   {
-    return targetDate_ != null ? new Date(targetDate_.getTime()) : null;
+    return targetDate_;
   }
 
   public String getWorkItemType()
@@ -321,6 +324,16 @@ public final class AzureWorkItem
     parentWorkItem_ = parentWorkItem;
   }
 
+  public boolean isParentLinked()
+  {
+    return isParentLinked_;
+  }
+
+  public void setParentLinked(boolean isParentLinked)
+  {
+    isParentLinked_ = isParentLinked;
+  }
+
   public void addAttachment(AzureAttachment attachment)
   {
     attachments_.add(attachment);
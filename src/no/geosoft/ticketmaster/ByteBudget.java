@@ -0,0 +1,119 @@
+package no.geosoft.ticketmaster;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A semaphore of bytes, bounding the memory held by attachment content
+ * in flight.
+ * <p>
+ * Memory is reserved before it is allocated and released when the content
+ * is no longer needed. A reservation never waits: if it doesn't fit the
+ * budget it fails, and the caller is expected to keep the data elsewhere,
+ * typically on disk, see AttachmentContent. This way the heap needed is
+ * fixed by the budget, whatever the number of concurrent transfers.
+ * <p>
+ * The global budget is a fixed fraction of the max heap size.
+ *
+ * @author <a href="mailto:jacob.dreyer@geosoft.no">Jacob Dreyer</a>
+ */
+public final class ByteBudget
+{
+  /** The logger instance. */
+  private static final Logger logger_ = Logger.getLogger(ByteBudget.class.getName());
+
+  /** Fraction of the max heap size available to the global budget. */
+  private static final double HEAP_FRACTION = 0.25;
+
+  /** The global budget. */
+  private static final ByteBudget instance_ = new ByteBudget((long) (Runtime.getRuntime().maxMemory() * HEAP_FRACTION));
+
+  /** Capacity of the budget in bytes. */
+  private final long capacity_;
+
+  /** Number of bytes currently reserved. */
+  private long nReserved_ = 0;
+
+  /**
+   * Create a byte budget.
+   *
+   * @param capacity  Capacity of budget in bytes. [0,&gt;.
+   * @throws IllegalArgumentException  If capacity &lt; 0.
+   */
+  public ByteBudget(long capacity)
+  {
+    if (capacity < 0)
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+
+    capacity_ = capacity;
+  }
+
+  /**
+   * Return the global budget of attachment content.
+   *
+   * @return  The global budget. Never null.
+   */
+  public static ByteBudget getInstance()
+  {
+    return instance_;
+  }
+
+  /**
+   * Return the capacity of this budget.
+   *
+   * @return  Capacity of budget in bytes. [0,&gt;.
+   */
+  public long getCapacity()
+  {
+    return capacity_;
+  }
+
+  /**
+   * Return the number of bytes currently reserved.
+   *
+   * @return  Number of bytes reserved. [0,capacity].
+   */
+  public synchronized long getReserved()
+  {
+    return nReserved_;
+  }
+
+  /**
+   * Reserve the specified number of bytes if it fits the budget.
+   * Never waits.
+   *
+   * @param nBytes  Number of bytes to reserve. [0,&gt;.
+   * @return        True if reserved, false if it doesn't fit the budget.
+   * @throws IllegalArgumentException  If nBytes &lt; 0.
+   */
+  public synchronized boolean tryReserve(long nBytes)
+  {
+    if (nBytes < 0)
+      throw new IllegalArgumentException("Invalid nBytes: " + nBytes);
+
+    if (nBytes > capacity_ - nReserved_)
+      return false;
+
+    nReserved_ += nBytes;
+    return true;
+  }
+
+  /**
+   * Release the specified number of bytes reserved by tryReserve().
+   *
+   * @param nBytes  Number of bytes to release. [0,&gt;.
+   * @throws IllegalArgumentException  If nBytes &lt; 0.
+   */
+  public synchronized void release(long nBytes)
+  {
+    if (nBytes < 0)
+      throw new IllegalArgumentException("Invalid nBytes: " + nBytes);
+
+    nReserved_ -= nBytes;
+
+    if (nReserved_ < 0) {
+      logger_.log(Level.WARNING, "More bytes released than reserved: " + -nReserved_);
+      nReserved_ = 0;
+    }
+  }
+}
@@ -0,0 +1,243 @@
+package no.geosoft.ticketmaster;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of credentials (service accounts) for one back-end, so that
+ * requests can be spread across several per-user rate limits.
+ * <p>
+ * Each request acquires the least loaded credential, i.e. the one with the
+ * fewest requests in progress, and ties are broken round-robin. A credential
+ * receiving a 429 (Too Many Requests) response is parked for the time given
+ * by the Retry-After header of the response, and is not handed out again
+ * until then. If all credentials are parked, acquire() waits for the first
+ * one to be available.
+ * <p>
+ * Typical usage:
+ * <pre>
+ *   CredentialPool.Credential credential = credentialPool.acquire();
+ *   try {
+ *     connection.setRequestProperty("Authorization", credential.getAuthorizationHeader());
+ *     :
+ *   }
+ *   finally {
+ *     credentialPool.release(credential, connection);
+ *   }
+ * </pre>
+ *
+ * @author <a href="mailto:jacob.dreyer@geosoft.no">Jacob Dreyer</a>
+ */
+public final class CredentialPool
+{
+  /** The logger instance. */
+  private static final Logger logger_ = Logger.getLogger(CredentialPool.class.getName());
+
+  /** Park time in milliseconds if a 429 response has no (valid) Retry-After header. */
+  private static final long DEFAULT_PARK_TIME = 60000L;
+
+  /** Max park time in milliseconds, whatever the Retry-After header says. */
+  private static final long MAX_PARK_TIME = 3600000L;
+
+  /**
+   * One credential of the pool.
+   */
+  public static final class Credential
+  {
+    /** Index of the credential within its pool. */
+    private final int index_;
+
+    /** HTTP authorization header of the credential. */
+    private final String authorizationHeader_;
+
+    /** Number of requests in progress. */
+    private int nActive_ = 0;
+
+    /** Indicate if the credential is parked. */
+    private boolean isParked_ = false;
+
+    /** Time (System.nanoTime()) the credential is parked until. Valid if parked only. */
+    private long parkedUntil_;
+
+    private Credential(int index, String authorizationHeader)
+    {
+      index_ = index;
+      authorizationHeader_ = authorizationHeader;
+    }
+
+    /**
+     * Return the HTTP authorization header of this credential.
+     *
+     * @return  The authorization header. Never null.
+     */
+    public String getAuthorizationHeader()
+    {
+      return authorizationHeader_;
+    }
+  }
+
+  /** Name of pool, like "Jira". Used for logging. */
+  private final String name_;
+
+  /** The credentials of the pool. */
+  private final List<Credential> credentials_ = new ArrayList<>();
+
+  /** Index of the credential to consider first on the next acquire. */
+  private int nextIndex_ = 0;
+
+  /**
+   * Create a credential pool.
+   *
+   * @param name                  Name of pool, like "Jira". Non-null.
+   * @param authorizationHeaders  HTTP authorization header of each credential. Non-null and non-empty.
+   * @throws IllegalArgumentException  If name or authorizationHeaders is null,
+   *                                   or if authorizationHeaders is empty or contains null.
+   */
+  public CredentialPool(String name, List<String> authorizationHeaders)
+  {
+    if (name == null)
+      throw new IllegalArgumentException("name cannot be null");
+
+    if (authorizationHeaders == null)
+      throw new IllegalArgumentException("authorizationHeaders cannot be null");
+
+    if (authorizationHeaders.isEmpty())
+      throw new IllegalArgumentException("authorizationHeaders cannot be empty");
+
+    name_ = name;
+
+    for (String authorizationHeader : authorizationHeaders) {
+      if (authorizationHeader == null)
+        throw new IllegalArgumentException("authorizationHeaders cannot contain null");
+
+      credentials_.add(new Credential(credentials_.size(), authorizationHeader));
+    }
+  }
+
+  /**
+   * Return the number of credentials in this pool.
+   *
+   * @return  Number of credentials. [1,&gt;.
+   */
+  public int size()
+  {
+    return credentials_.size();
+  }
+
+  /**
+   * Acquire the least loaded credential that is not parked.
+   * If all are parked, wait until the first is available again.
+   * The credential must be released after use, see release().
+   * <p>
+   * If interrupted while waiting, the credential that is parked the
+   * shortest is returned and the interrupt status of the thread is set.
+   *
+   * @return  The acquired credential. Never null.
+   */
+  public synchronized Credential acquire()
+  {
+    int nCredentials = credentials_.size();
+
+    while (true) {
+      long time = System.nanoTime();
+
+      Credential leastLoaded = null;
+      Credential firstAvailable = null;
+
+      for (int i = 0; i < nCredentials; i++) {
+        Credential credential = credentials_.get((nextIndex_ + i) % nCredentials);
+
+        if (credential.isParked_ && credential.parkedUntil_ - time <= 0) {
+          credential.isParked_ = false;
+          logger_.log(Level.INFO, () -> name_ + " credential " + credential.index_ + " unparked");
+        }
+
+        if (credential.isParked_) {
+          if (firstAvailable == null || credential.parkedUntil_ - firstAvailable.parkedUntil_ < 0)
+            firstAvailable = credential;
+          continue;
+        }
+
+        if (leastLoaded == null || credential.nActive_ < leastLoaded.nActive_)
+          leastLoaded = credential;
+      }
+
+      if (leastLoaded == null) {
+        long waitMillis = Math.max(1L, (firstAvailable.parkedUntil_ - time) / 1000000L);
+        try {
+          wait(waitMillis);
+          continue;
+        }
+        catch (InterruptedException exception) {
+          Thread.currentThread().interrupt();
+          leastLoaded = firstAvailable;
+        }
+      }
+
+      leastLoaded.nActive_++;
+      nextIndex_ = (leastLoaded.index_ + 1) % nCredentials;
+
+      return leastLoaded;
+    }
+  }
+
+  /**
+   * Return the park time given by the specified Retry-After header.
+   *
+   * @param retryAfter  Retry-After header value. Null if none.
+   * @return            The park time in milliseconds.
+   */
+  private static long getParkTime(String retryAfter)
+  {
+    if (retryAfter == null)
+      return DEFAULT_PARK_TIME;
+
+    // Can also be an HTTP date, which is not used by the back-ends we access
+    try {
+      long seconds = Long.parseLong(retryAfter.trim());
+      return Math.min(Math.max(0L, seconds) * 1000L, MAX_PARK_TIME);
+    }
+    catch (NumberFormatException exception) {
+      return DEFAULT_PARK_TIME;
+    }
+  }
+
+  /**
+   * Release the specified credential after a request. If the request
+   * was throttled, the credential is parked according to the response.
+   *
+   * @param credential  Credential to release. Non-null.
+   * @param connection  Connection of the request. Null if the connection could not be opened.
+   * @throws IllegalArgumentException  If credential is null.
+   */
+  public void release(Credential credential, HttpURLConnection connection)
+  {
+    if (credential == null)
+      throw new IllegalArgumentException("credential cannot be null");
+
+    // Read the response before locking, in case the response isn't complete
+    boolean isThrottled = Metrics.getStatusCode(connection) == 429;
+    long parkTime = isThrottled ? getParkTime(connection.getHeaderField("Retry-After")) : 0L;
+
+    synchronized (this) {
+      credential.nActive_--;
+
+      if (isThrottled) {
+        long parkedUntil = System.nanoTime() + parkTime * 1000000L;
+        if (!credential.isParked_) {
+          credential.isParked_ = true;
+          credential.parkedUntil_ = parkedUntil;
+          logger_.log(Level.WARNING, name_ + " credential " + credential.index_ + " throttled. Parked for " + parkTime / 1000L + " s");
+        }
+        else if (parkedUntil - credential.parkedUntil_ > 0) {
+          credential.parkedUntil_ = parkedUntil;
+        }
+      }
+
+      notifyAll();
+    }
+  }
+}
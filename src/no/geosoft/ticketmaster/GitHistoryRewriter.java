@@ -0,0 +1,364 @@
+package no.geosoft.ticketmaster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+
+/**
+ * Rewrites the commit messages of a Git repository so that old ticket
+ * numbers are replaced by the new Azure ones, like "SK-123" to "AB#4711".
+ * <p>
+ * The rewriter is a filter between <em>git fast-export</em> and <em>git fast-import</em>:
+ * <pre>
+ *   git fast-export --all --signed-tags=strip | \
+ *     java no.geosoft.ticketmaster.GitHistoryRewriter mapping.json | \
+ *     (cd ../new-repo &amp;&amp; git fast-import)
+ * </pre>
+ * The mapping file is as created by Azure.exportTicketMapping(), either
+ * the JSON or the binary form. All keys are compiled into one KeyMatcher so each
+ * message is rewritten in a single pass. Everything except commit and tag messages
+ * (blobs in particular) is copied through byte by byte.
+ * <p>
+ * Messages are decoded by the encoding of their commit (UTF-8 unless an
+ * <em>encoding</em> header says otherwise, see --reencode=no of fast-export).
+ * Messages that are not valid in that encoding are matched byte by byte
+ * instead, and messages with no keys are copied through unchanged.
+ * <p>
+ * This replaces updateGit.py which did the same thing per commit from
+ * within git-filter-repo.
+ *
+ * @author <a href="mailto:jacob.dreyer@geosoft.no">Jacob Dreyer</a>
+ */
+public final class GitHistoryRewriter
+{
+  /** The logger instance. */
+  private static final Logger logger_ = Logger.getLogger(GitHistoryRewriter.class.getName());
+
+  /** Magic number of the binary mapping file. See Azure.exportTicketMapping(). */
+  private static final int TICKET_MAPPING_MAGIC = 0x544d4d31; // "TMM1"
+
+  /** Prefix of the new ticket references. */
+  private static final String AZURE_PREFIX = "AB#";
+
+  /** The matcher used for replacing keys. */
+  private final KeyMatcher keyMatcher_;
+
+  /** Number of messages processed. */
+  private long nMessages_ = 0;
+
+  /** Number of messages changed. */
+  private long nMessagesChanged_ = 0;
+
+  /**
+   * Create a rewriter for the specified ticket mapping.
+   *
+   * @param mapping  Mapping from old ticket key to new work item ID. Non-null.
+   * @throws IllegalArgumentException  If mapping is null.
+   */
+  public GitHistoryRewriter(Map<String,String> mapping)
+  {
+    if (mapping == null)
+      throw new IllegalArgumentException("mapping cannot be null");
+
+    Map<String,String> replacements = new HashMap<>(mapping.size() * 2);
+    for (Map.Entry<String,String> entry : mapping.entrySet())
+      replacements.put(entry.getKey(), AZURE_PREFIX + entry.getValue());
+
+    keyMatcher_ = new KeyMatcher(replacements);
+  }
+
+  /**
+   * Load the ticket mapping from the specified file. Files ending with
+   * ".bin" are read as binary mapping, others as JSON.
+   *
+   * @param file  File to read. Non-null.
+   * @return      Mapping from old ticket key to new work item ID. Never null.
+   * @throws IllegalArgumentException  If file is null.
+   * @throws IOException  If the file cannot be read.
+   */
+  public static Map<String,String> loadMapping(File file)
+    throws IOException
+  {
+    if (file == null)
+      throw new IllegalArgumentException("file cannot be null");
+
+    Map<String,String> mapping = new HashMap<>();
+
+    if (file.getName().endsWith(".bin")) {
+      try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+        if (inputStream.readInt() != TICKET_MAPPING_MAGIC)
+          throw new IOException("Invalid mapping file: " + file);
+
+        while (true) {
+          String key;
+          try {
+            key = inputStream.readUTF();
+          }
+          catch (EOFException exception) {
+            break;
+          }
+          mapping.put(key, Integer.toString(inputStream.readInt()));
+        }
+      }
+    }
+    else {
+      try (JsonReader reader = Json.createReader(new BufferedInputStream(new FileInputStream(file)))) {
+        JsonObject json = reader.readObject();
+        for (Map.Entry<String,JsonValue> entry : json.entrySet()) {
+          JsonValue value = entry.getValue();
+          String workItemId = value.getValueType() == JsonValue.ValueType.STRING ? json.getString(entry.getKey()) : value.toString();
+          mapping.put(entry.getKey(), workItemId);
+        }
+      }
+    }
+
+    logger_.log(Level.INFO, () -> mapping.size() + " ticket mappings loaded from " + file);
+
+    return mapping;
+  }
+
+  /**
+   * Read one line (terminated by LF) from the specified stream.
+   *
+   * @param inputStream  Stream to read from. Non-null.
+   * @param line         Buffer to read into. Reset first. Non-null.
+   * @return             True if a line was read, false on end of stream.
+   * @throws IOException  If the read operation fails.
+   */
+  private static boolean readLine(InputStream inputStream, ByteArrayOutputStream line)
+    throws IOException
+  {
+    line.reset();
+
+    while (true) {
+      int b = inputStream.read();
+      if (b == -1)
+        return line.size() > 0;
+      if (b == '\n')
+        return true;
+      line.write(b);
+    }
+  }
+
+  /**
+   * Read exactly the specified number of bytes from the given stream.
+   *
+   * @param inputStream  Stream to read from. Non-null.
+   * @param nBytes       Number of bytes to read.
+   * @return             The bytes read. Never null.
+   * @throws IOException  If the read operation fails or end of stream is reached.
+   */
+  private static byte[] readBytes(InputStream inputStream, int nBytes)
+    throws IOException
+  {
+    byte[] bytes = inputStream.readNBytes(nBytes);
+    if (bytes.length < nBytes)
+      throw new EOFException("Unexpected end of fast-export stream");
+
+    return bytes;
+  }
+
+  /**
+   * Return the charset of the specified encoding header value.
+   *
+   * @param encoding  Encoding name, like "ISO-8859-1". Non-null.
+   * @return          The charset, or null if not supported.
+   */
+  private static Charset getCharset(String encoding)
+  {
+    assert encoding != null : "encoding cannot be null";
+
+    try {
+      return Charset.forName(encoding.trim());
+    }
+    catch (IllegalArgumentException exception) { // Also IllegalCharsetNameException and UnsupportedCharsetException
+      logger_.log(Level.WARNING, "Unsupported commit encoding: " + encoding);
+      return null;
+    }
+  }
+
+  /**
+   * Rewrite the specified message.
+   *
+   * @param message  Message to rewrite. Non-null.
+   * @param charset  Encoding of the message. Null if unknown, in which case
+   *                 the message is matched byte by byte.
+   * @return         The rewritten message. The same instance if not changed. Never null.
+   */
+  private byte[] rewriteMessage(byte[] message, Charset charset)
+  {
+    assert message != null : "message cannot be null";
+
+    nMessages_++;
+
+    String text = null;
+    if (charset != null) {
+      try {
+        text = charset.newDecoder()
+                      .onMalformedInput(CodingErrorAction.REPORT)
+                      .onUnmappableCharacter(CodingErrorAction.REPORT)
+                      .decode(ByteBuffer.wrap(message))
+                      .toString();
+      }
+      catch (CharacterCodingException exception) {
+        logger_.log(Level.FINE, "Message not valid " + charset + ". Matched byte by byte");
+      }
+    }
+
+    // The keys and the replacements are ASCII, so ISO-8859-1 maps each byte
+    // to one char and back, leaving anything but the keys as is
+    if (text == null) {
+      charset = StandardCharsets.ISO_8859_1;
+      text = new String(message, charset);
+    }
+
+    String newText = keyMatcher_.replace(text);
+
+    if (newText == text)
+      return message;
+
+    byte[] newMessage;
+    try {
+      ByteBuffer buffer = charset.newEncoder()
+                                 .onMalformedInput(CodingErrorAction.REPORT)
+                                 .onUnmappableCharacter(CodingErrorAction.REPORT)
+                                 .encode(CharBuffer.wrap(newText));
+      newMessage = new byte[buffer.remaining()];
+      buffer.get(newMessage);
+    }
+    catch (CharacterCodingException exception) {
+      // The replacements cannot be represented. Leave the message as is
+      logger_.log(Level.WARNING, "Message cannot be rewritten in " + charset);
+      return message;
+    }
+
+    nMessagesChanged_++;
+    return newMessage;
+  }
+
+  /**
+   * Read a fast-export stream, rewrite commit and tag messages,
+   * and write the result as a fast-import stream.
+   *
+   * @param inputStream   Stream to read from. Non-null.
+   * @param outputStream  Stream to write to. Non-null.
+   * @throws IllegalArgumentException  If inputStream or outputStream is null.
+   * @throws IOException  If the read or write operations fails.
+   */
+  public void rewrite(InputStream inputStream, OutputStream outputStream)
+    throws IOException
+  {
+    if (inputStream == null)
+      throw new IllegalArgumentException("inputStream cannot be null");
+
+    if (outputStream == null)
+      throw new IllegalArgumentException("outputStream cannot be null");
+
+    ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+
+    // The next data command holds a commit or tag message
+    boolean isMessagePending = false;
+
+    // Encoding of the pending message. Null if unknown
+    Charset messageCharset = StandardCharsets.UTF_8;
+
+    while (readLine(inputStream, line)) {
+      // Commands are ASCII. Blob content is never read as lines.
+      String command = line.toString(StandardCharsets.ISO_8859_1);
+
+      if (command.startsWith("commit ") || command.startsWith("tag ")) {
+        isMessagePending = true;
+        messageCharset = StandardCharsets.UTF_8;
+      }
+
+      else if (isMessagePending && command.startsWith("encoding ")) {
+        messageCharset = getCharset(command.substring(9));
+      }
+
+      else if (command.startsWith("data ")) {
+        String count = command.substring(5);
+
+        // Delimited format. Not produced by fast-export, but copy it through
+        if (count.startsWith("<<")) {
+          String delimiter = count.substring(2);
+          line.writeTo(outputStream);
+          outputStream.write('\n');
+          while (readLine(inputStream, line)) {
+            line.writeTo(outputStream);
+            outputStream.write('\n');
+            if (line.toString(StandardCharsets.ISO_8859_1).equals(delimiter))
+              break;
+          }
+          isMessagePending = false;
+          continue;
+        }
+
+        byte[] data = readBytes(inputStream, Integer.parseInt(count.trim()));
+
+        if (isMessagePending) {
+          data = rewriteMessage(data, messageCharset);
+          isMessagePending = false;
+        }
+
+        outputStream.write(("data " + data.length + "\n").getBytes(StandardCharsets.ISO_8859_1));
+        outputStream.write(data);
+        continue;
+      }
+
+      line.writeTo(outputStream);
+      outputStream.write('\n');
+    }
+
+    outputStream.flush();
+
+    logger_.log(Level.INFO, () -> nMessagesChanged_ + " of " + nMessages_ + " messages rewritten");
+  }
+
+  /**
+   * Rewrite a fast-export stream on standard input to a fast-import
+   * stream on standard output.
+   *
+   * @param arguments  Application arguments: The mapping file.
+   */
+  public static void main(String[] arguments)
+  {
+    if (arguments.length != 1) {
+      System.err.println("Usage: GitHistoryRewriter <mapping file>");
+      System.exit(1);
+    }
+
+    try {
+      Map<String,String> mapping = loadMapping(new File(arguments[0]));
+      GitHistoryRewriter rewriter = new GitHistoryRewriter(mapping);
+
+      rewriter.rewrite(new BufferedInputStream(System.in, 1024 * 1024),
+                       new BufferedOutputStream(System.out, 1024 * 1024));
+    }
+    catch (IOException exception) {
+      logger_.log(Level.SEVERE, "Rewrite failed", exception);
+      System.exit(1);
+    }
+  }
+}
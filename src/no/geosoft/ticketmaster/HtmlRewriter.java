@@ -0,0 +1,403 @@
+package no.geosoft.ticketmaster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Rewrites HTML text according to a set of rules, in one pass.
+ * <p>
+ * The HTML is tokenized into text, tags, comments and declarations as it is
+ * scanned. Attribute values and the text between tags are passed through the
+ * rules in turn, and only the parts changed by a rule are rewritten: Everything
+ * else is copied as is, so the output is identical to the input except for the
+ * rewritten parts. Output is assembled in one buffer, allocated on the first
+ * change, and the time is linear in the length of the HTML.
+ * <p>
+ * The tokenizer is lenient, as rich text of the back-ends is not always
+ * well-formed: A '&lt;' that doesn't start a tag is text, and an unterminated
+ * tag or comment extends to the end of the HTML. The content of script and
+ * style elements is not passed to the rules.
+ * <p>
+ * Typical usage:
+ * <pre>
+ *   HtmlRewriter rewriter = new HtmlRewriter(List.of(attachmentRule, issueKeyRule));
+ *   String newHtml = rewriter.rewrite(html);
+ * </pre>
+ * Instances are immutable and can be shared between threads if the rules can.
+ *
+ * @author <a href="mailto:jacob.dreyer@geosoft.no">Jacob Dreyer</a>
+ */
+public final class HtmlRewriter
+{
+  /**
+   * A rewrite rule. Rules see the HTML as is, i.e. entities are not decoded
+   * and text may contain markup on return.
+   */
+  public interface Rule
+  {
+    /**
+     * Rewrite the specified attribute value.
+     *
+     * @param tagName        Lower case element name, like "img". Non-null.
+     * @param attributeName  Lower case attribute name, like "src". Non-null.
+     * @param value          Attribute value, without the quotes. Non-null.
+     * @return               The new attribute value, or value if unchanged. Never null.
+     */
+    default String rewriteAttribute(String tagName, String attributeName, String value)
+    {
+      return value;
+    }
+
+    /**
+     * Rewrite the specified text.
+     *
+     * @param text    Text between two tags. Non-null.
+     * @param isLink  True if the text is within an a element, false otherwise.
+     * @return        The new text, or text if unchanged. Never null.
+     */
+    default String rewriteText(String text, boolean isLink)
+    {
+      return text;
+    }
+  }
+
+  /** The rules, applied in order. */
+  private final List<Rule> rules_;
+
+  /**
+   * Create a rewriter for the specified rules.
+   *
+   * @param rules  Rules to apply, in order. Non-null.
+   * @throws IllegalArgumentException  If rules is null or contains null.
+   */
+  public HtmlRewriter(List<Rule> rules)
+  {
+    if (rules == null)
+      throw new IllegalArgumentException("rules cannot be null");
+
+    for (Rule rule : rules) {
+      if (rule == null)
+        throw new IllegalArgumentException("rules cannot contain null");
+    }
+
+    rules_ = new ArrayList<>(rules);
+  }
+
+  /**
+   * The state of one rewrite: The input, the position of the tokenizer
+   * and the output buffer.
+   */
+  private static final class Rewrite
+  {
+    /** HTML being rewritten. */
+    private final String html_;
+
+    /** Output buffer. Null until the first change. */
+    private StringBuilder output_ = null;
+
+    /** Position in the HTML up to which the output is complete. */
+    private int copied_ = 0;
+
+    private Rewrite(String html)
+    {
+      html_ = html;
+    }
+
+    /**
+     * Replace the specified part of the HTML. Parts must be replaced in order.
+     *
+     * @param start        Start of part to replace.
+     * @param end          End of part to replace, exclusive.
+     * @param replacement  Replacement. Non-null.
+     */
+    private void replace(int start, int end, String replacement)
+    {
+      assert start >= copied_ : "Replacements must be in order";
+
+      if (output_ == null)
+        output_ = new StringBuilder(html_.length() + html_.length() / 8 + 16);
+
+      output_.append(html_, copied_, start);
+      output_.append(replacement);
+      copied_ = end;
+    }
+
+    /**
+     * Return the result of this rewrite.
+     *
+     * @return  The rewritten HTML. The input instance if unchanged. Never null.
+     */
+    private String getResult()
+    {
+      if (output_ == null)
+        return html_;
+
+      output_.append(html_, copied_, html_.length());
+      return output_.toString();
+    }
+  }
+
+  /**
+   * Check if the specified position of the HTML starts markup, i.e. a tag,
+   * an end tag, a comment or a declaration.
+   *
+   * @param html      HTML to check. Non-null.
+   * @param position  Position of a '&lt;' character.
+   * @return          True if markup starts at position, false if the '&lt;' is text.
+   */
+  private static boolean isMarkupStart(String html, int position)
+  {
+    assert html.charAt(position) == '<' : "Not at '<': " + position;
+
+    if (position + 1 >= html.length())
+      return false;
+
+    char c = html.charAt(position + 1);
+    if (c == '/')
+      return position + 2 < html.length() && Character.isLetter(html.charAt(position + 2));
+
+    return Character.isLetter(c) || c == '!' || c == '?';
+  }
+
+  /**
+   * Return the end of the name starting at the specified position.
+   *
+   * @param html      HTML to scan. Non-null.
+   * @param position  Position of the first character of the name.
+   * @return          Position after the last character of the name.
+   */
+  private static int getNameEnd(String html, int position)
+  {
+    int length = html.length();
+    while (position < length) {
+      char c = html.charAt(position);
+      if (Character.isWhitespace(c) || c == '>' || c == '/' || c == '=')
+        break;
+      position++;
+    }
+
+    return position;
+  }
+
+  /**
+   * Return the position of the first non-whitespace character at or after the specified one.
+   *
+   * @param html      HTML to scan. Non-null.
+   * @param position  Position to start at.
+   * @return          Position of first non-whitespace character, or the length of html if none.
+   */
+  private static int skipWhitespace(String html, int position)
+  {
+    int length = html.length();
+    while (position < length && Character.isWhitespace(html.charAt(position)))
+      position++;
+
+    return position;
+  }
+
+  /**
+   * Return the position of the end tag of the specified raw text element,
+   * like script, starting the search at the given position.
+   *
+   * @param html      HTML to scan. Non-null.
+   * @param tagName   Lower case name of element. Non-null.
+   * @param position  Position to start search at.
+   * @return          Position of the end tag, or the length of html if none.
+   */
+  private static int findEndTag(String html, String tagName, int position)
+  {
+    while (true) {
+      position = html.indexOf("</", position);
+      if (position == -1)
+        return html.length();
+
+      if (html.regionMatches(true, position + 2, tagName, 0, tagName.length()))
+        return position;
+
+      position += 2;
+    }
+  }
+
+  /**
+   * Pass the specified text through the rules.
+   *
+   * @param rewrite  The rewrite in progress. Non-null.
+   * @param start    Start of text.
+   * @param end      End of text, exclusive.
+   * @param isLink   True if the text is within an a element, false otherwise.
+   */
+  private void rewriteText(Rewrite rewrite, int start, int end, boolean isLink)
+  {
+    String text = rewrite.html_.substring(start, end);
+
+    String newText = text;
+    for (Rule rule : rules_)
+      newText = rule.rewriteText(newText, isLink);
+
+    if (!newText.equals(text))
+      rewrite.replace(start, end, newText);
+  }
+
+  /**
+   * Parse the start tag at the specified position and pass its attribute
+   * values through the rules.
+   *
+   * @param rewrite   The rewrite in progress. Non-null.
+   * @param position  Position of the '&lt;' of the tag.
+   * @param tagName   Lower case name of the element. Non-null.
+   * @return          Position after the tag.
+   */
+  private int rewriteStartTag(Rewrite rewrite, int position, String tagName)
+  {
+    String html = rewrite.html_;
+    int length = html.length();
+
+    position += 1 + tagName.length();
+
+    while (true) {
+      position = skipWhitespace(html, position);
+      if (position >= length)
+        return length;
+
+      char c = html.charAt(position);
+      if (c == '>')
+        return position + 1;
+
+      if (c == '/' || c == '=') {
+        position++;
+        continue;
+      }
+
+      // Attribute name
+      int nameEnd = getNameEnd(html, position);
+      String attributeName = html.substring(position, nameEnd).toLowerCase(Locale.ROOT);
+
+      position = skipWhitespace(html, nameEnd);
+      if (position >= length || html.charAt(position) != '=')
+        continue;
+
+      // Attribute value, quoted or not
+      position = skipWhitespace(html, position + 1);
+      if (position >= length)
+        return length;
+
+      int valueStart;
+      int valueEnd;
+      boolean isQuoted;
+
+      char quote = html.charAt(position);
+      if (quote == '"' || quote == '\'') {
+        valueStart = position + 1;
+        valueEnd = html.indexOf(quote, valueStart);
+        if (valueEnd == -1)
+          valueEnd = length;
+        position = Math.min(valueEnd + 1, length);
+        isQuoted = true;
+      }
+      else {
+        valueStart = position;
+        valueEnd = position;
+        while (valueEnd < length && !Character.isWhitespace(html.charAt(valueEnd)) && html.charAt(valueEnd) != '>')
+          valueEnd++;
+        position = valueEnd;
+        isQuoted = false;
+      }
+
+      String value = html.substring(valueStart, valueEnd);
+
+      String newValue = value;
+      for (Rule rule : rules_)
+        newValue = rule.rewriteAttribute(tagName, attributeName, newValue);
+
+      if (!newValue.equals(value)) {
+        if (isQuoted)
+          rewrite.replace(valueStart, valueEnd, newValue);
+        else
+          rewrite.replace(valueStart, valueEnd, "\"" + newValue + "\"");
+      }
+    }
+  }
+
+  /**
+   * Rewrite the specified HTML according to the rules of this rewriter.
+   *
+   * @param html  HTML to rewrite. Non-null.
+   * @return      The rewritten HTML. The same instance as html if unchanged. Never null.
+   * @throws IllegalArgumentException  If html is null.
+   */
+  public String rewrite(String html)
+  {
+    if (html == null)
+      throw new IllegalArgumentException("html cannot be null");
+
+    if (rules_.isEmpty())
+      return html;
+
+    Rewrite rewrite = new Rewrite(html);
+
+    int length = html.length();
+    int position = 0;
+    int textStart = 0;
+    int linkDepth = 0;
+
+    while (position < length) {
+      int markupStart = html.indexOf('<', position);
+      if (markupStart == -1)
+        break;
+
+      // A '<' that doesn't start markup is text
+      if (!isMarkupStart(html, markupStart)) {
+        position = markupStart + 1;
+        continue;
+      }
+
+      if (markupStart > textStart)
+        rewriteText(rewrite, textStart, markupStart, linkDepth > 0);
+
+      // Comment
+      if (html.startsWith("<!--", markupStart)) {
+        int end = html.indexOf("-->", markupStart + 4);
+        position = end != -1 ? end + 3 : length;
+      }
+
+      // Declaration or processing instruction
+      else if (html.charAt(markupStart + 1) == '!' || html.charAt(markupStart + 1) == '?') {
+        int end = html.indexOf('>', markupStart);
+        position = end != -1 ? end + 1 : length;
+      }
+
+      // End tag
+      else if (html.charAt(markupStart + 1) == '/') {
+        int nameEnd = getNameEnd(html, markupStart + 2);
+        if (nameEnd - markupStart == 3 && Character.toLowerCase(html.charAt(markupStart + 2)) == 'a')
+          linkDepth = Math.max(0, linkDepth - 1);
+
+        int end = html.indexOf('>', nameEnd);
+        position = end != -1 ? end + 1 : length;
+      }
+
+      // Start tag
+      else {
+        String tagName = html.substring(markupStart + 1, getNameEnd(html, markupStart + 1)).toLowerCase(Locale.ROOT);
+        position = rewriteStartTag(rewrite, markupStart, tagName);
+
+        boolean isSelfClosing = html.charAt(position - 1) == '>' && html.charAt(position - 2) == '/';
+
+        if (tagName.equals("a") && !isSelfClosing)
+          linkDepth++;
+
+        // Raw text: Up to the end tag as is
+        if ((tagName.equals("script") || tagName.equals("style")) && !isSelfClosing)
+          position = findEndTag(html, tagName, position);
+      }
+
+      textStart = position;
+    }
+
+    if (length > textStart)
+      rewriteText(rewrite, textStart, length, linkDepth > 0);
+
+    return rewrite.getResult();
+  }
+}
@@ -66,6 +66,11 @@ import java.util.TimeZone;
  * with UTC (being as good as anything) and at least get consistent results
  * wherever the class is used.
  * <p>
+ * The extended forms sent by the back-ends, like 2023-03-01, 2023-03-01T10:15:30Z,
+ * 2023-03-01T10:15:30.5733333Z and 2023-03-01T10:15:30.123+0100, are scanned
+ * directly into epoch milliseconds without any intermediate objects. Anything
+ * else is handled by the general (and far slower) calendar based parser.
+ * <p>
  * <b>NOTE:</b> The parser is <em>lenient</em> meaning that it may accept
  * sensible input that not necessarily follow the ISO 8601 strictly.
  * The class can therefore not be used to <em>validate</em> ISO 8601.
@@ -74,8 +79,8 @@ import java.util.TimeZone;
  */
 public final class ISO8601DateParser
 {
-  /** Formatter for ISO8601 output. */
-  private static DateTimeFormatter FORMATTER = new DateTimeFormatterBuilder().appendInstant(3)
+  /** Formatter for ISO8601 output. Thread safe. */
+  private static final DateTimeFormatter FORMATTER = new DateTimeFormatterBuilder().appendInstant(3)
                                                                              .toFormatter()
                                                                              .withZone(ZoneOffset.UTC);
   /**
@@ -290,6 +295,203 @@ public final class ISO8601DateParser
     }
   }
 
+  /**
+   * Return the numeric value of the specified number of digits
+   * starting at the given position of a text.
+   *
+   * @param text      Text to parse. Non-null.
+   * @param position  Position of first digit. [0,&gt;.
+   * @param nDigits   Number of digits. [1,9].
+   * @return          The numeric value, or -1 if the text doesn't have
+   *                  nDigits digits at the given position.
+   */
+  private static int getDigits(String text, int position, int nDigits)
+  {
+    assert text != null : "text cannot be null";
+
+    if (position + nDigits > text.length())
+      return -1;
+
+    int value = 0;
+    for (int i = position; i < position + nDigits; i++) {
+      int digit = text.charAt(i) - '0';
+      if (digit < 0 || digit > 9)
+        return -1;
+      value = value * 10 + digit;
+    }
+
+    return value;
+  }
+
+  /**
+   * Return number of days since 1970-01-01 of the specified date
+   * in the proleptic Gregorian calendar.
+   *
+   * @param year   Year.
+   * @param month  Month [1,12].
+   * @param day    Day of month [1,31].
+   * @return       Number of days since epoch.
+   */
+  private static long getEpochDay(int year, int month, int day)
+  {
+    assert month >= 1 && month <= 12 : "Invalid month: " + month;
+
+    // Count years from March so that the leap day is the last day of the year
+    int y = month <= 2 ? year - 1 : year;
+    int era = Math.floorDiv(y, 400);
+    int yearOfEra = y - era * 400;
+    int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+
+    return era * 146097L + dayOfEra - 719468L;
+  }
+
+  /**
+   * Return number of days in the specified month.
+   *
+   * @param year   Year.
+   * @param month  Month [1,12].
+   * @return       Number of days in month [28,31].
+   */
+  private static int getNDays(int year, int month)
+  {
+    if (month == 2)
+      return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0 ? 29 : 28;
+
+    return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+  }
+
+  /**
+   * Parse the common extended forms yyyy-mm-dd[Thh:mm:ss[.f][zone]] of the
+   * specified text directly into epoch milliseconds.
+   *
+   * @param text  Text to parse. Non-null.
+   * @return      Milliseconds since epoch, or Long.MIN_VALUE if the text is
+   *              not on one of the supported forms.
+   */
+  private static long parseFast(String text)
+  {
+    assert text != null : "text cannot be null";
+
+    int length = text.length();
+
+    //
+    // Date: yyyy-mm-dd
+    //
+    if (length < 10 || text.charAt(4) != '-' || text.charAt(7) != '-')
+      return Long.MIN_VALUE;
+
+    int year = getDigits(text, 0, 4);
+    int month = getDigits(text, 5, 2);
+    int day = getDigits(text, 8, 2);
+    if (year < 0 || month < 1 || month > 12 || day < 1 || day > getNDays(year, month))
+      return Long.MIN_VALUE;
+
+    long epochDay = getEpochDay(year, month, day);
+
+    if (length == 10)
+      return epochDay * 86400000L;
+
+    //
+    // Time: Thh:mm:ss
+    //
+    char separator = text.charAt(10);
+    if ((separator != 'T' && separator != 't' && separator != ' ') || length < 19 || text.charAt(13) != ':' || text.charAt(16) != ':')
+      return Long.MIN_VALUE;
+
+    int hour = getDigits(text, 11, 2);
+    int minute = getDigits(text, 14, 2);
+    int second = getDigits(text, 17, 2);
+    if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59)
+      return Long.MIN_VALUE;
+
+    //
+    // Fraction: .fff (any number of digits, rounded to milliseconds)
+    //
+    int position = 19;
+    int millisecond = 0;
+    if (position < length && (text.charAt(position) == '.' || text.charAt(position) == ',')) {
+      position++;
+      int start = position;
+      int scale = 100;
+      boolean isRoundedUp = false;
+      while (position < length) {
+        int digit = text.charAt(position) - '0';
+        if (digit < 0 || digit > 9)
+          break;
+
+        if (scale > 0)
+          millisecond += digit * scale;
+        else if (scale == 0 && position == start + 3)
+          isRoundedUp = digit >= 5;
+
+        scale /= 10;
+        position++;
+      }
+
+      if (position == start)
+        return Long.MIN_VALUE;
+
+      if (isRoundedUp)
+        millisecond++;
+    }
+
+    //
+    // Zone: [Z | +hh[[:]mm] | -hh[[:]mm]]. Absent means UTC, see parseZone()
+    //
+    int offsetMinutes = 0;
+    if (position < length) {
+      char sign = text.charAt(position);
+      if (sign == 'Z' || sign == 'z') {
+        if (position + 1 != length)
+          return Long.MIN_VALUE;
+      }
+      else if (sign == '+' || sign == '-') {
+        int zoneLength = length - position - 1;
+        int offsetHour = getDigits(text, position + 1, 2);
+        int offsetMinute;
+        if (zoneLength == 2)
+          offsetMinute = 0;
+        else if (zoneLength == 4)
+          offsetMinute = getDigits(text, position + 3, 2);
+        else if (zoneLength == 5 && text.charAt(position + 3) == ':')
+          offsetMinute = getDigits(text, position + 4, 2);
+        else
+          return Long.MIN_VALUE;
+
+        if (offsetHour < 0 || offsetMinute < 0 || offsetMinute > 59)
+          return Long.MIN_VALUE;
+
+        offsetMinutes = (sign == '+' ? 1 : -1) * (offsetHour * 60 + offsetMinute);
+      }
+      else {
+        return Long.MIN_VALUE;
+      }
+    }
+
+    long secondOfDay = hour * 3600L + minute * 60L + second - offsetMinutes * 60L;
+    return (epochDay * 86400L + secondOfDay) * 1000L + millisecond;
+  }
+
+  /**
+   * Parse the given string in ISO 8601 date/time format and return it as
+   * milliseconds since epoch.
+   *
+   * @param  text  Text string to parse. Non-null.
+   * @return Corresponding milliseconds since epoch.
+   * @throws IllegalArgumentException  If text is null.
+   * @throws ParseException   If text is not a valid date time according to ISO 8601
+   */
+  public static long parseMillis(String text)
+    throws ParseException
+  {
+    if (text == null)
+      throw new IllegalArgumentException("text cannot be null");
+
+    long time = parseFast(text);
+    return time != Long.MIN_VALUE ? time : parseGeneral(text).getTime();
+  }
+
   /**
    * Parse the given string in ISO 8601 date/time format and return it as
    * a Date object.
@@ -305,6 +507,23 @@ public final class ISO8601DateParser
     if (text == null)
       throw new IllegalArgumentException("text cannot be null");
 
+    long time = parseFast(text);
+    return time != Long.MIN_VALUE ? new Date(time) : parseGeneral(text);
+  }
+
+  /**
+   * Parse the given string in ISO 8601 date/time format using the general
+   * calendar based parser. Handles all forms listed in the class comment.
+   *
+   * @param  text  Text string to parse. Non-null.
+   * @return Corresponding date instance. Never null.
+   * @throws ParseException   If text is not a valid date time according to ISO 8601
+   */
+  static Date parseGeneral(String text)
+    throws ParseException
+  {
+    assert text != null : "text cannot be null";
+
     text = text.toUpperCase();
 
     // Initiate a calendar instance we can populate
@@ -361,4 +580,20 @@ public final class ISO8601DateParser
 
     return FORMATTER.format(Instant.ofEpochMilli(date.getTime()));
   }
+
+  /**
+   * Generate a ISO 8601 string representation of the specified instant.
+   *
+   * @param instant The instant to create string representation of. Non-null.
+   * @return        String representing the date/time in the ISO 8601 format.
+   *                Never null.
+   * @throws IllegalArgumentException  If instant is null.
+   */
+  public static String toString(Instant instant)
+  {
+    if (instant == null)
+      throw new IllegalArgumentException("instant cannot be null");
+
+    return FORMATTER.format(instant);
+  }
 }
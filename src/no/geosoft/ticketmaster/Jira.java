@@ -2,11 +2,9 @@ package no.geosoft.ticketmaster;
 
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
@@ -14,16 +12,19 @@ import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collections;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonNumber;
 import javax.json.JsonObject;
-import javax.json.JsonReader;
+import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
 
 /**
@@ -36,20 +37,24 @@ public final class Jira
   /** The logger instance. */
   private static final Logger logger_ = Logger.getLogger(Jira.class.getName());
 
-  /** Jira instance base URL. */
-  private static final String BASE_URL = "https://<organization>.atlassian.net/";
+  /** Jira instance base URL. Can be overridden (e.g. by a stub server) through the ticketmaster.jira.url property. */
+  private static final String BASE_URL = System.getProperty("ticketmaster.jira.url", "https://<organization>.atlassian.net/");
 
-  /** Email for authentication. */
-  private static final String EMAIL = "<user email>";
-
-  /** Access token for the user above. */
-  private static final String API_TOKEN = "<PAT>";
+  /**
+   * Email and access token of each user (service account) for authentication.
+   * Requests are spread across the users to multiply the per-user rate limit.
+   */
+  private static final String[][] CREDENTIALS = {
+    {"<user email>", "<PAT>"},
+  };
 
-  /** Name of Jira project we are accessing. */
+  /** Name of the default Jira project we are accessing. */
   private static final String PROJECT = "<project>";
 
-  /** HTTP authorization header. */
-  private static final String AUTHORIZATION_HEADER = "Basic " + Base64.getEncoder().encodeToString((EMAIL + ":" + API_TOKEN).getBytes(StandardCharsets.UTF_8));
+  /** HTTP authorization header of each user. */
+  private static final List<String> AUTHORIZATION_HEADERS = Stream.of(CREDENTIALS)
+    .map(credential -> "Basic " + Base64.getEncoder().encodeToString((credential[0] + ":" + credential[1]).getBytes(StandardCharsets.UTF_8)))
+    .toList();
 
   /** Issue fields we are requesting. One per line for readability. */
   private static final String ISSUE_FIELDS_RAW = """
@@ -97,12 +102,71 @@ public final class Jira
   /** All issues loaded. */
   private final List<JiraIssue> issues_ = new ArrayList<>();
 
+  /** Name of the Jira project we are accessing. */
+  private final String project_;
+
+  /** The client used for all reads from the back-end. */
+  private final RestClient client_;
+
+  /**
+   * Create an instance <em>representing</em> one project of the Jira back-end.
+   *
+   * @param project        Name of Jira project. Non-null.
+   * @param credentials    Credentials for accessing the back-end. May be shared with
+   *                       other instances, see newCredentialPool(). Non-null.
+   * @param responseCache  Cache for recording or replaying back-end responses.
+   *                       Null if responses should not be cached.
+   * @throws IllegalArgumentException  If project or credentials is null.
+   */
+  public Jira(String project, CredentialPool credentials, ResponseCache responseCache)
+  {
+    if (project == null)
+      throw new IllegalArgumentException("project cannot be null");
+
+    if (credentials == null)
+      throw new IllegalArgumentException("credentials cannot be null");
+
+    project_ = project;
+    client_ = new RestClient(credentials, responseCache);
+  }
+
+  /**
+   * Create an instance <em>representing</em> the Jira back-end.
+   *
+   * @param responseCache  Cache for recording or replaying back-end responses.
+   *                       Null if responses should not be cached.
+   */
+  public Jira(ResponseCache responseCache)
+  {
+    this(PROJECT, newCredentialPool(), responseCache);
+  }
+
   /**
    * Create an instance <em>representing</em> the Jira back-end.
    */
   public Jira()
   {
-    // Nothing
+    this(null);
+  }
+
+  /**
+   * Create a pool of the configured Jira credentials.
+   *
+   * @return  A new credential pool. Never null.
+   */
+  public static CredentialPool newCredentialPool()
+  {
+    return new CredentialPool("Jira", AUTHORIZATION_HEADERS);
+  }
+
+  /**
+   * Return the name of the Jira project of this instance.
+   *
+   * @return  The Jira project. Never null.
+   */
+  public String getProject()
+  {
+    return project_;
   }
 
   private void resolveParentLinks()
@@ -136,7 +200,7 @@ public final class Jira
           continue;
         }
 
-        logger_.log(Level.INFO, "Update Jira link " + issue.getId() + " -> " + linkedIssue.getId() + " (" + link.getType() + ")");
+        logger_.log(Level.INFO, () -> "Update Jira link " + issue.getId() + " -> " + linkedIssue.getId() + " (" + link.getType() + ")");
         link.setLinkedIssue(linkedIssue);
       }
     }
@@ -186,44 +250,23 @@ public final class Jira
    * @param attachment  Attachment to pull content of. Non-null.
    * @return            The attachment binary content, or null if not found.
    */
-  private byte[] pullAttachment(JiraAttachment attachment)
+  private AttachmentContent pullAttachment(JiraAttachment attachment)
   {
     assert attachment != null : "attachment cannot be null";
 
-    URL url = Util.newUrl(attachment.getUrl());
-
-    HttpURLConnection connection = null;
-    InputStream inputStream = null;
-
     try {
-      connection = (HttpURLConnection) url.openConnection();
-      connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
-      connection.setRequestMethod("GET");
-
-      inputStream = connection.getInputStream();
-      ByteArrayOutputStream byteBuffer = new ByteArrayOutputStream();
+      logger_.log(Level.INFO, () -> "Pulling attachment: " + attachment.getFileName());
 
-      logger_.log(Level.INFO, "Pulling attachment: " + attachment.getFileName());
+      AttachmentContent content = client_.getContent(attachment.getUrl(), attachment.getSize());
 
-      byte[] data = new byte[4096];
-      int nBytesRead;
-      while ((nBytesRead = inputStream.read(data)) != -1)
-        byteBuffer.write(data, 0, nBytesRead);
+      logger_.log(Level.INFO, () -> "Attachment pulled, size=" + content.getSize());
 
-      byte[] bytes = byteBuffer.toByteArray();
-
-      logger_.log(Level.INFO, "Attachment pulled, size=" + bytes.length);
-
-      return bytes;
+      return content;
     }
     catch (IOException exception) {
       logger_.log(Level.WARNING, "Unable to capture attachment: " + attachment, exception);
       return null;
     }
-    finally  {
-      Util.close(inputStream);
-      Util.close(connection);
-    }
   }
 
   /**
@@ -237,22 +280,9 @@ public final class Jira
     assert key != null : "key cannot be null";
 
     String urlString = BASE_URL + "/rest/api/2/issue/" + key + "?fields=" + ISSUE_FIELDS + "&expand=renderedFields,comments";
-    URL url = Util.newUrl(urlString);
-
-    HttpURLConnection connection = null;
-    InputStream responseStream = null;
-    JsonReader reader = null;
 
     try {
-      connection = (HttpURLConnection) url.openConnection();
-      connection.setRequestMethod("GET");
-      connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
-      connection.setRequestProperty("Accept", "application/json");
-
-      responseStream = connection.getInputStream();
-      InputStreamReader utf8Reader = new InputStreamReader(responseStream, StandardCharsets.UTF_8);
-      reader = Json.createReader(utf8Reader);
-      JsonObject issueJson = reader.readObject();
+      JsonObject issueJson = client_.getJson(urlString).asJsonObject();
 
       // System.out.println(Util.toPretty(issueJson));
 
@@ -262,11 +292,6 @@ public final class Jira
       logger_.log(Level.WARNING, "Unable to get issue " + key, exception);
       return null;
     }
-    finally {
-      Util.close(reader);
-      Util.close(responseStream);
-      Util.close(connection);
-    }
   }
 
   /**
@@ -285,31 +310,16 @@ public final class Jira
     int total = Integer.MAX_VALUE;
 
     while (startAt < total) {
-      String urlString = BASE_URL + "/rest/api/2/search?jql=project=" + PROJECT +
+      String urlString = BASE_URL + "/rest/api/2/search?jql=project=" + project_ +
                          "&fields=" + ISSUE_FIELDS +
                          "&startAt=" + startAt +
                          "&maxResults=" + maxResults +
                          "&expand=renderedFields";
 
-      System.out.println("Pulling Jira issues " + startAt + " to " + (startAt + maxResults - 1) + "...");
-
-      URL url = Util.newUrl(urlString);
-
-      HttpURLConnection connection = null;
-      InputStream responseStream = null;
-      JsonReader reader = null;
+      System.out.println("Pulling " + project_ + " issues " + startAt + " to " + (startAt + maxResults - 1) + "...");
 
       try {
-        connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("GET");
-        connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
-        connection.setRequestProperty("Accept", "application/json");
-
-        responseStream = connection.getInputStream();
-        InputStreamReader utf8Reader = new InputStreamReader(responseStream, StandardCharsets.UTF_8);
-        reader = Json.createReader(utf8Reader);
-        JsonObject json = reader.readObject();
-        reader.close();
+        JsonObject json = client_.getJson(urlString).asJsonObject();
 
         total = json.getInt("total");
 
@@ -330,11 +340,6 @@ public final class Jira
       catch (IOException exception) {
         logger_.log(Level.WARNING, "Error while extracting issues", exception);
       }
-      finally {
-        Util.close(reader);
-        Util.close(responseStream);
-        Util.close(connection);
-      }
     }
 
     return issues;
@@ -353,7 +358,7 @@ public final class Jira
       throw new IllegalArgumentException("issue cannot be null");
 
     for (JiraAttachment attachment : issue.getAttachments()) {
-      byte[] content = pullAttachment(attachment);
+      AttachmentContent content = pullAttachment(attachment);
       attachment.setContent(content);
     }
   }
@@ -364,33 +369,14 @@ public final class Jira
   private void listFields()
   {
     String urlString = BASE_URL + "/rest/api/3/field";
-    URL url = Util.newUrl(urlString);
-
-    HttpURLConnection connection = null;
-    InputStream responseStream = null;
-    JsonReader reader = null;
 
     try {
-      connection = (HttpURLConnection) url.openConnection();
-      connection.setRequestMethod("GET");
-      connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
-      connection.setRequestProperty("Accept", "application/json");
-
-      responseStream = connection.getInputStream();
-      reader = Json.createReader(responseStream);
-      JsonArray json = reader.readArray();
-      reader.close();
-
+      JsonArray json = client_.getJson(urlString).asJsonArray();
       System.out.println(Util.toPretty(json));
     }
     catch (IOException exception) {
       logger_.log(Level.WARNING, "Listing fields failed", exception);
     }
-    finally {
-      Util.close(reader);
-      Util.close(responseStream);
-      Util.close(connection);
-    }
   }
 
   /**
@@ -468,6 +454,104 @@ public final class Jira
     return getIssues(Integer.MAX_VALUE);
   }
 
+  /**
+   * Save all loaded issues, including their resolved parent and link
+   * references, to the specified snapshot file.
+   * <p>
+   * Each snapshot record holds the issue JSON together with the index
+   * of its parent issue and the index of each linked issue.
+   *
+   * @param file  File to write. Non-null.
+   * @throws IllegalArgumentException  If file is null.
+   * @throws IOException  If the snapshot cannot be written.
+   */
+  public void saveSnapshot(File file)
+    throws IOException
+  {
+    if (file == null)
+      throw new IllegalArgumentException("file cannot be null");
+
+    Map<JiraIssue,Integer> indices = new IdentityHashMap<>();
+    for (int i = 0; i < issues_.size(); i++)
+      indices.put(issues_.get(i), i);
+
+    try (Snapshot.Writer writer = new Snapshot.Writer(file)) {
+      for (JiraIssue issue : issues_) {
+        JiraIssue parentIssue = issue.getParentIssue();
+        Integer parentIndex = parentIssue != null ? indices.get(parentIssue) : null;
+
+        JsonObjectBuilder linksBuilder = Json.createObjectBuilder();
+        for (JiraLink link : issue.getLinks()) {
+          Integer linkedIndex = link.getLinkedIssue() != null ? indices.get(link.getLinkedIssue()) : null;
+          if (linkedIndex != null)
+            linksBuilder.add(link.getLinkedIssueId(), linkedIndex);
+        }
+
+        JsonObject record = Json.createObjectBuilder()
+          .add("issue", issue.getJsonObject())
+          .add("parent", parentIndex != null ? parentIndex : -1)
+          .add("links", linksBuilder)
+          .build();
+
+        writer.write(record);
+      }
+    }
+
+    logger_.log(Level.INFO, () -> issues_.size() + " issues saved to snapshot " + file);
+  }
+
+  /**
+   * Load issues from the specified snapshot file, replacing any issues
+   * already loaded. Parent and link references are restored as they
+   * were when the snapshot was saved.
+   *
+   * @param file  Snapshot file to load. Non-null.
+   * @throws IllegalArgumentException  If file is null.
+   * @throws IOException  If the snapshot cannot be read.
+   */
+  public void loadSnapshot(File file)
+    throws IOException
+  {
+    if (file == null)
+      throw new IllegalArgumentException("file cannot be null");
+
+    issues_.clear();
+
+    try (Snapshot.Reader reader = new Snapshot.Reader(file)) {
+      int[] parentIndices = new int[reader.size()];
+      JsonObject[] links = new JsonObject[reader.size()];
+
+      for (int i = 0; i < reader.size(); i++) {
+        JsonObject record = reader.read(i).asJsonObject();
+        issues_.add(new JiraIssue(record.getJsonObject("issue")));
+        parentIndices[i] = record.getInt("parent");
+        links[i] = record.getJsonObject("links");
+      }
+
+      // Restore references
+      for (int i = 0; i < issues_.size(); i++) {
+        JiraIssue issue = issues_.get(i);
+
+        if (parentIndices[i] >= 0)
+          issue.setParentIssue(issues_.get(parentIndices[i]));
+
+        for (JiraLink link : issue.getLinks()) {
+          String linkedIssueId = link.getLinkedIssueId();
+          JsonNumber linkedIndex = linkedIssueId != null ? links[i].getJsonNumber(linkedIssueId) : null;
+          if (linkedIndex != null)
+            link.setLinkedIssue(issues_.get(linkedIndex.intValue()));
+        }
+      }
+    }
+    catch (IOException | RuntimeException exception) {
+      // Don't leave a partially loaded state behind
+      issues_.clear();
+      throw exception;
+    }
+
+    logger_.log(Level.INFO, () -> issues_.size() + " issues loaded from snapshot " + file);
+  }
+
   /**
    * Testing the Jire class.
    *
@@ -1,8 +1,10 @@
 package no.geosoft.ticketmaster;
 
-import java.util.Date;
+import java.time.Instant;
 
+import javax.json.JsonNumber;
 import javax.json.JsonObject;
+import javax.json.JsonValue;
 
 public final class JiraAttachment
 {
@@ -12,13 +14,15 @@ public final class JiraAttachment
 
   private final JiraUser author_;
 
-  private final Date createdTime_;
+  private final Instant createdTime_;
 
   private final String mimeType_;
 
   private final String url_;
 
-  private byte[] content_;
+  private final long size_;
+
+  private AttachmentContent content_;
 
   public JiraAttachment(JsonObject jsonObject)
   {
@@ -31,6 +35,9 @@ public final class JiraAttachment
     createdTime_ = Util.getTime(createdTime);
 
     url_ = jsonObject.getString("content", null);
+
+    JsonValue size = jsonObject.get("size");
+    size_ = size instanceof JsonNumber ? ((JsonNumber) size).longValue() : -1L;
   }
 
   public String getId()
@@ -48,9 +55,9 @@ public final class JiraAttachment
     return author_;
   }
 
-  public Date getCreatedTime()
+  public Instant getCreatedTime()
   {
-    return new Date(createdTime_.getTime());
+    return createdTime_;
   }
 
   public String getMimeType()
@@ -63,12 +70,17 @@ public final class JiraAttachment
     return url_;
   }
 
-  public void setContent(byte[] content)
+  public long getSize()
+  {
+    return size_;
+  }
+
+  public void setContent(AttachmentContent content)
   {
     content_ = content;
   }
 
-  public byte[] getContent()
+  public AttachmentContent getContent()
   {
     return content_;
   }
@@ -1,7 +1,7 @@
 package no.geosoft.ticketmaster;
 
+import java.time.Instant;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -19,9 +19,9 @@ public final class JiraComment implements Comparable<JiraComment>
 
   private final String body_;
 
-  private final Date createdTime_;
+  private final Instant createdTime_;
 
-  private final Date updatedTime_;
+  private final Instant updatedTime_;
 
   private final Set<JiraReaction> reactions_ = new HashSet<>();
 
@@ -70,9 +70,9 @@ public final class JiraComment implements Comparable<JiraComment>
     return author_;
   }
 
-  public Date getCreatedTime()
+  public Instant getCreatedTime()
   {
-    return new Date(createdTime_.getTime());
+    return createdTime_;
   }
 
   public JiraUser getUpdatedBy()
@@ -80,9 +80,9 @@ public final class JiraComment implements Comparable<JiraComment>
     return updatedBy_;
   }
 
-  public Date getUpdatedTime()
+  public Instant getUpdatedTime()
   {
-    return new Date(updatedTime_.getTime());
+    return updatedTime_;
   }
 
   public Set<JiraReaction> getReactions()
@@ -93,8 +93,8 @@ public final class JiraComment implements Comparable<JiraComment>
   @Override
   public int compareTo(JiraComment jiraComment)
   {
-    Date time1 = createdTime_;
-    Date time2 = jiraComment.createdTime_;
+    Instant time1 = createdTime_;
+    Instant time2 = jiraComment.createdTime_;
 
     return time1 != null && time2 != null ? time1.compareTo(time2) : 1;
   }
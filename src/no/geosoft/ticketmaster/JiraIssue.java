@@ -1,8 +1,8 @@
 package no.geosoft.ticketmaster;
 
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -14,6 +14,10 @@ import javax.json.JsonValue;
 
 /**
  * A class modelling the properties of a Jira ticket.
+ * <p>
+ * The issue is backed by the JSON object it is created from. Only a compact
+ * header is decoded eagerly, the rest on first access. The class is thread safe
+ * except for the parent issue, which is resolved before the issue is shared.
  *
  * @author <a href="mailto:jacob.dreyer@geosoft.no">Jacob Dreyer</a>
  */
@@ -147,85 +151,75 @@ public final class JiraIssue
     }
   }
 
-  /** The readable issue ID. */
+  /** The readable issue ID. Header. */
   private final String id_;
 
-  /** The back-end issue key. */
+  /** The back-end issue key. Header. */
   private final String key_;
 
-  /** Issue type. */
+  /** Issue type. Header. */
   private final Type type_;
 
-  /** Issue category. */
-  private final Category category_;
+  /** Issue status. Header. */
+  private final Status status_;
 
-  /** The creator of the issue. */
-  private final JiraUser creator_;
+  /** ID of parent issue. Identified ate pull time. Header. */
+  private final String parentIssueId_;
 
-  /** Time created. Null? */
-  private final Date createdTime_;
+  /** Links to other Jira issues. Header. */
+  private final Set<JiraLink> links_ = new HashSet<>();
 
-  /** The original reporter. Null? */
-  private final JiraUser reporter_;
+  /** The actual parent issue. Resolved later. */
+  private JiraIssue parentIssue_;
 
-  /** Current assignee. May be null. */
-  private final JiraUser assignee_;
+  /** The JSON object this issue was created from. */
+  private final JsonObject jsonObject_;
 
-  /** Issue priority. */
-  private final Priority priority_;
+  /** The "fields" part of the JSON object. */
+  private final JsonObject fieldsObject_;
 
-  /** Issue status. */
-  private final Status status_;
+  /** The "renderedFields" part of the JSON object. Contains the rich text (HTML) fields. */
+  private final JsonObject renderedFieldsObject_;
 
-  /** Issue summary, i.e. its title. */
-  private final String summary_;
+  /** The creator of the issue. Decoded on first access. */
+  private JiraUser creator_;
 
-  /** Issue description in rich text, typically HTML or Markdown. */
-  private final String description_;
+  /** The original reporter. Decoded on first access. */
+  private JiraUser reporter_;
 
-  /** Description of how to reproduce. */
-  private final String stepsToReproduce_;
+  /** Current assignee. Decoded on first access. May be null. */
+  private JiraUser assignee_;
 
-  /** Some custom fields. */
-  private final String customRootCause_;
-  private final String customRootCauseDescription_;
-  private final String customExpectedAndActualResults_;
-  private final String customAcceptanceCriteria_;
-  private final String customNotesResources_;
-  private final String customScreensFigma_;
-  private final String customDefinitionOfDone_;
-  private final String customHighLevelTestCases_;
-  private final String customScreensVideosResources_;
-  private final String customDevicesAndVersions_;
-  private final String customPlatform_;
-  private final String customEnv_;
+  /** QA assignee. Decoded on first access. May be null. */
+  private JiraUser customQaAssignee_;
 
-  private final JiraUser customQaAssignee_;
+  /** Time created. Decoded on first access. Null? */
+  private Instant createdTime_;
 
-  private final Date customStartDate_;
-  private final Date dueDate_;
+  /** Custom start date. Decoded on first access. May be null. */
+  private Instant customStartDate_;
 
-  /** Links to other Jira issues. */
-  private final Set<JiraLink> links_ = new HashSet<>();
+  /** Due date. Decoded on first access. May be null. */
+  private Instant dueDate_;
 
-  /** All comments made to this issue. */
-  private final Set<JiraComment> comments_ = new TreeSet<>();
+  /** All comments made to this issue. Decoded on first access. Null until then. */
+  private Set<JiraComment> comments_;
 
-  /** All associated labels (tags).  */
-  private final Set<String> labels_ = new HashSet<>();
+  /** All associated labels (tags). Decoded on first access. Null until then. */
+  private Set<String> labels_;
 
-  /** ID of parent issue. Identified ate pull time. */
-  private final String parentIssueId_;
-
-  /** The actual parent issue. Resolved later. */
-  private JiraIssue parentIssue_;
-
-  /** Issue attachments. */
-  private final List<JiraAttachment> attachments_ = new ArrayList<>();
+  /** Issue attachments. Decoded on first access. Null until then. */
+  private List<JiraAttachment> attachments_;
 
   /**
    * Create a Jira issue instance based on the JSON object response from a REST API
    * call to the Jira back-end.
+   * <p>
+   * Only the header (id, key, type, status, parent ID and links) is decoded
+   * up front, as this is what is needed for indexing, filtering and link
+   * resolution. The JSON object is kept, and the remaining fields are decoded
+   * from it on first access. Plain text fields are read directly from the
+   * JSON object on each access.
    *
    * @param jsonObject  JSON object from back-end. Non-null.
    * @throws IllegalArgumentException  If jsonObject is null.
@@ -235,143 +229,89 @@ public final class JiraIssue
     if (jsonObject == null)
       throw new IllegalArgumentException("jsonObject cannot be null");
 
+    jsonObject_ = jsonObject;
+
     // System.out.println(Util.toPretty(jsonObject));
 
+    fieldsObject_ = jsonObject.getJsonObject("fields");
+    renderedFieldsObject_ = jsonObject.getJsonObject("renderedFields");
+
     // id
     id_ = jsonObject.getString("id", null);
 
     // key
     key_ = jsonObject.getString("key", null);
 
-    JsonObject fieldsObject = jsonObject.getJsonObject("fields");
-    JsonObject renderedFieldsObject = jsonObject.getJsonObject("renderedFields");
-
     // type
-    JsonObject typeObject = fieldsObject.getJsonObject("issuetype");
+    JsonObject typeObject = fieldsObject_.getJsonObject("issuetype");
     String typeTag = typeObject.getString("name", null);
     type_ = Type.get(typeTag);
 
-    // creator
-    JsonObject creatorObject = fieldsObject.getJsonObject("creator");
-    creator_ = new JiraUser(creatorObject);
-
-    // created
-    String createdText = fieldsObject.getString("created", null);
-    createdTime_ = Util.getTime(createdText);
-
-    // summary
-    summary_ = fieldsObject.getString("summary", null);
-
-    // description
-    description_ = renderedFieldsObject.getString("description", null);
-
-    // steps to reproduce
-    stepsToReproduce_ = renderedFieldsObject.getString("customfield_11719", null);
-
-    // custom stuff
-    JsonObject customRootCauseObject = Util.getJsonObject(fieldsObject, "customfield_11653");
-    customRootCause_ = customRootCauseObject != null ? customRootCauseObject.getString("value", null) : null;
-
-    customRootCauseDescription_ = fieldsObject.getString("customfield_11656", null); // Text only!
-    customExpectedAndActualResults_ = renderedFieldsObject.getString("customfield_11720", null);
-    customAcceptanceCriteria_ = renderedFieldsObject.getString("customfield_11696", null);
-    customNotesResources_ = renderedFieldsObject.getString("customfield_11702", null);
-    customScreensFigma_ = renderedFieldsObject.getString("customfield_11698", null);
-    customDefinitionOfDone_ = renderedFieldsObject.getString("customfield_11697", null);
-    customHighLevelTestCases_ = renderedFieldsObject.getString("customfield_11988", null);
-    customScreensVideosResources_ = renderedFieldsObject.getString("customfield_11721", null);
-    customDevicesAndVersions_ = renderedFieldsObject.getString("customfield_11722", null);
-
-    JsonObject customEnvObject = Util.getJsonObject(fieldsObject, "customfield_11724");
-    customEnv_ = customEnvObject != null ? customEnvObject.getString("value", null) : null;
-
-    JsonObject customPlatform = Util.getJsonObject(fieldsObject, "customfield_11615");
-    customPlatform_ = customPlatform != null ? customPlatform.getString("value", null) : null;
-
-    JsonValue customQaAssignee = fieldsObject.get("customfield_11712");
-    customQaAssignee_ = customQaAssignee != null && customQaAssignee.getValueType() == JsonValue.ValueType.OBJECT ? new JiraUser(customQaAssignee.asJsonObject()) : null;
-
-    // custom start date
-    String startDateText = fieldsObject.getString("customfield_11601", null);
-    customStartDate_ = Util.getTime(startDateText);
-
-    // duedate
-    String dueDateText = fieldsObject.getString("duedate", null);
-    dueDate_ = Util.getTime(dueDateText);
-
-    // reporter
-    reporter_ = new JiraUser(fieldsObject.getJsonObject("reporter"));
-
-    // assignee
-    JsonValue assigneeObject = fieldsObject.get("assignee");
-    assignee_ = assigneeObject.getValueType() == JsonValue.ValueType.OBJECT ? new JiraUser(assigneeObject.asJsonObject()) : null;
-
-    // priority
-    JsonObject priorityObject = fieldsObject.getJsonObject("priority");
-    String priorityTag = priorityObject.getString("name");
-    priority_ = Priority.get(priorityTag);
-
     // status
-    JsonObject statusObject = fieldsObject.getJsonObject("status");
+    JsonObject statusObject = fieldsObject_.getJsonObject("status");
     String statusTag = statusObject.getString("name", null);
     status_ = Status.get(statusTag);
 
-    // comments
-    JsonObject commentsObject = fieldsObject.getJsonObject("comment");
-    JsonArray commentsArray = commentsObject.getJsonArray("comments");
-    JsonObject renderedCommentsObject = renderedFieldsObject.getJsonObject("comment");
-    JsonArray renderedCommentsArray = renderedCommentsObject.getJsonArray("comments");
-    for (JsonValue comment : commentsArray) {
-      JsonObject commentObject = comment.asJsonObject();
-      JsonObject renderedCommentObject = null;
-
-      String commentId = commentObject.getString("id");
-      String body = commentObject.getString("body", null);
-      for (JsonValue value : renderedCommentsArray) {
-        JsonObject object = value.asJsonObject();
-        if (object.getString("id").equals(commentId)) {
-          renderedCommentObject = object;
-          break;
-        }
-      }
-
-      comments_.add(new JiraComment(commentObject, renderedCommentObject));
-    }
-
-    // labels
-    JsonArray labelsArray = fieldsObject.getJsonArray("labels");
-    if (labelsArray != null) {
-      for (int i = 0; i < labelsArray.size(); i++) {
-        String label = labelsArray.getString(i);
-        labels_.add(label);
-      }
-    }
-
     // parent
-    JsonObject parentObject = fieldsObject.getJsonObject("parent");
+    JsonObject parentObject = fieldsObject_.getJsonObject("parent");
     parentIssueId_ = parentObject != null ? parentObject.getString("id", null) : null;
 
     // links
-    JsonArray linksArray = fieldsObject.getJsonArray("issuelinks");
+    JsonArray linksArray = fieldsObject_.getJsonArray("issuelinks");
     for (JsonValue link : linksArray) {
       links_.add(new JiraLink(link.asJsonObject()));
     }
+  }
 
-    // attachments
-    JsonArray attachmentArray = fieldsObject.getJsonArray("attachment");
-    if (attachmentArray != null) {
-      for (JsonValue value : attachmentArray) {
-        JsonObject attachmentObject = value.asJsonObject();
-        JiraAttachment attachment = new JiraAttachment(attachmentObject);
-        attachments_.add(attachment);
-      }
-    }
+  /**
+   * Return the specified rendered (rich text) field.
+   *
+   * @param name  Name of field. Non-null.
+   * @return      The field value. Null if not present.
+   */
+  private String getRenderedField(String name)
+  {
+    assert name != null : "name cannot be null";
+    return renderedFieldsObject_.getString(name, null);
+  }
 
-    // category
-    JsonValue categoryValue = fieldsObject.get("customfield_11615");
-    JsonObject categoryObject = categoryValue != null && categoryValue.getValueType() == JsonValue.ValueType.OBJECT ? categoryValue.asJsonObject() : null;
-    String categoryTag = categoryObject != null ? priorityObject.getString("value", null) : null;
-    category_ = categoryTag != null ? Category.get(categoryTag) : null;
+  /**
+   * Return the "value" member of the specified option field.
+   *
+   * @param name  Name of field. Non-null.
+   * @return      The option value. Null if not present.
+   */
+  private String getOptionField(String name)
+  {
+    assert name != null : "name cannot be null";
+
+    JsonObject optionObject = Util.getJsonObject(fieldsObject_, name);
+    return optionObject != null ? optionObject.getString("value", null) : null;
+  }
+
+  /**
+   * Return the specified user field.
+   *
+   * @param name  Name of field. Non-null.
+   * @return      The user. Null if not present.
+   */
+  private JiraUser getUserField(String name)
+  {
+    assert name != null : "name cannot be null";
+
+    JsonValue userValue = fieldsObject_.get(name);
+    return userValue != null && userValue.getValueType() == JsonValue.ValueType.OBJECT ? new JiraUser(userValue.asJsonObject()) : null;
+  }
+
+  /**
+   * Return the JSON object this issue was created from.
+   * Used for writing snapshots, see Jira.saveSnapshot().
+   *
+   * @return  The JSON object of this issue. Never null.
+   */
+  public JsonObject getJsonObject()
+  {
+    return jsonObject_;
   }
 
   public String getId()
@@ -389,119 +329,151 @@ public final class JiraIssue
     return type_;
   }
 
-  public JiraUser getCreator()
+  public Category getCategory()
   {
+    JsonValue categoryValue = fieldsObject_.get("customfield_11615");
+    JsonObject categoryObject = categoryValue != null && categoryValue.getValueType() == JsonValue.ValueType.OBJECT ? categoryValue.asJsonObject() : null;
+    JsonObject priorityObject = fieldsObject_.getJsonObject("priority");
+    String categoryTag = categoryObject != null ? priorityObject.getString("value", null) : null;
+    return categoryTag != null ? Category.get(categoryTag) : null;
+  }
+
+  public synchronized JiraUser getCreator()
+  {
+    if (creator_ == null)
+      creator_ = new JiraUser(fieldsObject_.getJsonObject("creator"));
+
     return creator_;
   }
 
-  public Date getCreatedTime()
+  public synchronized Instant getCreatedTime()
   {
+    if (createdTime_ == null)
+      createdTime_ = Util.getTime(fieldsObject_.getString("created", null));
+
     return createdTime_;
   }
 
   public String getSummary()
   {
-    return summary_;
+    return fieldsObject_.getString("summary", null);
   }
 
   public String getDescription()
   {
-    return description_;
+    return getRenderedField("description");
   }
 
   public String getStepsToReproduce()
   {
-    return stepsToReproduce_;
+    return getRenderedField("customfield_11719");
   }
 
   public String getCustomRootCause()
   {
-    return customRootCause_;
+    return getOptionField("customfield_11653");
   }
 
   public String getCustomRootCauseDescription()
   {
-    return customRootCauseDescription_;
+    return fieldsObject_.getString("customfield_11656", null); // Text only!
   }
 
   public String getCustomExpectedAndActualResults()
   {
-    return customExpectedAndActualResults_;
+    return getRenderedField("customfield_11720");
   }
 
   public String getCustomAcceptanceCriteria()
   {
-    return customAcceptanceCriteria_;
+    return getRenderedField("customfield_11696");
   }
 
   public String getCustomNotesResources()
   {
-    return customNotesResources_;
+    return getRenderedField("customfield_11702");
   }
 
   public String getCustomScreensFigma()
   {
-    return customScreensFigma_;
+    return getRenderedField("customfield_11698");
   }
 
   public String getCustomDefinitionOfDone()
   {
-    return customDefinitionOfDone_;
+    return getRenderedField("customfield_11697");
   }
 
   public String getCustomHighLevelTestCases()
   {
-    return customHighLevelTestCases_;
+    return getRenderedField("customfield_11988");
   }
 
   public String getCustomScreensVideosResources()
   {
-    return customScreensVideosResources_;
+    return getRenderedField("customfield_11721");
   }
 
   public String getCustomDevicesAndVersions()
   {
-    return customDevicesAndVersions_;
+    return getRenderedField("customfield_11722");
   }
 
   public String getCustomPlatform()
   {
-    return customPlatform_;
+    return getOptionField("customfield_11615");
   }
 
-  public JiraUser getCustomQaAssignee()
+  public synchronized JiraUser getCustomQaAssignee()
   {
+    if (customQaAssignee_ == null)
+      customQaAssignee_ = getUserField("customfield_11712");
+
     return customQaAssignee_;
   }
 
-  public Date getCustomStartDate()
+  public synchronized Instant getCustomStartDate()
   {
-    return customStartDate_ != null ? new Date(customStartDate_.getTime()) : null;
+    if (customStartDate_ == null)
+      customStartDate_ = Util.getTime(fieldsObject_.getString("customfield_11601", null));
+
+    return customStartDate_;
   }
 
-  public Date getDueDate()
+  public synchronized Instant getDueDate()
   {
-    return dueDate_ != null ? new Date(dueDate_.getTime()) : null;
+    if (dueDate_ == null)
+      dueDate_ = Util.getTime(fieldsObject_.getString("duedate", null));
+
+    return dueDate_;
   }
 
   public String getCustomEnv()
   {
-    return customEnv_;
+    return getOptionField("customfield_11724");
   }
 
-  public JiraUser getReporter()
+  public synchronized JiraUser getReporter()
   {
+    if (reporter_ == null)
+      reporter_ = new JiraUser(fieldsObject_.getJsonObject("reporter"));
+
     return reporter_;
   }
 
-  public JiraUser getAssignee()
+  public synchronized JiraUser getAssignee()
   {
+    if (assignee_ == null)
+      assignee_ = getUserField("assignee");
+
     return assignee_;
   }
 
   public Priority getPriority()
   {
-    return priority_;
+    JsonObject priorityObject = fieldsObject_.getJsonObject("priority");
+    String priorityTag = priorityObject.getString("name");
+    return Priority.get(priorityTag);
   }
 
   public Status getStatus()
@@ -529,18 +501,68 @@ public final class JiraIssue
     return Collections.unmodifiableSet(links_);
   }
 
-  public Set<JiraComment> getComments()
+  public synchronized Set<JiraComment> getComments()
   {
+    if (comments_ == null) {
+      comments_ = new TreeSet<>();
+
+      JsonObject commentsObject = fieldsObject_.getJsonObject("comment");
+      JsonArray commentsArray = commentsObject.getJsonArray("comments");
+      JsonObject renderedCommentsObject = renderedFieldsObject_.getJsonObject("comment");
+      JsonArray renderedCommentsArray = renderedCommentsObject.getJsonArray("comments");
+      for (JsonValue comment : commentsArray) {
+        JsonObject commentObject = comment.asJsonObject();
+        JsonObject renderedCommentObject = null;
+
+        String commentId = commentObject.getString("id");
+        for (JsonValue value : renderedCommentsArray) {
+          JsonObject object = value.asJsonObject();
+          if (object.getString("id").equals(commentId)) {
+            renderedCommentObject = object;
+            break;
+          }
+        }
+
+        comments_.add(new JiraComment(commentObject, renderedCommentObject));
+      }
+    }
+
     return Collections.unmodifiableSet(comments_);
   }
 
-  public List<JiraAttachment> getAttachments()
+  public synchronized List<JiraAttachment> getAttachments()
   {
+    // Must only be created once, as the attachment content is populated later
+    if (attachments_ == null) {
+      attachments_ = new ArrayList<>();
+
+      JsonArray attachmentArray = fieldsObject_.getJsonArray("attachment");
+      if (attachmentArray != null) {
+        for (JsonValue value : attachmentArray) {
+          JsonObject attachmentObject = value.asJsonObject();
+          JiraAttachment attachment = new JiraAttachment(attachmentObject);
+          attachments_.add(attachment);
+        }
+      }
+    }
+
     return Collections.unmodifiableList(attachments_);
   }
 
-  public Set<String> getLabels()
+  public synchronized Set<String> getLabels()
   {
+    if (labels_ == null) {
+      labels_ = new HashSet<>();
+
+      JsonArray labelsArray = fieldsObject_.getJsonArray("labels");
+      if (labelsArray != null) {
+        for (int i = 0; i < labelsArray.size(); i++) {
+          String label = labelsArray.getString(i);
+          labels_.add(label);
+        }
+      }
+    }
+
     return Collections.unmodifiableSet(labels_);
   }
 
@@ -548,32 +570,35 @@ public final class JiraIssue
   public String toString()
   {
     StringBuilder s = new StringBuilder();
-    s.append(key_ + " " + summary_ + "\n");
+    s.append(key_ + " " + getSummary() + "\n");
     s.append("  Type..........: " + type_ + "\n");
-    s.append("  Category......: " + category_ + "\n");
-    s.append("  Creator.......: " + creator_ + "\n");
-    s.append("  Description...: " + description_ + "\n");
-    s.append("  Priority......: " + priority_ + "\n");
+    s.append("  Category......: " + getCategory() + "\n");
+    s.append("  Creator.......: " + getCreator() + "\n");
+    s.append("  Description...: " + getDescription() + "\n");
+    s.append("  Priority......: " + getPriority() + "\n");
     s.append("  Status........: " + status_ + "\n");
     s.append("  Parent........: " + parentIssueId_ + "\n");
 
-    if (!labels_.isEmpty()) {
+    Set<String> labels = getLabels();
+    if (!labels.isEmpty()) {
       s.append("  Labels........: ");
-      for (String label : labels_)
+      for (String label : labels)
         s.append(label + ",");
       s.append("\n");
     }
 
-    if (!comments_.isEmpty()) {
+    Set<JiraComment> comments = getComments();
+    if (!comments.isEmpty()) {
       s.append("  Comments: \n");
-      for (JiraComment comment : comments_) {
+      for (JiraComment comment : comments) {
         s.append("    " + comment + "\n");
       }
     }
 
-    if (!attachments_.isEmpty()) {
+    List<JiraAttachment> attachments = getAttachments();
+    if (!attachments.isEmpty()) {
       s.append("  Attachments: \n");
-      for (JiraAttachment attachment : attachments_) {
+      for (JiraAttachment attachment : attachments) {
         s.append("    " + attachment + "\n");
       }
     }
@@ -0,0 +1,452 @@
+package no.geosoft.ticketmaster;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Replaces whole-word occurrences of a (possibly very large) set of keys
+ * in a text in one pass.
+ * <p>
+ * The keys are compiled into an Aho-Corasick automaton, so matching time
+ * is linear in the length of the text regardless of the number of keys.
+ * A key only matches if it is not preceded or followed by a word character
+ * (letter, digit or underscore), i.e. "SK-12" does not match within "SK-123"
+ * or "ASK-12". Where matches overlap, the leftmost longest one wins.
+ * <p>
+ * Typical usage:
+ * <pre>
+ *   Map&lt;String,String&gt; replacements = ...;  // "SK-123" -&gt; "AB#4711" etc.
+ *   KeyMatcher keyMatcher = new KeyMatcher(replacements);
+ *   String newText = keyMatcher.replace(text);
+ * </pre>
+ * If the replacements are not known up front, create the matcher from the
+ * keys only, and give the replacement of each match as it is found:
+ * <pre>
+ *   KeyMatcher keyMatcher = new KeyMatcher(keys);
+ *   String newText = keyMatcher.replace(text, key -&gt; lookup(key));
+ * </pre>
+ * Instances are immutable once created and can be shared between threads.
+ *
+ * @author <a href="mailto:jacob.dreyer@geosoft.no">Jacob Dreyer</a>
+ */
+public final class KeyMatcher
+{
+  /** Code of each character in the key alphabet. 0 if not part of any key. */
+  private final char[] charCodes_ = new char[Character.MAX_VALUE + 1];
+
+  /** Number of distinct characters in the keys, plus one. */
+  private int alphabetSize_ = 1;
+
+  /** Number of states in the automaton. State 0 is the root. */
+  private int nStates_ = 1;
+
+  /** Depth (i.e. length of prefix) of each state. */
+  private int[] depth_ = new int[1024];
+
+  /** Failure link of each state. */
+  private int[] fail_ = new int[1024];
+
+  /** Next state on the failure chain that ends a key. -1 if none. */
+  private int[] output_ = new int[1024];
+
+  /** Index of the key ending at each state. -1 if none. */
+  private int[] keyIndex_ = new int[1024];
+
+  /** Transition table keys: state * alphabetSize + charCode. -1 if empty slot. */
+  private long[] transitionKeys_;
+
+  /** Transition table values: target state. */
+  private int[] transitionValues_;
+
+  /** The keys, by key index. */
+  private final String[] keys_;
+
+  /** Replacement of each key, by key index. */
+  private final String[] replacements_;
+
+  /**
+   * Create a key matcher for the specified replacements.
+   *
+   * @param replacements  Replacement for each key. Non-null.
+   * @throws IllegalArgumentException  If replacements is null or contains null or empty entries.
+   */
+  public KeyMatcher(Map<String,String> replacements)
+  {
+    if (replacements == null)
+      throw new IllegalArgumentException("replacements cannot be null");
+
+    keys_ = new String[replacements.size()];
+    replacements_ = new String[replacements.size()];
+
+    // Establish the alphabet and the size of the transition table
+    int nChars = 0;
+    for (Map.Entry<String,String> entry : replacements.entrySet()) {
+      String key = entry.getKey();
+      if (key == null || key.isEmpty() || entry.getValue() == null)
+        throw new IllegalArgumentException("Invalid replacement: " + key + " -> " + entry.getValue());
+
+      for (int i = 0; i < key.length(); i++) {
+        char c = key.charAt(i);
+        if (charCodes_[c] == 0)
+          charCodes_[c] = (char) alphabetSize_++;
+      }
+
+      nChars += key.length();
+    }
+
+    int capacity = Integer.highestOneBit(Math.max(16, nChars * 2)) * 2;
+    transitionKeys_ = new long[capacity];
+    transitionValues_ = new int[capacity];
+    Arrays.fill(transitionKeys_, -1L);
+
+    Arrays.fill(keyIndex_, -1);
+
+    // Build the trie
+    int keyNo = 0;
+    for (Map.Entry<String,String> entry : replacements.entrySet()) {
+      addKey(entry.getKey(), keyNo);
+      keys_[keyNo] = entry.getKey();
+      replacements_[keyNo] = entry.getValue();
+      keyNo++;
+    }
+
+    computeFailureLinks();
+  }
+
+  /**
+   * Create a key matcher for the specified keys, for use with
+   * replace(String,Function).
+   *
+   * @param keys  Keys to match. Non-null.
+   * @throws IllegalArgumentException  If keys is null or contains null or empty entries.
+   */
+  public KeyMatcher(Collection<String> keys)
+  {
+    this(toIdentityMap(keys));
+  }
+
+  /**
+   * Return a map from each of the specified keys to itself.
+   *
+   * @param keys  Keys to map. Non-null.
+   * @return      The identity map of the keys. Never null.
+   * @throws IllegalArgumentException  If keys is null.
+   */
+  private static Map<String,String> toIdentityMap(Collection<String> keys)
+  {
+    if (keys == null)
+      throw new IllegalArgumentException("keys cannot be null");
+
+    Map<String,String> identityMap = new HashMap<>(keys.size() * 2);
+    for (String key : keys)
+      identityMap.put(key, key);
+
+    return identityMap;
+  }
+
+  /**
+   * Return the transition from the specified state on the given character code.
+   *
+   * @param state     State to transition from.
+   * @param charCode  Character code to transition on.
+   * @return          The target state, or -1 if there is no such transition.
+   */
+  private int getTransition(int state, int charCode)
+  {
+    long key = (long) state * alphabetSize_ + charCode;
+    int mask = transitionKeys_.length - 1;
+
+    for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+      long slotKey = transitionKeys_[slot];
+      if (slotKey == key)
+        return transitionValues_[slot];
+      if (slotKey == -1L)
+        return -1;
+    }
+  }
+
+  /**
+   * Add a transition from the specified state on the given character code.
+   *
+   * @param state     State to transition from.
+   * @param charCode  Character code to transition on.
+   * @param target    State to transition to.
+   */
+  private void addTransition(int state, int charCode, int target)
+  {
+    long key = (long) state * alphabetSize_ + charCode;
+    int mask = transitionKeys_.length - 1;
+
+    int slot = hash(key) & mask;
+    while (transitionKeys_[slot] != -1L)
+      slot = (slot + 1) & mask;
+
+    transitionKeys_[slot] = key;
+    transitionValues_[slot] = target;
+  }
+
+  /**
+   * Hash the specified transition key.
+   *
+   * @param key  Key to hash.
+   * @return     Hash value.
+   */
+  private static int hash(long key)
+  {
+    key *= 0x9e3779b97f4a7c15L;
+    return (int) (key ^ (key >>> 32));
+  }
+
+  /**
+   * Make room for one more state.
+   */
+  private void ensureStateCapacity()
+  {
+    if (nStates_ < depth_.length)
+      return;
+
+    int capacity = depth_.length * 2;
+    depth_ = Arrays.copyOf(depth_, capacity);
+    fail_ = Arrays.copyOf(fail_, capacity);
+    output_ = Arrays.copyOf(output_, capacity);
+
+    int oldCapacity = keyIndex_.length;
+    keyIndex_ = Arrays.copyOf(keyIndex_, capacity);
+    Arrays.fill(keyIndex_, oldCapacity, capacity, -1);
+  }
+
+  /**
+   * Add the specified key to the trie.
+   *
+   * @param key    Key to add. Non-null.
+   * @param keyNo  Index of key.
+   */
+  private void addKey(String key, int keyNo)
+  {
+    assert key != null : "key cannot be null";
+
+    int state = 0;
+    for (int i = 0; i < key.length(); i++) {
+      int charCode = charCodes_[key.charAt(i)];
+      int next = getTransition(state, charCode);
+      if (next == -1) {
+        ensureStateCapacity();
+        next = nStates_++;
+        depth_[next] = i + 1;
+        addTransition(state, charCode, next);
+      }
+      state = next;
+    }
+
+    keyIndex_[state] = keyNo;
+  }
+
+  /**
+   * Compute failure and output links of all states, breadth first.
+   * The trie is traversed by probing the alphabet at each state.
+   */
+  private void computeFailureLinks()
+  {
+    int[] queue = new int[nStates_];
+    int head = 0;
+    int tail = 0;
+
+    fail_[0] = 0;
+    output_[0] = -1;
+    queue[tail++] = 0;
+
+    while (head < tail) {
+      int state = queue[head++];
+
+      for (int charCode = 1; charCode < alphabetSize_; charCode++) {
+        int child = getTransition(state, charCode);
+        if (child == -1)
+          continue;
+
+        int failState = 0;
+        if (state != 0) {
+          int f = fail_[state];
+          while (f != 0 && getTransition(f, charCode) == -1)
+            f = fail_[f];
+
+          int next = getTransition(f, charCode);
+          failState = next != -1 ? next : 0;
+        }
+
+        fail_[child] = failState;
+        output_[child] = keyIndex_[failState] != -1 ? failState : output_[failState];
+
+        queue[tail++] = child;
+      }
+    }
+  }
+
+  /**
+   * Check if the specified character is a word character.
+   *
+   * @param c  Character to check.
+   * @return   True if c is a word character, false otherwise.
+   */
+  private static boolean isWordCharacter(char c)
+  {
+    return Character.isLetterOrDigit(c) || c == '_';
+  }
+
+  /**
+   * Replace all keys in the specified text.
+   *
+   * @param text  Text to replace keys in. Non-null.
+   * @return      The resulting text. The same instance as text if it contains no keys. Never null.
+   * @throws IllegalArgumentException  If text is null.
+   */
+  public String replace(String text)
+  {
+    if (text == null)
+      throw new IllegalArgumentException("text cannot be null");
+
+    return findAndReplace(text, null);
+  }
+
+  /**
+   * Replace all keys in the specified text by the result of the given function.
+   *
+   * @param text      Text to replace keys in. Non-null.
+   * @param replacer  Function returning the replacement of a matched key, or null
+   *                  to leave the key as is. Called once per match, in text order,
+   *                  except for matches overlapping a previous one. Non-null.
+   * @return          The resulting text. The same instance as text if nothing is replaced. Never null.
+   * @throws IllegalArgumentException  If text or replacer is null.
+   */
+  public String replace(String text, Function<String,String> replacer)
+  {
+    if (text == null)
+      throw new IllegalArgumentException("text cannot be null");
+
+    if (replacer == null)
+      throw new IllegalArgumentException("replacer cannot be null");
+
+    return findAndReplace(text, replacer);
+  }
+
+  /**
+   * Replace all keys in the specified text.
+   *
+   * @param text      Text to replace keys in. Non-null.
+   * @param replacer  Function returning the replacement of a matched key, or null
+   *                  to leave the key as is. Null to use the replacements of this matcher.
+   * @return          The resulting text. Never null.
+   */
+  private String findAndReplace(String text, Function<String,String> replacer)
+  {
+    assert text != null : "text cannot be null";
+
+    // Matches as (start, end, keyNo) triplets. Allocated on first match only.
+    int[] matches = null;
+    int nMatches = 0;
+
+    int length = text.length();
+    int state = 0;
+
+    for (int i = 0; i < length; i++) {
+      int charCode = charCodes_[text.charAt(i)];
+
+      // Character not in any key: Back to start
+      if (charCode == 0) {
+        state = 0;
+        continue;
+      }
+
+      int next = getTransition(state, charCode);
+      while (next == -1 && state != 0) {
+        state = fail_[state];
+        next = getTransition(state, charCode);
+      }
+      state = next != -1 ? next : 0;
+
+      for (int s = keyIndex_[state] != -1 ? state : output_[state]; s != -1; s = output_[s]) {
+        int start = i + 1 - depth_[s];
+        int end = i + 1;
+
+        if (start > 0 && isWordCharacter(text.charAt(start - 1)))
+          continue;
+        if (end < length && isWordCharacter(text.charAt(end)))
+          continue;
+
+        if (matches == null)
+          matches = new int[3 * 8];
+        else if (3 * nMatches == matches.length)
+          matches = Arrays.copyOf(matches, matches.length * 2);
+
+        matches[3 * nMatches] = start;
+        matches[3 * nMatches + 1] = end;
+        matches[3 * nMatches + 2] = keyIndex_[s];
+        nMatches++;
+      }
+    }
+
+    if (nMatches == 0)
+      return text;
+
+    return replace(text, matches, nMatches, replacer);
+  }
+
+  /**
+   * Apply the specified matches to the given text.
+   *
+   * @param text      Text to replace keys in. Non-null.
+   * @param matches   Matches as (start, end, keyNo) triplets, ordered by end. Non-null.
+   * @param nMatches  Number of matches.
+   * @param replacer  Function returning the replacement of a matched key, or null
+   *                  to leave the key as is. Null to use the replacements of this matcher.
+   * @return          The resulting text. The same instance as text if nothing is replaced. Never null.
+   */
+  private String replace(String text, int[] matches, int nMatches, Function<String,String> replacer)
+  {
+    // Order by start, then longest first
+    Integer[] order = new Integer[nMatches];
+    for (int i = 0; i < nMatches; i++)
+      order[i] = i;
+
+    Arrays.sort(order, (a, b) -> matches[3 * a] != matches[3 * b] ?
+                                 Integer.compare(matches[3 * a], matches[3 * b]) :
+                                 Integer.compare(matches[3 * b + 1], matches[3 * a + 1]));
+
+    StringBuilder s = new StringBuilder(text.length() + 16 * nMatches);
+    boolean isReplaced = false;
+
+    int position = 0;
+    for (int i : order) {
+      int start = matches[3 * i];
+      int end = matches[3 * i + 1];
+
+      // Overlaps a match already replaced
+      if (start < position)
+        continue;
+
+      int keyNo = matches[3 * i + 2];
+      String replacement = replacer != null ? replacer.apply(keys_[keyNo]) : replacements_[keyNo];
+
+      // Left as is, but still consumed so an overlapping match doesn't apply
+      if (replacement == null) {
+        replacement = keys_[keyNo];
+      }
+      else {
+        isReplaced = true;
+      }
+
+      s.append(text, position, start);
+      s.append(replacement);
+      position = end;
+    }
+
+    if (!isReplaced)
+      return text;
+
+    s.append(text, position, text.length());
+
+    return s.toString();
+  }
+}
@@ -0,0 +1,174 @@
+package no.geosoft.ticketmaster;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Scheduler routing items into one of two pipelines, a fast lane and
+ * a heavy lane, each with its own stages and concurrency limits.
+ * <p>
+ * Items are classified up front, typically by the size of the data they
+ * will transfer. Fast items are submitted directly to the fast lane and
+ * block the caller while it is full, as with a single pipeline. Heavy items
+ * are put in an unbounded backlog and fed to the heavy lane by a separate
+ * thread, so that a full heavy lane never holds up the fast items behind it.
+ * The backlog should therefore only hold items that are cheap to keep,
+ * i.e. before their data has been loaded.
+ * <p>
+ * Typical usage:
+ * <pre>
+ *   LaneScheduler&lt;Job&gt; scheduler = new LaneScheduler&lt;&gt;(fastLane, heavyLane, job -&gt; job.getSize() &gt; limit);
+ *   scheduler.start();
+ *
+ *   for (Job job : jobs)
+ *     scheduler.submit(job);
+ *
+ *   scheduler.finish();
+ * </pre>
+ *
+ * @param <T>  Type of items scheduled.
+ * @author <a href="mailto:jacob.dreyer@geosoft.no">Jacob Dreyer</a>
+ */
+public final class LaneScheduler<T>
+{
+  /** The logger instance. */
+  private static final Logger logger_ = Logger.getLogger(LaneScheduler.class.getName());
+
+  /** Marker item signalling end of input. */
+  private static final Object END = new Object();
+
+  /** Pipeline of fast items. */
+  private final Pipeline<T> fastLane_;
+
+  /** Pipeline of heavy items. */
+  private final Pipeline<T> heavyLane_;
+
+  /** Classifier returning true for heavy items. */
+  private final Predicate<T> isHeavy_;
+
+  /** Heavy items not yet submitted to the heavy lane. */
+  private final BlockingQueue<Object> backlog_ = new LinkedBlockingQueue<>();
+
+  /** Thread feeding the heavy lane from the backlog. Null until started. */
+  private Thread feeder_ = null;
+
+  /**
+   * Create a new lane scheduler.
+   *
+   * @param fastLane   Pipeline of fast items. Not started. Non-null.
+   * @param heavyLane  Pipeline of heavy items. Not started. Non-null.
+   * @param isHeavy    Classifier returning true for heavy items. Non-null.
+   * @throws IllegalArgumentException  If fastLane, heavyLane or isHeavy is null,
+   *                                   or if fastLane and heavyLane are the same.
+   */
+  public LaneScheduler(Pipeline<T> fastLane, Pipeline<T> heavyLane, Predicate<T> isHeavy)
+  {
+    if (fastLane == null)
+      throw new IllegalArgumentException("fastLane cannot be null");
+
+    if (heavyLane == null)
+      throw new IllegalArgumentException("heavyLane cannot be null");
+
+    if (fastLane == heavyLane)
+      throw new IllegalArgumentException("fastLane and heavyLane must be different");
+
+    if (isHeavy == null)
+      throw new IllegalArgumentException("isHeavy cannot be null");
+
+    fastLane_ = fastLane;
+    heavyLane_ = heavyLane;
+    isHeavy_ = isHeavy;
+  }
+
+  /**
+   * Start both lanes and the thread feeding the heavy lane.
+   *
+   * @throws IllegalStateException  If the scheduler is already started.
+   */
+  public void start()
+  {
+    if (feeder_ != null)
+      throw new IllegalStateException("Scheduler is already started");
+
+    fastLane_.start();
+    heavyLane_.start();
+
+    feeder_ = new Thread(this::feed, "heavy-lane-feeder");
+    feeder_.setDaemon(true);
+    feeder_.start();
+  }
+
+  /**
+   * Submit items from the backlog to the heavy lane until end of input.
+   * Run by the feeder thread.
+   */
+  @SuppressWarnings("unchecked")
+  private void feed()
+  {
+    try {
+      while (true) {
+        Object item = backlog_.take();
+        if (item == END)
+          return;
+
+        heavyLane_.submit((T) item);
+      }
+    }
+    catch (InterruptedException exception) {
+      logger_.log(Level.WARNING, "Interrupted while feeding the heavy lane. " + backlog_.size() + " items dropped");
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Submit the specified item to the lane given by its classification.
+   * Blocks while the fast lane is full if the item is fast. Never blocks
+   * if the item is heavy.
+   *
+   * @param item  Item to submit. Non-null.
+   * @throws IllegalArgumentException  If item is null.
+   * @throws IllegalStateException  If the scheduler is not started.
+   * @throws InterruptedException  If interrupted while waiting for queue space.
+   */
+  public void submit(T item)
+    throws InterruptedException
+  {
+    if (item == null)
+      throw new IllegalArgumentException("item cannot be null");
+
+    if (feeder_ == null)
+      throw new IllegalStateException("Scheduler is not started");
+
+    if (isHeavy_.test(item)) {
+      logger_.log(Level.FINE, () -> "Heavy lane: " + item);
+      backlog_.put(item);
+    }
+    else {
+      fastLane_.submit(item);
+    }
+  }
+
+  /**
+   * Signal end of input and wait for all submitted items to pass
+   * through their lane. The scheduler cannot be used after this.
+   *
+   * @throws IllegalStateException  If the scheduler is not started.
+   * @throws InterruptedException  If interrupted while waiting.
+   */
+  public void finish()
+    throws InterruptedException
+  {
+    if (feeder_ == null)
+      throw new IllegalStateException("Scheduler is not started");
+
+    backlog_.put(END);
+
+    fastLane_.finish();
+
+    feeder_.join();
+    heavyLane_.finish();
+  }
+}
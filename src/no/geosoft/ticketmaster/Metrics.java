@@ -0,0 +1,625 @@
+package no.geosoft.ticketmaster;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+
+/**
+ * Registry of back-end request and migration stage metrics.
+ * <p>
+ * For each back-end endpoint the registry keeps a latency histogram,
+ * counts of response status codes, number of retries and bytes sent
+ * and received. Endpoints are identified by method and URL template,
+ * i.e. the URL without query and with IDs and keys replaced by "{id}",
+ * like "GET dev.azure.com/org/project/_apis/wit/workitems/{id}".
+ * For each migration stage it keeps a timing histogram.
+ * <p>
+ * All recording is lock free and can be done from any thread.
+ * The metrics can be written on demand or exported periodically to
+ * a file, either as Prometheus text or as JSON.
+ *
+ * @author <a href="mailto:jacob.dreyer@geosoft.no">Jacob Dreyer</a>
+ */
+public final class Metrics
+{
+  /** The logger instance. */
+  private static final Logger logger_ = Logger.getLogger(Metrics.class.getName());
+
+  /** The sole instance of this class. */
+  private static final Metrics instance_ = new Metrics();
+
+  /** Upper bounds of the histogram buckets in seconds. The last bucket is unbounded. */
+  private static final double[] BUCKET_BOUNDS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0, 30.0};
+
+  /** Prefix of all metric names. */
+  private static final String PREFIX = "ticketmaster_";
+
+  /** Pattern of GUIDs and other long hex IDs, like the IDs of Azure attachments. */
+  private static final Pattern HEX_ID_PATTERN = Pattern.compile("\\p{XDigit}{8}(-?\\p{XDigit}{4}){3}-?\\p{XDigit}{12}|\\p{XDigit}{16,}");
+
+  /**
+   * A histogram of durations.
+   */
+  private static final class Histogram
+  {
+    /** Count of each bucket (not cumulative). The last bucket is unbounded. */
+    private final LongAdder[] counts_ = new LongAdder[BUCKET_BOUNDS.length + 1];
+
+    /** Sum of all durations in nanoseconds. */
+    private final LongAdder sumNanos_ = new LongAdder();
+
+    private Histogram()
+    {
+      for (int i = 0; i < counts_.length; i++)
+        counts_[i] = new LongAdder();
+    }
+
+    /**
+     * Record the specified duration.
+     *
+     * @param nanos  Duration in nanoseconds.
+     */
+    private void record(long nanos)
+    {
+      double seconds = nanos / 1.0e9;
+
+      int bucketNo = 0;
+      while (bucketNo < BUCKET_BOUNDS.length && seconds > BUCKET_BOUNDS[bucketNo])
+        bucketNo++;
+
+      counts_[bucketNo].increment();
+      sumNanos_.add(nanos);
+    }
+
+    /**
+     * Return the cumulative bucket counts of this histogram.
+     *
+     * @return  Cumulative bucket counts. The last is the total count. Never null.
+     */
+    private long[] getCumulativeCounts()
+    {
+      long[] cumulativeCounts = new long[counts_.length];
+
+      long count = 0;
+      for (int i = 0; i < counts_.length; i++) {
+        count += counts_[i].sum();
+        cumulativeCounts[i] = count;
+      }
+
+      return cumulativeCounts;
+    }
+
+    /**
+     * Return sum of all durations in seconds.
+     *
+     * @return  Sum of all durations in seconds.
+     */
+    private double getSumSeconds()
+    {
+      return sumNanos_.sum() / 1.0e9;
+    }
+  }
+
+  /**
+   * Metrics of one back-end endpoint.
+   */
+  private static final class Endpoint
+  {
+    /** Request latencies. */
+    private final Histogram latency_ = new Histogram();
+
+    /** Number of responses by status code. -1 for requests failing without a response. */
+    private final Map<Integer,LongAdder> statusCounts_ = new ConcurrentHashMap<>();
+
+    /** Number of retries. */
+    private final LongAdder nRetries_ = new LongAdder();
+
+    /** Number of request body bytes sent. */
+    private final LongAdder nBytesOut_ = new LongAdder();
+
+    /** Number of response body bytes received. */
+    private final LongAdder nBytesIn_ = new LongAdder();
+  }
+
+  /** Endpoint metrics by endpoint template. */
+  private final Map<String,Endpoint> endpoints_ = new ConcurrentHashMap<>();
+
+  /** Stage timings by stage name. */
+  private final Map<String,Histogram> stages_ = new ConcurrentHashMap<>();
+
+  /** Executor of the periodic export. Null if not exporting. */
+  private ScheduledExecutorService exporter_;
+
+  /** File of the periodic export. Null if not exporting. */
+  private File exportFile_;
+
+  /**
+   * Create the metrics registry.
+   */
+  private Metrics()
+  {
+    // Nothing
+  }
+
+  /**
+   * Return the sole instance of this class.
+   *
+   * @return  The sole instance of this class. Never null.
+   */
+  public static Metrics getInstance()
+  {
+    return instance_;
+  }
+
+  /**
+   * Check if the specified URL path segment is an ID or a key.
+   * Numbers of three or more digits (shorter ones are typically API
+   * versions), keys like "SK-123" or "2-4711", and GUIDs are.
+   *
+   * @param segment  Path segment to check. Non-null.
+   * @return         True if segment is an ID, false otherwise.
+   */
+  private static boolean isId(String segment)
+  {
+    assert segment != null : "segment cannot be null";
+
+    int nDigits = 0;
+    int dashPos = -1;
+    for (int i = 0; i < segment.length(); i++) {
+      char c = segment.charAt(i);
+      if (Character.isDigit(c))
+        nDigits++;
+      else if (c == '-')
+        dashPos = i;
+    }
+
+    if (nDigits == segment.length())
+      return nDigits >= 3;
+
+    if (HEX_ID_PATTERN.matcher(segment).matches())
+      return true;
+
+    // <key>-<number>
+    return dashPos > 0 && dashPos < segment.length() - 1 && nDigits == segment.length() - dashPos - 1;
+  }
+
+  /**
+   * Return the endpoint template of the specified request.
+   *
+   * @param method     HTTP method. Non-null.
+   * @param urlString  Request URL. Non-null.
+   * @return           The endpoint template. Never null.
+   * @throws IllegalArgumentException  If method or urlString is null.
+   */
+  public static String getEndpoint(String method, String urlString)
+  {
+    if (method == null)
+      throw new IllegalArgumentException("method cannot be null");
+
+    if (urlString == null)
+      throw new IllegalArgumentException("urlString cannot be null");
+
+    String host;
+    String path;
+    try {
+      URL url = new URL(urlString);
+      host = url.getHost() + (url.getPort() != -1 ? ":" + url.getPort() : "");
+      path = url.getPath();
+    }
+    catch (MalformedURLException exception) {
+      host = "";
+      path = urlString;
+    }
+
+    StringBuilder s = new StringBuilder(method).append(' ').append(host);
+    for (String segment : path.split("/")) {
+      if (segment.isEmpty())
+        continue;
+
+      s.append('/');
+      s.append(isId(segment) ? "{id}" : segment.toLowerCase());
+    }
+
+    return s.toString();
+  }
+
+  /**
+   * Return the metrics of the specified endpoint. Created if not present.
+   *
+   * @param endpoint  Endpoint template. Non-null.
+   * @return          The endpoint metrics. Never null.
+   */
+  private Endpoint getEndpointMetrics(String endpoint)
+  {
+    assert endpoint != null : "endpoint cannot be null";
+
+    return endpoints_.computeIfAbsent(endpoint, key -> new Endpoint());
+  }
+
+  /**
+   * Record a completed back-end request.
+   *
+   * @param endpoint    Endpoint template, see getEndpoint(). Non-null.
+   * @param statusCode  HTTP response status code. -1 if no response was received.
+   * @param nanos       Duration of the request in nanoseconds.
+   * @param nBytesOut   Number of request body bytes sent.
+   * @param nBytesIn    Number of response body bytes received.
+   * @throws IllegalArgumentException  If endpoint is null.
+   */
+  public void recordRequest(String endpoint, int statusCode, long nanos, long nBytesOut, long nBytesIn)
+  {
+    if (endpoint == null)
+      throw new IllegalArgumentException("endpoint cannot be null");
+
+    Endpoint endpointMetrics = getEndpointMetrics(endpoint);
+    endpointMetrics.latency_.record(nanos);
+    endpointMetrics.statusCounts_.computeIfAbsent(statusCode, key -> new LongAdder()).increment();
+    endpointMetrics.nBytesOut_.add(nBytesOut);
+    endpointMetrics.nBytesIn_.add(nBytesIn);
+  }
+
+  /**
+   * Record a completed back-end request made through the specified connection.
+   *
+   * @param method      HTTP method, including any method override. Non-null.
+   * @param connection  Connection of the request. Null if the connection could not be opened.
+   * @param urlString   Request URL. Non-null.
+   * @param startTime   Start time of the request as given by System.nanoTime().
+   * @param nBytesOut   Number of request body bytes sent.
+   * @param nBytesIn    Number of response body bytes received, as read from the connection.
+   * @throws IllegalArgumentException  If method or urlString is null.
+   */
+  public void recordRequest(String method, String urlString, HttpURLConnection connection, long startTime, long nBytesOut, long nBytesIn)
+  {
+    if (method == null)
+      throw new IllegalArgumentException("method cannot be null");
+
+    if (urlString == null)
+      throw new IllegalArgumentException("urlString cannot be null");
+
+    long nanos = System.nanoTime() - startTime;
+    recordRequest(getEndpoint(method, urlString), getStatusCode(connection), nanos, nBytesOut, nBytesIn);
+  }
+
+  /**
+   * Return the response status code of the specified connection.
+   *
+   * @param connection  Connection to get status code of. Null if the connection could not be opened.
+   * @return            The status code, or -1 if no response was received.
+   */
+  public static int getStatusCode(HttpURLConnection connection)
+  {
+    if (connection == null)
+      return -1;
+
+    try {
+      return connection.getResponseCode();
+    }
+    catch (IOException exception) {
+      return -1;
+    }
+  }
+
+  /**
+   * Record a retry of a request to the specified endpoint.
+   *
+   * @param endpoint  Endpoint template, see getEndpoint(). Non-null.
+   * @throws IllegalArgumentException  If endpoint is null.
+   */
+  public void recordRetry(String endpoint)
+  {
+    if (endpoint == null)
+      throw new IllegalArgumentException("endpoint cannot be null");
+
+    getEndpointMetrics(endpoint).nRetries_.increment();
+  }
+
+  /**
+   * Record the duration of one execution of the specified stage.
+   *
+   * @param stage  Stage name. Non-null.
+   * @param nanos  Duration in nanoseconds.
+   * @throws IllegalArgumentException  If stage is null.
+   */
+  public void recordStage(String stage, long nanos)
+  {
+    if (stage == null)
+      throw new IllegalArgumentException("stage cannot be null");
+
+    stages_.computeIfAbsent(stage, key -> new Histogram()).record(nanos);
+  }
+
+  /**
+   * Quote the specified Prometheus label value.
+   *
+   * @param value  Value to quote. Non-null.
+   * @return       The quoted value. Never null.
+   */
+  private static String quote(String value)
+  {
+    return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+  }
+
+  /**
+   * Write the specified histograms in Prometheus text format.
+   *
+   * @param writer      Writer to write to. Non-null.
+   * @param name        Metric name. Non-null.
+   * @param help        Metric description. Non-null.
+   * @param label       Name of the label distinguishing the histograms. Non-null.
+   * @param histograms  Histograms to write, by label value. Non-null.
+   * @throws IOException  If the write operation fails.
+   */
+  private static void writeHistograms(Writer writer, String name, String help, String label, Map<String,Histogram> histograms)
+    throws IOException
+  {
+    writer.write("# HELP " + name + " " + help + "\n");
+    writer.write("# TYPE " + name + " histogram\n");
+
+    for (Map.Entry<String,Histogram> entry : histograms.entrySet()) {
+      String labelValue = label + "=" + quote(entry.getKey());
+      Histogram histogram = entry.getValue();
+      long[] cumulativeCounts = histogram.getCumulativeCounts();
+
+      for (int i = 0; i < cumulativeCounts.length; i++) {
+        String bound = i < BUCKET_BOUNDS.length ? Double.toString(BUCKET_BOUNDS[i]) : "+Inf";
+        writer.write(name + "_bucket{" + labelValue + ",le=\"" + bound + "\"} " + cumulativeCounts[i] + "\n");
+      }
+
+      writer.write(name + "_sum{" + labelValue + "} " + Double.toString(histogram.getSumSeconds()) + "\n");
+      writer.write(name + "_count{" + labelValue + "} " + cumulativeCounts[cumulativeCounts.length - 1] + "\n");
+    }
+  }
+
+  /**
+   * Write the specified endpoint counters in Prometheus text format.
+   *
+   * @param writer     Writer to write to. Non-null.
+   * @param name       Metric name. Non-null.
+   * @param help       Metric description. Non-null.
+   * @param endpoints  Endpoint metrics by endpoint template. Non-null.
+   * @param counter    Counter to write of each endpoint. Non-null.
+   * @throws IOException  If the write operation fails.
+   */
+  private static void writeCounters(Writer writer, String name, String help, Map<String,Endpoint> endpoints,
+                                    Function<Endpoint,LongAdder> counter)
+    throws IOException
+  {
+    writer.write("# HELP " + name + " " + help + "\n");
+    writer.write("# TYPE " + name + " counter\n");
+
+    for (Map.Entry<String,Endpoint> entry : endpoints.entrySet())
+      writer.write(name + "{endpoint=" + quote(entry.getKey()) + "} " + counter.apply(entry.getValue()).sum() + "\n");
+  }
+
+  /**
+   * Write all metrics in Prometheus text format.
+   *
+   * @param writer  Writer to write to. Non-null.
+   * @throws IllegalArgumentException  If writer is null.
+   * @throws IOException  If the write operation fails.
+   */
+  public void writePrometheus(Writer writer)
+    throws IOException
+  {
+    if (writer == null)
+      throw new IllegalArgumentException("writer cannot be null");
+
+    Map<String,Endpoint> endpoints = new TreeMap<>(endpoints_);
+
+    Map<String,Histogram> latencies = new TreeMap<>();
+    for (Map.Entry<String,Endpoint> entry : endpoints.entrySet())
+      latencies.put(entry.getKey(), entry.getValue().latency_);
+
+    writeHistograms(writer, PREFIX + "http_request_duration_seconds", "Back-end request latency.", "endpoint", latencies);
+
+    writer.write("# HELP " + PREFIX + "http_responses_total Back-end responses by status code. -1 if no response.\n");
+    writer.write("# TYPE " + PREFIX + "http_responses_total counter\n");
+    for (Map.Entry<String,Endpoint> entry : endpoints.entrySet()) {
+      for (Map.Entry<Integer,LongAdder> statusEntry : new TreeMap<>(entry.getValue().statusCounts_).entrySet()) {
+        writer.write(PREFIX + "http_responses_total{endpoint=" + quote(entry.getKey()) +
+                     ",status=\"" + statusEntry.getKey() + "\"} " + statusEntry.getValue().sum() + "\n");
+      }
+    }
+
+    writeCounters(writer, PREFIX + "http_retries_total", "Back-end request retries.", endpoints, endpoint -> endpoint.nRetries_);
+    writeCounters(writer, PREFIX + "http_sent_bytes_total", "Back-end request body bytes.", endpoints, endpoint -> endpoint.nBytesOut_);
+    writeCounters(writer, PREFIX + "http_received_bytes_total", "Back-end response body bytes.", endpoints, endpoint -> endpoint.nBytesIn_);
+
+    writeHistograms(writer, PREFIX + "stage_duration_seconds", "Migration stage duration.", "stage", new TreeMap<>(stages_));
+
+    writer.flush();
+  }
+
+  /**
+   * Write the specified histogram as JSON members.
+   *
+   * @param generator  Generator to write to. Non-null.
+   * @param histogram  Histogram to write. Non-null.
+   */
+  private static void writeHistogram(JsonGenerator generator, Histogram histogram)
+  {
+    long[] cumulativeCounts = histogram.getCumulativeCounts();
+
+    generator.write("count", cumulativeCounts[cumulativeCounts.length - 1]);
+    generator.write("sumSeconds", histogram.getSumSeconds());
+
+    generator.writeStartObject("buckets");
+    for (int i = 0; i < cumulativeCounts.length; i++)
+      generator.write(i < BUCKET_BOUNDS.length ? Double.toString(BUCKET_BOUNDS[i]) : "+Inf", cumulativeCounts[i]);
+    generator.writeEnd();
+  }
+
+  /**
+   * Write all metrics as JSON.
+   *
+   * @param writer  Writer to write to. Non-null.
+   * @throws IllegalArgumentException  If writer is null.
+   * @throws IOException  If the write operation fails.
+   */
+  public void writeJson(Writer writer)
+    throws IOException
+  {
+    if (writer == null)
+      throw new IllegalArgumentException("writer cannot be null");
+
+    JsonGenerator generator = Json.createGeneratorFactory(Collections.singletonMap(JsonGenerator.PRETTY_PRINTING, true)).createGenerator(writer);
+
+    generator.writeStartObject();
+    generator.write("timestamp", System.currentTimeMillis());
+
+    generator.writeStartArray("endpoints");
+    for (Map.Entry<String,Endpoint> entry : new TreeMap<>(endpoints_).entrySet()) {
+      Endpoint endpoint = entry.getValue();
+
+      generator.writeStartObject();
+      generator.write("endpoint", entry.getKey());
+      writeHistogram(generator, endpoint.latency_);
+
+      generator.writeStartObject("status");
+      for (Map.Entry<Integer,LongAdder> statusEntry : new TreeMap<>(endpoint.statusCounts_).entrySet())
+        generator.write(statusEntry.getKey().toString(), statusEntry.getValue().sum());
+      generator.writeEnd();
+
+      generator.write("retries", endpoint.nRetries_.sum());
+      generator.write("bytesOut", endpoint.nBytesOut_.sum());
+      generator.write("bytesIn", endpoint.nBytesIn_.sum());
+      generator.writeEnd();
+    }
+    generator.writeEnd();
+
+    generator.writeStartArray("stages");
+    for (Map.Entry<String,Histogram> entry : new TreeMap<>(stages_).entrySet()) {
+      generator.writeStartObject();
+      generator.write("stage", entry.getKey());
+      writeHistogram(generator, entry.getValue());
+      generator.writeEnd();
+    }
+    generator.writeEnd();
+
+    generator.writeEnd();
+    generator.flush();
+  }
+
+  /**
+   * Write all metrics to the specified file. Files ending with ".json" are
+   * written as JSON, others as Prometheus text. The file is replaced atomically
+   * so that a scraper never sees a partial file.
+   *
+   * @param file  File to write. Non-null.
+   * @throws IllegalArgumentException  If file is null.
+   * @throws IOException  If the write operation fails.
+   */
+  public void write(File file)
+    throws IOException
+  {
+    if (file == null)
+      throw new IllegalArgumentException("file cannot be null");
+
+    File directory = file.getAbsoluteFile().getParentFile();
+    File tmpFile = File.createTempFile(file.getName(), ".tmp", directory);
+
+    try {
+      try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(tmpFile.toPath()), StandardCharsets.UTF_8))) {
+        if (file.getName().endsWith(".json"))
+          writeJson(writer);
+        else
+          writePrometheus(writer);
+      }
+
+      Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally {
+      tmpFile.delete();
+    }
+  }
+
+  /**
+   * Start periodic export of the metrics to the specified file.
+   *
+   * @param file          File to export to, see write(). Non-null.
+   * @param periodMillis  Time between each export in milliseconds. [1,&gt;.
+   * @throws IllegalArgumentException  If file is null or periodMillis &lt; 1.
+   * @throws IllegalStateException  If export is already started.
+   */
+  public synchronized void startExport(File file, long periodMillis)
+  {
+    if (file == null)
+      throw new IllegalArgumentException("file cannot be null");
+
+    if (periodMillis < 1)
+      throw new IllegalArgumentException("Invalid periodMillis: " + periodMillis);
+
+    if (exporter_ != null)
+      throw new IllegalStateException("Metrics export already started");
+
+    exportFile_ = file;
+    exporter_ = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "metrics-export");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    exporter_.scheduleAtFixedRate(this::export, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Export the metrics to the export file.
+   */
+  private void export()
+  {
+    try {
+      write(exportFile_);
+    }
+    catch (IOException exception) {
+      logger_.log(Level.WARNING, "Metrics export failed: " + exportFile_, exception);
+    }
+  }
+
+  /**
+   * Stop periodic export of the metrics. A final export is done
+   * so the file reflects the complete run. Nothing happens if
+   * export is not started.
+   */
+  public synchronized void stopExport()
+  {
+    if (exporter_ == null)
+      return;
+
+    exporter_.shutdown();
+    try {
+      exporter_.awaitTermination(10, TimeUnit.SECONDS);
+    }
+    catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    }
+
+    export();
+
+    exporter_ = null;
+    exportFile_ = null;
+  }
+}
@@ -0,0 +1,312 @@
+package no.geosoft.ticketmaster;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+
+/**
+ * Micro benchmarks of the CPU bound parts of a migration: Decoding
+ * of back-end JSON, date parsing, text rewriting and work item creation.
+ * <p>
+ * Each benchmark is run on a set of inputs in turn, first for a warm-up
+ * period, then for a number of measured iterations. For each benchmark
+ * throughput (operations per second, mean and standard deviation over the
+ * iterations) and allocation (bytes per operation) is reported. Allocation
+ * is measured through the per-thread allocation counter of the JVM, and is
+ * not reported if the JVM doesn't support it.
+ * <p>
+ * Inputs are generated by SyntheticDataset which mirrors the payloads
+ * of the real back-ends. Run with a fixed heap and no other load for
+ * numbers that are comparable between runs.
+ *
+ * @author <a href="mailto:jacob.dreyer@geosoft.no">Jacob Dreyer</a>
+ */
+public final class MicroBenchmark
+{
+  /** The logger instance. */
+  private static final Logger logger_ = Logger.getLogger(MicroBenchmark.class.getName());
+
+  /** Warm-up time of each benchmark in milliseconds. */
+  private static final long WARMUP_MILLIS = 3000;
+
+  /** Time of each measured iteration in milliseconds. */
+  private static final long ITERATION_MILLIS = 1000;
+
+  /** Number of measured iterations. */
+  private static final int N_ITERATIONS = 5;
+
+  /** Number of distinct inputs of each benchmark. */
+  private static final int N_INPUTS = 200;
+
+  /** Base URL used in generated payloads. */
+  private static final String BASE_URL = "https://jira.example.com";
+
+  /** Sink for results, so that the JIT cannot eliminate the benchmarked code. */
+  private static volatile int sink_;
+
+  /**
+   * An operation to benchmark.
+   */
+  @FunctionalInterface
+  private interface Operation
+  {
+    /**
+     * Run the operation on the specified input.
+     *
+     * @param inputNo  Input number. [0,N_INPUTS&gt;.
+     * @return         Result of the operation. Consumed by the benchmark.
+     * @throws Exception  If the operation fails.
+     */
+    Object run(int inputNo)
+      throws Exception;
+  }
+
+  /**
+   * Private constructor to prevent client instantiation.
+   */
+  private MicroBenchmark()
+  {
+    assert false : "This constructor should never be called";
+  }
+
+  /**
+   * Return number of bytes allocated by the current thread so far.
+   *
+   * @return  Number of bytes allocated by the current thread, or -1 if not supported.
+   */
+  private static long getAllocatedBytes()
+  {
+    java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    if (!(threadBean instanceof com.sun.management.ThreadMXBean))
+      return -1L;
+
+    com.sun.management.ThreadMXBean sunThreadBean = (com.sun.management.ThreadMXBean) threadBean;
+    if (!sunThreadBean.isThreadAllocatedMemorySupported() || !sunThreadBean.isThreadAllocatedMemoryEnabled())
+      return -1L;
+
+    return sunThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Run the specified operation repeatedly for the given period of time.
+   *
+   * @param operation  Operation to run. Non-null.
+   * @param millis     Time to run in milliseconds.
+   * @return           Number of operations done.
+   * @throws Exception  If the operation fails.
+   */
+  private static long loop(Operation operation, long millis)
+    throws Exception
+  {
+    assert operation != null : "operation cannot be null";
+
+    long endTime = System.nanoTime() + millis * 1000000L;
+    long nOperations = 0;
+    int hash = 0;
+
+    // Check the clock only every N_INPUTS operations to keep it out of the measurement
+    do {
+      for (int inputNo = 0; inputNo < N_INPUTS; inputNo++) {
+        Object result = operation.run(inputNo);
+        hash += result != null ? System.identityHashCode(result) : 0;
+      }
+      nOperations += N_INPUTS;
+    } while (System.nanoTime() < endTime);
+
+    sink_ += hash;
+
+    return nOperations;
+  }
+
+  /**
+   * Benchmark the specified operation and report the result.
+   *
+   * @param name       Benchmark name. Non-null.
+   * @param operation  Operation to benchmark. Non-null.
+   */
+  private static void benchmark(String name, Operation operation)
+  {
+    assert name != null : "name cannot be null";
+    assert operation != null : "operation cannot be null";
+
+    try {
+      loop(operation, WARMUP_MILLIS);
+
+      double[] throughputs = new double[N_ITERATIONS];
+      long nOperations = 0;
+      long nBytes = 0;
+
+      for (int i = 0; i < N_ITERATIONS; i++) {
+        long allocatedBefore = getAllocatedBytes();
+        long startTime = System.nanoTime();
+
+        long n = loop(operation, ITERATION_MILLIS);
+
+        double seconds = (System.nanoTime() - startTime) / 1.0e9;
+        long allocatedAfter = getAllocatedBytes();
+
+        throughputs[i] = n / seconds;
+        nOperations += n;
+        nBytes += allocatedAfter - allocatedBefore;
+      }
+
+      double mean = 0.0;
+      for (double throughput : throughputs)
+        mean += throughput / N_ITERATIONS;
+
+      double variance = 0.0;
+      for (double throughput : throughputs)
+        variance += (throughput - mean) * (throughput - mean) / N_ITERATIONS;
+
+      String allocation = getAllocatedBytes() != -1L ? String.format("%12.0f B/op", (double) nBytes / nOperations) : "           n/a";
+
+      System.out.println(String.format("%-32s %14.0f ops/s  +- %5.1f%%  %s", name, mean, 100.0 * Math.sqrt(variance) / mean, allocation));
+    }
+    catch (Exception exception) {
+      logger_.log(Level.WARNING, "Benchmark failed: " + name, exception);
+    }
+  }
+
+  /**
+   * Create an Azure work item payload as returned by the back-end.
+   *
+   * @param workItemNo  Work item number.
+   * @return            The work item payload. Never null.
+   */
+  private static JsonObject newAzureWorkItemJson(int workItemNo)
+  {
+    JsonObject user = Json.createObjectBuilder()
+      .add("displayName", "User " + workItemNo % 10)
+      .add("uniqueName", "user" + workItemNo % 10 + "@example.com")
+      .build();
+
+    return Json.createObjectBuilder()
+      .add("id", 1000 + workItemNo)
+      .add("rev", 3)
+      .add("fields", Json.createObjectBuilder()
+           .add("System.Id", 1000 + workItemNo)
+           .add("System.AreaPath", "Project\\Area")
+           .add("System.WorkItemType", "Product Backlog Item")
+           .add("System.State", "In Progress")
+           .add("System.CreatedDate", "2023-03-0" + (1 + workItemNo % 9) + "T10:15:30.123Z")
+           .add("System.CreatedBy", user)
+           .add("System.AssignedTo", user)
+           .add("System.Title", "Crash when opening the log view " + workItemNo)
+           .add("System.Description", "<div>Export fails for large files, see <b>attached</b> log.</div>")
+           .add("Microsoft.VSTS.Common.Priority", 2)
+           .add("Custom.Project", "Project")
+           .add("Custom.Product", "Product"))
+      .build();
+  }
+
+  /**
+   * Create a text with embedded Jira attachment references.
+   *
+   * @param textNo  Text number.
+   * @return        The text. Never null.
+   */
+  private static String newText(int textNo)
+  {
+    StringBuilder s = new StringBuilder();
+    for (int i = 0; i < 10; i++) {
+      s.append("<p>Export fails for large files when the plot scale is wrong after zoom.</p>");
+      if (i % 3 == 0)
+        s.append("<p><img src=\"/rest/api/3/attachment/content/" + (200000 + textNo * 10 + i) + "\" alt=\"image.png\" width=\"640\"></p>");
+    }
+
+    return s.toString();
+  }
+
+  /**
+   * Run all the micro benchmarks.
+   *
+   * @param arguments  Application arguments. Not used.
+   */
+  public static void main(String[] arguments)
+  {
+    // Keep logging out of the measurements
+    Logger.getLogger("").setLevel(Level.WARNING);
+
+    SyntheticDataset dataset = new SyntheticDataset(N_INPUTS, 5, 1.5, 2, 0, 4711L);
+
+    // Inputs
+    List<JsonObject> jiraJsons = new ArrayList<>();
+    List<JsonObject> youTrackJsons = new ArrayList<>();
+    List<JsonObject> azureJsons = new ArrayList<>();
+    List<String> dates = new ArrayList<>();
+    List<String> texts = new ArrayList<>();
+
+    for (int i = 0; i < N_INPUTS; i++) {
+      JsonObject jiraJson = dataset.getJiraIssue(i, BASE_URL);
+      jiraJsons.add(jiraJson);
+      youTrackJsons.add(dataset.getYouTrackIssue(i));
+      azureJsons.add(newAzureWorkItemJson(i));
+
+      // Jira and Azure date formats in turn
+      dates.add(i % 2 == 0 ? jiraJson.getJsonObject("fields").getString("created") : azureJsons.get(i).getJsonObject("fields").getString("System.CreatedDate"));
+
+      texts.add(newText(i));
+    }
+
+    List<JiraIssue> jiraIssues = new ArrayList<>();
+    List<AzureWorkItem> workItems = new ArrayList<>();
+    for (JsonObject jiraJson : jiraJsons) {
+      JiraIssue jiraIssue = new JiraIssue(jiraJson);
+      jiraIssues.add(jiraIssue);
+
+      // As after MigrationTool.updateDescription()
+      AzureWorkItem workItem = MigrationTool.newAzureWorkItem(jiraIssue);
+      if (workItem.getDescription() == null)
+        workItem.setDescription("");
+      if (workItem.getStepsToReproduce() == null)
+        workItem.setStepsToReproduce("");
+      workItems.add(workItem);
+    }
+
+    JsonGeneratorFactory generatorFactory = Json.createGeneratorFactory(null);
+    Azure azure = new Azure();
+
+    File journalFile = null;
+
+    try {
+      journalFile = File.createTempFile("microbenchmark", ".journal");
+
+      try (MigrationJournal journal = new MigrationJournal(journalFile)) {
+        MigrationTool migrationTool = new MigrationTool(journal, null, null);
+
+        benchmark("JiraIssue(JsonObject)", inputNo -> new JiraIssue(jiraJsons.get(inputNo)));
+        benchmark("JiraIssue(JsonObject) + decode", inputNo -> MigrationTool.newAzureWorkItem(new JiraIssue(jiraJsons.get(inputNo))));
+        benchmark("YouTrackIssue(JsonObject)", inputNo -> new YouTrackIssue(youTrackJsons.get(inputNo)));
+        benchmark("AzureWorkItem(JsonObject)", inputNo -> new AzureWorkItem(azureJsons.get(inputNo)));
+        benchmark("ISO8601DateParser.parse", inputNo -> ISO8601DateParser.parse(dates.get(inputNo)));
+        benchmark("ISO8601DateParser.parseMillis", inputNo -> ISO8601DateParser.parseMillis(dates.get(inputNo)));
+        benchmark("ISO8601DateParser.parseGeneral", inputNo -> ISO8601DateParser.parseGeneral(dates.get(inputNo)));
+        benchmark("MigrationTool.updateText", inputNo -> migrationTool.updateText(texts.get(inputNo)));
+        benchmark("MigrationTool.newAzureWorkItem", inputNo -> MigrationTool.newAzureWorkItem(jiraIssues.get(inputNo)));
+        benchmark("Azure.writeWorkItemBody", inputNo -> {
+          try (JsonGenerator generator = generatorFactory.createGenerator(OutputStream.nullOutputStream())) {
+            azure.writeWorkItemBody(workItems.get(inputNo), -1, generator);
+          }
+          return workItems.get(inputNo);
+        });
+      }
+    }
+    catch (IOException exception) {
+      logger_.log(Level.SEVERE, "Unable to create benchmark journal", exception);
+    }
+    finally {
+      if (journalFile != null)
+        journalFile.delete();
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package no.geosoft.ticketmaster;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * End-to-end throughput benchmark of the migration.
+ * <p>
+ * Generates a synthetic dataset, serves it through a StubServer with
+ * the configured latency, and runs a complete MigrationTool migration
+ * against it. Reports the number of issues migrated per second.
+ * <p>
+ * The back-end URLs are set as system properties before any of the
+ * back-end classes are loaded, so nothing reaches the production instances.
+ * The migration journal is a temporary file and snapshots are disabled,
+ * so each run starts from scratch.
+ *
+ * @author <a href="mailto:jacob.dreyer@geosoft.no">Jacob Dreyer</a>
+ */
+public final class MigrationBenchmark
+{
+  /** The logger instance. */
+  private static final Logger logger_ = Logger.getLogger(MigrationBenchmark.class.getName());
+
+  /** Number of Jira issues. */
+  private static final int N_JIRA_ISSUES = 500;
+
+  /**
+   * Number of YouTrack issues. The YouTrack custom field mapping is
+   * instance specific, so this is off unless it has been configured.
+   */
+  private static final int N_YOUTRACK_ISSUES = 0;
+
+  /** Number of comments per issue. */
+  private static final int N_COMMENTS = 5;
+
+  /** Average number of links per issue. */
+  private static final double LINK_DENSITY = 1.5;
+
+  /** Number of attachments per issue. */
+  private static final int N_ATTACHMENTS = 2;
+
+  /** Average attachment size in bytes. */
+  private static final int ATTACHMENT_SIZE = 64 * 1024;
+
+  /** Fixed latency of each back-end request in milliseconds. */
+  private static final int LATENCY = 20;
+
+  /** Additional random latency of each back-end request in milliseconds. */
+  private static final int JITTER = 20;
+
+  /** Seed of the dataset generator. */
+  private static final long SEED = 4711L;
+
+  /** Max number of log records buffered by the asynchronous log handler. */
+  private static final int LOG_BUFFER_CAPACITY = 4096;
+
+  /**
+   * Private constructor to prevent client instantiation.
+   */
+  private MigrationBenchmark()
+  {
+    assert false : "This constructor should never be called";
+  }
+
+  /**
+   * Run the benchmark.
+   *
+   * @param arguments  Application arguments. Not used.
+   */
+  public static void main(String[] arguments)
+  {
+    SyntheticDataset jiraDataset = new SyntheticDataset(N_JIRA_ISSUES, N_COMMENTS, LINK_DENSITY, N_ATTACHMENTS, ATTACHMENT_SIZE, SEED);
+    SyntheticDataset youTrackDataset = new SyntheticDataset(N_YOUTRACK_ISSUES, N_COMMENTS, LINK_DENSITY, N_ATTACHMENTS, ATTACHMENT_SIZE, SEED);
+
+    StubServer stubServer = null;
+    File journalFile = null;
+
+    // As in MigrationTool.main()
+    AsyncLogHandler.install(LOG_BUFFER_CAPACITY);
+
+    try {
+      stubServer = new StubServer(jiraDataset, youTrackDataset, LATENCY, JITTER);
+      stubServer.start();
+
+      // Must be set before Jira, YouTrack and Azure are loaded
+      System.setProperty("ticketmaster.jira.url", stubServer.getJiraUrl());
+      System.setProperty("ticketmaster.youtrack.url", stubServer.getYouTrackUrl());
+      System.setProperty("ticketmaster.azure.url", stubServer.getAzureUrl());
+
+      journalFile = File.createTempFile("benchmark", ".journal");
+
+      long startTime = System.nanoTime();
+
+      try (MigrationJournal journal = new MigrationJournal(journalFile)) {
+        MigrationTool migrationTool = new MigrationTool(journal, null, null);
+        migrationTool.migrate();
+      }
+
+      double seconds = (System.nanoTime() - startTime) / 1.0e9;
+
+      int nIssues = N_JIRA_ISSUES + N_YOUTRACK_ISSUES;
+      int nWorkItems = stubServer.getNWorkItems();
+
+      System.out.println();
+      System.out.println("Issues.............: " + nIssues);
+      System.out.println("Work items created.: " + nWorkItems);
+      System.out.println("Comments pushed....: " + stubServer.getNComments());
+      System.out.println("Attachment bytes...: " + stubServer.getNAttachmentBytes());
+      System.out.println("Requests...........: " + stubServer.getNRequests());
+      System.out.println("Bytes sent.........: " + stubServer.getNBytesSent());
+      System.out.println("Latency............: " + LATENCY + "+[0," + JITTER + "] ms");
+      System.out.println(String.format("Time...............: %.1f s", seconds));
+      System.out.println(String.format("Throughput.........: %.2f issues/s", nWorkItems / seconds));
+    }
+    catch (IOException exception) {
+      logger_.log(Level.SEVERE, "Benchmark failed", exception);
+    }
+    finally {
+      AsyncLogHandler.uninstall();
+
+      if (stubServer != null)
+        stubServer.stop();
+
+      if (journalFile != null)
+        journalFile.delete();
+    }
+  }
+}
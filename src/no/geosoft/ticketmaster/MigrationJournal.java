@@ -0,0 +1,624 @@
+package no.geosoft.ticketmaster;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only journal of migration progress.
+ * <p>
+ * Every completed step of MigrationTool.process() is appended as one line
+ * of the form:
+ * <pre>
+ *   &lt;source key&gt; TAB &lt;step&gt; [TAB &lt;value&gt;]
+ * </pre>
+ * for instance:
+ * <pre>
+ *   SK-123   UPLOADED   0   https://dev.azure.com/.../attachments/...
+ *   SK-123   CREATED    4711
+ *   SK-124   CREATED    4712   4711
+ *   SK-123   DESCRIBED  5d41402abc4b2a76
+ *   SK-123   STATE
+ *   SK-123   ATTACHED   0
+ *   SK-123   ATTACHED
+ *   SK-123   COMMENT    3
+ *   SK-123   COMPLETE
+ * </pre>
+ * When a journal is opened, the existing records are replayed so that a
+ * restarted migration can continue exactly where the previous one stopped
+ * without having to re-read the target project.
+ * <p>
+ * Records are written to the file immediately and so survive a crash of the
+ * process. They are forced to the storage device in batches (every
+ * <em>syncInterval</em> records and on close) so that a power failure may
+ * lose at most the last batch.
+ * <p>
+ * A journal file may be shared by several processes, like the shards of
+ * a sharded migration (see MigrationTool). Each record is appended under
+ * an exclusive file lock, and records appended by other processes are
+ * replayed before that, and on refresh(), so that each process sees the
+ * merged state.
+ *
+ * @author <a href="mailto:jacob.dreyer@geosoft.no">Jacob Dreyer</a>
+ */
+public final class MigrationJournal implements Closeable
+{
+  /** The logger instance. */
+  private static final Logger logger_ = Logger.getLogger(MigrationJournal.class.getName());
+
+  /** Default number of records between each forced write to disk. */
+  private static final int DEFAULT_SYNC_INTERVAL = 100;
+
+  /**
+   * The migration steps being journaled.
+   */
+  public enum Step
+  {
+    /** Attachment uploaded. Value is attachment number and Azure URL. */
+    UPLOADED,
+
+    /** Work item created. Value is the Azure work item ID, and the parent work item ID if the parent relation was included. */
+    CREATED,
+
+    /** Description pushed. Value is the digest of the description pushed, see MigrationTool.getDescriptionDigest(). */
+    DESCRIBED,
+
+    /** Work item state set. */
+    STATE,
+
+    /** Attachment associated with the work item. Value is attachment number. All if no value. */
+    ATTACHED,
+
+    /** Comment pushed. Value is the comment number. */
+    COMMENT,
+
+    /** All per-issue steps done. */
+    COMPLETE,
+
+    /** Links pushed. */
+    LINKED,
+
+    /** Links to issues of other projects pushed, see MigrationTool.migrateProjects(). */
+    CROSS_LINKED;
+  }
+
+  /**
+   * The journaled state of one source issue.
+   */
+  private static final class Entry
+  {
+    /** The Azure work item ID, or -1 if not yet created. */
+    private int workItemId_ = -1;
+
+    /** Indicate if the parent relation was included when the work item was created. */
+    private boolean isParentLinked_ = false;
+
+    /** Digest of the description last pushed. Null if not known. */
+    private Long descriptionDigest_ = null;
+
+    /** Steps completed. */
+    private final Set<Step> steps_ = EnumSet.noneOf(Step.class);
+
+    /** Azure URL of uploaded attachments, by attachment number. */
+    private final Map<Integer,String> attachmentUrls_ = new HashMap<>();
+
+    /** Attachment numbers associated with the work item. */
+    private final Set<Integer> attachments_ = new HashSet<>();
+
+    /** Comment numbers pushed. */
+    private final Set<Integer> comments_ = new HashSet<>();
+  }
+
+  /** The journal file. */
+  private final File file_;
+
+  /** Journaled state per source issue key. */
+  private final Map<String,Entry> entries_ = new HashMap<>();
+
+  /** Channel for appending to the journal. */
+  private final FileChannel channel_;
+
+  /** Number of records between each forced write to disk. */
+  private final int syncInterval_;
+
+  /** Number of records written since last forced write. */
+  private int nUnsynced_ = 0;
+
+  /** Length of the file part that has been applied to the in-memory state. */
+  private long readPosition_ = 0L;
+
+  /**
+   * Open the specified journal. If the file exists, its records are
+   * loaded, otherwise it is created.
+   *
+   * @param file          Journal file. Non-null.
+   * @param syncInterval  Number of records between each forced write to disk. [1,&gt;.
+   * @throws IllegalArgumentException  If file is null or syncInterval &lt; 1.
+   * @throws IOException  If the journal cannot be opened.
+   */
+  public MigrationJournal(File file, int syncInterval)
+    throws IOException
+  {
+    if (file == null)
+      throw new IllegalArgumentException("file cannot be null");
+
+    if (syncInterval < 1)
+      throw new IllegalArgumentException("Invalid syncInterval: " + syncInterval);
+
+    file_ = file;
+    syncInterval_ = syncInterval;
+    channel_ = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                               StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE);
+
+    FileLock lock = channel_.lock();
+    try {
+      load();
+      truncate();
+    }
+    finally {
+      lock.release();
+    }
+
+    logger_.log(Level.INFO, () -> entries_.size() + " journal entries loaded from " + file_);
+  }
+
+  /**
+   * Open the specified journal using the default sync interval.
+   *
+   * @param file  Journal file. Non-null.
+   * @throws IllegalArgumentException  If file is null.
+   * @throws IOException  If the journal cannot be opened.
+   */
+  public MigrationJournal(File file)
+    throws IOException
+  {
+    this(file, DEFAULT_SYNC_INTERVAL);
+  }
+
+  /**
+   * Load the complete records from the journal file not yet applied,
+   * i.e. all records initially, and records appended by other processes later.
+   * The caller must hold a lock on the file.
+   *
+   * @throws IOException  If the read operation fails.
+   */
+  private void load()
+    throws IOException
+  {
+    long size = channel_.size();
+    if (size <= readPosition_)
+      return;
+
+    ByteBuffer buffer = ByteBuffer.allocate((int) (size - readPosition_));
+    channel_.position(readPosition_);
+    while (buffer.hasRemaining() && channel_.read(buffer) != -1)
+      ;
+
+    byte[] bytes = buffer.array();
+
+    int validLength = 0;
+    int nRecords = 0;
+
+    for (int i = 0; i < bytes.length; i++) {
+      if (bytes[i] != '\n')
+        continue;
+
+      apply(new String(bytes, validLength, i - validLength, StandardCharsets.UTF_8));
+      validLength = i + 1;
+      nRecords++;
+    }
+
+    readPosition_ += validLength;
+
+    logger_.log(Level.FINE, nRecords + " journal records loaded from " + file_);
+  }
+
+  /**
+   * Cut off any partial record left by a process that crashed during write.
+   * The caller must hold an exclusive lock on the file, and must have loaded
+   * all complete records.
+   *
+   * @throws IOException  If the truncate operation fails.
+   */
+  private void truncate()
+    throws IOException
+  {
+    if (readPosition_ < channel_.size()) {
+      logger_.log(Level.WARNING, "Truncating incomplete journal record in " + file_);
+      channel_.truncate(readPosition_);
+    }
+  }
+
+  /**
+   * Load records appended to the journal by other processes since
+   * the journal was opened or last refreshed.
+   */
+  public synchronized void refresh()
+  {
+    try {
+      FileLock lock = channel_.lock(0L, Long.MAX_VALUE, true);
+      try {
+        load();
+      }
+      finally {
+        lock.release();
+      }
+    }
+    catch (IOException exception) {
+      logger_.log(Level.WARNING, "Unable to refresh journal " + file_, exception);
+    }
+  }
+
+  /**
+   * Apply the specified journal record to the in-memory state.
+   * Invalid records are logged and skipped.
+   *
+   * @param record  Record to apply. Non-null.
+   */
+  private void apply(String record)
+  {
+    assert record != null : "record cannot be null";
+
+    String[] tokens = record.split("\t", 3);
+    if (tokens.length < 2) {
+      logger_.log(Level.WARNING, "Invalid journal record: " + record);
+      return;
+    }
+
+    // Like a torn record or a record of a newer version. Skipped rather than
+    // failing, so that the journal can still be resumed from
+    try {
+      String key = tokens[0];
+      Step step = Step.valueOf(tokens[1]);
+      String value = tokens.length > 2 ? tokens[2] : null;
+
+      Entry entry = entries_.computeIfAbsent(key, k -> new Entry());
+
+      switch (step) {
+        case UPLOADED :
+          if (value != null) {
+            String[] parts = value.split("\t", 2);
+            entry.attachmentUrls_.put(Integer.parseInt(parts[0]), parts.length > 1 ? parts[1] : null);
+          }
+          else {
+            entry.steps_.add(step);
+          }
+          break;
+
+        case ATTACHED :
+          if (value != null)
+            entry.attachments_.add(Integer.parseInt(value));
+          else
+            entry.steps_.add(step);
+          break;
+
+        case CREATED :
+          String[] ids = value.split("\t", 2);
+          entry.workItemId_ = Integer.parseInt(ids[0]);
+          entry.isParentLinked_ = ids.length > 1;
+          entry.steps_.add(step);
+          break;
+
+        case DESCRIBED :
+          entry.descriptionDigest_ = Long.parseUnsignedLong(value, 16);
+          break;
+
+        case COMMENT :
+          entry.comments_.add(Integer.parseInt(value));
+          break;
+
+        default :
+          entry.steps_.add(step);
+      }
+    }
+    catch (IllegalArgumentException exception) {
+      logger_.log(Level.WARNING, "Invalid journal record skipped: " + record);
+    }
+  }
+
+  /**
+   * Append the specified record to the journal and apply it to the in-memory state.
+   *
+   * @param key    Source issue key. Non-null.
+   * @param step   Step to record. Non-null.
+   * @param value  Associated value. Null if none.
+   */
+  private synchronized void append(String key, Step step, String value)
+  {
+    assert key != null : "key cannot be null";
+    assert step != null : "step cannot be null";
+
+    String record = key + "\t" + step + (value != null ? "\t" + value : "");
+
+    try {
+      FileLock lock = channel_.lock();
+      try {
+        // Catch up with other processes so that we append at the end
+        load();
+        truncate();
+
+        ByteBuffer buffer = ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8));
+        channel_.position(readPosition_);
+        while (buffer.hasRemaining())
+          channel_.write(buffer);
+
+        readPosition_ = channel_.position();
+
+        nUnsynced_++;
+        if (nUnsynced_ >= syncInterval_)
+          sync();
+      }
+      finally {
+        lock.release();
+      }
+    }
+    catch (IOException exception) {
+      // Not fatal for the migration itself, but resume will redo this step
+      logger_.log(Level.WARNING, "Unable to write journal record: " + record, exception);
+    }
+
+    apply(record);
+  }
+
+  /**
+   * Force all journal records written so far to the storage device.
+   */
+  public synchronized void sync()
+  {
+    if (nUnsynced_ == 0)
+      return;
+
+    try {
+      channel_.force(false);
+      nUnsynced_ = 0;
+    }
+    catch (IOException exception) {
+      logger_.log(Level.WARNING, "Unable to sync journal " + file_, exception);
+    }
+  }
+
+  /**
+   * Record that the specified step is done for the given source issue.
+   *
+   * @param key   Source issue key. Non-null.
+   * @param step  Step to record. Non-null.
+   * @throws IllegalArgumentException  If key or step is null.
+   */
+  public void record(String key, Step step)
+  {
+    if (key == null)
+      throw new IllegalArgumentException("key cannot be null");
+
+    if (step == null)
+      throw new IllegalArgumentException("step cannot be null");
+
+    append(key, step, null);
+  }
+
+  /**
+   * Record that an attachment of the given source issue has been uploaded.
+   *
+   * @param key           Source issue key. Non-null.
+   * @param attachmentNo  Attachment number within the source issue. 0-based.
+   * @param url           Azure URL of the uploaded attachment. Null if upload failed.
+   * @throws IllegalArgumentException  If key is null.
+   */
+  public void recordUpload(String key, int attachmentNo, String url)
+  {
+    if (key == null)
+      throw new IllegalArgumentException("key cannot be null");
+
+    append(key, Step.UPLOADED, attachmentNo + (url != null ? "\t" + url : ""));
+  }
+
+  /**
+   * Record that the work item of the given source issue has been created.
+   *
+   * @param key               Source issue key. Non-null.
+   * @param workItemId        ID of the Azure work item.
+   * @param parentWorkItemId  ID of the parent work item if the parent relation was
+   *                          included when the work item was created, -1 otherwise.
+   * @throws IllegalArgumentException  If key is null.
+   */
+  public void recordCreated(String key, int workItemId, int parentWorkItemId)
+  {
+    if (key == null)
+      throw new IllegalArgumentException("key cannot be null");
+
+    append(key, Step.CREATED, workItemId + (parentWorkItemId != -1 ? "\t" + parentWorkItemId : ""));
+
+    // The step we least want to repeat, so make it durable right away
+    sync();
+  }
+
+  /**
+   * Record that the description of the given source issue has been pushed.
+   *
+   * @param key     Source issue key. Non-null.
+   * @param digest  Digest of the description pushed.
+   * @throws IllegalArgumentException  If key is null.
+   */
+  public void recordDescription(String key, long digest)
+  {
+    if (key == null)
+      throw new IllegalArgumentException("key cannot be null");
+
+    append(key, Step.DESCRIBED, Long.toHexString(digest));
+  }
+
+  /**
+   * Record that an attachment has been associated with the work item of the given source issue.
+   *
+   * @param key           Source issue key. Non-null.
+   * @param attachmentNo  Attachment number within the source issue. 0-based.
+   * @throws IllegalArgumentException  If key is null.
+   */
+  public void recordAttached(String key, int attachmentNo)
+  {
+    if (key == null)
+      throw new IllegalArgumentException("key cannot be null");
+
+    append(key, Step.ATTACHED, Integer.toString(attachmentNo));
+  }
+
+  /**
+   * Record that a comment of the given source issue has been pushed.
+   *
+   * @param key        Source issue key. Non-null.
+   * @param commentNo  Comment number within the source issue. 0-based.
+   * @throws IllegalArgumentException  If key is null.
+   */
+  public void recordComment(String key, int commentNo)
+  {
+    if (key == null)
+      throw new IllegalArgumentException("key cannot be null");
+
+    append(key, Step.COMMENT, Integer.toString(commentNo));
+  }
+
+  /**
+   * Check if the specified step is done for the given source issue.
+   *
+   * @param key   Source issue key. Non-null.
+   * @param step  Step to check. Non-null.
+   * @return      True if the step is done, false otherwise.
+   * @throws IllegalArgumentException  If key or step is null.
+   */
+  public synchronized boolean isDone(String key, Step step)
+  {
+    if (key == null)
+      throw new IllegalArgumentException("key cannot be null");
+
+    if (step == null)
+      throw new IllegalArgumentException("step cannot be null");
+
+    Entry entry = entries_.get(key);
+    return entry != null && entry.steps_.contains(step);
+  }
+
+  /**
+   * Check if the specified attachment has been associated with the work item
+   * of the given source issue.
+   *
+   * @param key           Source issue key. Non-null.
+   * @param attachmentNo  Attachment number within the source issue. 0-based.
+   * @return              True if the attachment has been associated, false otherwise.
+   * @throws IllegalArgumentException  If key is null.
+   */
+  public synchronized boolean isAttachmentDone(String key, int attachmentNo)
+  {
+    if (key == null)
+      throw new IllegalArgumentException("key cannot be null");
+
+    Entry entry = entries_.get(key);
+    return entry != null && entry.attachments_.contains(attachmentNo);
+  }
+
+  /**
+   * Check if the description of the specified digest is the one last pushed
+   * for the given source issue.
+   *
+   * @param key     Source issue key. Non-null.
+   * @param digest  Digest of the description to check.
+   * @return        True if the description has been pushed, false if another
+   *                or an unknown description has been pushed.
+   * @throws IllegalArgumentException  If key is null.
+   */
+  public synchronized boolean isDescriptionDone(String key, long digest)
+  {
+    if (key == null)
+      throw new IllegalArgumentException("key cannot be null");
+
+    Entry entry = entries_.get(key);
+    return entry != null && entry.descriptionDigest_ != null && entry.descriptionDigest_ == digest;
+  }
+
+  /**
+   * Check if the specified comment has been pushed for the given source issue.
+   *
+   * @param key        Source issue key. Non-null.
+   * @param commentNo  Comment number within the source issue. 0-based.
+   * @return           True if the comment has been pushed, false otherwise.
+   * @throws IllegalArgumentException  If key is null.
+   */
+  public synchronized boolean isCommentDone(String key, int commentNo)
+  {
+    if (key == null)
+      throw new IllegalArgumentException("key cannot be null");
+
+    Entry entry = entries_.get(key);
+    return entry != null && entry.comments_.contains(commentNo);
+  }
+
+  /**
+   * Return the Azure work item ID of the given source issue.
+   *
+   * @param key  Source issue key. Non-null.
+   * @return     The work item ID, or -1 if the work item is not yet created.
+   * @throws IllegalArgumentException  If key is null.
+   */
+  public synchronized int getWorkItemId(String key)
+  {
+    if (key == null)
+      throw new IllegalArgumentException("key cannot be null");
+
+    Entry entry = entries_.get(key);
+    return entry != null ? entry.workItemId_ : -1;
+  }
+
+  /**
+   * Check if the parent relation was included when the work item of the
+   * given source issue was created, so that it must not be pushed again.
+   *
+   * @param key  Source issue key. Non-null.
+   * @return     True if the parent relation is included, false otherwise.
+   * @throws IllegalArgumentException  If key is null.
+   */
+  public synchronized boolean isParentLinked(String key)
+  {
+    if (key == null)
+      throw new IllegalArgumentException("key cannot be null");
+
+    Entry entry = entries_.get(key);
+    return entry != null && entry.isParentLinked_;
+  }
+
+  /**
+   * Return the Azure URL of the specified uploaded attachment.
+   *
+   * @param key           Source issue key. Non-null.
+   * @param attachmentNo  Attachment number within the source issue. 0-based.
+   * @return              The attachment URL, or null if not uploaded.
+   * @throws IllegalArgumentException  If key is null.
+   */
+  public synchronized String getAttachmentUrl(String key, int attachmentNo)
+  {
+    if (key == null)
+      throw new IllegalArgumentException("key cannot be null");
+
+    Entry entry = entries_.get(key);
+    return entry != null ? entry.attachmentUrls_.get(attachmentNo) : null;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized void close()
+    throws IOException
+  {
+    sync();
+    channel_.close();
+  }
+}
@@ -1,11 +1,28 @@
 package no.geosoft.ticketmaster;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -43,45 +60,243 @@ public final class MigrationTool
   /** The logger instance. */
   private static final Logger logger_ = Logger.getLogger(MigrationTool.class.getName());
 
+  /**
+   * Pattern of Jira attachment and thumbnail URLs, relative or absolute.
+   * The attachment ID is group 1.
+   */
+  private static final Pattern JIRA_ATTACHMENT_PATTERN = Pattern.compile("/(?:rest/api/\\d+/attachment/(?:content|thumbnail)|secure/(?:attachment|thumbnail))/(\\d+)(?!\\d)");
+
+  /** Path of YouTrack attachment URLs. */
+  private static final String YOUTRACK_FILES_PATH = "/api/files/";
+
+  /**
+   * Pattern of Jira and YouTrack issue URLs, like ".../browse/SK-123".
+   * The issue key is group 1.
+   */
+  private static final Pattern ISSUE_URL_PATTERN = Pattern.compile("/(?:browse|issue)/([A-Za-z][A-Za-z0-9_]*-\\d+)(?![\\w-])");
+
+  /** Prefix of references to Azure work items, like "AB#4711". */
+  private static final String AZURE_PREFIX = "AB#";
+
   /** Azure work item unique ID counter used for in-memory work items before they are in Azure. */
-  private static long uniqueId_ = System.currentTimeMillis();
+  private static final AtomicLong uniqueId_ = new AtomicLong(System.currentTimeMillis());
+
+  /** Name of the default journal file. */
+  private static final String JOURNAL_FILE_NAME = "migration.journal";
+
+  /** Snapshot of pulled YouTrack issues. Delete to force a new pull. */
+  private static final String YOUTRACK_SNAPSHOT_FILE_NAME = "youtrack.snapshot";
+
+  /** Snapshot of pulled Jira issues. Delete to force a new pull. */
+  private static final String JIRA_SNAPSHOT_FILE_NAME = "jira.snapshot";
+
+  /**
+   * Directory of the back-end response cache. The shards of a sharded migration
+   * each use a "shard&lt;shardNo&gt;" subdirectory, as the cache is not shared
+   * between processes.
+   */
+  private static final String RESPONSE_CACHE_DIRECTORY = "cache";
+
+  /**
+   * Back-end response cache mode. RECORD to capture all back-end reads, REPLAY
+   * to run offline from a previous recording, or null for no caching.
+   */
+  private static final ResponseCache.Mode RESPONSE_CACHE_MODE = null;
+
+  /** File of the exported metrics. Prometheus text, or JSON if ending with ".json". */
+  private static final String METRICS_FILE_NAME = "metrics.prom";
+
+  /** File of the post-migration verification report. */
+  private static final String VERIFICATION_FILE_NAME = "verification.txt";
+
+  /** Time between each metrics export in milliseconds. */
+  private static final long METRICS_EXPORT_PERIOD = 15000L;
+
+  /** Time between each progress report in milliseconds. */
+  private static final long PROGRESS_REPORT_PERIOD = 10000L;
+
+  /** Max number of log records buffered by the asynchronous log handler. */
+  private static final int LOG_BUFFER_CAPACITY = 4096;
+
+  /** Capacity of each queue of the migration pipeline. */
+  private static final int PIPELINE_QUEUE_CAPACITY = 8;
+
+  /** Number of threads downloading attachments from the source back-end. */
+  private static final int N_DOWNLOAD_THREADS = 4;
+
+  /** Number of threads uploading attachments to Azure. */
+  private static final int N_UPLOAD_THREADS = 2;
+
+  /** Number of threads creating work items in Azure. */
+  private static final int N_CREATE_THREADS = 2;
+
+  /** Number of threads pushing comments to Azure. */
+  private static final int N_COMMENT_THREADS = 2;
+
+  /** Total attachment size in bytes from which an issue is migrated in the heavy lane. */
+  private static final long HEAVY_ISSUE_SIZE = 16L * 1024 * 1024;
+
+  /** Capacity of each queue of the heavy lane pipeline. */
+  private static final int HEAVY_QUEUE_CAPACITY = 2;
 
-  /** The YouTrack instance. */
-  private final YouTrack youTrack_ = new YouTrack();
+  /** Number of threads downloading attachments in the heavy lane. */
+  private static final int N_HEAVY_DOWNLOAD_THREADS = 1;
+
+  /** Number of threads uploading attachments in the heavy lane. */
+  private static final int N_HEAVY_UPLOAD_THREADS = 1;
+
+  /** Max number of shards of a sharded migration. */
+  private static final int MAX_SHARDS = 64;
+
+  /**
+   * Prefixes of the JVM options passed on to the shard processes. Others, like
+   * -agentlib:jdwp and -javaagent, would make the shards compete for the same
+   * debug port or agent resources. The same goes for the JMX agent properties,
+   * see isShardJvmOption().
+   */
+  private static final List<String> SHARD_JVM_OPTION_PREFIXES = List.of("-Xmx", "-Xms", "-Xss", "-D", "-ea", "-enableassertions", "-da", "-disableassertions", "-esa");
+
+  /** Max number of projects migrated concurrently, see migrateProjects(). */
+  private static final int N_PROJECT_THREADS = 4;
+
+  /** Number of threads updating work items in resolveDeferredKeys(). */
+  private static final int N_DEFERRED_THREADS = 8;
+
+  /** The YouTrack instance. Null if YouTrack is not migrated. */
+  private final YouTrack youTrack_;
 
   /** The Jira instance. */
-  private final Jira jira_ = new Jira();
+  private final Jira jira_;
 
   /** The Azure instance. */
-  private final Azure azure_ = new Azure();
+  private final Azure azure_;
+
+  /** Journal of migration progress, so that an interrupted migration can be resumed. */
+  private final MigrationJournal journal_;
 
-  /** Existing Azure work items. */
-  private final List<AzureWorkItem> existingWorkItems_ = new ArrayList<>();
+  /** Directory of issue snapshots. Null if snapshots should not be used. */
+  private final File snapshotDirectory_;
 
   /** Mapping equivalent Azure work items to YouTrack issues. */
-  private final Map<AzureWorkItem, YouTrackIssue> azureToYouTrack_ = new HashMap<>();
+  private final Map<AzureWorkItem, YouTrackIssue> azureToYouTrack_ = new ConcurrentHashMap<>();
 
   /** Mapping equivalent YouTrack issues to Azure work items. */
-  private final Map<YouTrackIssue, AzureWorkItem> youTrackToAzure_ = new HashMap<>();
+  private final Map<YouTrackIssue, AzureWorkItem> youTrackToAzure_ = new ConcurrentHashMap<>();
 
   /** Mapping equivalent Azure work items to Jira issues. */
-  private final Map<AzureWorkItem, JiraIssue> azureToJira_ = new HashMap<>();
+  private final Map<AzureWorkItem, JiraIssue> azureToJira_ = new ConcurrentHashMap<>();
 
   /** Mapping equivalent Jira issues to Azure work items. */
-  private final Map<JiraIssue, AzureWorkItem> jiraToAzure_ = new HashMap<>();
+  private final Map<JiraIssue, AzureWorkItem> jiraToAzure_ = new ConcurrentHashMap<>();
+
+  /** Azure attachments by YouTrack attachment URL. See getYouTrackFileKey(). */
+  private final Map<String, AzureAttachment> youTrackAttachmentsByUrl_ = new ConcurrentHashMap<>();
+
+  /** Azure attachments by Jira attachment ID. */
+  private final Map<String, AzureAttachment> jiraAttachmentsById_ = new ConcurrentHashMap<>();
+
+  /** Rewriter rule of attachment URLs. */
+  private final AttachmentUrlRule attachmentUrlRule_ = new AttachmentUrlRule();
+
+  /** Keys of all source issues, migrated by this instance or not. */
+  private final Set<String> issueKeys_ = ConcurrentHashMap.newKeySet();
+
+  /** Matcher of the keys of all source issues. */
+  private volatile KeyMatcher issueKeyMatcher_ = new KeyMatcher(Collections.emptySet());
+
+  /**
+   * Work items with text referring to issues that had no work item at the time,
+   * by source key. See resolveDeferredKeys().
+   */
+  private final Map<AzureWorkItem, String> deferredWorkItems_ = new ConcurrentHashMap<>();
+
+  /** Reporter of the ongoing migration. Null if none is ongoing. */
+  private volatile ProgressReporter progressReporter_;
+
+  /** The shard migrated by this instance. [0,nShards&gt;. */
+  private final int shardNo_;
+
+  /** Number of shards. 1 if not sharded. */
+  private final int nShards_;
+
+  /**
+   * Create a new migration tool instance for one shard of a sharded migration.
+   * <p>
+   * The source issues are partitioned by the key hash of their root issue
+   * (so that parents and children are in the same shard), and this instance
+   * migrates the issues of the given shard only. Links are not pushed, as
+   * they may go across shards. The shards may run in separate processes
+   * sharing the journal. When all are done, a non-sharded instance on the
+   * same journal pushes the links (and migrates any issues left by a failed shard).
+   *
+   * @param journal            Journal for recording migration progress. Non-null.
+   * @param youTrack           YouTrack instance to migrate from. Null if YouTrack should not be migrated.
+   * @param jira               Jira instance to migrate from. Non-null.
+   * @param azure              Azure instance to migrate to. Non-null.
+   * @param snapshotDirectory  Directory of issue snapshots. Null if snapshots
+   *                           should not be used.
+   * @param shardNo            The shard to migrate. [0,nShards&gt;.
+   * @param nShards            Number of shards. [1,MAX_SHARDS].
+   * @throws IllegalArgumentException  If journal, jira or azure is null, or shardNo or nShards is out of bounds.
+   */
+  public MigrationTool(MigrationJournal journal, YouTrack youTrack, Jira jira, Azure azure, File snapshotDirectory, int shardNo, int nShards)
+  {
+    if (journal == null)
+      throw new IllegalArgumentException("journal cannot be null");
+
+    if (jira == null)
+      throw new IllegalArgumentException("jira cannot be null");
+
+    if (azure == null)
+      throw new IllegalArgumentException("azure cannot be null");
+
+    if (nShards < 1 || nShards > MAX_SHARDS)
+      throw new IllegalArgumentException("Invalid nShards: " + nShards);
 
-  /** Mapping equivalent Azure attachments to YouTrack attachments. */
-  private final Map<AzureAttachment, YouTrackAttachment> youTrackAttachments_ = new HashMap<>();
+    if (shardNo < 0 || shardNo >= nShards)
+      throw new IllegalArgumentException("Invalid shardNo: " + shardNo);
 
-  /** Mapping equivalent Azure attachments to Jira attachments. */
-  private final Map<AzureAttachment, JiraAttachment> jiraAttachments_ = new HashMap<>();
+    journal_ = journal;
+    snapshotDirectory_ = snapshotDirectory;
+    shardNo_ = shardNo;
+    nShards_ = nShards;
+
+    youTrack_ = youTrack;
+    jira_ = jira;
+    azure_ = azure;
+  }
+
+  /**
+   * Create a new migration tool instance for one shard of a sharded migration
+   * of the default projects. See the constructor above.
+   *
+   * @param journal            Journal for recording migration progress. Non-null.
+   * @param responseCache      Cache for recording or replaying back-end responses.
+   *                           Null if responses should not be cached.
+   * @param snapshotDirectory  Directory of issue snapshots. Null if snapshots
+   *                           should not be used.
+   * @param shardNo            The shard to migrate. [0,nShards&gt;.
+   * @param nShards            Number of shards. [1,MAX_SHARDS].
+   * @throws IllegalArgumentException  If journal is null, or shardNo or nShards is out of bounds.
+   */
+  public MigrationTool(MigrationJournal journal, ResponseCache responseCache, File snapshotDirectory, int shardNo, int nShards)
+  {
+    this(journal, new YouTrack(responseCache), new Jira(responseCache), new Azure(responseCache), snapshotDirectory, shardNo, nShards);
+  }
 
   /**
    * Create a new migration tool instance.
+   *
+   * @param journal            Journal for recording migration progress. Non-null.
+   * @param responseCache      Cache for recording or replaying back-end responses.
+   *                           Null if responses should not be cached.
+   * @param snapshotDirectory  Directory of issue snapshots. Null if snapshots
+   *                           should not be used.
+   * @throws IllegalArgumentException  If journal is null.
    */
-  public MigrationTool()
+  public MigrationTool(MigrationJournal journal, ResponseCache responseCache, File snapshotDirectory)
   {
-    // Nothing
+    this(journal, responseCache, snapshotDirectory, 0, 1);
   }
 
   private void resolveYouTrackLinks()
@@ -101,7 +316,7 @@ public final class MigrationTool
 
       AzureWorkItem parentWorkItem = youTrackToAzure_.get(parentYouTrackIssue);
 
-      logger_.log(Level.INFO, "Resolve link " + workItem.getId() + " -> " + parentWorkItem.getId() + " (parent)");
+      logger_.log(Level.INFO, () -> "Resolve link " + workItem.getId() + " -> " + parentWorkItem.getId() + " (parent)");
 
       workItem.setParentWorkItem(parentWorkItem);
     }
@@ -120,7 +335,7 @@ public final class MigrationTool
 
         AzureWorkItem linkedWorkItem = youTrackToAzure_.get(linkedYouTrackIssue);
 
-        logger_.log(Level.INFO, "Resolve link " + workItem.getId() + " -> " + linkedWorkItem.getId() + " " + link.getType());
+        logger_.log(Level.INFO, () -> "Resolve link " + workItem.getId() + " -> " + linkedWorkItem.getId() + " " + link.getType());
 
         workItem.addLink(newAzureLink(linkedWorkItem, link));
       }
@@ -144,7 +359,7 @@ public final class MigrationTool
 
       AzureWorkItem parentWorkItem = jiraToAzure_.get(parentJiraIssue);
 
-      logger_.log(Level.INFO, "Resolve link " + workItem.getId() + " -> " + parentWorkItem.getId() + " (parent)");
+      logger_.log(Level.INFO, () -> "Resolve link " + workItem.getId() + " -> " + parentWorkItem.getId() + " (parent)");
 
       workItem.setParentWorkItem(parentWorkItem);
 
@@ -165,7 +380,7 @@ public final class MigrationTool
 
         AzureWorkItem linkedWorkItem = jiraToAzure_.get(linkedJiraIssue);
 
-        logger_.log(Level.INFO, "Resolve link " + workItem.getId() + " -> " + linkedWorkItem.getId() + " " + jiraLink.getType());
+        logger_.log(Level.INFO, () -> "Resolve link " + workItem.getId() + " -> " + linkedWorkItem.getId() + " " + jiraLink.getType());
 
         if (jiraLink.getDirection().equals("INWARD"))
           workItem.addLink(newAzureLink(linkedWorkItem, jiraLink));
@@ -193,6 +408,19 @@ public final class MigrationTool
 
   private static AzureLink newAzureLink(AzureWorkItem linkedWorkItem, YouTrackLink youTrackLink)
   {
+    return new AzureLink(getAzureLinkType(youTrackLink), linkedWorkItem);
+  }
+
+  /**
+   * Return the Azure link type of the specified YouTrack link.
+   *
+   * @param youTrackLink  YouTrack link to get Azure type of. Non-null.
+   * @return              The equivalent Azure link type. Never null.
+   */
+  static AzureLink.Type getAzureLinkType(YouTrackLink youTrackLink)
+  {
+    assert youTrackLink != null : "youTrackLink cannot be null";
+
     AzureLink.Type type = null;
     if (youTrackLink.getType() == YouTrackLink.Type.RELATES)
       type = AzureLink.Type.RELATED;
@@ -211,11 +439,24 @@ public final class MigrationTool
       type = AzureLink.Type.RELATED;
     }
 
-    return new AzureLink(type, linkedWorkItem);
+    return type;
   }
 
   private static AzureLink newAzureLink(AzureWorkItem linkedWorkItem, JiraLink jiraLink)
   {
+    return new AzureLink(getAzureLinkType(jiraLink), linkedWorkItem);
+  }
+
+  /**
+   * Return the Azure link type of the specified Jira link.
+   *
+   * @param jiraLink  Jira link to get Azure type of. Non-null.
+   * @return          The equivalent Azure link type. Never null.
+   */
+  static AzureLink.Type getAzureLinkType(JiraLink jiraLink)
+  {
+    assert jiraLink != null : "jiraLink cannot be null";
+
     AzureLink.Type type = null;
 
     switch (jiraLink.getType()) {
@@ -229,14 +470,14 @@ public final class MigrationTool
         type = AzureLink.Type.RELATED;
     }
 
-    return new AzureLink(type, linkedWorkItem);
+    return type;
   }
 
   private static AzureComment newAzureComment(YouTrackComment youTrackComment)
   {
     String text = youTrackComment.getText();
     YouTrackUser author = youTrackComment.getAuthor();
-    Date createdTime = youTrackComment.getCreatedTime();
+    Instant createdTime = youTrackComment.getCreatedTime();
 
     return new AzureComment(text, newAzureUser(author), createdTime);
   }
@@ -244,7 +485,7 @@ public final class MigrationTool
   private static AzureComment newAzureComment(JiraComment jiraComment)
   {
     JiraUser author = jiraComment.getAuthor();
-    Date createdTime = jiraComment.getCreatedTime();
+    Instant createdTime = jiraComment.getCreatedTime();
 
     //
     // Comment text with reactions appended
@@ -391,11 +632,11 @@ public final class MigrationTool
    * @param jiraIssue  Jire issue to create equivalent Azure work item of. Non-null.
    * @return           The requested Azure work item. Never null.
    */
-  private static AzureWorkItem newAzureWorkItem(JiraIssue jiraIssue)
+  static AzureWorkItem newAzureWorkItem(JiraIssue jiraIssue)
   {
     assert jiraIssue != null : "jiraIssue cannot be null";
 
-    long uniqueId = uniqueId_++;
+    long uniqueId = uniqueId_.getAndIncrement();
 
     String areaPath = "<area>"; // Not path!
 
@@ -409,7 +650,7 @@ public final class MigrationTool
 
     AzureUser createdBy = newAzureUser(jiraIssue.getCreator());
 
-    Date createdTime = jiraIssue.getCreatedTime();
+    Instant createdTime = jiraIssue.getCreatedTime();
 
     //
     // Description
@@ -523,8 +764,8 @@ public final class MigrationTool
 
     // Start date
     // Target date
-    Date startDate = jiraIssue.getCustomStartDate();
-    Date targetDate = jiraIssue.getDueDate();
+    Instant startDate = jiraIssue.getCustomStartDate();
+    Instant targetDate = jiraIssue.getDueDate();
 
     String systemInfo = jiraIssue.getCustomDevicesAndVersions();
 
@@ -572,7 +813,7 @@ public final class MigrationTool
       azureWorkItem.addComment(newAzureComment(jiraComment));
     }
 
-    logger_.log(Level.INFO, "In-memory Work Item created, temp ID: " + azureWorkItem.getUniqueId());
+    logger_.log(Level.INFO, () -> "In-memory Work Item created, temp ID: " + azureWorkItem.getUniqueId());
 
     return azureWorkItem;
   }
@@ -583,11 +824,11 @@ public final class MigrationTool
    * @param youTrackIssue  You Track issue to convert. Non-null.
    * @return               Associated Azure work item. Never null.
    */
-  private static AzureWorkItem newAzureWorkItem(YouTrackIssue youTrackIssue)
+  static AzureWorkItem newAzureWorkItem(YouTrackIssue youTrackIssue)
   {
     assert youTrackIssue != null : "youTrackIssue cannot be null";
 
-    long uniqueId = uniqueId_++;
+    long uniqueId = uniqueId_.getAndIncrement();
 
     String workItemType = getAzureWorkItemType(youTrackIssue);
 
@@ -599,7 +840,7 @@ public final class MigrationTool
 
     AzureUser createdBy = newAzureUser(youTrackIssue.getReportedBy());
 
-    Date createdTime = youTrackIssue.getCreatedTime();
+    Instant createdTime = youTrackIssue.getCreatedTime();
 
     String description = youTrackIssue.getWikifiedDescription();
 
@@ -634,8 +875,8 @@ public final class MigrationTool
     // Activity - Custom mapping here
     String activity = "<activityd>";
 
-    Date startDate = null; // Not supported in YouTrack
-    Date targetDate = null; // Not suported in YouTrack
+    Instant startDate = null; // Not supported in YouTrack
+    Instant targetDate = null; // Not suported in YouTrack
 
     // Not supported in YouTrack
     String stepsToReproduce = null;
@@ -675,281 +916,924 @@ public final class MigrationTool
   }
 
   /**
-   * Find the associated Azure work item for the given Jira issue.
+   * Return the lookup key of the specified YouTrack attachment URL, i.e.
+   * its path from "/api/files/", so that it matches whether the URL is
+   * relative or absolute, and whatever the YouTrack base path.
    *
-   * @param youTrackIssue  Jira issue to find Azure work item for. Non-null.
-   * @return               The requested Azure work item, or null if not found.
+   * @param url  YouTrack attachment URL. Non-null.
+   * @return     The lookup key. Never null.
    */
-  private AzureWorkItem findExistingWorkItem(JiraIssue jiraIssue)
+  private static String getYouTrackFileKey(String url)
   {
-    assert jiraIssue != null : "jiraIssue cannot be null";
+    assert url != null : "url cannot be null";
 
-    String key = jiraIssue.getKey();
-    for (AzureWorkItem workItem : existingWorkItems_) {
-      String title = workItem.getTitle();
-      if (title.startsWith(key))
-        return workItem;
-    }
+    int index = url.indexOf(YOUTRACK_FILES_PATH);
+    return index != -1 ? url.substring(index) : url;
+  }
 
-    // Not found
-    return null;
+  /**
+   * Rewriter rule pointing src and href of Jira and YouTrack attachments,
+   * and their thumbnails, to the equivalent Azure attachment.
+   */
+  private final class AttachmentUrlRule
+    implements HtmlRewriter.Rule
+  {
+    /** {@inheritDoc} */
+    @Override
+    public String rewriteAttribute(String tagName, String attributeName, String value)
+    {
+      if (!attributeName.equals("src") && !attributeName.equals("href"))
+        return value;
+
+      AzureAttachment azureAttachment = null;
+
+      Matcher matcher = JIRA_ATTACHMENT_PATTERN.matcher(value);
+      if (matcher.find())
+        azureAttachment = jiraAttachmentsById_.get(matcher.group(1));
+
+      else if (value.contains(YOUTRACK_FILES_PATH))
+        azureAttachment = youTrackAttachmentsByUrl_.get(getYouTrackFileKey(value.replace("&amp;", "&")));
+
+      String url = azureAttachment != null ? azureAttachment.getUrl() : null;
+      return url != null ? url.replace("&", "&amp;") : value;
+    }
   }
 
   /**
-   * Find the associated Azure work item for the given YouTrack issue.
-   *
-   * @param youTrackIssue  You Track issue to find Azure work item for. Non-null.
-   * @return               The requested Azure work item, or null if not found.
+   * Rewriter rule turning references to source issues, like "SK-123", into
+   * references to the equivalent work item, like "AB#4711". Plain text keys
+   * become links, and links to source issues are pointed to the work item.
+   * Keys of issues with no work item yet are left as is and collected.
    */
-  private AzureWorkItem findExistingWorkItem(YouTrackIssue youTrackIssue)
+  private final class IssueKeyRule
+    implements HtmlRewriter.Rule
   {
-    assert youTrackIssue != null : "youTrackIssue cannot be null";
+    /** Keys referred to that have no work item yet. */
+    private final Set<String> unresolvedKeys_;
 
-    String idReadable = youTrackIssue.getIdReadable();
-    for (AzureWorkItem workItem : existingWorkItems_) {
-      String title = workItem.getTitle();
-      if (title.startsWith(idReadable))
-        return workItem;
+    private IssueKeyRule(Set<String> unresolvedKeys)
+    {
+      unresolvedKeys_ = unresolvedKeys;
     }
 
-    // Not found
-    return null;
+    /**
+     * Return the work item ID of the specified source issue.
+     *
+     * @param key  Key of source issue. Non-null.
+     * @return     The work item ID, or -1 if it has no work item yet.
+     */
+    private int getWorkItemId(String key)
+    {
+      int workItemId = journal_.getWorkItemId(key);
+      if (workItemId == -1)
+        unresolvedKeys_.add(key);
+
+      return workItemId;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String rewriteAttribute(String tagName, String attributeName, String value)
+    {
+      if (!tagName.equals("a") || !attributeName.equals("href"))
+        return value;
+
+      Matcher matcher = ISSUE_URL_PATTERN.matcher(value);
+      if (!matcher.find() || !issueKeys_.contains(matcher.group(1)))
+        return value;
+
+      int workItemId = getWorkItemId(matcher.group(1));
+      return workItemId != -1 ? azure_.getWorkItemUrl(workItemId) : value;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String rewriteText(String text, boolean isLink)
+    {
+      return issueKeyMatcher_.replace(text, key -> {
+        int workItemId = getWorkItemId(key);
+        if (workItemId == -1)
+          return null;
+
+        String reference = AZURE_PREFIX + workItemId;
+        return isLink ? reference : "<a href=\"" + azure_.getWorkItemUrl(workItemId) + "\">" + reference + "</a>";
+      });
+    }
   }
 
   /**
-   * Find the associated Azure attachment for the given Jira attachment.
+   * Add the keys of the specified source issues to the ones rewritten
+   * in descriptions and comments.
    *
-   * @param jiraAttachmentId  ID of the Jira attachment to find Azure attachment of. Non-null.
-   * @return                  The equivalent Azure attachment, or null if not found.
+   * @param <T>     Issue type.
+   * @param issues  Issues to add keys of. Non-null.
+   * @param getKey  Function returning the key of an issue. Non-null.
    */
-  private AzureAttachment findAzureAttachment(String jiraAttachmentId)
+  private <T> void addIssueKeys(Collection<T> issues, Function<T,String> getKey)
   {
-    assert jiraAttachmentId != null : "jiraAttchmentId cannot be null";
+    assert issues != null : "issues cannot be null";
+    assert getKey != null : "getKey cannot be null";
 
-    for (Map.Entry<AzureAttachment,JiraAttachment> entry : jiraAttachments_.entrySet()) {
-      AzureAttachment azureAttachment = entry.getKey();
-      JiraAttachment jiraAttachment = entry.getValue();
-      if (jiraAttachment.getId().equals(jiraAttachmentId))
-        return azureAttachment;
-    }
+    for (T issue : issues)
+      issueKeys_.add(getKey.apply(issue));
 
-    // Not found
-    return null;
+    issueKeyMatcher_ = new KeyMatcher(issueKeys_);
   }
 
   /**
-   * Update Jira or YouTRack URLs in the specified text so they point to the
-   * equivalent Azure content.
+   * Update Jira or YouTrack URLs and issue keys in the specified text so
+   * they point to the equivalent Azure content.
    *
-   * @param text  Text to update. Nopn-null.
+   * @param text  Text to update. Non-null.
    * @return      Updated text. Never null.
    */
-  private String updateText(String text)
+  String updateText(String text)
   {
     assert text != null : "text cannot be null";
 
-    //
-    // YouTrack: URL -> URL
-    //
-    for (Map.Entry<AzureAttachment,YouTrackAttachment> entry : youTrackAttachments_.entrySet()) {
-      AzureAttachment azureAttachment = entry.getKey();
-      YouTrackAttachment youTrackAttachment = entry.getValue();
+    return updateText(text, new HashSet<>());
+  }
 
-      String originalUrl = youTrackAttachment.getUrl();
-      originalUrl = originalUrl.replace("&", "&amp;");
+  /**
+   * Update Jira or YouTrack URLs and issue keys in the specified text so
+   * they point to the equivalent Azure content.
+   *
+   * @param text            Text to update. Non-null.
+   * @param unresolvedKeys  Keys referred to that have no work item yet. Appended to. Non-null.
+   * @return                Updated text. Never null.
+   */
+  private String updateText(String text, Set<String> unresolvedKeys)
+  {
+    assert text != null : "text cannot be null";
+    assert unresolvedKeys != null : "unresolvedKeys cannot be null";
 
-      String newUrl = azureAttachment.getUrl();
-      if (newUrl == null)
-        continue;
+    HtmlRewriter textRewriter = new HtmlRewriter(List.of(attachmentUrlRule_, new IssueKeyRule(unresolvedKeys)));
+    return textRewriter.rewrite(text);
+  }
 
-      text = text.replace(originalUrl, newUrl);
-    }
+  /**
+   * Update the description of the specified work item,
+   * i.e. update embedded attachment URLs and issue keys.
+   *
+   * @param azureWorkItem   Work item to update description of. Non-null.
+   * @param unresolvedKeys  Keys referred to that have no work item yet. Appended to. Non-null.
+   * @return                True if the description was changed, false otherwise.
+   */
+  private boolean updateDescription(AzureWorkItem azureWorkItem, Set<String> unresolvedKeys)
+  {
+    assert azureWorkItem != null : "azureWorkItem cannot be null";
+    assert unresolvedKeys != null : "unresolvedKeys cannot be null";
 
-    //
-    // Jira: <img src=".../<id>" ...> -> update src
-    //
-    Pattern pattern = Pattern.compile("<img\\s+[^>]*src=\"/rest/api/3/attachment/content/(\\d+)\"[^>]*>");
-    Matcher matcher = pattern.matcher(text);
-
-    StringBuffer s = new StringBuffer();
-    while (matcher.find()) {
-      String jiraAttachmentId = matcher.group(1); // e.g., "200262"
-      AzureAttachment azureAttachment = findAzureAttachment(jiraAttachmentId);
-      if (azureAttachment == null)
-        continue;
+    String description = azureWorkItem.getDescription() != null ? azureWorkItem.getDescription() : "";
+    String newDescription = updateText(description, unresolvedKeys);
+    azureWorkItem.setDescription(newDescription);
 
-      String url = azureAttachment.getUrl();
-      if (url == null)
-        continue;
+    String stepsToReproduce = azureWorkItem.getStepsToReproduce() != null ? azureWorkItem.getStepsToReproduce() : "";
+    String newStepsToReproduce = updateText(stepsToReproduce, unresolvedKeys);
+    azureWorkItem.setStepsToReproduce(newStepsToReproduce);
 
-      String newImgTag = "<img src=\"" + url + "\" />";
+    return !newDescription.equals(description) || !newStepsToReproduce.equals(stepsToReproduce);
+  }
 
-      matcher.appendReplacement(s, Matcher.quoteReplacement(newImgTag));
+  /**
+   * Return the digest of the description and the steps to reproduce of
+   * the specified work item, as pushed to Azure.
+   *
+   * @param azureWorkItem  Work item to get description digest of. Non-null.
+   * @return               The description digest.
+   */
+  private static long getDescriptionDigest(AzureWorkItem azureWorkItem)
+  {
+    assert azureWorkItem != null : "azureWorkItem cannot be null";
+
+    return Util.digest(Objects.toString(azureWorkItem.getExtendedDescription(), "") + "\0" +
+                       Objects.toString(azureWorkItem.getStepsToReproduce(), ""));
+  }
+
+  /**
+   * Update and push the comments of the specified work item not already
+   * pushed by a previous run, and mark the migration of the issue as complete
+   * if all its steps are done. If not, the issue is left for the next run.
+   * <p>
+   * A comment referring to an issue with no work item yet may be deferred.
+   * It is then left unpushed, together with the comments after it so that the
+   * order is kept, and the work item is left for resolveDeferredKeys(). Deferred
+   * work items are marked as complete by resolveDeferredKeys() only.
+   *
+   * @param sourceKey      Key of the source issue. Non-null.
+   * @param azureWorkItem  Work item to push comments of. Non-null.
+   * @param isDeferrable   True if comments with unresolved keys should be deferred, false to push them as is.
+   * @return               True if all comments were pushed, false if deferred or if a push failed.
+   */
+  private boolean pushComments(String sourceKey, AzureWorkItem azureWorkItem, boolean isDeferrable)
+  {
+    assert sourceKey != null : "sourceKey cannot be null";
+    assert azureWorkItem != null : "azureWorkItem cannot be null";
+
+    boolean isPushed = true;
+
+    int commentNo = 0;
+    for (AzureComment comment : azureWorkItem.getComments()) {
+      if (!journal_.isCommentDone(sourceKey, commentNo)) {
+        Set<String> unresolvedKeys = new HashSet<>();
+        comment.setText(updateText(comment.getText(), unresolvedKeys));
+
+        if (!unresolvedKeys.isEmpty()) {
+          if (isDeferrable) {
+            deferredWorkItems_.put(azureWorkItem, sourceKey);
+            return false;
+          }
+
+          // Left as is, typically as the issue failed to migrate
+          logger_.log(Level.INFO, () -> "Unresolved issue keys in comment of " + sourceKey + ": " + unresolvedKeys);
+        }
+
+        if (azure_.pushComment(azureWorkItem, comment))
+          journal_.recordComment(sourceKey, commentNo);
+        else
+          isPushed = false;
+      }
+      commentNo++;
     }
 
-    matcher.appendTail(s);
+    // Description refers to issues with no work item yet
+    if (deferredWorkItems_.containsKey(azureWorkItem))
+      return isPushed;
 
-    text = s.toString();
+    if (isPushed && journal_.isDone(sourceKey, MigrationJournal.Step.STATE) && journal_.isDone(sourceKey, MigrationJournal.Step.ATTACHED))
+      journal_.record(sourceKey, MigrationJournal.Step.COMPLETE);
+    else
+      logger_.log(Level.WARNING, "Migration of " + sourceKey + " incomplete. Left for the next run");
 
-    return text;
+    return isPushed;
   }
 
   /**
-   * Update the description of the specified work item,
-   * i.e. update embedded attachment URLs.
+   * Resolve the deferred issue keys of the specified work item, i.e. push
+   * its description again if changed and push its remaining comments. If the
+   * description cannot be pushed, the work item is left for the next run.
    *
-   * @param azureWorkItem  Work item to update description of. Non-null.
+   * @param azureWorkItem  Work item to resolve. Non-null.
+   * @param sourceKey      Key of the source issue. Non-null.
    */
-  private void updateDescription(AzureWorkItem azureWorkItem)
+  private void resolveDeferredKeys(AzureWorkItem azureWorkItem, String sourceKey)
   {
     assert azureWorkItem != null : "azureWorkItem cannot be null";
+    assert sourceKey != null : "sourceKey cannot be null";
 
-    String description = azureWorkItem.getDescription() != null ? azureWorkItem.getDescription() : "";
-    description = updateText(description);
-    azureWorkItem.setDescription(description);
+    Set<String> unresolvedKeys = new HashSet<>();
+    if (updateDescription(azureWorkItem, unresolvedKeys)) {
+      if (!azure_.pushDescription(azureWorkItem))
+        return;
 
-    String stepsToReproduce = azureWorkItem.getStepsToReproduce() != null ? azureWorkItem.getStepsToReproduce() : "";
-    stepsToReproduce = updateText(stepsToReproduce);
-    azureWorkItem.setStepsToReproduce(stepsToReproduce);
+      journal_.recordDescription(sourceKey, getDescriptionDigest(azureWorkItem));
+    }
+
+    // Left as is, typically as the issue failed to migrate
+    if (!unresolvedKeys.isEmpty())
+      logger_.log(Level.INFO, () -> "Unresolved issue keys in " + sourceKey + ": " + unresolvedKeys);
+
+    pushComments(sourceKey, azureWorkItem, false);
+  }
+
+  /**
+   * Second pass over the work items that referred to issues with no work
+   * item at the time, typically issues later in the migration order. Now
+   * that all work items are created, the remaining keys are rewritten, the
+   * descriptions changed are pushed again and the deferred comments are pushed.
+   * <p>
+   * Not done by the shards of a sharded migration, as the work items of other
+   * shards may not be created yet. The deferred work items are left incomplete
+   * instead, and so are resumed by the non-sharded run that follows the shards.
+   */
+  private void resolveDeferredKeys()
+  {
+    if (deferredWorkItems_.isEmpty())
+      return;
+
+    long startTime = System.nanoTime();
+
+    // Pick up work items created by shards running in other processes
+    journal_.refresh();
+
+    Map<AzureWorkItem, String> workItems = new HashMap<>(deferredWorkItems_);
+    deferredWorkItems_.clear();
+
+    logger_.log(Level.INFO, () -> "Resolving deferred issue keys of " + workItems.size() + " work items");
+
+    ExecutorService executor = Executors.newFixedThreadPool(N_DEFERRED_THREADS);
+
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (Map.Entry<AzureWorkItem, String> entry : workItems.entrySet())
+        futures.add(executor.submit(() -> resolveDeferredKeys(entry.getKey(), entry.getValue())));
+
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        }
+        catch (ExecutionException exception) {
+          logger_.log(Level.WARNING, "Unable to resolve deferred issue keys", exception.getCause());
+        }
+      }
+    }
+    catch (InterruptedException exception) {
+      logger_.log(Level.WARNING, "Interrupted while resolving deferred issue keys");
+      Thread.currentThread().interrupt();
+    }
+    finally {
+      executor.shutdownNow();
+    }
+
+    Metrics.getInstance().recordStage("text.deferred", System.nanoTime() - startTime);
   }
 
   /**
-   * Update the comments of the specified work item,
-   * i.e. update embedded attachment URLs within its comments.
+   * The migration of one source issue as it passes through the pipeline.
+   * Exactly one of the source issues is non-null.
+   */
+  private static final class Job
+  {
+    /** Key of the source issue. */
+    private final String sourceKey_;
+
+    /** The source issue if from Jira. Null otherwise. */
+    private final JiraIssue jiraIssue_;
+
+    /** The source issue if from YouTrack. Null otherwise. */
+    private final YouTrackIssue youTrackIssue_;
+
+    /** The work item being created. Null until transformed. */
+    private AzureWorkItem azureWorkItem_;
+
+    /** Attachments of the work item, in source attachment order. */
+    private final List<AzureAttachment> azureAttachments_ = new ArrayList<>();
+
+    /** Total size of the source attachments in bytes, as reported by the source. */
+    private final long attachmentSize_;
+
+    private Job(JiraIssue jiraIssue)
+    {
+      sourceKey_ = jiraIssue.getKey();
+      jiraIssue_ = jiraIssue;
+      youTrackIssue_ = null;
+
+      long attachmentSize = 0L;
+      for (JiraAttachment jiraAttachment : jiraIssue.getAttachments())
+        attachmentSize += Math.max(0L, jiraAttachment.getSize());
+      attachmentSize_ = attachmentSize;
+    }
+
+    private Job(YouTrackIssue youTrackIssue)
+    {
+      sourceKey_ = youTrackIssue.getIdReadable();
+      jiraIssue_ = null;
+      youTrackIssue_ = youTrackIssue;
+
+      long attachmentSize = 0L;
+      for (YouTrackAttachment youTrackAttachment : youTrackIssue.getAttachments())
+        attachmentSize += Math.max(0L, youTrackAttachment.getSize());
+      attachmentSize_ = attachmentSize;
+    }
+
+    /**
+     * Return if this job should be migrated in the heavy lane.
+     * Attachments of unknown size count as empty.
+     *
+     * @return  True if the job is heavy, false otherwise.
+     */
+    private boolean isHeavy()
+    {
+      return attachmentSize_ >= HEAVY_ISSUE_SIZE;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+      return sourceKey_;
+    }
+  }
+
+  /**
+   * Create a migration pipeline. The stages are:
+   * <ol>
+   *   <li>download - Pull attachments from the source back-end</li>
+   *   <li>transform - Create the in-memory Azure work item</li>
+   *   <li>upload - Upload attachments to Azure</li>
+   *   <li>create - Update description URLs and push work item, state and attachments</li>
+   *   <li>comments - Update comment URLs and push comments</li>
+   * </ol>
+   * The source issues themselves are pulled up front (see getJiraIssues() and
+   * getYouTrackIssues()) as parents and links must be resolved across all.
    *
-   * @param azureWorkItem  Work item to update description of. Non-null.
+   * @param name              Pipeline name. Non-null.
+   * @param queueCapacity     Capacity of each queue. [1,&gt;.
+   * @param nDownloadThreads  Number of download threads. [1,&gt;.
+   * @param nUploadThreads    Number of upload threads. [1,&gt;.
+   * @param nCreateThreads    Number of create threads. [1,&gt;.
+   * @param nCommentThreads   Number of comment threads. [1,&gt;.
+   * @return                  The pipeline, not yet started. Never null.
    */
-  private void updateComments(AzureWorkItem azureWorkItem)
+  private Pipeline<Job> newPipeline(String name, int queueCapacity, int nDownloadThreads, int nUploadThreads, int nCreateThreads, int nCommentThreads)
   {
-    assert azureWorkItem != null : "azureWorkItem cannot be null";
+    assert name != null : "name cannot be null";
+
+    Pipeline<Job> pipeline = new Pipeline<>(name, queueCapacity);
+    pipeline.addStage("download", nDownloadThreads, this::download);
+    pipeline.addStage("transform", 1, this::transform);
+    pipeline.addStage("upload", nUploadThreads, this::upload);
+    pipeline.addStage("create", nCreateThreads, this::create);
+    pipeline.addStage("comments", nCommentThreads, this::pushComments);
+
+    // Jobs dropped before upload would otherwise hold their attachment content forever
+    pipeline.setDropAction(MigrationTool::releaseAttachments);
+    return pipeline;
+  }
 
-    for (AzureComment comment : azureWorkItem.getComments()) {
-      String text = comment.getText();
-      text = updateText(text);
-      comment.setText(text);
+  /**
+   * Create the migration scheduler. Issues with large attachments are
+   * routed to a heavy lane with its own, smaller, pipeline, so that the
+   * transfer of large binaries doesn't hold up the rest of the issues.
+   * <p>
+   * The heavy lane may complete an issue after its children in the fast
+   * lane. The parent relation of these is then left for the link phase,
+   * see create().
+   *
+   * @return  The scheduler, not yet started. Never null.
+   */
+  private LaneScheduler<Job> newScheduler()
+  {
+    Pipeline<Job> fastLane = newPipeline("migration", PIPELINE_QUEUE_CAPACITY,
+                                         N_DOWNLOAD_THREADS, N_UPLOAD_THREADS, N_CREATE_THREADS, N_COMMENT_THREADS);
+    Pipeline<Job> heavyLane = newPipeline("migration-heavy", HEAVY_QUEUE_CAPACITY,
+                                          N_HEAVY_DOWNLOAD_THREADS, N_HEAVY_UPLOAD_THREADS, 1, 1);
+
+    return new LaneScheduler<>(fastLane, heavyLane, Job::isHeavy);
+  }
+
+  /**
+   * Pull attachments of the source issue, i.e. populate the content of the
+   * Jira or YouTrack attachments. Not needed if they were uploaded by a previous run.
+   *
+   * @param job  Job to process. Non-null.
+   * @return     True to pass the job on to the next stage.
+   */
+  private boolean download(Job job)
+  {
+    assert job != null : "job cannot be null";
+
+    if (journal_.isDone(job.sourceKey_, MigrationJournal.Step.UPLOADED))
+      return true;
+
+    if (job.jiraIssue_ != null)
+      jira_.pullAttachments(job.jiraIssue_);
+    else
+      youTrack_.pullAttachments(job.youTrackIssue_);
+
+    return true;
+  }
+
+  /**
+   * Create the in-memory Azure work item of the source issue,
+   * and an Azure attachment for each source attachment.
+   *
+   * @param job  Job to process. Non-null.
+   * @return     True to pass the job on to the next stage.
+   */
+  private boolean transform(Job job)
+  {
+    assert job != null : "job cannot be null";
+
+    if (job.jiraIssue_ != null) {
+      JiraIssue jiraIssue = job.jiraIssue_;
+
+      job.azureWorkItem_ = newAzureWorkItem(jiraIssue);
+      azureToJira_.put(job.azureWorkItem_, jiraIssue);
+      jiraToAzure_.put(jiraIssue, job.azureWorkItem_);
+
+      // Parents are submitted first, so the parent work item is normally known
+      JiraIssue parentIssue = jiraIssue.getParentIssue();
+      if (parentIssue != null)
+        job.azureWorkItem_.setParentWorkItem(jiraToAzure_.get(parentIssue));
+
+      for (JiraAttachment jiraAttachment : jiraIssue.getAttachments()) {
+        AzureAttachment azureAttachment = newAzureAttachment(jiraAttachment);
+        job.azureWorkItem_.addAttachment(azureAttachment);
+        job.azureAttachments_.add(azureAttachment);
+
+        jiraAttachmentsById_.put(jiraAttachment.getId(), azureAttachment);
+      }
+    }
+    else {
+      YouTrackIssue youTrackIssue = job.youTrackIssue_;
+
+      job.azureWorkItem_ = newAzureWorkItem(youTrackIssue);
+      azureToYouTrack_.put(job.azureWorkItem_, youTrackIssue);
+      youTrackToAzure_.put(youTrackIssue, job.azureWorkItem_);
+
+      // Parents are submitted first, so the parent work item is normally known
+      YouTrackIssue parentIssue = youTrackIssue.getParentIssue();
+      if (parentIssue != null)
+        job.azureWorkItem_.setParentWorkItem(youTrackToAzure_.get(parentIssue));
+
+      for (YouTrackAttachment youTrackAttachment : youTrackIssue.getAttachments()) {
+        AzureAttachment azureAttachment = newAzureAttachment(youTrackAttachment);
+        job.azureWorkItem_.addAttachment(azureAttachment);
+        job.azureAttachments_.add(azureAttachment);
+
+        if (youTrackAttachment.getUrl() != null)
+          youTrackAttachmentsByUrl_.put(getYouTrackFileKey(youTrackAttachment.getUrl()), azureAttachment);
+      }
     }
+
+    return true;
   }
 
   /**
-   * Process one YouTrack issue, i.e. migrate it to Azure.
+   * Upload attachments to Azure and update URL and name accordingly.
+   * If uploaded by a previous run the URLs are taken from the journal.
    *
-   * @param youTrackIssue  You Track issue to process. Non-null.
+   * @param job  Job to process. Non-null.
+   * @return     True to pass the job on to the next stage.
    */
-  private void process(YouTrackIssue youTrackIssue)
+  private boolean upload(Job job)
   {
-    assert youTrackIssue != null : "youTrackIssue cannot be null";
+    assert job != null : "job cannot be null";
+
+    String sourceKey = job.sourceKey_;
+
+    try {
+      // Attachments uploaded by a previous run are not uploaded again
+      for (int i = 0; i < job.azureAttachments_.size(); i++)
+        job.azureAttachments_.get(i).setUrl(journal_.getAttachmentUrl(sourceKey, i));
+
+      if (!journal_.isDone(sourceKey, MigrationJournal.Step.UPLOADED)) {
+        boolean isUploaded = azure_.uploadAttachments(job.azureWorkItem_);
+        for (int i = 0; i < job.azureAttachments_.size(); i++) {
+          String url = job.azureAttachments_.get(i).getUrl();
+          if (url != null && journal_.getAttachmentUrl(sourceKey, i) == null)
+            journal_.recordUpload(sourceKey, i, url);
+        }
+
+        // Left for the next run if any upload failed
+        if (isUploaded)
+          journal_.record(sourceKey, MigrationJournal.Step.UPLOADED);
+      }
+    }
+    finally {
+      // Content is in Azure now (or failed), so release it
+      releaseAttachments(job);
+    }
+
+    return true;
+  }
 
-    logger_.log(Level.INFO, "Processing " + youTrackIssue.getIdReadable());
+  /**
+   * Update description URLs for attachments from source to Azure,
+   * push the work item to Azure, set its state and push its attachments.
+   * Steps already recorded in the journal from a previous run are skipped.
+   * <p>
+   * If the parent work item is created already, the parent relation is
+   * included in the create call. If not (the parent may still be in the
+   * pipeline) it is left for the link phase. We never wait for the parent
+   * here, as that could block all create threads.
+   *
+   * @param job  Job to process. Non-null.
+   * @return     True to pass the job on to the next stage, false if the work item could not be created.
+   */
+  private boolean create(Job job)
+  {
+    assert job != null : "job cannot be null";
+
+    String sourceKey = job.sourceKey_;
+    AzureWorkItem azureWorkItem = job.azureWorkItem_;
+
+    Set<String> unresolvedKeys = new HashSet<>();
+    updateDescription(azureWorkItem, unresolvedKeys);
+
+    // Push the work item to Azure. It will be in "New" state
+    if (journal_.isDone(sourceKey, MigrationJournal.Step.CREATED)) {
+      azureWorkItem.setId(journal_.getWorkItemId(sourceKey));
+      azureWorkItem.setParentLinked(journal_.isParentLinked(sourceKey));
+
+      // Created by a previous run or by a shard, possibly before the issues it refers to had
+      // work items. Pushed again if that changed it, unless left for resolveDeferredKeys()
+      long descriptionDigest = getDescriptionDigest(azureWorkItem);
+      if (unresolvedKeys.isEmpty() && !journal_.isDescriptionDone(sourceKey, descriptionDigest)) {
+        if (!azure_.pushDescription(azureWorkItem)) {
+          logger_.log(Level.WARNING, "Unable to update description of " + sourceKey);
+          return false;
+        }
+        journal_.recordDescription(sourceKey, descriptionDigest);
+      }
+    }
+    else {
+      if (!azure_.pushWorkItem(azureWorkItem)) {
+        logger_.log(Level.WARNING, "Unable to create work item for " + sourceKey);
+        return false;
+      }
+      AzureWorkItem parentWorkItem = azureWorkItem.getParentWorkItem();
+      journal_.recordCreated(sourceKey, azureWorkItem.getId(), azureWorkItem.isParentLinked() ? parentWorkItem.getId() : -1);
+      journal_.recordDescription(sourceKey, getDescriptionDigest(azureWorkItem));
+    }
 
-    // 1. Create an in-memory Azure work item
-    AzureWorkItem azureWorkItem = newAzureWorkItem(youTrackIssue);
-    azureToYouTrack_.put(azureWorkItem, youTrackIssue);
-    youTrackToAzure_.put(youTrackIssue, azureWorkItem);
+    // Keys of issues not created yet are left for resolveDeferredKeys()
+    if (!unresolvedKeys.isEmpty())
+      deferredWorkItems_.put(azureWorkItem, sourceKey);
+
+    // Set correct state
+    if (!journal_.isDone(sourceKey, MigrationJournal.Step.STATE)) {
+      if (azure_.pushState(azureWorkItem))
+        journal_.record(sourceKey, MigrationJournal.Step.STATE);
+    }
 
-    // 2. Pull attachments, i.e. populate YouTrackAttachment.content_ accordingly
-    youTrack_.pullAttachments(youTrackIssue);
+    // Push all the attachments not already pushed by a previous run
+    if (!journal_.isDone(sourceKey, MigrationJournal.Step.ATTACHED)) {
+      boolean isAttached = true;
 
-    // 3. Create Azure attachment for each YouTrack attachment
-    for (YouTrackAttachment youTrackAttachment : youTrackIssue.getAttachments()) {
-      AzureAttachment azureAttachment = newAzureAttachment(youTrackAttachment);
-      azureWorkItem.addAttachment(azureAttachment);
+      for (int i = 0; i < job.azureAttachments_.size(); i++) {
+        if (journal_.isAttachmentDone(sourceKey, i))
+          continue;
+
+        if (azure_.pushAttachment(azureWorkItem, job.azureAttachments_.get(i)))
+          journal_.recordAttached(sourceKey, i);
+        else
+          isAttached = false;
+      }
 
-      youTrackAttachments_.put(azureAttachment, youTrackAttachment);
+      if (isAttached)
+        journal_.record(sourceKey, MigrationJournal.Step.ATTACHED);
     }
 
-    // 4. Upload attachments to Azure and update URL and name accordingly
-    azure_.uploadAttachments(azureWorkItem);
+    return true;
+  }
 
-    // 5. Update description URLs for attachments from YouTrack to Azure
-    updateDescription(azureWorkItem);
+  /**
+   * Update attachment URLs and issue keys of the comments from source
+   * to Azure and push all comments not already pushed by a previous run.
+   *
+   * @param job  Job to process. Non-null.
+   * @return     True to pass the job on to the next stage.
+   */
+  private boolean pushComments(Job job)
+  {
+    assert job != null : "job cannot be null";
 
-    // 6. Push the work item to Azure. It will be in "New" state
-    azure_.pushWorkItem(azureWorkItem);
+    String sourceKey = job.sourceKey_;
+    AzureWorkItem azureWorkItem = job.azureWorkItem_;
 
-    // 7. Set correct state
-    azure_.pushState(azureWorkItem);
+    // Comments with keys of issues not created yet are left for resolveDeferredKeys()
+    pushComments(sourceKey, azureWorkItem, true);
 
-    // 8. Push all the attachments
-    azure_.pushAttachments(azureWorkItem);
+    ProgressReporter progressReporter = progressReporter_;
+    if (progressReporter != null)
+      progressReporter.issueDone();
 
-    // 9. Update comment URLs for attachments from YouTrack to Azure
-    updateComments(azureWorkItem);
+    logger_.log(Level.INFO, () -> sourceKey + " -> " + azureWorkItem.getId() + " complete");
 
-    // 10. Push all comments
-    azure_.pushComments(azureWorkItem);
+    return true;
+  }
 
-    System.out.println("------------------------------------------------------------------------");
-    System.out.println("  " + youTrackIssue.getIdReadable() + " -> " + azureWorkItem.getId());
-    System.out.println("------------------------------------------------------------------------");
+  /**
+   * Release the attachment content of the specified job, i.e. give the
+   * memory back to the ByteBudget or delete the content spilled to disk.
+   * Done after upload, or when the job is dropped by any stage.
+   *
+   * @param job  Job to release attachments of. Non-null.
+   */
+  private static void releaseAttachments(Job job)
+  {
+    assert job != null : "job cannot be null";
 
-    // 11. Reset attachments to save memory
-    for (YouTrackAttachment youTrackAttachment : youTrackIssue.getAttachments()) {
-      youTrackAttachment.setContent(null);
+    // The Azure attachments share the content of the source attachments
+    if (job.jiraIssue_ != null) {
+      for (JiraAttachment jiraAttachment : job.jiraIssue_.getAttachments()) {
+        Util.close(jiraAttachment.getContent());
+        jiraAttachment.setContent(null);
+      }
     }
-    for (AzureAttachment azureAttachment : azureWorkItem.getAttachments()) {
-      azureAttachment.setContent(null);
+    else {
+      for (YouTrackAttachment youTrackAttachment : job.youTrackIssue_.getAttachments()) {
+        Util.close(youTrackAttachment.getContent());
+        youTrackAttachment.setContent(null);
+      }
     }
+
+    for (AzureAttachment azureAttachment : job.azureAttachments_)
+      azureAttachment.setContent(null);
   }
 
   /**
-   * Process one Jira issue, i.e. migrate it to Azure.
+   * Return the work item of a source issue that has been completely migrated
+   * by a previous run according to the journal.
    *
-   * @param jiraIssue  Jira issue to process. Non-null.
+   * @param sourceKey  Key of source issue. Non-null.
+   * @param workItem   In-memory work item of the source issue. Non-null.
+   * @return           The work item with its Azure ID set, or null if the source
+   *                   issue has not been completely migrated.
    */
-  private void process(JiraIssue jiraIssue)
+  private AzureWorkItem findJournaledWorkItem(String sourceKey, AzureWorkItem workItem)
   {
-    assert jiraIssue != null : "jiraIssue cannot be null";
+    assert sourceKey != null : "sourceKey cannot be null";
+    assert workItem != null : "workItem cannot be null";
+
+    if (!journal_.isDone(sourceKey, MigrationJournal.Step.COMPLETE))
+      return null;
+
+    workItem.setId(journal_.getWorkItemId(sourceKey));
+    workItem.setParentLinked(journal_.isParentLinked(sourceKey));
+    return workItem;
+  }
+
+  /**
+   * Push links of the specified work item unless this is already done
+   * according to the journal.
+   *
+   * @param sourceKey      Key of source issue. Non-null.
+   * @param azureWorkItem  Work item to push links of. Non-null.
+   */
+  private void pushLinks(String sourceKey, AzureWorkItem azureWorkItem)
+  {
+    assert sourceKey != null : "sourceKey cannot be null";
+    assert azureWorkItem != null : "azureWorkItem cannot be null";
+
+    if (journal_.isDone(sourceKey, MigrationJournal.Step.LINKED))
+      return;
+
+    if (azure_.pushLinks(azureWorkItem))
+      journal_.record(sourceKey, MigrationJournal.Step.LINKED);
+  }
+
+  /**
+   * Order the specified issues topologically so that every parent comes
+   * before its children. The original order is kept otherwise.
+   * Parent cycles (which should not exist) are broken arbitrarily.
+   *
+   * @param <T>        Issue type.
+   * @param issues     Issues to sort. Non-null.
+   * @param getParent  Function returning the parent of an issue, or null if none. Non-null.
+   * @return           The sorted issues. Never null.
+   */
+  private static <T> List<T> sortParentsFirst(List<T> issues, Function<T,T> getParent)
+  {
+    assert issues != null : "issues cannot be null";
+    assert getParent != null : "getParent cannot be null";
+
+    Set<T> members = Collections.newSetFromMap(new IdentityHashMap<>());
+    members.addAll(issues);
 
-    System.out.println("Processing " + jiraIssue.getKey());
+    List<T> sortedIssues = new ArrayList<>(issues.size());
+    Set<T> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+    Deque<T> ancestors = new ArrayDeque<>();
 
-    // 1. Create an in-memory Azure work item
-    AzureWorkItem azureWorkItem = newAzureWorkItem(jiraIssue);
-    azureToJira_.put(azureWorkItem, jiraIssue);
-    jiraToAzure_.put(jiraIssue, azureWorkItem);
+    for (T issue : issues) {
+      // Collect the ancestors not yet emitted, then emit them top-down
+      for (T t = issue; t != null && members.contains(t) && visited.add(t); t = getParent.apply(t))
+        ancestors.push(t);
+
+      while (!ancestors.isEmpty())
+        sortedIssues.add(ancestors.pop());
+    }
+
+    return sortedIssues;
+  }
+
+  /**
+   * Return the issues of the shard of this instance. An issue belongs to
+   * the shard given by the key hash of its root issue, so parents and
+   * children always end up in the same shard.
+   *
+   * @param <T>        Issue type.
+   * @param issues     Issues to pick from. Non-null.
+   * @param getParent  Function returning the parent of an issue, or null if none. Non-null.
+   * @param getKey     Function returning the key of an issue. Non-null.
+   * @return           The issues of this shard, in the original order. Never null.
+   */
+  private <T> List<T> getShard(List<T> issues, Function<T,T> getParent, Function<T,String> getKey)
+  {
+    assert issues != null : "issues cannot be null";
+    assert getParent != null : "getParent cannot be null";
+    assert getKey != null : "getKey cannot be null";
+
+    if (nShards_ == 1)
+      return issues;
+
+    List<T> shardIssues = new ArrayList<>();
+    for (T issue : issues) {
+      // Find root. Parent cycles (which should not exist) are cut at the first repeat
+      Set<T> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+      T root = issue;
+      for (T parent = getParent.apply(root); parent != null && visited.add(root); parent = getParent.apply(root))
+        root = parent;
+
+      if (Math.floorMod(getKey.apply(root).hashCode(), nShards_) == shardNo_)
+        shardIssues.add(issue);
+    }
 
-    // 2. Pull attachments and populate JiraAttachment.content_ accordingly
-    jira_.pullAttachments(jiraIssue);
+    return shardIssues;
+  }
 
-    // 3. Create Azure attachment for each YouTrack attachment
-    for (JiraAttachment jiraAttachment : jiraIssue.getAttachments()) {
-      AzureAttachment azureAttachment = newAzureAttachment(jiraAttachment);
-      azureWorkItem.addAttachment(azureAttachment);
+  /**
+   * Submit the specified job to the given scheduler.
+   * Blocks while the lane of the job is full.
+   *
+   * @param scheduler  Scheduler to submit to. Non-null.
+   * @param job        Job to submit. Non-null.
+   * @return           True if submitted, false if interrupted.
+   */
+  private static boolean submit(LaneScheduler<Job> scheduler, Job job)
+  {
+    assert scheduler != null : "scheduler cannot be null";
+    assert job != null : "job cannot be null";
 
-      jiraAttachments_.put(azureAttachment, jiraAttachment);
+    try {
+      scheduler.submit(job);
+      return true;
     }
+    catch (InterruptedException exception) {
+      logger_.log(Level.WARNING, "Interrupted while submitting " + job);
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
 
-    // 4. Upload attachments to Azure and update URL and name accordingly
-    azure_.uploadAttachments(azureWorkItem);
+  /**
+   * Wait for all jobs of the specified scheduler to complete.
+   *
+   * @param scheduler  Scheduler to finish. Non-null.
+   * @return           True if finished, false if interrupted.
+   */
+  private static boolean finish(LaneScheduler<Job> scheduler)
+  {
+    assert scheduler != null : "scheduler cannot be null";
 
-    // 5. Update description URLs for attachments from YouTrack to Azure
-    updateDescription(azureWorkItem);
+    try {
+      scheduler.finish();
+      return true;
+    }
+    catch (InterruptedException exception) {
+      logger_.log(Level.WARNING, "Interrupted while finishing migration pipeline");
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
 
-    // 6. Push the work item to Azure. It will be in "New" state
-    azure_.pushWorkItem(azureWorkItem);
+  /**
+   * Return all YouTrack issues. Load from snapshot if present, otherwise
+   * pull from the back-end and save a snapshot for later runs.
+   *
+   * @return  All YouTrack issues. Never null.
+   */
+  private List<YouTrackIssue> getYouTrackIssues()
+  {
+    if (snapshotDirectory_ == null)
+      return youTrack_.getIssues();
 
-    // 7. Set correct state
-    azure_.pushState(azureWorkItem);
+    File snapshotFile = new File(snapshotDirectory_, YOUTRACK_SNAPSHOT_FILE_NAME);
 
-    // 8. Push all the attachments
-    azure_.pushAttachments(azureWorkItem);
+    try {
+      if (snapshotFile.exists()) {
+        youTrack_.loadSnapshot(snapshotFile);
+        return youTrack_.getIssues();
+      }
 
-    // 9. Update comment URLs for attachments from YouTrack to Azure
-    updateComments(azureWorkItem);
+      List<YouTrackIssue> youTrackIssues = youTrack_.getIssues();
+      youTrack_.saveSnapshot(snapshotFile);
+      return youTrackIssues;
+    }
+    catch (IOException exception) {
+      logger_.log(Level.WARNING, "Snapshot failed: " + snapshotFile, exception);
+      return youTrack_.getIssues();
+    }
+  }
 
-    // 10. Push all comments
-    azure_.pushComments(azureWorkItem);
+  /**
+   * Return all Jira issues. Load from snapshot if present, otherwise
+   * pull from the back-end and save a snapshot for later runs.
+   *
+   * @return  All Jira issues. Never null.
+   */
+  private List<JiraIssue> getJiraIssues()
+  {
+    if (snapshotDirectory_ == null)
+      return jira_.getIssues();
 
-    System.out.println("------------------------------------------------------------------------");
-    System.out.println("  " + jiraIssue.getKey() + " -> " + azureWorkItem.getId() + "  complete");
-    System.out.println("------------------------------------------------------------------------");
-    System.out.println();
+    File snapshotFile = new File(snapshotDirectory_, JIRA_SNAPSHOT_FILE_NAME);
 
-    // 11. Reset attachments to save memory
-    for (JiraAttachment jiraAttachment : jiraIssue.getAttachments()) {
-      jiraAttachment.setContent(null);
+    try {
+      if (snapshotFile.exists()) {
+        jira_.loadSnapshot(snapshotFile);
+        return jira_.getIssues();
+      }
+
+      List<JiraIssue> jiraIssues = jira_.getIssues();
+      jira_.saveSnapshot(snapshotFile);
+      return jiraIssues;
     }
-    for (AzureAttachment azureAttachment : azureWorkItem.getAttachments()) {
-      azureAttachment.setContent(null);
+    catch (IOException exception) {
+      logger_.log(Level.WARNING, "Snapshot failed: " + snapshotFile, exception);
+      return jira_.getIssues();
     }
   }
 
@@ -958,36 +1842,74 @@ public final class MigrationTool
    */
   private void processYouTrackIssues()
   {
-    // Pull all YouTrack issues
-    List<YouTrackIssue> youTrackIssues = youTrack_.getIssues();
+    if (youTrack_ == null)
+      return;
+
+    // Pull all YouTrack issues. Parents first so they are created before their children
+    long startTime = System.nanoTime();
+    List<YouTrackIssue> allYouTrackIssues = getYouTrackIssues();
+    List<YouTrackIssue> youTrackIssues = getShard(sortParentsFirst(allYouTrackIssues, YouTrackIssue::getParentIssue), YouTrackIssue::getParentIssue, YouTrackIssue::getIdReadable);
+    addIssueKeys(allYouTrackIssues, YouTrackIssue::getIdReadable);
+    Metrics.getInstance().recordStage("youtrack.pull", System.nanoTime() - startTime);
 
-    // Process them one by one
+    LaneScheduler<Job> scheduler = newScheduler();
+    scheduler.start();
+
+    // Feed them through the pipelines
     int nYouTrackIssues = youTrackIssues.size();
-    for (int i = 0; i < nYouTrackIssues; i++) {
-      YouTrackIssue youTrackIssue = youTrackIssues.get(i);
-      String idReadable = youTrackIssue.getIdReadable();
-
-      AzureWorkItem existingWorkItem = findExistingWorkItem(youTrackIssue);
-      if (existingWorkItem != null) {
-        System.out.println("==> " + i + ":" + nYouTrackIssues + " Work item already exists (" + idReadable + " = " + existingWorkItem.getId() + ")");
-        azureToYouTrack_.put(existingWorkItem, youTrackIssue);
-        youTrackToAzure_.put(youTrackIssue, existingWorkItem);
-        continue;
+    progressReporter_ = new ProgressReporter("YouTrack", nYouTrackIssues, PROGRESS_REPORT_PERIOD);
+    progressReporter_.start();
+
+    try {
+      for (int i = 0; i < nYouTrackIssues; i++) {
+        YouTrackIssue youTrackIssue = youTrackIssues.get(i);
+        String idReadable = youTrackIssue.getIdReadable();
+        int issueNo = i + 1;
+
+        // The journal is the only source of what is migrated already
+        AzureWorkItem existingWorkItem = journal_.isDone(idReadable, MigrationJournal.Step.COMPLETE) ?
+          findJournaledWorkItem(idReadable, newAzureWorkItem(youTrackIssue)) : null;
+
+        if (existingWorkItem != null) {
+          logger_.log(Level.INFO, () -> issueNo + ":" + nYouTrackIssues + " Work item already exists (" + idReadable + " = " + existingWorkItem.getId() + ")");
+          azureToYouTrack_.put(existingWorkItem, youTrackIssue);
+          youTrackToAzure_.put(youTrackIssue, existingWorkItem);
+          progressReporter_.issueSkipped();
+          continue;
+        }
+
+        logger_.log(Level.INFO, () -> issueNo + ":" + nYouTrackIssues + " Processing " + idReadable);
+        if (!submit(scheduler, new Job(youTrackIssue)))
+          return;
       }
 
-      System.out.println("==> " + (i+1) + ":" + nYouTrackIssues + " Processing " + idReadable);
-      process(youTrackIssue);
+      if (!finish(scheduler))
+        return;
+    }
+    finally {
+      progressReporter_.stop();
+      progressReporter_ = null;
+    }
 
-      Util.reportMemory();
+    // Links and deferred issue keys may go across shards, so they are left for the non-sharded run
+    if (nShards_ > 1) {
+      journal_.sync();
+      return;
     }
 
+    resolveDeferredKeys();
+
     // Resolve links. Must happen after all AzureWorkItems has been created and pushed
     resolveYouTrackLinks();
 
     // Push links
-    for (AzureWorkItem azureWorkItem : azureToYouTrack_.keySet()) {
-      azure_.pushLinks(azureWorkItem);
+    for (Map.Entry<AzureWorkItem, YouTrackIssue> entry : azureToYouTrack_.entrySet()) {
+      long linkStartTime = System.nanoTime();
+      pushLinks(entry.getValue().getIdReadable(), entry.getKey());
+      Metrics.getInstance().recordStage("youtrack.links", System.nanoTime() - linkStartTime);
     }
+
+    journal_.sync();
   }
 
   /**
@@ -995,45 +1917,258 @@ public final class MigrationTool
    */
   private void processJiraIssues()
   {
-    // Pull all YouTrack issues
-    List<JiraIssue> jiraIssues = jira_.getIssues();
+    // Pull all Jira issues. Parents first so they are created before their children
+    long startTime = System.nanoTime();
+    List<JiraIssue> allJiraIssues = getJiraIssues();
+    List<JiraIssue> jiraIssues = getShard(sortParentsFirst(allJiraIssues, JiraIssue::getParentIssue), JiraIssue::getParentIssue, JiraIssue::getKey);
+    addIssueKeys(allJiraIssues, JiraIssue::getKey);
+    Metrics.getInstance().recordStage("jira.pull", System.nanoTime() - startTime);
+
+    LaneScheduler<Job> scheduler = newScheduler();
+    scheduler.start();
 
-    // Process them one by one
+    // Feed them through the pipelines
     int nJiraIssues = jiraIssues.size();
-    for (int i = 0; i < nJiraIssues; i++) {
-      JiraIssue jiraIssue = jiraIssues.get(i);
-      String key = jiraIssue.getKey();
+    progressReporter_ = new ProgressReporter("Jira " + jira_.getProject(), nJiraIssues, PROGRESS_REPORT_PERIOD);
+    progressReporter_.start();
+
+    try {
+      for (int i = 0; i < nJiraIssues; i++) {
+        JiraIssue jiraIssue = jiraIssues.get(i);
+        String key = jiraIssue.getKey();
+        int issueNo = i + 1;
+
+        // The journal is the only source of what is migrated already
+        AzureWorkItem existingWorkItem = journal_.isDone(key, MigrationJournal.Step.COMPLETE) ?
+          findJournaledWorkItem(key, newAzureWorkItem(jiraIssue)) : null;
+
+        if (existingWorkItem != null) {
+          logger_.log(Level.INFO, () -> issueNo + ":" + nJiraIssues + " Work item already exists (" + key + " = " + existingWorkItem.getId() + ")");
+          azureToJira_.put(existingWorkItem, jiraIssue);
+          jiraToAzure_.put(jiraIssue, existingWorkItem);
+          progressReporter_.issueSkipped();
+          continue;
+        }
 
-      AzureWorkItem existingWorkItem = findExistingWorkItem(jiraIssue);
-      if (existingWorkItem != null) {
-        System.out.println("==> " + i + ":" + nJiraIssues + " Work item already exists (" + key + " = " + existingWorkItem.getId() + ")");
-        azureToJira_.put(existingWorkItem, jiraIssue);
-        jiraToAzure_.put(jiraIssue, existingWorkItem);
-        continue;
+        logger_.log(Level.INFO, () -> issueNo + ":" + nJiraIssues + " Processing " + key);
+        if (!submit(scheduler, new Job(jiraIssue)))
+          return;
       }
 
-      System.out.println("==> " + (i+1) + ":" + nJiraIssues + " Processing " + key);
-      process(jiraIssue);
+      if (!finish(scheduler))
+        return;
+    }
+    finally {
+      progressReporter_.stop();
+      progressReporter_ = null;
+    }
 
-      Util.reportMemory();
+    // Links and deferred issue keys may go across shards, so they are left for the non-sharded run
+    if (nShards_ > 1) {
+      journal_.sync();
+      return;
     }
 
+    resolveDeferredKeys();
+
     // Resolve links. Must happen after all AzureWorkItems has been created and pushed
     resolveJiraLinks();
 
     // Push links
-    for (AzureWorkItem azureWorkItem : azureToJira_.keySet()) {
-      azure_.pushLinks(azureWorkItem);
+    for (Map.Entry<AzureWorkItem, JiraIssue> entry : azureToJira_.entrySet()) {
+      long linkStartTime = System.nanoTime();
+      pushLinks(entry.getValue().getKey(), entry.getKey());
+      Metrics.getInstance().recordStage("jira.links", System.nanoTime() - linkStartTime);
     }
+
+    journal_.sync();
   }
 
   /**
-   * Load all Azure work items.
-   * By this, a migration operation can be done incrementally.
+   * Migrate all YouTrack and Jira issues to Azure.
    */
-  private void loadExistingWorkItems()
+  public void migrate()
   {
-    existingWorkItems_.addAll(azure_.getWorkItems());
+    // Pick up progress of shards running in other processes
+    journal_.refresh();
+
+    processYouTrackIssues();
+    processJiraIssues();
+  }
+
+  /**
+   * Verify the migrated issues against their source, and write a report
+   * of the ones that don't match to the specified file.
+   *
+   * @param reportFile  File to write report to. Non-null.
+   * @return            Number of issues that don't match.
+   * @throws IllegalArgumentException  If reportFile is null.
+   * @throws IOException  If the report cannot be written.
+   */
+  public int verify(File reportFile)
+    throws IOException
+  {
+    if (reportFile == null)
+      throw new IllegalArgumentException("reportFile cannot be null");
+
+    journal_.refresh();
+
+    MigrationVerifier verifier = new MigrationVerifier(journal_, azure_, this::updateText);
+
+    if (youTrack_ != null) {
+      List<YouTrackIssue> youTrackIssues = getYouTrackIssues();
+      addIssueKeys(youTrackIssues, YouTrackIssue::getIdReadable);
+      verifier.addYouTrackIssues(youTrackIssues);
+    }
+
+    List<JiraIssue> jiraIssues = getJiraIssues();
+    addIssueKeys(jiraIssues, JiraIssue::getKey);
+    verifier.addJiraIssues(jiraIssues);
+
+    return verifier.verify(reportFile);
+  }
+
+  /**
+   * Push the links of the migrated Jira issues that go to issues of other
+   * projects. These are left unresolved by the migration of each project.
+   *
+   * @param workItems  Work items of all migrated projects by Jira issue ID. Non-null.
+   */
+  private void pushCrossProjectLinks(Map<String,AzureWorkItem> workItems)
+  {
+    assert workItems != null : "workItems cannot be null";
+
+    for (Map.Entry<AzureWorkItem, JiraIssue> entry : azureToJira_.entrySet()) {
+      AzureWorkItem workItem = entry.getKey();
+      JiraIssue jiraIssue = entry.getValue();
+      String key = jiraIssue.getKey();
+
+      if (journal_.isDone(key, MigrationJournal.Step.CROSS_LINKED))
+        continue;
+
+      List<AzureLink> links = new ArrayList<>();
+      for (JiraLink jiraLink : jiraIssue.getLinks()) {
+        // Links within the project are resolved, and pushed by processJiraIssues()
+        if (jiraLink.getLinkedIssue() != null || !"INWARD".equals(jiraLink.getDirection()))
+          continue;
+
+        AzureWorkItem linkedWorkItem = workItems.get(jiraLink.getLinkedIssueId());
+        if (linkedWorkItem == null) {
+          logger_.log(Level.WARNING, "Link target of " + key + " not migrated: " + jiraLink);
+          continue;
+        }
+
+        links.add(newAzureLink(linkedWorkItem, jiraLink));
+      }
+
+      if (links.isEmpty())
+        continue;
+
+      long startTime = System.nanoTime();
+      if (azure_.pushLinks(workItem, links))
+        journal_.record(key, MigrationJournal.Step.CROSS_LINKED);
+      Metrics.getInstance().recordStage("jira.crossLinks", System.nanoTime() - startTime);
+    }
+
+    journal_.sync();
+  }
+
+  /**
+   * Migrate the specified Jira projects to the associated Azure projects.
+   * <p>
+   * The projects are migrated concurrently, sharing credentials (and so rate
+   * limits) and the journal. Each project has its snapshots in a sub directory
+   * of the snapshot directory. The issues of all projects are pulled first, so
+   * that keys of other projects mentioned in descriptions and comments are
+   * rewritten too. When all are done, links between the projects are resolved
+   * through an index of all migrated Jira issues, and pushed. YouTrack is not migrated.
+   *
+   * @param projects           Pairs of Jira and Azure project names. Non-null.
+   * @param journal            Journal for recording migration progress. Non-null.
+   * @param responseCache      Cache for recording or replaying back-end responses.
+   *                           Null if responses should not be cached.
+   * @param snapshotDirectory  Directory of issue snapshots. Null if snapshots
+   *                           should not be used.
+   * @throws IllegalArgumentException  If projects or journal is null.
+   */
+  public static void migrateProjects(List<String[]> projects, MigrationJournal journal, ResponseCache responseCache, File snapshotDirectory)
+  {
+    if (projects == null)
+      throw new IllegalArgumentException("projects cannot be null");
+
+    if (journal == null)
+      throw new IllegalArgumentException("journal cannot be null");
+
+    CredentialPool jiraCredentials = Jira.newCredentialPool();
+    CredentialPool azureCredentials = Azure.newCredentialPool();
+
+    List<MigrationTool> migrationTools = new ArrayList<>();
+    for (String[] project : projects) {
+      Jira jira = new Jira(project[0], jiraCredentials, responseCache);
+      Azure azure = new Azure(project[1], azureCredentials, responseCache);
+
+      File projectSnapshotDirectory = snapshotDirectory != null ? new File(snapshotDirectory, project[0]) : null;
+      if (projectSnapshotDirectory != null)
+        projectSnapshotDirectory.mkdirs();
+
+      migrationTools.add(new MigrationTool(journal, null, jira, azure, projectSnapshotDirectory, 0, 1));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(N_PROJECT_THREADS);
+
+    try {
+      // Keys of the issues of all projects, as each tool only knows its own
+      List<Future<List<JiraIssue>>> pullFutures = new ArrayList<>();
+      for (MigrationTool migrationTool : migrationTools)
+        pullFutures.add(executor.submit(migrationTool::getJiraIssues));
+
+      Set<String> issueKeys = new HashSet<>();
+      for (int i = 0; i < pullFutures.size(); i++) {
+        try {
+          for (JiraIssue jiraIssue : pullFutures.get(i).get())
+            issueKeys.add(jiraIssue.getKey());
+        }
+        catch (ExecutionException exception) {
+          logger_.log(Level.WARNING, "Pull of " + projects.get(i)[0] + " failed", exception.getCause());
+        }
+      }
+
+      for (MigrationTool migrationTool : migrationTools)
+        migrationTool.addIssueKeys(issueKeys, Function.identity());
+
+      List<Future<?>> futures = new ArrayList<>();
+      for (MigrationTool migrationTool : migrationTools)
+        futures.add(executor.submit(migrationTool::migrate));
+
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          futures.get(i).get();
+        }
+        catch (ExecutionException exception) {
+          logger_.log(Level.WARNING, "Migration of " + projects.get(i)[0] + " failed", exception.getCause());
+        }
+      }
+    }
+    catch (InterruptedException exception) {
+      logger_.log(Level.WARNING, "Interrupted while migrating projects");
+      Thread.currentThread().interrupt();
+      return;
+    }
+    finally {
+      executor.shutdownNow();
+    }
+
+    // Global index of the work items of all projects
+    Map<String,AzureWorkItem> workItems = new HashMap<>();
+    for (MigrationTool migrationTool : migrationTools) {
+      for (Map.Entry<JiraIssue, AzureWorkItem> entry : migrationTool.jiraToAzure_.entrySet()) {
+        if (entry.getValue().getId() != -1)
+          workItems.put(entry.getKey().getId(), entry.getValue());
+      }
+    }
+
+    for (MigrationTool migrationTool : migrationTools)
+      migrationTool.pushCrossProjectLinks(workItems);
   }
 
   /**
@@ -1044,18 +2179,209 @@ public final class MigrationTool
     azure_.destroyAllWorkItems();
   }
 
+  /**
+   * Pull all source issues and save them as snapshots, so that the
+   * shards of a sharded migration don't each pull them from the back-ends.
+   * Nothing happens if snapshots are not used.
+   */
+  private void saveSnapshots()
+  {
+    if (snapshotDirectory_ == null)
+      return;
+
+    if (youTrack_ != null)
+      getYouTrackIssues();
+
+    getJiraIssues();
+  }
+
+  /**
+   * Check if the specified JVM option of this process should be passed on
+   * to the shard processes.
+   *
+   * @param jvmOption  JVM option to check. Non-null.
+   * @return           True if it should be passed on, false otherwise.
+   */
+  private static boolean isShardJvmOption(String jvmOption)
+  {
+    assert jvmOption != null : "jvmOption cannot be null";
+
+    // The JMX agent binds a port too
+    if (jvmOption.startsWith("-Dcom.sun.management."))
+      return false;
+
+    return SHARD_JVM_OPTION_PREFIXES.stream().anyMatch(jvmOption::startsWith);
+  }
+
+  /**
+   * Run each shard of a sharded migration in a separate process,
+   * and wait for them to complete. The processes are started with
+   * the class path of this process, and the JVM options of it that
+   * are safe to share, see isShardJvmOption().
+   *
+   * @param nShards  Number of shards. [1,MAX_SHARDS].
+   * @return         True if all shards completed successfully, false otherwise.
+   * @throws IOException  If a process cannot be started.
+   */
+  private static boolean runShards(int nShards)
+    throws IOException
+  {
+    assert nShards >= 1 && nShards <= MAX_SHARDS : "Invalid nShards: " + nShards;
+
+    List<String> jvmOptions = new ArrayList<>();
+    for (String jvmOption : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+      if (isShardJvmOption(jvmOption))
+        jvmOptions.add(jvmOption);
+      else
+        logger_.log(Level.INFO, "JVM option not passed on to shards: " + jvmOption);
+    }
+
+    List<Process> processes = new ArrayList<>();
+
+    for (int shardNo = 0; shardNo < nShards; shardNo++) {
+      List<String> command = new ArrayList<>();
+      command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+      command.addAll(jvmOptions);
+      command.add("-cp");
+      command.add(System.getProperty("java.class.path"));
+      command.add(MigrationTool.class.getName());
+      command.add("-shard");
+      command.add(Integer.toString(shardNo));
+      command.add(Integer.toString(nShards));
+
+      processes.add(new ProcessBuilder(command).inheritIO().start());
+
+      logger_.log(Level.INFO, "Shard " + shardNo + ":" + nShards + " started");
+    }
+
+    boolean isSuccess = true;
+
+    for (int shardNo = 0; shardNo < nShards; shardNo++) {
+      try {
+        int exitCode = processes.get(shardNo).waitFor();
+        if (exitCode != 0) {
+          logger_.log(Level.WARNING, "Shard " + shardNo + ":" + nShards + " failed with exit code " + exitCode);
+          isSuccess = false;
+        }
+      }
+      catch (InterruptedException exception) {
+        logger_.log(Level.WARNING, "Interrupted while waiting for shards");
+        Thread.currentThread().interrupt();
+        for (Process process : processes)
+          process.destroy();
+        return false;
+      }
+    }
+
+    return isSuccess;
+  }
+
   /**
    * Main program for migration from Jira/YouTrack to Azure.
+   * <p>
+   * Without arguments the migration is done in this process. With
+   * <tt>-shards &lt;n&gt;</tt> the issues are split in n shards that are
+   * migrated by separate processes sharing the journal, after which the links
+   * are pushed by this process. <tt>-shard &lt;shardNo&gt; &lt;n&gt;</tt>
+   * migrates one such shard. <tt>-projects &lt;jira project&gt;:&lt;azure project&gt; ...</tt>
+   * migrates several Jira projects concurrently, see migrateProjects().
+   * <tt>-verify</tt> verifies a completed migration against the source,
+   * see MigrationVerifier.
    *
-   * @param arguments  Application arguments. Not used.
+   * @param arguments  Application arguments. See above.
    */
   public static void main(String[] arguments)
   {
-    MigrationTool migrationTool = new MigrationTool();
-    migrationTool.destroyAllWorkItems();
-    migrationTool.loadExistingWorkItems();
+    int shardNo = 0;
+    int nShards = 1;
+    boolean isCoordinator = false;
+    boolean isVerify = false;
+    List<String[]> projects = new ArrayList<>();
+
+    try {
+      if (arguments.length >= 2 && arguments[0].equals("-projects")) {
+        for (int i = 1; i < arguments.length; i++) {
+          String[] project = arguments[i].split(":");
+          if (project.length != 2 || project[0].isEmpty() || project[1].isEmpty())
+            throw new IllegalArgumentException();
+          projects.add(project);
+        }
+      }
+      else if (arguments.length == 2 && arguments[0].equals("-shards")) {
+        nShards = Integer.parseInt(arguments[1]);
+        isCoordinator = true;
+      }
+      else if (arguments.length == 3 && arguments[0].equals("-shard")) {
+        shardNo = Integer.parseInt(arguments[1]);
+        nShards = Integer.parseInt(arguments[2]);
+      }
+      else if (arguments.length == 1 && arguments[0].equals("-verify")) {
+        isVerify = true;
+      }
+      else if (arguments.length != 0) {
+        throw new IllegalArgumentException();
+      }
+
+      if (nShards < 1 || nShards > MAX_SHARDS || shardNo < 0 || shardNo >= nShards)
+        throw new IllegalArgumentException();
+    }
+    catch (IllegalArgumentException exception) {
+      System.err.println("Usage: MigrationTool [-shards <n> | -shard <shardNo> <n> | -projects <jira project>:<azure project> ... | -verify]");
+      System.exit(1);
+    }
+
+    boolean isShard = nShards > 1 && !isCoordinator;
+    boolean isSuccess = true;
+
+    // Progress is recorded in the journal, and a restarted migration continues
+    // where the previous stopped. The journal is the only resume source: Work
+    // items in Azure not recorded in it, like those created before the journal
+    // was introduced, are not recognized and would be created again. To start
+    // from scratch, delete the journal file and call destroyAllWorkItems().
+    AsyncLogHandler.install(LOG_BUFFER_CAPACITY);
+
+    File responseCacheDirectory = isShard ? new File(RESPONSE_CACHE_DIRECTORY, "shard" + shardNo) : new File(RESPONSE_CACHE_DIRECTORY);
+
+    try (MigrationJournal journal = new MigrationJournal(new File(JOURNAL_FILE_NAME));
+         ResponseCache responseCache = RESPONSE_CACHE_MODE != null ? new ResponseCache(responseCacheDirectory, RESPONSE_CACHE_MODE) : null) {
+      Metrics.getInstance().startExport(new File(isShard ? "shard" + shardNo + "." + METRICS_FILE_NAME : METRICS_FILE_NAME), METRICS_EXPORT_PERIOD);
+
+      if (isVerify) {
+        MigrationTool migrationTool = new MigrationTool(journal, responseCache, new File("."));
+        if (migrationTool.verify(new File(VERIFICATION_FILE_NAME)) > 0)
+          isSuccess = false;
+      }
+      else if (!projects.isEmpty()) {
+        migrateProjects(projects, journal, responseCache, new File("."));
+      }
+      else if (isShard) {
+        MigrationTool migrationTool = new MigrationTool(journal, responseCache, new File("."), shardNo, nShards);
+        migrationTool.migrate();
+      }
+      else {
+        MigrationTool migrationTool = new MigrationTool(journal, responseCache, new File("."));
+
+        if (isCoordinator) {
+          migrationTool.saveSnapshots();
+
+          // Issues of failed shards are migrated here, so carry on regardless
+          if (!runShards(nShards))
+            logger_.log(Level.WARNING, "Not all shards completed. Remaining issues are migrated by the coordinator");
+        }
+
+        migrationTool.migrate();
+      }
+    }
+    catch (IOException exception) {
+      logger_.log(Level.SEVERE, "Unable to access migration journal or response cache", exception);
+      isSuccess = false;
+    }
+    finally {
+      Metrics.getInstance().stopExport();
+      AsyncLogHandler.uninstall();
+    }
 
-    migrationTool.processYouTrackIssues();
-    migrationTool.processJiraIssues();
+    if (!isSuccess)
+      System.exit(1);
   }
 }
@@ -0,0 +1,597 @@
+package no.geosoft.ticketmaster;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+/**
+ * Verification of a completed migration.
+ * <p>
+ * The source issues are compared to their work items in Azure, as given by
+ * the migration journal. The work items are pulled in bulk (WORK_ITEM_BATCH_SIZE
+ * per request) and the batches are verified in parallel. For each issue a digest
+ * of the following is computed on both sides and compared:
+ * <ul>
+ *   <li>Title</li>
+ *   <li>Description, as text, i.e. with markup and whitespace normalized so
+ *       that back-end formatting doesn't count. The source description is
+ *       rewritten as by the migration first, as issue keys are.</li>
+ *   <li>Number of comments</li>
+ *   <li>Attachments, by size as reported by the source and by Azure</li>
+ *   <li>Links to other work items, by relation type and work item ID</li>
+ * </ul>
+ * Azure keeps a link on both of the work items involved, so the expected links
+ * of an issue include the reverse of those pushed to it from other issues.
+ * <p>
+ * The result is a compact report with one line per issue that doesn't match,
+ * listing the parts that differ, like:
+ * <pre>
+ *   PRJ-1234 5678 description comments(5/4) links
+ *   PRJ-1235 - missing
+ * </pre>
+ *
+ * @author <a href="mailto:jacob.dreyer@geosoft.no">Jacob Dreyer</a>
+ */
+public final class MigrationVerifier
+{
+  /** The logger instance. */
+  private static final Logger logger_ = Logger.getLogger(MigrationVerifier.class.getName());
+
+  /** Number of batches verified concurrently. */
+  private static final int N_THREADS = 8;
+
+  /** Prefix of relation types linking work items. */
+  private static final String LINK_RELATION_PREFIX = "System.LinkTypes.";
+
+  /** Pattern of markup elements. */
+  private static final Pattern TAG_PATTERN = Pattern.compile("<[^>]*>");
+
+  /** Pattern of whitespace sequences. */
+  private static final Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
+
+  /**
+   * A link of a source issue, as pushed by the migration.
+   */
+  private static final class Link
+  {
+    /** Azure relation type, like "System.LinkTypes.Related". */
+    private final String relationType_;
+
+    /** Key of the linked issue. Null if not known by the source. */
+    private final String linkedKey_;
+
+    /** ID of the linked issue. Used if the key is not known. Null if not known. */
+    private final String linkedId_;
+
+    private Link(String relationType, String linkedKey, String linkedId)
+    {
+      relationType_ = relationType;
+      linkedKey_ = linkedKey;
+      linkedId_ = linkedId;
+    }
+  }
+
+  /**
+   * A source issue to verify.
+   */
+  private static final class SourceIssue
+  {
+    /** Key of the issue. */
+    private final String key_;
+
+    /** Creates the work item as the migration does. Called when verified, to spread the work. */
+    private final Supplier<AzureWorkItem> workItem_;
+
+    /** Attachment sizes as reported by the source. -1 for unknown. */
+    private final List<Long> attachmentSizes_ = new ArrayList<>();
+
+    /** Links of the issue, as pushed to its work item. */
+    private final List<Link> links_ = new ArrayList<>();
+
+    private SourceIssue(String key, Supplier<AzureWorkItem> workItem)
+    {
+      key_ = key;
+      workItem_ = workItem;
+    }
+  }
+
+  /**
+   * Digest of the migrated content of one issue.
+   */
+  private static final class Digest
+  {
+    /** Digest of the title. */
+    private final long title_;
+
+    /** Digest of the description text. */
+    private final long description_;
+
+    /** Number of comments. */
+    private final int nComments_;
+
+    /** Digest of the attachment sizes. */
+    private final long attachments_;
+
+    /** Digest of the links. */
+    private final long links_;
+
+    private Digest(String title, String description, int nComments, List<Long> attachmentSizes, Set<String> links)
+    {
+      List<Long> sortedSizes = new ArrayList<>(attachmentSizes);
+      Collections.sort(sortedSizes);
+
+      title_ = Util.digest(normalizeWhitespace(title));
+      description_ = Util.digest(normalizeText(description));
+      nComments_ = nComments;
+      attachments_ = Util.digest(sortedSizes.toString());
+      links_ = Util.digest(new TreeSet<>(links).toString());
+    }
+
+    /**
+     * Return the parts of this digest that differ from the specified one.
+     *
+     * @param actual  Digest to compare to. Non-null.
+     * @return        Report of the parts that differ, like "title comments(5/4)".
+     *                Empty if none.
+     */
+    private String compare(Digest actual)
+    {
+      assert actual != null : "actual cannot be null";
+
+      StringBuilder s = new StringBuilder();
+
+      if (title_ != actual.title_)
+        s.append(" title");
+
+      if (description_ != actual.description_)
+        s.append(" description");
+
+      if (nComments_ != actual.nComments_)
+        s.append(" comments(" + nComments_ + "/" + actual.nComments_ + ")");
+
+      if (attachments_ != actual.attachments_)
+        s.append(" attachments");
+
+      if (links_ != actual.links_)
+        s.append(" links");
+
+      return s.toString().trim();
+    }
+  }
+
+  /** Journal of the migration to verify. */
+  private final MigrationJournal journal_;
+
+  /** The Azure instance migrated to. */
+  private final Azure azure_;
+
+  /** Rewriter of rich text as done by the migration. */
+  private final UnaryOperator<String> updateText_;
+
+  /** Source issues to verify. */
+  private final List<SourceIssue> sourceIssues_ = new ArrayList<>();
+
+  /** Keys of Jira issues by ID, for resolving links across projects. */
+  private final Map<String,String> jiraKeys_ = new HashMap<>();
+
+  /**
+   * Create a verifier of the migration recorded in the specified journal.
+   *
+   * @param journal     Journal of the migration. Non-null.
+   * @param azure       The Azure instance migrated to. Non-null.
+   * @param updateText  Rewriter of rich text as done by the migration,
+   *                    like MigrationTool.updateText(). Non-null.
+   * @throws IllegalArgumentException  If journal, azure or updateText is null.
+   */
+  public MigrationVerifier(MigrationJournal journal, Azure azure, UnaryOperator<String> updateText)
+  {
+    if (journal == null)
+      throw new IllegalArgumentException("journal cannot be null");
+
+    if (azure == null)
+      throw new IllegalArgumentException("azure cannot be null");
+
+    if (updateText == null)
+      throw new IllegalArgumentException("updateText cannot be null");
+
+    journal_ = journal;
+    azure_ = azure;
+    updateText_ = updateText;
+  }
+
+  /**
+   * Add the specified Jira issues to be verified.
+   *
+   * @param jiraIssues  Jira issues to add. Non-null.
+   * @throws IllegalArgumentException  If jiraIssues is null.
+   */
+  public void addJiraIssues(Collection<JiraIssue> jiraIssues)
+  {
+    if (jiraIssues == null)
+      throw new IllegalArgumentException("jiraIssues cannot be null");
+
+    for (JiraIssue jiraIssue : jiraIssues) {
+      SourceIssue sourceIssue = new SourceIssue(jiraIssue.getKey(), () -> MigrationTool.newAzureWorkItem(jiraIssue));
+
+      for (JiraAttachment jiraAttachment : jiraIssue.getAttachments())
+        sourceIssue.attachmentSizes_.add(jiraAttachment.getSize());
+
+      JiraIssue parentIssue = jiraIssue.getParentIssue();
+      if (parentIssue != null)
+        sourceIssue.links_.add(new Link(Azure.getRelationType(AzureLink.Type.SUBTASK), parentIssue.getKey(), null));
+
+      // Only inward links are pushed. Links to other projects are resolved by ID
+      for (JiraLink jiraLink : jiraIssue.getLinks()) {
+        if (!jiraLink.getDirection().equals("INWARD"))
+          continue;
+
+        JiraIssue linkedIssue = jiraLink.getLinkedIssue();
+        String relationType = Azure.getRelationType(MigrationTool.getAzureLinkType(jiraLink));
+        sourceIssue.links_.add(new Link(relationType, linkedIssue != null ? linkedIssue.getKey() : null, jiraLink.getLinkedIssueId()));
+      }
+
+      sourceIssues_.add(sourceIssue);
+      jiraKeys_.put(jiraIssue.getId(), jiraIssue.getKey());
+    }
+  }
+
+  /**
+   * Add the specified YouTrack issues to be verified.
+   *
+   * @param youTrackIssues  YouTrack issues to add. Non-null.
+   * @throws IllegalArgumentException  If youTrackIssues is null.
+   */
+  public void addYouTrackIssues(Collection<YouTrackIssue> youTrackIssues)
+  {
+    if (youTrackIssues == null)
+      throw new IllegalArgumentException("youTrackIssues cannot be null");
+
+    for (YouTrackIssue youTrackIssue : youTrackIssues) {
+      SourceIssue sourceIssue = new SourceIssue(youTrackIssue.getIdReadable(), () -> MigrationTool.newAzureWorkItem(youTrackIssue));
+
+      for (YouTrackAttachment youTrackAttachment : youTrackIssue.getAttachments())
+        sourceIssue.attachmentSizes_.add(youTrackAttachment.getSize());
+
+      YouTrackIssue parentIssue = youTrackIssue.getParentIssue();
+      if (parentIssue != null)
+        sourceIssue.links_.add(new Link(Azure.getRelationType(AzureLink.Type.SUBTASK), parentIssue.getIdReadable(), null));
+
+      for (YouTrackLink youTrackLink : youTrackIssue.getLinks()) {
+        YouTrackIssue linkedIssue = youTrackLink.getLinkedIssue();
+        if (linkedIssue == null)
+          continue;
+
+        String relationType = Azure.getRelationType(MigrationTool.getAzureLinkType(youTrackLink));
+        sourceIssue.links_.add(new Link(relationType, linkedIssue.getIdReadable(), null));
+      }
+
+      sourceIssues_.add(sourceIssue);
+    }
+  }
+
+  /**
+   * Collapse whitespace of the specified string.
+   *
+   * @param text  Text to normalize. May be null.
+   * @return      The normalized text. Never null.
+   */
+  private static String normalizeWhitespace(String text)
+  {
+    return text != null ? WHITESPACE_PATTERN.matcher(text).replaceAll(" ").trim() : "";
+  }
+
+  /**
+   * Return the text of the specified HTML, with markup removed, the
+   * common entities decoded and whitespace collapsed.
+   *
+   * @param html  HTML to normalize. May be null.
+   * @return      The normalized text. Never null.
+   */
+  private static String normalizeText(String html)
+  {
+    if (html == null)
+      return "";
+
+    String text = TAG_PATTERN.matcher(html).replaceAll(" ")
+      .replace("&nbsp;", " ")
+      .replace("&lt;", "<")
+      .replace("&gt;", ">")
+      .replace("&quot;", "\"")
+      .replace("&#39;", "'")
+      .replace("&amp;", "&");
+
+    return normalizeWhitespace(text);
+  }
+
+  /**
+   * Return the relation type of the reverse of the specified link, i.e.
+   * the link as seen from the linked work item.
+   *
+   * @param relationType  Relation type to reverse. Non-null.
+   * @return              The reverse relation type. Never null.
+   */
+  private static String getReverseRelationType(String relationType)
+  {
+    assert relationType != null : "relationType cannot be null";
+
+    if (relationType.endsWith("-Reverse"))
+      return relationType.substring(0, relationType.length() - "-Reverse".length()) + "-Forward";
+
+    if (relationType.endsWith("-Forward"))
+      return relationType.substring(0, relationType.length() - "-Forward".length()) + "-Reverse";
+
+    return relationType;
+  }
+
+  /**
+   * Return the links expected in Azure for each of the source issues.
+   * Links to issues that are not migrated are ignored.
+   *
+   * @return  Expected links, as "relationType:workItemId", by source issue key. Never null.
+   */
+  private Map<String,Set<String>> getExpectedLinks()
+  {
+    Map<String,Set<String>> expectedLinks = new HashMap<>();
+
+    for (SourceIssue sourceIssue : sourceIssues_) {
+      int workItemId = journal_.getWorkItemId(sourceIssue.key_);
+      if (workItemId == -1)
+        continue;
+
+      for (Link link : sourceIssue.links_) {
+        String linkedKey = link.linkedKey_ != null ? link.linkedKey_ : link.linkedId_ != null ? jiraKeys_.get(link.linkedId_) : null;
+        int linkedWorkItemId = linkedKey != null ? journal_.getWorkItemId(linkedKey) : -1;
+        if (linkedWorkItemId == -1)
+          continue;
+
+        expectedLinks.computeIfAbsent(sourceIssue.key_, key -> new HashSet<>()).add(link.relationType_ + ":" + linkedWorkItemId);
+        expectedLinks.computeIfAbsent(linkedKey, key -> new HashSet<>()).add(getReverseRelationType(link.relationType_) + ":" + workItemId);
+      }
+    }
+
+    return expectedLinks;
+  }
+
+  /**
+   * Return the digest of the specified work item as pulled from Azure.
+   *
+   * @param workItem     Work item to digest. Non-null.
+   * @param isSizeKnown  True to digest attachment sizes, false to digest the
+   *                     number of attachments only.
+   * @return             The digest of the work item. Never null.
+   */
+  private static Digest newDigest(JsonObject workItem, boolean isSizeKnown)
+  {
+    assert workItem != null : "workItem cannot be null";
+
+    JsonObject fields = workItem.getJsonObject("fields");
+
+    String title = fields != null ? fields.getString("System.Title", null) : null;
+    String description = fields != null ? fields.getString("System.Description", null) : null;
+    JsonValue commentCount = fields != null ? fields.get("System.CommentCount") : null;
+    int nComments = commentCount instanceof JsonNumber ? ((JsonNumber) commentCount).intValue() : 0;
+
+    List<Long> attachmentSizes = new ArrayList<>();
+    Set<String> links = new HashSet<>();
+
+    JsonValue relations = workItem.get("relations");
+    if (relations != null && relations.getValueType() == JsonValue.ValueType.ARRAY) {
+      for (JsonValue value : relations.asJsonArray()) {
+        JsonObject relation = value.asJsonObject();
+        String relationType = relation.getString("rel", "");
+        String url = relation.getString("url", "");
+
+        if (relationType.equals("AttachedFile")) {
+          JsonObject attributes = relation.getJsonObject("attributes");
+          JsonValue size = attributes != null ? attributes.get("resourceSize") : null;
+          attachmentSizes.add(isSizeKnown && size instanceof JsonNumber ? ((JsonNumber) size).longValue() : -1L);
+        }
+
+        else if (relationType.startsWith(LINK_RELATION_PREFIX)) {
+          links.add(relationType + ":" + url.substring(url.lastIndexOf('/') + 1));
+        }
+      }
+    }
+
+    return new Digest(title, description, nComments, attachmentSizes, links);
+  }
+
+  /**
+   * Return the digest of the specified source issue, i.e. of its work
+   * item as it should be in Azure.
+   *
+   * @param sourceIssue    Source issue to digest. Non-null.
+   * @param expectedLinks  Expected links of the issue. Non-null.
+   * @param isSizeKnown    True to digest attachment sizes, false to digest the
+   *                       number of attachments only.
+   * @return               The digest of the source issue. Never null.
+   */
+  private Digest newDigest(SourceIssue sourceIssue, Set<String> expectedLinks, boolean isSizeKnown)
+  {
+    assert sourceIssue != null : "sourceIssue cannot be null";
+    assert expectedLinks != null : "expectedLinks cannot be null";
+
+    AzureWorkItem workItem = sourceIssue.workItem_.get();
+    workItem.setDescription(updateText_.apply(workItem.getDescription() != null ? workItem.getDescription() : ""));
+
+    List<Long> attachmentSizes = sourceIssue.attachmentSizes_;
+    if (!isSizeKnown)
+      attachmentSizes = Collections.nCopies(attachmentSizes.size(), -1L);
+
+    return new Digest(workItem.getTitle(), workItem.getExtendedDescription(), workItem.getComments().size(), attachmentSizes, expectedLinks);
+  }
+
+  /**
+   * Verify the specified batch of source issues.
+   *
+   * @param batch          Source issues to verify. All are migrated according to
+   *                       the journal. Non-null. At most WORK_ITEM_BATCH_SIZE.
+   * @param expectedLinks  Expected links by source issue key. Non-null.
+   * @return               Report lines of the issues that don't match. Never null.
+   * @throws IOException  If the work items cannot be pulled.
+   */
+  private List<String> verify(List<SourceIssue> batch, Map<String,Set<String>> expectedLinks)
+    throws IOException
+  {
+    assert batch != null : "batch cannot be null";
+    assert expectedLinks != null : "expectedLinks cannot be null";
+
+    List<Integer> workItemIds = new ArrayList<>();
+    for (SourceIssue sourceIssue : batch)
+      workItemIds.add(journal_.getWorkItemId(sourceIssue.key_));
+
+    long startTime = System.nanoTime();
+
+    Map<Integer,JsonObject> workItems = new HashMap<>();
+    for (JsonObject workItem : azure_.pullWorkItemBatch(workItemIds))
+      workItems.put(workItem.getInt("id"), workItem);
+
+    List<String> lines = new ArrayList<>();
+
+    for (SourceIssue sourceIssue : batch) {
+      int workItemId = journal_.getWorkItemId(sourceIssue.key_);
+      JsonObject workItem = workItems.get(workItemId);
+
+      if (workItem == null) {
+        lines.add(sourceIssue.key_ + " " + workItemId + " missing");
+        continue;
+      }
+
+      // If any size is unknown by the source, compare the number of attachments only
+      boolean isSizeKnown = !sourceIssue.attachmentSizes_.contains(-1L);
+
+      Digest actual = newDigest(workItem, isSizeKnown);
+      Digest expected = newDigest(sourceIssue, expectedLinks.getOrDefault(sourceIssue.key_, Collections.emptySet()), isSizeKnown);
+
+      String mismatches = expected.compare(actual);
+      if (!mismatches.isEmpty())
+        lines.add(sourceIssue.key_ + " " + workItemId + " " + mismatches);
+    }
+
+    Metrics.getInstance().recordStage("verify.batch", System.nanoTime() - startTime);
+
+    return lines;
+  }
+
+  /**
+   * Verify all the source issues and write a report of the ones that don't
+   * match to the specified file.
+   *
+   * @param reportFile  File to write report to. Non-null.
+   * @return            Number of issues that don't match, including the ones not migrated
+   *                    and the ones that could not be verified.
+   * @throws IllegalArgumentException  If reportFile is null.
+   * @throws IOException  If the report cannot be written.
+   */
+  public int verify(File reportFile)
+    throws IOException
+  {
+    if (reportFile == null)
+      throw new IllegalArgumentException("reportFile cannot be null");
+
+    long startTime = System.nanoTime();
+
+    Map<String,Set<String>> expectedLinks = getExpectedLinks();
+
+    int nMismatches = 0;
+
+    List<List<SourceIssue>> batches = new ArrayList<>();
+    int nBatchesDone = 0;
+
+    ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
+
+    try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(reportFile), StandardCharsets.UTF_8))) {
+      List<Future<List<String>>> futures = new ArrayList<>();
+      List<SourceIssue> batch = new ArrayList<>();
+
+      for (SourceIssue sourceIssue : sourceIssues_) {
+        if (journal_.getWorkItemId(sourceIssue.key_) == -1) {
+          writer.write(sourceIssue.key_ + " - missing\n");
+          nMismatches++;
+          continue;
+        }
+
+        batch.add(sourceIssue);
+        if (batch.size() == Azure.WORK_ITEM_BATCH_SIZE) {
+          List<SourceIssue> fullBatch = batch;
+          futures.add(executor.submit(() -> verify(fullBatch, expectedLinks)));
+          batches.add(fullBatch);
+          batch = new ArrayList<>();
+        }
+      }
+
+      if (!batch.isEmpty()) {
+        List<SourceIssue> lastBatch = batch;
+        futures.add(executor.submit(() -> verify(lastBatch, expectedLinks)));
+        batches.add(lastBatch);
+      }
+
+      // Written in source order as the batches complete
+      for (Future<List<String>> future : futures) {
+        try {
+          for (String line : future.get()) {
+            writer.write(line + "\n");
+            nMismatches++;
+          }
+        }
+        catch (ExecutionException exception) {
+          // Issues not verified cannot be reported as matching
+          logger_.log(Level.WARNING, "Verification of batch failed", exception.getCause());
+          writer.write("# Batch failed: " + exception.getCause() + "\n");
+          for (SourceIssue sourceIssue : batches.get(nBatchesDone)) {
+            writer.write(sourceIssue.key_ + " " + journal_.getWorkItemId(sourceIssue.key_) + " not verified\n");
+            nMismatches++;
+          }
+        }
+
+        nBatchesDone++;
+      }
+
+      writer.write("# " + sourceIssues_.size() + " issues verified, " + nMismatches + " do not match\n");
+    }
+    catch (InterruptedException exception) {
+      logger_.log(Level.WARNING, "Interrupted while verifying");
+      Thread.currentThread().interrupt();
+
+      // The issues not verified
+      for (List<SourceIssue> batch : batches.subList(nBatchesDone, batches.size()))
+        nMismatches += batch.size();
+    }
+    finally {
+      executor.shutdownNow();
+    }
+
+    long millis = (System.nanoTime() - startTime) / 1000000L;
+    int nIssues = sourceIssues_.size();
+    int nFound = nMismatches;
+    logger_.log(Level.INFO, () -> nIssues + " issues verified in " + millis + " ms. " + nFound + " do not match, see " + reportFile);
+
+    return nMismatches;
+  }
+}
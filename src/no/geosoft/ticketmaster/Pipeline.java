@@ -0,0 +1,328 @@
+package no.geosoft.ticketmaster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A sequence of processing stages connected by bounded queues.
+ * <p>
+ * Each stage has its own executor with a fixed number of worker threads
+ * taking items from the stage input queue. When a stage action returns
+ * true, the item is passed on to the next stage. When it returns false
+ * (or throws) the item is dropped, and passed to the drop action if any
+ * so that resources held by the item can be released. The time spent in
+ * each stage action is recorded in the Metrics registry as "pipelineName.stageName".
+ * <p>
+ * All queues are bounded, so a slow stage eventually blocks the stages
+ * before it and finally submit(). This bounds the number of items in
+ * flight, and by that the memory in use.
+ * <p>
+ * Typical usage:
+ * <pre>
+ *   Pipeline&lt;Job&gt; pipeline = new Pipeline&lt;&gt;("migration", 8);
+ *   pipeline.addStage("download", 4, job -&gt; download(job));
+ *   pipeline.addStage("upload", 2, job -&gt; upload(job));
+ *   pipeline.start();
+ *
+ *   for (Job job : jobs)
+ *     pipeline.submit(job);
+ *
+ *   pipeline.finish();
+ * </pre>
+ *
+ * @param <T>  Type of items processed by the pipeline.
+ * @author <a href="mailto:jacob.dreyer@geosoft.no">Jacob Dreyer</a>
+ */
+public final class Pipeline<T>
+{
+  /** The logger instance. */
+  private static final Logger logger_ = Logger.getLogger(Pipeline.class.getName());
+
+  /** Marker item signalling end of input. */
+  private static final Object END = new Object();
+
+  /**
+   * One stage of the pipeline.
+   */
+  private final class Stage
+  {
+    /** Stage name. */
+    private final String name_;
+
+    /** Name of the stage in the metrics registry. */
+    private final String metricName_;
+
+    /** Number of worker threads. */
+    private final int nThreads_;
+
+    /** The stage action. */
+    private final Predicate<T> action_;
+
+    /** Input queue of this stage. */
+    private final BlockingQueue<Object> queue_;
+
+    /** Number of workers still running. */
+    private final AtomicInteger nRunning_;
+
+    /** The stage executor. Null until started. */
+    private ExecutorService executor_;
+
+    private Stage(String name, int nThreads, Predicate<T> action)
+    {
+      name_ = name;
+      metricName_ = Pipeline.this.name_ + "." + name;
+      nThreads_ = nThreads;
+      action_ = action;
+      queue_ = new ArrayBlockingQueue<>(queueCapacity_);
+      nRunning_ = new AtomicInteger(nThreads);
+    }
+  }
+
+  /** Pipeline name. Used for thread names. */
+  private final String name_;
+
+  /** Capacity of each of the queues. */
+  private final int queueCapacity_;
+
+  /** The stages of this pipeline. */
+  private final List<Stage> stages_ = new ArrayList<>();
+
+  /** Action for items dropped by a stage. Null if none. */
+  private Consumer<T> dropAction_ = null;
+
+  /** Indicate if the pipeline has been started. */
+  private boolean isStarted_ = false;
+
+  /**
+   * Create a new pipeline.
+   *
+   * @param name           Pipeline name. Non-null.
+   * @param queueCapacity  Capacity of the queue in front of each stage. [1,&gt;.
+   * @throws IllegalArgumentException  If name is null or queueCapacity &lt; 1.
+   */
+  public Pipeline(String name, int queueCapacity)
+  {
+    if (name == null)
+      throw new IllegalArgumentException("name cannot be null");
+
+    if (queueCapacity < 1)
+      throw new IllegalArgumentException("Invalid queueCapacity: " + queueCapacity);
+
+    name_ = name;
+    queueCapacity_ = queueCapacity;
+  }
+
+  /**
+   * Add a stage to the end of this pipeline.
+   *
+   * @param name      Stage name. Non-null.
+   * @param nThreads  Number of worker threads of the stage. [1,&gt;.
+   * @param action    Stage action. Returns true to pass the item on to the next stage. Non-null.
+   * @throws IllegalArgumentException  If name or action is null or nThreads &lt; 1.
+   * @throws IllegalStateException  If the pipeline is already started.
+   */
+  public void addStage(String name, int nThreads, Predicate<T> action)
+  {
+    if (name == null)
+      throw new IllegalArgumentException("name cannot be null");
+
+    if (nThreads < 1)
+      throw new IllegalArgumentException("Invalid nThreads: " + nThreads);
+
+    if (action == null)
+      throw new IllegalArgumentException("action cannot be null");
+
+    if (isStarted_)
+      throw new IllegalStateException("Pipeline is already started");
+
+    stages_.add(new Stage(name, nThreads, action));
+  }
+
+  /**
+   * Set the action to apply to items dropped by any of the stages.
+   *
+   * @param dropAction  Action for dropped items. Null for none.
+   * @throws IllegalStateException  If the pipeline is already started.
+   */
+  public void setDropAction(Consumer<T> dropAction)
+  {
+    if (isStarted_)
+      throw new IllegalStateException("Pipeline is already started");
+
+    dropAction_ = dropAction;
+  }
+
+  /**
+   * Start the workers of all stages.
+   *
+   * @throws IllegalStateException  If the pipeline is already started or has no stages.
+   */
+  public void start()
+  {
+    if (isStarted_)
+      throw new IllegalStateException("Pipeline is already started");
+
+    if (stages_.isEmpty())
+      throw new IllegalStateException("Pipeline has no stages");
+
+    isStarted_ = true;
+
+    for (int stageNo = 0; stageNo < stages_.size(); stageNo++) {
+      Stage stage = stages_.get(stageNo);
+
+      AtomicInteger threadNo = new AtomicInteger(0);
+      stage.executor_ = Executors.newFixedThreadPool(stage.nThreads_, runnable -> {
+        Thread thread = new Thread(runnable, name_ + "-" + stage.name_ + "-" + threadNo.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+
+      int nextStageNo = stageNo + 1;
+      for (int i = 0; i < stage.nThreads_; i++)
+        stage.executor_.execute(() -> work(stage, nextStageNo < stages_.size() ? stages_.get(nextStageNo) : null));
+    }
+  }
+
+  /**
+   * The work loop of one worker thread.
+   *
+   * @param stage      Stage of worker. Non-null.
+   * @param nextStage  Stage to pass items on to. Null if this is the last stage.
+   */
+  @SuppressWarnings("unchecked")
+  private void work(Stage stage, Stage nextStage)
+  {
+    assert stage != null : "stage cannot be null";
+
+    try {
+      while (true) {
+        Object item = stage.queue_.take();
+
+        // End of input
+        if (item == END)
+          return;
+
+        long startTime = System.nanoTime();
+
+        boolean isPassedOn;
+        try {
+          isPassedOn = stage.action_.test((T) item);
+        }
+        catch (Throwable throwable) {
+          // Errors too, like AssertionError: The worker must live on to pass END on
+          logger_.log(Level.WARNING, "Stage " + stage.name_ + " failed on " + item, throwable);
+          isPassedOn = false;
+        }
+
+        Metrics.getInstance().recordStage(stage.metricName_, System.nanoTime() - startTime);
+
+        if (!isPassedOn)
+          drop(stage, (T) item);
+        else if (nextStage != null)
+          nextStage.queue_.put(item);
+      }
+    }
+    catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    }
+    finally {
+      // The last worker of a stage to end, however it ends, ends the next stage
+      if (stage.nRunning_.decrementAndGet() == 0 && nextStage != null)
+        end(nextStage);
+    }
+  }
+
+  /**
+   * Apply the drop action to the specified item.
+   *
+   * @param stage  Stage that dropped the item. Non-null.
+   * @param item   Item dropped. Non-null.
+   */
+  private void drop(Stage stage, T item)
+  {
+    assert stage != null : "stage cannot be null";
+    assert item != null : "item cannot be null";
+
+    if (dropAction_ == null)
+      return;
+
+    try {
+      dropAction_.accept(item);
+    }
+    catch (Throwable throwable) {
+      logger_.log(Level.WARNING, "Drop action failed on " + item + " dropped by stage " + stage.name_, throwable);
+    }
+  }
+
+  /**
+   * Signal end of input to all workers of the specified stage.
+   *
+   * @param stage  Stage to end. Non-null.
+   */
+  private void end(Stage stage)
+  {
+    assert stage != null : "stage cannot be null";
+
+    try {
+      for (int i = 0; i < stage.nThreads_; i++)
+        stage.queue_.put(END);
+    }
+    catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Submit the specified item to the first stage of the pipeline.
+   * Blocks while the first queue is full.
+   *
+   * @param item  Item to submit. Non-null.
+   * @throws IllegalArgumentException  If item is null.
+   * @throws IllegalStateException  If the pipeline is not started.
+   * @throws InterruptedException  If interrupted while waiting for queue space.
+   */
+  public void submit(T item)
+    throws InterruptedException
+  {
+    if (item == null)
+      throw new IllegalArgumentException("item cannot be null");
+
+    if (!isStarted_)
+      throw new IllegalStateException("Pipeline is not started");
+
+    stages_.get(0).queue_.put(item);
+  }
+
+  /**
+   * Signal end of input and wait for all submitted items to pass
+   * through the pipeline. The pipeline cannot be used after this.
+   *
+   * @throws IllegalStateException  If the pipeline is not started.
+   * @throws InterruptedException  If interrupted while waiting.
+   */
+  public void finish()
+    throws InterruptedException
+  {
+    if (!isStarted_)
+      throw new IllegalStateException("Pipeline is not started");
+
+    Stage firstStage = stages_.get(0);
+    for (int i = 0; i < firstStage.nThreads_; i++)
+      firstStage.queue_.put(END);
+
+    for (Stage stage : stages_) {
+      stage.executor_.shutdown();
+      stage.executor_.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+  }
+}
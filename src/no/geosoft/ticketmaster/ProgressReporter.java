@@ -0,0 +1,286 @@
+package no.geosoft.ticketmaster;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Periodic progress and memory report of a migration.
+ * <p>
+ * A background timer prints issues per second, estimated time to completion
+ * and heap usage at a fixed rate. The heap trend is based on the live heap,
+ * i.e. the heap usage after each garbage collection, as reported through GC
+ * notifications. A garbage collection is never forced, so the reporter has
+ * no effect on the migration other than a few counter updates.
+ * <p>
+ * Typical usage:
+ * <pre>
+ *   ProgressReporter progressReporter = new ProgressReporter("Jira", nIssues, 10000L);
+ *   progressReporter.start();
+ *   :
+ *   progressReporter.issueDone();     // For each migrated issue
+ *   progressReporter.issueSkipped();  // For each issue migrated by a previous run
+ *   :
+ *   progressReporter.stop();
+ * </pre>
+ *
+ * @author <a href="mailto:jacob.dreyer@geosoft.no">Jacob Dreyer</a>
+ */
+public final class ProgressReporter
+{
+  /** The logger instance. */
+  private static final Logger logger_ = Logger.getLogger(ProgressReporter.class.getName());
+
+  /** Number of bytes in a MB. */
+  private static final double MB = 1024.0 * 1024.0;
+
+  /** Name of what is being reported, like "Jira". */
+  private final String name_;
+
+  /** Total number of issues. */
+  private final int nIssues_;
+
+  /** Time between each report in milliseconds. */
+  private final long periodMillis_;
+
+  /** Number of issues migrated. */
+  private final AtomicInteger nDone_ = new AtomicInteger(0);
+
+  /** Number of issues skipped, i.e. migrated by a previous run. */
+  private final AtomicInteger nSkipped_ = new AtomicInteger(0);
+
+  /** Names of the heap memory pools. Used to pick the heap part of GC info. */
+  private final Set<String> heapPoolNames_ = new HashSet<>();
+
+  /** Listener of GC notifications. */
+  private final NotificationListener gcListener_ = this::gcDone;
+
+  /** Live heap in bytes, i.e. heap used after the latest GC. -1 if no GC yet. */
+  private volatile long liveHeap_ = -1L;
+
+  /** Start time in nanoseconds. */
+  private long startTime_;
+
+  /** Time of the previous report in nanoseconds. */
+  private long previousTime_;
+
+  /** Number of issues done at the previous report. */
+  private int previousNDone_;
+
+  /** Live heap at the previous report. -1 if not known. */
+  private long previousLiveHeap_ = -1L;
+
+  /** The report timer. Null if not started. */
+  private ScheduledExecutorService timer_;
+
+  /**
+   * Create a new progress reporter.
+   *
+   * @param name          Name of what is reported, like "Jira". Non-null.
+   * @param nIssues       Total number of issues. [0,&gt;.
+   * @param periodMillis  Time between each report in milliseconds. [1,&gt;.
+   * @throws IllegalArgumentException  If name is null, nIssues &lt; 0 or periodMillis &lt; 1.
+   */
+  public ProgressReporter(String name, int nIssues, long periodMillis)
+  {
+    if (name == null)
+      throw new IllegalArgumentException("name cannot be null");
+
+    if (nIssues < 0)
+      throw new IllegalArgumentException("Invalid nIssues: " + nIssues);
+
+    if (periodMillis < 1)
+      throw new IllegalArgumentException("Invalid periodMillis: " + periodMillis);
+
+    name_ = name;
+    nIssues_ = nIssues;
+    periodMillis_ = periodMillis;
+
+    for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (memoryPool.getType() == MemoryType.HEAP)
+        heapPoolNames_.add(memoryPool.getName());
+    }
+  }
+
+  /**
+   * Register that an issue has been migrated. Thread safe.
+   */
+  public void issueDone()
+  {
+    nDone_.incrementAndGet();
+  }
+
+  /**
+   * Register that an issue was skipped as it was migrated by a previous run.
+   * Thread safe.
+   */
+  public void issueSkipped()
+  {
+    nSkipped_.incrementAndGet();
+  }
+
+  /**
+   * Called on each GC notification. Record the heap usage after the GC.
+   *
+   * @param notification  Notification from the JVM. Non-null.
+   * @param handback      Not used.
+   */
+  private void gcDone(Notification notification, Object handback)
+  {
+    if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType()))
+      return;
+
+    GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+
+    long heapUsed = 0L;
+    for (Map.Entry<String, MemoryUsage> entry : info.getGcInfo().getMemoryUsageAfterGc().entrySet()) {
+      if (heapPoolNames_.contains(entry.getKey()))
+        heapUsed += entry.getValue().getUsed();
+    }
+
+    liveHeap_ = heapUsed;
+  }
+
+  /**
+   * Start the periodic report.
+   *
+   * @throws IllegalStateException  If the reporter is already started.
+   */
+  public synchronized void start()
+  {
+    if (timer_ != null)
+      throw new IllegalStateException("Progress reporter already started");
+
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      if (gc instanceof NotificationEmitter)
+        ((NotificationEmitter) gc).addNotificationListener(gcListener_, null, null);
+    }
+
+    startTime_ = System.nanoTime();
+    previousTime_ = startTime_;
+
+    timer_ = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "progress-report");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    timer_.scheduleAtFixedRate(this::report, periodMillis_, periodMillis_, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop the periodic report. A final report is printed.
+   * Nothing happens if the reporter is not started.
+   */
+  public synchronized void stop()
+  {
+    if (timer_ == null)
+      return;
+
+    timer_.shutdown();
+    try {
+      timer_.awaitTermination(10, TimeUnit.SECONDS);
+    }
+    catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    }
+
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      if (gc instanceof NotificationEmitter) {
+        try {
+          ((NotificationEmitter) gc).removeNotificationListener(gcListener_);
+        }
+        catch (ListenerNotFoundException exception) {
+          logger_.log(Level.FINE, "GC listener not registered: " + gc.getName(), exception);
+        }
+      }
+    }
+
+    report();
+
+    timer_ = null;
+  }
+
+  /**
+   * Return the specified number of seconds as hh:mm:ss.
+   *
+   * @param seconds  Seconds to format. [0,&gt;.
+   * @return         The formatted time. Never null.
+   */
+  private static String formatTime(long seconds)
+  {
+    return String.format("%02d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+  }
+
+  /**
+   * Print a progress report.
+   * Called by the timer thread, or by stop() after the timer is stopped.
+   */
+  private void report()
+  {
+    long time = System.nanoTime();
+    int nDone = nDone_.get();
+    int nSkipped = nSkipped_.get();
+    int nRemaining = Math.max(0, nIssues_ - nDone - nSkipped);
+
+    double seconds = (time - startTime_) / 1.0e9;
+    double intervalSeconds = (time - previousTime_) / 1.0e9;
+
+    double rate = seconds > 0.0 ? nDone / seconds : 0.0;
+    double currentRate = intervalSeconds > 0.0 ? (nDone - previousNDone_) / intervalSeconds : 0.0;
+
+    String eta = nRemaining == 0 ? formatTime(0) : rate > 0.0 ? formatTime(Math.round(nRemaining / rate)) : "--:--:--";
+
+    // Heap
+    MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    MemoryUsage heapUsage = memoryBean.getHeapMemoryUsage();
+    long maxHeap = heapUsage.getMax() != -1L ? heapUsage.getMax() : heapUsage.getCommitted();
+
+    long liveHeap = liveHeap_;
+    String live = liveHeap != -1L ? String.format("%.1f MB", liveHeap / MB) : "n/a";
+
+    String trend = "n/a";
+    if (liveHeap != -1L && previousLiveHeap_ != -1L && intervalSeconds > 0.0)
+      trend = String.format("%+.1f MB/min", (liveHeap - previousLiveHeap_) / MB / intervalSeconds * 60.0);
+
+    // GC
+    long nGcs = 0L;
+    long gcMillis = 0L;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      nGcs += Math.max(0L, gc.getCollectionCount());
+      gcMillis += Math.max(0L, gc.getCollectionTime());
+    }
+
+    System.out.printf("%s: %d:%d done, %d skipped | %.2f issues/s (now %.2f) | Elapsed %s | ETA %s | " +
+                      "Heap %.1f:%.1f MB, live %s (%s) | GC %d (%.1f s)%n",
+                      name_, nDone + nSkipped, nIssues_, nSkipped,
+                      rate, currentRate,
+                      formatTime(Math.round(seconds)), eta,
+                      heapUsage.getUsed() / MB, maxHeap / MB, live, trend,
+                      nGcs, gcMillis / 1000.0);
+
+    previousTime_ = time;
+    previousNDone_ = nDone;
+    previousLiveHeap_ = liveHeap;
+  }
+}
@@ -0,0 +1,383 @@
+package no.geosoft.ticketmaster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Local cache of raw back-end responses.
+ * <p>
+ * In RECORD mode every response read from a back-end is appended to the cache,
+ * and in REPLAY mode all reads are served from the cache without touching the
+ * network. This makes it possible to iterate on the migration mapping logic
+ * offline, and gives a reproducible input for benchmarks.
+ * <p>
+ * The cache is a directory of append-only segment files named
+ * <code>segment-00000.dat</code>, <code>segment-00001.dat</code>, etc. Each segment
+ * holds a sequence of records of the form:
+ * <pre>
+ *   int     magic
+ *   int     key length (bytes)
+ *   int     content length (bytes, uncompressed)
+ *   int     data length (bytes, compressed)
+ *   byte[]  key (UTF-8)
+ *   byte[]  data (deflated content)
+ * </pre>
+ * The key is the request method and URL (and body if relevant). If the same
+ * key is recorded more than once, the last record wins. An in-memory index of
+ * all keys is built by scanning the record headers when the cache is opened.
+ * <p>
+ * A cache directory must not be used by more than one process at a time,
+ * as there is no locking across processes.
+ *
+ * @author <a href="mailto:jacob.dreyer@geosoft.no">Jacob Dreyer</a>
+ */
+public final class ResponseCache implements Closeable
+{
+  /** The logger instance. */
+  private static final Logger logger_ = Logger.getLogger(ResponseCache.class.getName());
+
+  /**
+   * The cache modes.
+   */
+  public enum Mode
+  {
+    /** Read from back-end and record responses in the cache. */
+    RECORD,
+
+    /** Read responses from the cache only. */
+    REPLAY;
+  }
+
+  /** Magic number identifying a record. */
+  private static final int MAGIC = 0x54524331; // "TRC1"
+
+  /** Size of the record header in bytes. */
+  private static final int HEADER_SIZE = 16;
+
+  /** Size at which a new segment is started. */
+  private static final long MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+  /**
+   * Location of a record within the cache.
+   */
+  private static final class Location
+  {
+    /** Segment number. */
+    private final int segmentNo_;
+
+    /** Position of the compressed data within the segment. */
+    private final long position_;
+
+    /** Uncompressed content length. */
+    private final int contentLength_;
+
+    /** Compressed data length. */
+    private final int dataLength_;
+
+    private Location(int segmentNo, long position, int contentLength, int dataLength)
+    {
+      segmentNo_ = segmentNo;
+      position_ = position;
+      contentLength_ = contentLength;
+      dataLength_ = dataLength;
+    }
+  }
+
+  /** Cache directory. */
+  private final File directory_;
+
+  /** Cache mode. */
+  private final Mode mode_;
+
+  /** Location of each key. */
+  private final Map<String,Location> index_ = new HashMap<>();
+
+  /** Channels of all segments, by segment number. */
+  private final List<FileChannel> segments_ = new ArrayList<>();
+
+  /**
+   * Open a response cache in the specified directory.
+   *
+   * @param directory  Cache directory. Created in RECORD mode if it doesn't exist. Non-null.
+   * @param mode       Cache mode. Non-null.
+   * @throws IllegalArgumentException  If directory or mode is null.
+   * @throws IOException  If the cache cannot be opened.
+   */
+  public ResponseCache(File directory, Mode mode)
+    throws IOException
+  {
+    if (directory == null)
+      throw new IllegalArgumentException("directory cannot be null");
+
+    if (mode == null)
+      throw new IllegalArgumentException("mode cannot be null");
+
+    directory_ = directory;
+    mode_ = mode;
+
+    if (mode_ == Mode.RECORD && !directory_.isDirectory() && !directory_.mkdirs())
+      throw new IOException("Unable to create cache directory: " + directory_);
+
+    // Open existing segments and index their content
+    while (true) {
+      File segmentFile = getSegmentFile(segments_.size());
+      if (!segmentFile.exists())
+        break;
+
+      FileChannel channel = mode_ == Mode.RECORD ?
+        FileChannel.open(segmentFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE) :
+        FileChannel.open(segmentFile.toPath(), StandardOpenOption.READ);
+
+      segments_.add(channel);
+      indexSegment(segments_.size() - 1);
+    }
+
+    if (mode_ == Mode.RECORD && segments_.isEmpty())
+      newSegment();
+
+    logger_.log(Level.INFO, () -> "Response cache opened in " + mode_ + " mode: " + index_.size() + " entries in " + directory_);
+  }
+
+  /**
+   * Return the file of the specified segment.
+   *
+   * @param segmentNo  Segment number. [0,&gt;.
+   * @return           The requested file. Never null.
+   */
+  private File getSegmentFile(int segmentNo)
+  {
+    return new File(directory_, String.format("segment-%05d.dat", segmentNo));
+  }
+
+  /**
+   * Start a new segment for writing.
+   *
+   * @throws IOException  If the segment cannot be created.
+   */
+  private void newSegment()
+    throws IOException
+  {
+    File segmentFile = getSegmentFile(segments_.size());
+    segments_.add(FileChannel.open(segmentFile.toPath(), StandardOpenOption.CREATE_NEW,
+                                                        StandardOpenOption.READ,
+                                                        StandardOpenOption.WRITE));
+  }
+
+  /**
+   * Read the record headers of the specified segment and add the
+   * record locations to the index.
+   *
+   * @param segmentNo  Segment to index. [0,&gt;.
+   * @throws IOException  If the segment cannot be read.
+   */
+  private void indexSegment(int segmentNo)
+    throws IOException
+  {
+    FileChannel channel = segments_.get(segmentNo);
+
+    long size = channel.size();
+    long position = 0L;
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+    while (position + HEADER_SIZE <= size) {
+      header.clear();
+      readFully(channel, header, position);
+      header.flip();
+
+      int magic = header.getInt();
+      int keyLength = header.getInt();
+      int contentLength = header.getInt();
+      int dataLength = header.getInt();
+
+      long dataPosition = position + HEADER_SIZE + keyLength;
+
+      if (magic != MAGIC || keyLength < 0 || dataLength < 0 || dataPosition + dataLength > size)
+        break;
+
+      ByteBuffer keyBuffer = ByteBuffer.allocate(keyLength);
+      readFully(channel, keyBuffer, position + HEADER_SIZE);
+      String key = new String(keyBuffer.array(), StandardCharsets.UTF_8);
+
+      index_.put(key, new Location(segmentNo, dataPosition, contentLength, dataLength));
+
+      position = dataPosition + dataLength;
+    }
+
+    // Cut off any partial record left by an interrupted recording
+    if (position < size) {
+      logger_.log(Level.WARNING, "Ignoring incomplete record at end of " + getSegmentFile(segmentNo));
+      if (mode_ == Mode.RECORD)
+        channel.truncate(position);
+    }
+  }
+
+  /**
+   * Fill the specified buffer from the given channel position.
+   *
+   * @param channel   Channel to read from. Non-null.
+   * @param buffer    Buffer to fill. Non-null.
+   * @param position  Channel position to start reading at.
+   * @throws IOException  If the read operation fails or end of file is reached.
+   */
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+    throws IOException
+  {
+    while (buffer.hasRemaining()) {
+      int nBytesRead = channel.read(buffer, position);
+      if (nBytesRead == -1)
+        throw new IOException("Unexpected end of cache segment");
+      position += nBytesRead;
+    }
+  }
+
+  /**
+   * Return the cache mode.
+   *
+   * @return  The cache mode. Never null.
+   */
+  public Mode getMode()
+  {
+    return mode_;
+  }
+
+  /**
+   * Return the cached content of the specified key.
+   *
+   * @param key  Key of content to get. Non-null.
+   * @return     The cached content, or null if not in cache.
+   * @throws IllegalArgumentException  If key is null.
+   * @throws IOException  If the cache cannot be read.
+   */
+  public synchronized byte[] get(String key)
+    throws IOException
+  {
+    if (key == null)
+      throw new IllegalArgumentException("key cannot be null");
+
+    Location location = index_.get(key);
+    if (location == null)
+      return null;
+
+    ByteBuffer data = ByteBuffer.allocate(location.dataLength_);
+    readFully(segments_.get(location.segmentNo_), data, location.position_);
+
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(data.array());
+
+      byte[] content = new byte[location.contentLength_];
+      int nBytes = 0;
+      while (nBytes < content.length && !inflater.finished()) {
+        int n = inflater.inflate(content, nBytes, content.length - nBytes);
+
+        // Truncated entry, like one written by a process that crashed. Would never finish
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+          throw new IOException("Corrupt cache entry: " + key);
+
+        nBytes += n;
+      }
+
+      if (nBytes < content.length)
+        throw new IOException("Corrupt cache entry: " + key);
+
+      return content;
+    }
+    catch (DataFormatException exception) {
+      throw new IOException("Corrupt cache entry: " + key, exception);
+    }
+    finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Append the specified content to the cache.
+   *
+   * @param key      Key of content. Non-null.
+   * @param content  Content to add. Non-null.
+   * @throws IllegalArgumentException  If key or content is null.
+   * @throws IllegalStateException  If the cache is not in RECORD mode.
+   * @throws IOException  If the cache cannot be written.
+   */
+  public synchronized void put(String key, byte[] content)
+    throws IOException
+  {
+    if (key == null)
+      throw new IllegalArgumentException("key cannot be null");
+
+    if (content == null)
+      throw new IllegalArgumentException("content cannot be null");
+
+    if (mode_ != Mode.RECORD)
+      throw new IllegalStateException("Cache is not in RECORD mode");
+
+    // Compress
+    ByteArrayOutputStream data = new ByteArrayOutputStream(content.length / 4 + 64);
+    Deflater deflater = new Deflater();
+    try {
+      deflater.setInput(content);
+      deflater.finish();
+
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        int nBytes = deflater.deflate(buffer);
+        data.write(buffer, 0, nBytes);
+      }
+    }
+    finally {
+      deflater.end();
+    }
+
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+    ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length + data.size());
+    record.putInt(MAGIC);
+    record.putInt(keyBytes.length);
+    record.putInt(content.length);
+    record.putInt(data.size());
+    record.put(keyBytes);
+    record.put(data.toByteArray());
+    record.flip();
+
+    // Roll over to a new segment if this one is full
+    FileChannel channel = segments_.get(segments_.size() - 1);
+    if (channel.size() > 0 && channel.size() + record.remaining() > MAX_SEGMENT_SIZE) {
+      newSegment();
+      channel = segments_.get(segments_.size() - 1);
+    }
+
+    long position = channel.size();
+    long writePosition = position;
+    while (record.hasRemaining())
+      writePosition += channel.write(record, writePosition);
+
+    index_.put(key, new Location(segments_.size() - 1, position + HEADER_SIZE + keyBytes.length, content.length, data.size()));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized void close()
+    throws IOException
+  {
+    for (FileChannel channel : segments_)
+      channel.close();
+
+    segments_.clear();
+  }
+}
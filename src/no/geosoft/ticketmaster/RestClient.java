@@ -0,0 +1,519 @@
+package no.geosoft.ticketmaster;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.json.Json;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+
+/**
+ * The common request path for <em>reading</em> from the Jira, YouTrack and
+ * Azure back-ends.
+ * <p>
+ * If a response cache is associated with the client, responses are recorded
+ * to or replayed from the cache depending on its mode. In replay mode the
+ * network is never accessed.
+ * <p>
+ * Responses are requested gzip or deflate compressed, and are decompressed
+ * while streaming into the JSON reader.
+ * <p>
+ * Each request is authorized by a credential from the credential pool of
+ * the client. A request rejected with 429 (Too Many Requests) parks its
+ * credential and is retried with another.
+ * <p>
+ * All requests to the network are recorded in the Metrics registry.
+ * Received bytes are counted as transferred, i.e. before decompression.
+ *
+ * @author <a href="mailto:jacob.dreyer@geosoft.no">Jacob Dreyer</a>
+ */
+public final class RestClient
+{
+  /** The logger instance. */
+  private static final Logger logger_ = Logger.getLogger(RestClient.class.getName());
+
+  /**
+   * An input stream counting the bytes read through it.
+   */
+  static final class CountingInputStream extends FilterInputStream
+  {
+    /** Number of bytes read. */
+    private long nBytes_ = 0;
+
+    CountingInputStream(InputStream inputStream)
+    {
+      super(inputStream);
+    }
+
+    /**
+     * Return the number of bytes read through this stream.
+     *
+     * @return  Number of bytes read. [0,&gt;.
+     */
+    long getNBytes()
+    {
+      return nBytes_;
+    }
+
+    @Override
+    public int read()
+      throws IOException
+    {
+      int b = super.read();
+      if (b != -1)
+        nBytes_++;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length)
+      throws IOException
+    {
+      int n = super.read(buffer, offset, length);
+      if (n > 0)
+        nBytes_ += n;
+      return n;
+    }
+  }
+
+  /**
+   * Reader of a response stream.
+   *
+   * @param <T>  Type of the response read.
+   */
+  @FunctionalInterface
+  private interface ResponseReader<T>
+  {
+    /**
+     * Read the response from the specified stream.
+     *
+     * @param inputStream  Decoded response stream. Non-null.
+     * @return             The response read. Never null.
+     * @throws IOException  If the stream cannot be read.
+     */
+    T read(InputStream inputStream)
+      throws IOException;
+  }
+
+  /** Accept-Encoding header of all requests. */
+  private static final String ACCEPT_ENCODING = "gzip, deflate";
+
+  /** Size of decompression buffers. */
+  private static final int INFLATE_BUFFER_SIZE = 16 * 1024;
+
+  /** Max number of attempts of a request that is rejected with 429 (Too Many Requests). */
+  private static final int MAX_ATTEMPTS = 5;
+
+  /** Credentials of the requests. */
+  private final CredentialPool credentials_;
+
+  /** Response cache. Null if responses are not cached. */
+  private final ResponseCache cache_;
+
+  /**
+   * Create a REST client.
+   *
+   * @param credentials  Credentials of the requests. Non-null.
+   * @param cache        Response cache. Null if responses should not be cached.
+   * @throws IllegalArgumentException  If credentials is null.
+   */
+  public RestClient(CredentialPool credentials, ResponseCache cache)
+  {
+    if (credentials == null)
+      throw new IllegalArgumentException("credentials cannot be null");
+
+    credentials_ = credentials;
+    cache_ = cache;
+  }
+
+  /**
+   * Return the credentials of this client.
+   *
+   * @return  The credential pool. Never null.
+   */
+  public CredentialPool getCredentials()
+  {
+    return credentials_;
+  }
+
+  /**
+   * Check if this client is replaying from the response cache.
+   *
+   * @return  True if replaying, false otherwise.
+   */
+  private boolean isReplay()
+  {
+    return cache_ != null && cache_.getMode() == ResponseCache.Mode.REPLAY;
+  }
+
+  /**
+   * Check if this client is recording to the response cache.
+   *
+   * @return  True if recording, false otherwise.
+   */
+  private boolean isRecord()
+  {
+    return cache_ != null && cache_.getMode() == ResponseCache.Mode.RECORD;
+  }
+
+  /**
+   * Return the cached response of the specified key.
+   *
+   * @param key  Cache key. Non-null.
+   * @return     The cached response. Never null.
+   * @throws FileNotFoundException  If the response is not in the cache.
+   * @throws IOException  If the cache cannot be read.
+   */
+  private byte[] replay(String key)
+    throws IOException
+  {
+    assert key != null : "key cannot be null";
+
+    logger_.log(Level.FINE, () -> "Replaying " + key);
+
+    byte[] content = cache_.get(key);
+    if (content == null)
+      throw new FileNotFoundException("Not in response cache: " + key);
+
+    return content;
+  }
+
+  /**
+   * Open a connection to the specified URL.
+   *
+   * @param urlString   URL to connect to. Non-null.
+   * @param method      HTTP method. Non-null.
+   * @param accept      Accept header. Null if not specified.
+   * @param credential  Credential of request. Non-null.
+   * @return            The connection. Never null.
+   * @throws IOException  If the connection cannot be opened.
+   */
+  private static HttpURLConnection openConnection(String urlString, String method, String accept, CredentialPool.Credential credential)
+    throws IOException
+  {
+    assert urlString != null : "urlString cannot be null";
+    assert method != null : "method cannot be null";
+    assert credential != null : "credential cannot be null";
+
+    URL url = Util.newUrl(urlString);
+
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod(method);
+    connection.setRequestProperty("Authorization", credential.getAuthorizationHeader());
+    if (accept != null)
+      connection.setRequestProperty("Accept", accept);
+    connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+
+    return connection;
+  }
+
+  /**
+   * Return a stream decoding the specified response stream according
+   * to the Content-Encoding of the connection.
+   *
+   * @param connection   Connection of response. Non-null.
+   * @param inputStream  Response stream as received. Non-null.
+   * @return             The decoded response stream. Never null.
+   * @throws IOException  If the stream cannot be decoded.
+   */
+  private static InputStream decode(HttpURLConnection connection, InputStream inputStream)
+    throws IOException
+  {
+    assert connection != null : "connection cannot be null";
+    assert inputStream != null : "inputStream cannot be null";
+
+    String encoding = connection.getContentEncoding();
+    if (encoding == null)
+      return inputStream;
+
+    encoding = encoding.trim().toLowerCase();
+
+    if (encoding.equals("gzip") || encoding.equals("x-gzip"))
+      return new GZIPInputStream(inputStream, INFLATE_BUFFER_SIZE);
+
+    if (encoding.equals("deflate")) {
+      // Should be zlib wrapped, but some servers send raw deflate data. A zlib
+      // header has compression method 8 and is a multiple of 31 as a 16-bit number.
+      PushbackInputStream pushbackStream = new PushbackInputStream(inputStream, 2);
+      int b0 = pushbackStream.read();
+      int b1 = b0 != -1 ? pushbackStream.read() : -1;
+      if (b1 != -1)
+        pushbackStream.unread(b1);
+      if (b0 != -1)
+        pushbackStream.unread(b0);
+
+      boolean isZlib = b1 != -1 && (b0 & 0x0f) == 8 && ((b0 << 8) | b1) % 31 == 0;
+      return new InflaterInputStream(pushbackStream, new Inflater(!isZlib), INFLATE_BUFFER_SIZE);
+    }
+
+    if (encoding.equals("identity"))
+      return inputStream;
+
+    throw new IOException(connection.getURL() + ": Unsupported Content-Encoding: " + encoding);
+  }
+
+  /**
+   * Return the response stream of the specified connection.
+   * If the request failed, the error response is included in the exception thrown.
+   *
+   * @param connection  Connection to get response stream of. Non-null.
+   * @return            The response stream. Never null.
+   * @throws IOException  If the request failed.
+   */
+  private static InputStream getResponseStream(HttpURLConnection connection)
+    throws IOException
+  {
+    assert connection != null : "connection cannot be null";
+
+    try {
+      return connection.getInputStream();
+    }
+    catch (IOException exception) {
+      InputStream errorStream = connection.getErrorStream();
+      String error = null;
+      try {
+        error = errorStream != null ? Util.getError(decode(connection, errorStream)) : null;
+      }
+      catch (IOException decodeException) {
+        exception.addSuppressed(decodeException);
+      }
+      Util.close(errorStream);
+
+      if (error == null)
+        throw exception;
+
+      throw new IOException(connection.getURL() + ": " + error, exception);
+    }
+  }
+
+  /**
+   * Check if the request of the specified connection was throttled and should be
+   * retried. If so, the retry is recorded in the Metrics registry. Used for the
+   * pushes of Azure as well.
+   *
+   * @param connection  Connection of request. Non-null.
+   * @param method      HTTP method. Non-null.
+   * @param urlString   URL of request. Non-null.
+   * @param attemptNo   Attempt number of the request. 1-based.
+   * @return            True if the request should be retried, false otherwise.
+   * @throws IOException  If no response was received.
+   */
+  static boolean isRetry(HttpURLConnection connection, String method, String urlString, int attemptNo)
+    throws IOException
+  {
+    assert connection != null : "connection cannot be null";
+
+    if (connection.getResponseCode() != 429 || attemptNo >= MAX_ATTEMPTS)
+      return false;
+
+    logger_.log(Level.INFO, () -> urlString + ": Throttled. Retrying with another credential");
+    Metrics.getInstance().recordRetry(Metrics.getEndpoint(method, urlString));
+    return true;
+  }
+
+  /**
+   * Execute the specified request and read the response while streaming.
+   *
+   * @param urlString  URL of request. Non-null.
+   * @param method     HTTP method. Non-null.
+   * @param accept     Accept header. Null if not specified.
+   * @param body       Request body (JSON). Null if none.
+   * @param reader     Reader of the response. Non-null.
+   * @param <T>        Type of the response read.
+   * @return           The response as read by the reader. Never null.
+   * @throws IOException  If the request failed.
+   */
+  private <T> T fetch(String urlString, String method, String accept, String body, ResponseReader<T> reader)
+    throws IOException
+  {
+    assert reader != null : "reader cannot be null";
+
+    for (int attemptNo = 1; ; attemptNo++) {
+      CredentialPool.Credential credential = credentials_.acquire();
+
+      HttpURLConnection connection = null;
+      CountingInputStream countingStream = null;
+      InputStream inputStream = null;
+
+      long startTime = System.nanoTime();
+      long nBytesOut = 0;
+
+      try {
+        connection = openConnection(urlString, method, accept, credential);
+
+        if (body != null) {
+          byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+          connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+          connection.setDoOutput(true);
+          try (OutputStream outputStream = connection.getOutputStream()) {
+            outputStream.write(bodyBytes);
+          }
+          nBytesOut = bodyBytes.length;
+        }
+
+        if (isRetry(connection, method, urlString, attemptNo))
+          continue;
+
+        countingStream = new CountingInputStream(getResponseStream(connection));
+        inputStream = decode(connection, countingStream);
+        return reader.read(inputStream);
+      }
+      finally {
+        Metrics.getInstance().recordRequest(Metrics.getEndpoint(method, urlString), Metrics.getStatusCode(connection),
+                                            System.nanoTime() - startTime, nBytesOut, countingStream != null ? countingStream.nBytes_ : 0L);
+        credentials_.release(credential, connection);
+        Util.close(inputStream != null ? inputStream : countingStream);
+        Util.close(connection);
+      }
+    }
+  }
+
+  /**
+   * Parse the specified JSON stream.
+   *
+   * @param inputStream  Stream to parse. Non-null.
+   * @return             The parsed JSON. Never null.
+   */
+  private static JsonValue readJson(InputStream inputStream)
+  {
+    assert inputStream != null : "inputStream cannot be null";
+
+    try (JsonReader reader = Json.createReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+      return reader.read();
+    }
+  }
+
+  /**
+   * Execute the specified request and parse the JSON response.
+   *
+   * @param urlString  URL of request. Non-null.
+   * @param method     HTTP method. Non-null.
+   * @param body       Request body (JSON). Null if none.
+   * @return           The parsed response. Never null.
+   * @throws IOException  If the request failed.
+   */
+  private JsonValue requestJson(String urlString, String method, String body)
+    throws IOException
+  {
+    String key = method + " " + urlString + (body != null ? "\n" + body : "");
+
+    if (isReplay())
+      return readJson(new ByteArrayInputStream(replay(key)));
+
+    if (isRecord()) {
+      byte[] content = fetch(urlString, method, "application/json", body, InputStream::readAllBytes);
+      cache_.put(key, content);
+      return readJson(new ByteArrayInputStream(content));
+    }
+
+    // Not cached: Stream directly into the JSON reader
+    return fetch(urlString, method, "application/json", body, RestClient::readJson);
+  }
+
+  /**
+   * GET the content of the specified URL.
+   *
+   * @param urlString  URL to get. Non-null.
+   * @return           The content. Never null.
+   * @throws IllegalArgumentException  If urlString is null.
+   * @throws IOException  If the request failed.
+   */
+  public byte[] get(String urlString)
+    throws IOException
+  {
+    if (urlString == null)
+      throw new IllegalArgumentException("urlString cannot be null");
+
+    String key = "GET " + urlString;
+
+    if (isReplay())
+      return replay(key);
+
+    byte[] content = fetch(urlString, "GET", null, null, InputStream::readAllBytes);
+
+    if (isRecord())
+      cache_.put(key, content);
+
+    return content;
+  }
+
+  /**
+   * GET the binary content of the specified URL, like an attachment.
+   * The content is reserved against the global ByteBudget while streaming,
+   * and is spilled to disk if it doesn't fit.
+   *
+   * @param urlString  URL to get. Non-null.
+   * @param size       Expected content size in bytes. -1 if unknown.
+   * @return           The content. Never null. Must be closed by the caller.
+   * @throws IllegalArgumentException  If urlString is null.
+   * @throws IOException  If the request failed.
+   */
+  public AttachmentContent getContent(String urlString, long size)
+    throws IOException
+  {
+    if (urlString == null)
+      throw new IllegalArgumentException("urlString cannot be null");
+
+    // Cached content is in memory anyway
+    if (isReplay() || isRecord()) {
+      byte[] content = get(urlString);
+      return AttachmentContent.read(new ByteArrayInputStream(content), content.length);
+    }
+
+    return fetch(urlString, "GET", null, null, inputStream -> AttachmentContent.read(inputStream, size));
+  }
+
+  /**
+   * GET the JSON content of the specified URL.
+   *
+   * @param urlString  URL to get. Non-null.
+   * @return           The JSON content. Never null.
+   * @throws IllegalArgumentException  If urlString is null.
+   * @throws IOException  If the request failed.
+   */
+  public JsonValue getJson(String urlString)
+    throws IOException
+  {
+    if (urlString == null)
+      throw new IllegalArgumentException("urlString cannot be null");
+
+    return requestJson(urlString, "GET", null);
+  }
+
+  /**
+   * POST the specified JSON query and return the JSON response.
+   * To be used for read-only queries (like Azure WIQL) only, as
+   * the request is not sent to the back-end when replaying.
+   *
+   * @param urlString  URL to post to. Non-null.
+   * @param query      JSON query. Non-null.
+   * @return           The JSON response. Never null.
+   * @throws IllegalArgumentException  If urlString or query is null.
+   * @throws IOException  If the request failed.
+   */
+  public JsonValue query(String urlString, JsonValue query)
+    throws IOException
+  {
+    if (urlString == null)
+      throw new IllegalArgumentException("urlString cannot be null");
+
+    if (query == null)
+      throw new IllegalArgumentException("query cannot be null");
+
+    return requestJson(urlString, "POST", query.toString());
+  }
+}
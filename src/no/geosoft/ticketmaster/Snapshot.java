@@ -0,0 +1,508 @@
+package no.geosoft.ticketmaster;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.spi.JsonProvider;
+
+/**
+ * Compact binary snapshot of a sequence of JSON records.
+ * <p>
+ * Used for dumping pulled issues (together with their resolved parent and
+ * link references) so that later runs can reload them without having to
+ * pull and re-parse JSON text. The file has the following layout:
+ * <pre>
+ *   int       magic
+ *   int       version
+ *   record[]  records
+ *   varint    number of strings
+ *   string[]  string table (varint length + UTF-8 bytes)
+ *   int       number of records
+ *   long[]    record offsets
+ *   long      offset of string table
+ *   int       magic
+ * </pre>
+ * Each record is a JSON value in a binary tree form: a tag byte followed
+ * by the value. Object keys and short strings are interned in the string
+ * table, numbers are stored as variable length integers when integral.
+ * <p>
+ * The reader memory maps the file in windows so that records can be
+ * decoded directly from the page cache.
+ *
+ * @author <a href="mailto:jacob.dreyer@geosoft.no">Jacob Dreyer</a>
+ */
+public final class Snapshot
+{
+  /** Magic number identifying a snapshot file. */
+  private static final int MAGIC = 0x544d5331; // "TMS1"
+
+  /** Snapshot format version. */
+  private static final int VERSION = 1;
+
+  /** Strings up to this length (in characters) are interned. */
+  private static final int MAX_INTERNED_LENGTH = 64;
+
+  /** Size of memory mapped windows. */
+  private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+  /** Tags identifying the value types. */
+  private static final byte TAG_NULL = 0;
+  private static final byte TAG_TRUE = 1;
+  private static final byte TAG_FALSE = 2;
+  private static final byte TAG_LONG = 3;
+  private static final byte TAG_DECIMAL = 4;
+  private static final byte TAG_STRING = 5;
+  private static final byte TAG_STRING_REF = 6;
+  private static final byte TAG_ARRAY = 7;
+  private static final byte TAG_OBJECT = 8;
+
+  /**
+   * Private constructor to prevent client instantiation.
+   */
+  private Snapshot()
+  {
+    assert false : "This constructor should never be called";
+  }
+
+  /**
+   * Class for writing a snapshot file.
+   */
+  public static final class Writer implements Closeable
+  {
+    /** The output stream. */
+    private final DataOutputStream outputStream_;
+
+    /** Index of every interned string. */
+    private final Map<String,Integer> stringIndices_ = new HashMap<>();
+
+    /** All interned strings, in index order. */
+    private final List<String> strings_ = new ArrayList<>();
+
+    /** Offset of each record written. */
+    private final List<Long> offsets_ = new ArrayList<>();
+
+    /** Buffer for the record being encoded. */
+    private final ByteArrayOutputStream record_ = new ByteArrayOutputStream(64 * 1024);
+
+    /** Current file position. */
+    private long position_;
+
+    /**
+     * Create a snapshot writer for the specified file.
+     *
+     * @param file  File to write. Non-null.
+     * @throws IllegalArgumentException  If file is null.
+     * @throws IOException  If the file cannot be created.
+     */
+    public Writer(File file)
+      throws IOException
+    {
+      if (file == null)
+        throw new IllegalArgumentException("file cannot be null");
+
+      outputStream_ = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024));
+      outputStream_.writeInt(MAGIC);
+      outputStream_.writeInt(VERSION);
+      position_ = 8;
+    }
+
+    /**
+     * Write the specified record to the snapshot.
+     *
+     * @param record  Record to write. Non-null.
+     * @throws IllegalArgumentException  If record is null.
+     * @throws IOException  If the write operation fails.
+     */
+    public void write(JsonValue record)
+      throws IOException
+    {
+      if (record == null)
+        throw new IllegalArgumentException("record cannot be null");
+
+      record_.reset();
+      encode(record);
+
+      offsets_.add(position_);
+      record_.writeTo(outputStream_);
+      position_ += record_.size();
+    }
+
+    /**
+     * Return index of the specified string in the string table. Add it if not there.
+     *
+     * @param string  String to get index of. Non-null.
+     * @return        Index of string.
+     */
+    private int intern(String string)
+    {
+      Integer index = stringIndices_.get(string);
+      if (index == null) {
+        index = strings_.size();
+        strings_.add(string);
+        stringIndices_.put(string, index);
+      }
+
+      return index;
+    }
+
+    /**
+     * Encode the specified value into the record buffer.
+     *
+     * @param value  Value to encode. Non-null.
+     */
+    private void encode(JsonValue value)
+    {
+      switch (value.getValueType()) {
+        case NULL :
+          record_.write(TAG_NULL);
+          break;
+
+        case TRUE :
+          record_.write(TAG_TRUE);
+          break;
+
+        case FALSE :
+          record_.write(TAG_FALSE);
+          break;
+
+        case NUMBER :
+          JsonNumber number = (JsonNumber) value;
+          if (number.isIntegral() && number.bigDecimalValue().abs().compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) < 0) {
+            record_.write(TAG_LONG);
+            long v = number.longValue();
+            writeVarLong(record_, (v << 1) ^ (v >> 63)); // Zig-zag
+          }
+          else {
+            record_.write(TAG_DECIMAL);
+            writeString(record_, number.bigDecimalValue().toString());
+          }
+          break;
+
+        case STRING :
+          String string = ((JsonString) value).getString();
+          if (string.length() <= MAX_INTERNED_LENGTH) {
+            record_.write(TAG_STRING_REF);
+            writeVarLong(record_, intern(string));
+          }
+          else {
+            record_.write(TAG_STRING);
+            writeString(record_, string);
+          }
+          break;
+
+        case ARRAY :
+          JsonArray array = (JsonArray) value;
+          record_.write(TAG_ARRAY);
+          writeVarLong(record_, array.size());
+          for (JsonValue element : array)
+            encode(element);
+          break;
+
+        case OBJECT :
+          JsonObject object = (JsonObject) value;
+          record_.write(TAG_OBJECT);
+          writeVarLong(record_, object.size());
+          for (Map.Entry<String,JsonValue> entry : object.entrySet()) {
+            writeVarLong(record_, intern(entry.getKey()));
+            encode(entry.getValue());
+          }
+          break;
+
+        default :
+          assert false : "Unexpected value type: " + value.getValueType();
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close()
+      throws IOException
+    {
+      long tableOffset = position_;
+
+      // String table
+      ByteArrayOutputStream table = new ByteArrayOutputStream();
+      writeVarLong(table, strings_.size());
+      for (String string : strings_)
+        writeString(table, string);
+      table.writeTo(outputStream_);
+
+      // Record offsets
+      outputStream_.writeInt(offsets_.size());
+      for (long offset : offsets_)
+        outputStream_.writeLong(offset);
+
+      // Trailer
+      outputStream_.writeLong(tableOffset);
+      outputStream_.writeInt(MAGIC);
+
+      outputStream_.close();
+    }
+  }
+
+  /**
+   * Class for reading a snapshot file.
+   */
+  public static final class Reader implements Closeable
+  {
+    /** Provider used for creating JSON values. Cached as lookup is costly. */
+    private final JsonProvider provider_ = JsonProvider.provider();
+
+    /** The file channel. */
+    private final FileChannel channel_;
+
+    /** The string table. */
+    private final String[] strings_;
+
+    /** Offset of each record, plus the end of the last. */
+    private final long[] offsets_;
+
+    /** Current memory mapped window. Null if none. */
+    private MappedByteBuffer window_;
+
+    /** File position of the current window. */
+    private long windowStart_;
+
+    /**
+     * Open the specified snapshot file for reading.
+     *
+     * @param file  File to read. Non-null.
+     * @throws IllegalArgumentException  If file is null.
+     * @throws IOException  If the file cannot be opened or is not a valid snapshot.
+     */
+    public Reader(File file)
+      throws IOException
+    {
+      if (file == null)
+        throw new IllegalArgumentException("file cannot be null");
+
+      channel_ = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+      try {
+        long size = channel_.size();
+        if (size < 20)
+          throw new IOException("Invalid snapshot: " + file);
+
+        ByteBuffer trailer = channel_.map(FileChannel.MapMode.READ_ONLY, size - 12, 12);
+        long tableOffset = trailer.getLong();
+        if (trailer.getInt() != MAGIC)
+          throw new IOException("Invalid snapshot: " + file);
+
+        ByteBuffer header = channel_.map(FileChannel.MapMode.READ_ONLY, 0, 8);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION)
+          throw new IOException("Unsupported snapshot: " + file);
+
+        ByteBuffer table = channel_.map(FileChannel.MapMode.READ_ONLY, tableOffset, size - 12 - tableOffset);
+
+        strings_ = new String[(int) readVarLong(table)];
+        for (int i = 0; i < strings_.length; i++)
+          strings_[i] = readString(table);
+
+        int nRecords = table.getInt();
+        offsets_ = new long[nRecords + 1];
+        for (int i = 0; i < nRecords; i++)
+          offsets_[i] = table.getLong();
+        offsets_[nRecords] = tableOffset;
+      }
+      catch (IOException | RuntimeException exception) {
+        channel_.close();
+        throw exception;
+      }
+    }
+
+    /**
+     * Return number of records in the snapshot.
+     *
+     * @return  Number of records. [0,&gt;.
+     */
+    public int size()
+    {
+      return offsets_.length - 1;
+    }
+
+    /**
+     * Read the specified record.
+     *
+     * @param recordNo  Record to read. [0,size&gt;.
+     * @return          The requested record. Never null.
+     * @throws IllegalArgumentException  If recordNo is out of bounds.
+     * @throws IOException  If the read operation fails.
+     */
+    public JsonValue read(int recordNo)
+      throws IOException
+    {
+      if (recordNo < 0 || recordNo >= size())
+        throw new IllegalArgumentException("Invalid recordNo: " + recordNo);
+
+      long offset = offsets_[recordNo];
+      long length = offsets_[recordNo + 1] - offset;
+
+      // Map a new window if the record is outside the current
+      if (window_ == null || offset < windowStart_ || offset + length > windowStart_ + window_.capacity()) {
+        long windowSize = Math.min(Math.max(WINDOW_SIZE, length), channel_.size() - offset);
+        window_ = channel_.map(FileChannel.MapMode.READ_ONLY, offset, windowSize);
+        windowStart_ = offset;
+      }
+
+      ByteBuffer buffer = window_.duplicate();
+      buffer.position((int) (offset - windowStart_));
+      buffer.limit((int) (offset - windowStart_ + length));
+
+      try {
+        return decode(buffer);
+      }
+      catch (BufferUnderflowException | IndexOutOfBoundsException exception) {
+        throw new IOException("Corrupt snapshot record: " + recordNo, exception);
+      }
+    }
+
+    /**
+     * Decode a value from the specified buffer.
+     *
+     * @param buffer  Buffer to decode from. Non-null.
+     * @return        The decoded value. Never null.
+     * @throws IOException  If the buffer content is invalid.
+     */
+    private JsonValue decode(ByteBuffer buffer)
+      throws IOException
+    {
+      byte tag = buffer.get();
+
+      switch (tag) {
+        case TAG_NULL :
+          return JsonValue.NULL;
+
+        case TAG_TRUE :
+          return JsonValue.TRUE;
+
+        case TAG_FALSE :
+          return JsonValue.FALSE;
+
+        case TAG_LONG :
+          long v = readVarLong(buffer);
+          return provider_.createValue((v >>> 1) ^ -(v & 1)); // Zig-zag
+
+        case TAG_DECIMAL :
+          return provider_.createValue(new BigDecimal(readString(buffer)));
+
+        case TAG_STRING :
+          return provider_.createValue(readString(buffer));
+
+        case TAG_STRING_REF :
+          return provider_.createValue(strings_[(int) readVarLong(buffer)]);
+
+        case TAG_ARRAY :
+          int nElements = (int) readVarLong(buffer);
+          JsonArrayBuilder arrayBuilder = provider_.createArrayBuilder();
+          for (int i = 0; i < nElements; i++)
+            arrayBuilder.add(decode(buffer));
+          return arrayBuilder.build();
+
+        case TAG_OBJECT :
+          int nMembers = (int) readVarLong(buffer);
+          JsonObjectBuilder objectBuilder = provider_.createObjectBuilder();
+          for (int i = 0; i < nMembers; i++) {
+            String key = strings_[(int) readVarLong(buffer)];
+            objectBuilder.add(key, decode(buffer));
+          }
+          return objectBuilder.build();
+
+        default :
+          throw new IOException("Invalid snapshot tag: " + tag);
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close()
+      throws IOException
+    {
+      window_ = null;
+      channel_.close();
+    }
+  }
+
+  /**
+   * Write the specified non-negative value as a variable length integer.
+   *
+   * @param outputStream  Stream to write to. Non-null.
+   * @param value         Value to write.
+   */
+  private static void writeVarLong(ByteArrayOutputStream outputStream, long value)
+  {
+    while ((value & ~0x7fL) != 0) {
+      outputStream.write((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    outputStream.write((int) value);
+  }
+
+  /**
+   * Read a variable length integer from the specified buffer.
+   *
+   * @param buffer  Buffer to read from. Non-null.
+   * @return        The value read.
+   */
+  private static long readVarLong(ByteBuffer buffer)
+  {
+    long value = 0L;
+    int shift = 0;
+    while (true) {
+      byte b = buffer.get();
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+      shift += 7;
+    }
+  }
+
+  /**
+   * Write the specified string as length and UTF-8 bytes.
+   *
+   * @param outputStream  Stream to write to. Non-null.
+   * @param string        String to write. Non-null.
+   */
+  private static void writeString(ByteArrayOutputStream outputStream, String string)
+  {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    writeVarLong(outputStream, bytes.length);
+    outputStream.write(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Read a string from the specified buffer.
+   *
+   * @param buffer  Buffer to read from. Non-null.
+   * @return        The string read. Never null.
+   */
+  private static String readString(ByteBuffer buffer)
+  {
+    int length = (int) readVarLong(buffer);
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,903 @@
+package no.geosoft.ticketmaster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process HTTP server standing in for the Jira, YouTrack and Azure
+ * back-ends, so that a migration can be run (and measured) without
+ * touching the production instances.
+ * <p>
+ * The Jira and YouTrack endpoints serve the issues of a SyntheticDataset each.
+ * The Azure endpoints accept work items, attachments, comments and links
+ * and keep enough state (IDs, titles, descriptions, comment counts and relations)
+ * to answer the queries the migration makes, and the ones of a MigrationVerifier. Each request can be delayed to simulate network latency.
+ * JSON responses are gzip compressed if the client accepts it, as the real
+ * back-ends do.
+ * <p>
+ * The three back-ends are served under /jira, /youtrack and /azure of the same port.
+ * Point the migration to them through the ticketmaster.jira.url, ticketmaster.youtrack.url
+ * and ticketmaster.azure.url system properties, see getJiraUrl() etc.
+ *
+ * @author <a href="mailto:jacob.dreyer@geosoft.no">Jacob Dreyer</a>
+ */
+public final class StubServer
+{
+  /** The logger instance. */
+  private static final Logger logger_ = Logger.getLogger(StubServer.class.getName());
+
+  /** ID of the first Azure work item created. */
+  private static final int FIRST_WORK_ITEM_ID = 1000;
+
+  /** Pattern for the ID range of a WIQL query. */
+  private static final Pattern WIQL_RANGE_PATTERN = Pattern.compile("\\[System\\.Id\\]\\s*>=\\s*(\\d+).*\\[System\\.Id\\]\\s*<\\s*(\\d+)");
+
+  /**
+   * An Azure work item as kept by the server.
+   */
+  private static final class WorkItem
+  {
+    /** Work item ID. */
+    private final int id_;
+
+    /** Work item type. */
+    private final String type_;
+
+    /** Work item title. */
+    private final String title_;
+
+    /** Work item description. Null if none. */
+    private volatile String description_ = null;
+
+    /** Number of comments. */
+    private final AtomicInteger nComments_ = new AtomicInteger(0);
+
+    /** Relations as (rel, url) objects. */
+    private final List<JsonObject> relations_ = new ArrayList<>();
+
+    private WorkItem(int id, String type, String title)
+    {
+      id_ = id;
+      type_ = type;
+      title_ = title;
+    }
+  }
+
+  /** The dataset served as Jira issues. */
+  private final SyntheticDataset jiraDataset_;
+
+  /** The dataset served as YouTrack issues. */
+  private final SyntheticDataset youTrackDataset_;
+
+  /** Fixed delay of each request in milliseconds. */
+  private final int latency_;
+
+  /** Additional random delay of each request in milliseconds. */
+  private final int jitter_;
+
+  /** The HTTP server. */
+  private final HttpServer server_;
+
+  /** Executor serving the requests. */
+  private final ExecutorService executor_;
+
+  /** Azure work items by ID. */
+  private final Map<Integer,WorkItem> workItems_ = new ConcurrentHashMap<>();
+
+  /** Sizes of uploaded Azure attachments by URL. */
+  private final Map<String,Long> attachmentSizes_ = new ConcurrentHashMap<>();
+
+  /** ID of next Azure work item. */
+  private final AtomicInteger nextWorkItemId_ = new AtomicInteger(FIRST_WORK_ITEM_ID);
+
+  /** Number of requests served. */
+  private final AtomicLong nRequests_ = new AtomicLong(0);
+
+  /** Number of Azure comments received. */
+  private final AtomicLong nComments_ = new AtomicLong(0);
+
+  /** Number of Azure attachment bytes received. */
+  private final AtomicLong nAttachmentBytes_ = new AtomicLong(0);
+
+  /** Number of response bytes sent. */
+  private final AtomicLong nBytesSent_ = new AtomicLong(0);
+
+  /**
+   * Create a stub server for the specified datasets. The server
+   * listens on a free port of the loopback interface.
+   *
+   * @param jiraDataset      Dataset to serve as Jira issues. Non-null.
+   * @param youTrackDataset  Dataset to serve as YouTrack issues. Non-null.
+   * @param latency          Fixed delay of each request in milliseconds. [0,&gt;.
+   * @param jitter           Additional random delay of each request in milliseconds,
+   *                         uniformly distributed in [0,jitter]. [0,&gt;.
+   * @throws IllegalArgumentException  If jiraDataset or youTrackDataset is null,
+   *                         or latency or jitter is negative.
+   * @throws IOException  If the server socket cannot be created.
+   */
+  public StubServer(SyntheticDataset jiraDataset, SyntheticDataset youTrackDataset, int latency, int jitter)
+    throws IOException
+  {
+    if (jiraDataset == null)
+      throw new IllegalArgumentException("jiraDataset cannot be null");
+
+    if (youTrackDataset == null)
+      throw new IllegalArgumentException("youTrackDataset cannot be null");
+
+    if (latency < 0)
+      throw new IllegalArgumentException("Invalid latency: " + latency);
+
+    if (jitter < 0)
+      throw new IllegalArgumentException("Invalid jitter: " + jitter);
+
+    jiraDataset_ = jiraDataset;
+    youTrackDataset_ = youTrackDataset;
+    latency_ = latency;
+    jitter_ = jitter;
+
+    server_ = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+
+    AtomicInteger threadNo = new AtomicInteger(0);
+    executor_ = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "stub-server-" + threadNo.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    server_.setExecutor(executor_);
+
+    server_.createContext("/jira", exchange -> handle(exchange, this::handleJira));
+    server_.createContext("/youtrack", exchange -> handle(exchange, this::handleYouTrack));
+    server_.createContext("/azure", exchange -> handle(exchange, this::handleAzure));
+  }
+
+  /**
+   * A request handler that produces its response through the given exchange.
+   */
+  @FunctionalInterface
+  private interface Handler
+  {
+    void handle(HttpExchange exchange, String path, Map<String,String> parameters)
+      throws IOException;
+  }
+
+  /**
+   * Start the server.
+   */
+  public void start()
+  {
+    server_.start();
+    logger_.log(Level.INFO, "Stub server listening on port " + server_.getAddress().getPort());
+  }
+
+  /**
+   * Stop the server.
+   */
+  public void stop()
+  {
+    server_.stop(0);
+    executor_.shutdownNow();
+  }
+
+  /**
+   * Return the base URL of the server.
+   *
+   * @return  Base URL of the server. Never null.
+   */
+  private String getBaseUrl()
+  {
+    return "http://" + server_.getAddress().getHostString() + ":" + server_.getAddress().getPort();
+  }
+
+  /**
+   * Return the base URL of the Jira stand-in.
+   *
+   * @return  Base URL of the Jira stand-in. Never null.
+   */
+  public String getJiraUrl()
+  {
+    return getBaseUrl() + "/jira";
+  }
+
+  /**
+   * Return the base URL of the YouTrack stand-in.
+   *
+   * @return  Base URL of the YouTrack stand-in. Never null.
+   */
+  public String getYouTrackUrl()
+  {
+    return getBaseUrl() + "/youtrack";
+  }
+
+  /**
+   * Return the base URL of the Azure stand-in.
+   *
+   * @return  Base URL of the Azure stand-in. Never null.
+   */
+  public String getAzureUrl()
+  {
+    return getBaseUrl() + "/azure";
+  }
+
+  /**
+   * Return number of requests served so far.
+   *
+   * @return  Number of requests served so far. [0,&gt;.
+   */
+  public long getNRequests()
+  {
+    return nRequests_.get();
+  }
+
+  /**
+   * Return number of Azure work items created so far.
+   *
+   * @return  Number of Azure work items created so far. [0,&gt;.
+   */
+  public int getNWorkItems()
+  {
+    return workItems_.size();
+  }
+
+  /**
+   * Return number of Azure comments received so far.
+   *
+   * @return  Number of Azure comments received so far. [0,&gt;.
+   */
+  public long getNComments()
+  {
+    return nComments_.get();
+  }
+
+  /**
+   * Return number of Azure attachment bytes received so far.
+   *
+   * @return  Number of Azure attachment bytes received so far. [0,&gt;.
+   */
+  public long getNAttachmentBytes()
+  {
+    return nAttachmentBytes_.get();
+  }
+
+  /**
+   * Return number of response bytes sent so far, as transferred.
+   *
+   * @return  Number of response bytes sent so far. [0,&gt;.
+   */
+  public long getNBytesSent()
+  {
+    return nBytesSent_.get();
+  }
+
+  /**
+   * Handle the specified exchange: Inject latency, parse the request
+   * and delegate to the given handler.
+   *
+   * @param exchange  Exchange to handle. Non-null.
+   * @param handler   Handler of the specific back-end. Non-null.
+   */
+  private void handle(HttpExchange exchange, Handler handler)
+  {
+    assert exchange != null : "exchange cannot be null";
+    assert handler != null : "handler cannot be null";
+
+    nRequests_.incrementAndGet();
+
+    try {
+      int delay = latency_ + (jitter_ > 0 ? ThreadLocalRandom.current().nextInt(jitter_ + 1) : 0);
+      if (delay > 0)
+        TimeUnit.MILLISECONDS.sleep(delay);
+
+      // Path below the context, with empty segments collapsed
+      String path = exchange.getRequestURI().getRawPath().substring(exchange.getHttpContext().getPath().length());
+      path = path.replaceAll("/+", "/");
+
+      handler.handle(exchange, path, getParameters(exchange.getRequestURI().getRawQuery()));
+    }
+    catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    }
+    catch (IOException | RuntimeException exception) {
+      logger_.log(Level.WARNING, "Stub request failed: " + exchange.getRequestURI(), exception);
+      try {
+        send(exchange, 500, new byte[0]);
+      }
+      catch (IOException exception2) {
+        // Response already started. Nothing more to do.
+      }
+    }
+    finally {
+      String contentLength = exchange.getResponseHeaders().getFirst("Content-length");
+      if (contentLength != null)
+        nBytesSent_.addAndGet(Long.parseLong(contentLength));
+
+      exchange.close();
+    }
+  }
+
+  /**
+   * Parse the specified query string.
+   *
+   * @param query  Raw query string. Null if none.
+   * @return       The query parameters. Never null.
+   */
+  private static Map<String,String> getParameters(String query)
+  {
+    Map<String,String> parameters = new HashMap<>();
+    if (query == null)
+      return parameters;
+
+    for (String parameter : query.split("&")) {
+      int pos = parameter.indexOf('=');
+      String name = pos == -1 ? parameter : parameter.substring(0, pos);
+      String value = pos == -1 ? "" : parameter.substring(pos + 1);
+      parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+    }
+
+    return parameters;
+  }
+
+  /**
+   * Return the specified integer parameter.
+   *
+   * @param parameters    Query parameters. Non-null.
+   * @param name          Name of parameter. Non-null.
+   * @param defaultValue  Value to return if the parameter is missing or invalid.
+   * @return              The requested parameter value.
+   */
+  private static int getInt(Map<String,String> parameters, String name, int defaultValue)
+  {
+    try {
+      String value = parameters.get(name);
+      return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+    catch (NumberFormatException exception) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Read the request body of the specified exchange.
+   *
+   * @param exchange  Exchange to read body of. Non-null.
+   * @return          The request body. Never null.
+   * @throws IOException  If the read operation fails.
+   */
+  private static byte[] readBody(HttpExchange exchange)
+    throws IOException
+  {
+    try (InputStream inputStream = exchange.getRequestBody()) {
+      return inputStream.readAllBytes();
+    }
+  }
+
+  /**
+   * Read the request body of the specified exchange as JSON.
+   *
+   * @param exchange  Exchange to read body of. Non-null.
+   * @return          The request body. Never null.
+   * @throws IOException  If the read operation fails.
+   */
+  private static JsonValue readJson(HttpExchange exchange)
+    throws IOException
+  {
+    String body = new String(readBody(exchange), StandardCharsets.UTF_8);
+    try (JsonReader reader = Json.createReader(new StringReader(body))) {
+      return reader.readValue();
+    }
+  }
+
+  /**
+   * Send the specified response.
+   *
+   * @param exchange  Exchange to respond to. Non-null.
+   * @param status    HTTP status code.
+   * @param content   Response content. Non-null.
+   * @throws IOException  If the write operation fails.
+   */
+  private static void send(HttpExchange exchange, int status, byte[] content)
+    throws IOException
+  {
+    if (content.length == 0) {
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+
+    exchange.sendResponseHeaders(status, content.length);
+    try (OutputStream outputStream = exchange.getResponseBody()) {
+      outputStream.write(content);
+    }
+  }
+
+  /**
+   * Send the specified JSON response with status OK.
+   *
+   * @param exchange  Exchange to respond to. Non-null.
+   * @param json      Response content. Non-null.
+   * @throws IOException  If the write operation fails.
+   */
+  private static void sendJson(HttpExchange exchange, JsonValue json)
+    throws IOException
+  {
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+
+    byte[] content = json.toString().getBytes(StandardCharsets.UTF_8);
+
+    String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+    if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+      ByteArrayOutputStream byteStream = new ByteArrayOutputStream(content.length / 4);
+      try (GZIPOutputStream gzipStream = new GZIPOutputStream(byteStream)) {
+        gzipStream.write(content);
+      }
+      content = byteStream.toByteArray();
+      exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+    }
+
+    send(exchange, 200, content);
+  }
+
+  /**
+   * Send a not found response.
+   *
+   * @param exchange  Exchange to respond to. Non-null.
+   * @throws IOException  If the write operation fails.
+   */
+  private static void sendNotFound(HttpExchange exchange)
+    throws IOException
+  {
+    send(exchange, 404, ("Not found: " + exchange.getRequestURI()).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Send the specified attachment content.
+   *
+   * @param exchange      Exchange to respond to. Non-null.
+   * @param dataset       Dataset of attachment. Non-null.
+   * @param attachmentId  Attachment ID as "issueNo-attachmentNo". Non-null.
+   * @throws IOException  If the write operation fails.
+   */
+  private static void sendAttachment(HttpExchange exchange, SyntheticDataset dataset, String attachmentId)
+    throws IOException
+  {
+    String[] tokens = attachmentId.split("-");
+    try {
+      int issueNo = Integer.parseInt(tokens[0]);
+      int attachmentNo = Integer.parseInt(tokens[1]);
+      if (issueNo >= 0 && issueNo < dataset.getNIssues() && attachmentNo >= 0 && attachmentNo < dataset.getNAttachments()) {
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        send(exchange, 200, dataset.getAttachmentContent(issueNo, attachmentNo));
+        return;
+      }
+    }
+    catch (NumberFormatException | ArrayIndexOutOfBoundsException exception) {
+      // Fall through
+    }
+
+    sendNotFound(exchange);
+  }
+
+  /**
+   * Handle a Jira request.
+   *
+   * @param exchange    Exchange to handle. Non-null.
+   * @param path        Request path below the Jira context. Non-null.
+   * @param parameters  Query parameters. Non-null.
+   * @throws IOException  If the response cannot be sent.
+   */
+  private void handleJira(HttpExchange exchange, String path, Map<String,String> parameters)
+    throws IOException
+  {
+    if (path.equals("/rest/api/2/search")) {
+      int startAt = getInt(parameters, "startAt", 0);
+      int maxResults = getInt(parameters, "maxResults", 50);
+
+      JsonArrayBuilder issues = Json.createArrayBuilder();
+      for (int issueNo = startAt; issueNo < Math.min(jiraDataset_.getNIssues(), startAt + maxResults); issueNo++)
+        issues.add(jiraDataset_.getJiraIssue(issueNo, getJiraUrl()));
+
+      sendJson(exchange, Json.createObjectBuilder()
+               .add("startAt", startAt)
+               .add("maxResults", maxResults)
+               .add("total", jiraDataset_.getNIssues())
+               .add("issues", issues)
+               .build());
+    }
+
+    else if (path.startsWith("/rest/api/2/issue/")) {
+      int issueNo = jiraDataset_.findJiraIssueNo(path.substring("/rest/api/2/issue/".length()));
+      if (issueNo == -1)
+        sendNotFound(exchange);
+      else
+        sendJson(exchange, jiraDataset_.getJiraIssue(issueNo, getJiraUrl()));
+    }
+
+    else if (path.startsWith("/rest/api/3/attachment/content/")) {
+      sendAttachment(exchange, jiraDataset_, path.substring("/rest/api/3/attachment/content/".length()));
+    }
+
+    else if (path.equals("/rest/api/3/field")) {
+      sendJson(exchange, JsonValue.EMPTY_JSON_ARRAY);
+    }
+
+    else {
+      sendNotFound(exchange);
+    }
+  }
+
+  /**
+   * Handle a YouTrack request.
+   *
+   * @param exchange    Exchange to handle. Non-null.
+   * @param path        Request path below the YouTrack context. Non-null.
+   * @param parameters  Query parameters. Non-null.
+   * @throws IOException  If the response cannot be sent.
+   */
+  private void handleYouTrack(HttpExchange exchange, String path, Map<String,String> parameters)
+    throws IOException
+  {
+    int top = getInt(parameters, "$top", 100);
+    int skip = getInt(parameters, "$skip", 0);
+
+    if (path.equals("/api/users")) {
+      sendJson(exchange, youTrackDataset_.getYouTrackUsers(skip, top));
+    }
+
+    else if (path.equals("/api/issues")) {
+      JsonArrayBuilder issues = Json.createArrayBuilder();
+      for (int issueNo = skip; issueNo < Math.min(youTrackDataset_.getNIssues(), skip + top); issueNo++)
+        issues.add(youTrackDataset_.getYouTrackIssue(issueNo));
+
+      sendJson(exchange, issues.build());
+    }
+
+    else if (path.startsWith("/api/issues/")) {
+      int issueNo = youTrackDataset_.findYouTrackIssueNo(path.substring("/api/issues/".length()));
+      if (issueNo == -1)
+        sendNotFound(exchange);
+      else
+        sendJson(exchange, youTrackDataset_.getYouTrackIssue(issueNo));
+    }
+
+    else if (path.startsWith("/api/files/")) {
+      sendAttachment(exchange, youTrackDataset_, path.substring("/api/files/".length()));
+    }
+
+    else if (path.equals("/api/admin/customFieldSettings/customFields")) {
+      sendJson(exchange, JsonValue.EMPTY_JSON_ARRAY);
+    }
+
+    else {
+      sendNotFound(exchange);
+    }
+  }
+
+  /**
+   * Return the specified work item in the form returned by the Azure REST API.
+   *
+   * @param workItem  Work item to return. Non-null.
+   * @return          The work item as JSON. Never null.
+   */
+  private static JsonObject toJson(WorkItem workItem)
+  {
+    assert workItem != null : "workItem cannot be null";
+
+    JsonArrayBuilder relations = Json.createArrayBuilder();
+    synchronized (workItem.relations_) {
+      for (JsonObject relation : workItem.relations_)
+        relations.add(relation);
+    }
+
+    JsonObjectBuilder user = Json.createObjectBuilder()
+      .add("displayName", "Migration")
+      .add("uniqueName", "migration@example.com");
+
+    JsonObjectBuilder fields = Json.createObjectBuilder()
+      .add("System.Id", workItem.id_)
+      .add("System.WorkItemType", workItem.type_)
+      .add("System.Title", workItem.title_)
+      .add("System.State", "New")
+      .add("System.CreatedBy", user)
+      .add("System.CommentCount", workItem.nComments_.get());
+
+    String description = workItem.description_;
+    if (description != null)
+      fields.add("System.Description", description);
+
+    return Json.createObjectBuilder()
+      .add("id", workItem.id_)
+      .add("rev", 1)
+      .add("fields", fields)
+      .add("relations", relations)
+      .build();
+  }
+
+  /**
+   * Apply the specified JSON patch to the given work item.
+   * Only the description and relations are kept; other field changes are ignored.
+   * <p>
+   * As in Azure, attachment relations get the name and size of the uploaded
+   * file, and a link between work items is added to both of them.
+   *
+   * @param workItem  Work item to patch. Non-null.
+   * @param patch     JSON patch operations. Non-null.
+   */
+  private void applyPatch(WorkItem workItem, JsonArray patch)
+  {
+    assert workItem != null : "workItem cannot be null";
+    assert patch != null : "patch cannot be null";
+
+    for (JsonValue value : patch) {
+      JsonObject operation = value.asJsonObject();
+      String path = operation.getString("path", "");
+
+      if (path.equals("/fields/System.Description")) {
+        workItem.description_ = operation.getString("value", null);
+      }
+
+      else if (path.equals("/relations/-")) {
+        JsonObject relation = operation.getJsonObject("value");
+        String relationType = relation.getString("rel", "");
+        String url = relation.getString("url", "");
+
+        Long size = attachmentSizes_.get(url);
+        if (relationType.equals("AttachedFile") && size != null) {
+          JsonObject attributes = relation.getJsonObject("attributes");
+          relation = Json.createObjectBuilder(relation)
+            .add("attributes", Json.createObjectBuilder(attributes != null ? attributes : JsonValue.EMPTY_JSON_OBJECT)
+                 .add("resourceSize", size))
+            .build();
+        }
+
+        synchronized (workItem.relations_) {
+          workItem.relations_.add(relation);
+        }
+
+        if (relationType.startsWith("System.LinkTypes."))
+          addReverseLink(workItem, relationType, url);
+      }
+    }
+  }
+
+  /**
+   * Add the reverse of the specified link to the linked work item.
+   *
+   * @param workItem      Work item linked from. Non-null.
+   * @param relationType  Relation type of the link. Non-null.
+   * @param url           URL of the linked work item. Non-null.
+   */
+  private void addReverseLink(WorkItem workItem, String relationType, String url)
+  {
+    assert workItem != null : "workItem cannot be null";
+    assert relationType != null : "relationType cannot be null";
+    assert url != null : "url cannot be null";
+
+    WorkItem linkedWorkItem;
+    try {
+      linkedWorkItem = workItems_.get(Integer.parseInt(url.substring(url.lastIndexOf('/') + 1)));
+    }
+    catch (NumberFormatException exception) {
+      linkedWorkItem = null;
+    }
+
+    if (linkedWorkItem == null)
+      return;
+
+    String reverseType = relationType;
+    if (relationType.endsWith("-Forward"))
+      reverseType = relationType.replace("-Forward", "-Reverse");
+    else if (relationType.endsWith("-Reverse"))
+      reverseType = relationType.replace("-Reverse", "-Forward");
+
+    JsonObject reverseRelation = Json.createObjectBuilder()
+      .add("rel", reverseType)
+      .add("url", getAzureUrl() + "/_apis/wit/workItems/" + workItem.id_)
+      .build();
+
+    synchronized (linkedWorkItem.relations_) {
+      linkedWorkItem.relations_.add(reverseRelation);
+    }
+  }
+
+  /**
+   * Return the specified work items.
+   *
+   * @param ids  IDs of work items to return. Unknown IDs are ignored. Non-null.
+   * @return     The requested work items as an Azure value list. Never null.
+   */
+  private JsonObject getWorkItems(List<Integer> ids)
+  {
+    assert ids != null : "ids cannot be null";
+
+    JsonArrayBuilder value = Json.createArrayBuilder();
+    int nWorkItems = 0;
+    for (int id : ids) {
+      WorkItem workItem = workItems_.get(id);
+      if (workItem != null) {
+        value.add(toJson(workItem));
+        nWorkItems++;
+      }
+    }
+
+    return Json.createObjectBuilder()
+      .add("count", nWorkItems)
+      .add("value", value)
+      .build();
+  }
+
+  /**
+   * Handle an Azure request.
+   *
+   * @param exchange    Exchange to handle. Non-null.
+   * @param path        Request path below the Azure context. Non-null.
+   * @param parameters  Query parameters. Non-null.
+   * @throws IOException  If the response cannot be sent.
+   */
+  private void handleAzure(HttpExchange exchange, String path, Map<String,String> parameters)
+    throws IOException
+  {
+    String method = exchange.getRequestMethod();
+    String override = exchange.getRequestHeaders().getFirst("X-HTTP-Method-Override");
+    if (override != null)
+      method = override;
+
+    // The clients are not consistent on case (workItems vs workitems)
+    String[] segments = path.toLowerCase().split("/");
+    String[] rawSegments = path.split("/");
+
+    if (segments.length < 4 || !segments[1].equals("_apis") || !segments[2].equals("wit")) {
+      sendNotFound(exchange);
+      return;
+    }
+
+    String resource = segments[3];
+
+    // Attachment upload
+    if (resource.equals("attachments") && method.equals("POST")) {
+      byte[] content = readBody(exchange);
+      nAttachmentBytes_.addAndGet(content.length);
+
+      String id = Long.toString(nRequests_.get()) + "-" + content.length;
+      String url = getAzureUrl() + "/_apis/wit/attachments/" + id;
+      attachmentSizes_.put(url, (long) content.length);
+
+      sendJson(exchange, Json.createObjectBuilder()
+               .add("id", id)
+               .add("url", url)
+               .build());
+    }
+
+    // WIQL query. Supports the ID range queries of Azure.pullAllWorkItemIds()
+    else if (resource.equals("wiql")) {
+      String query = readJson(exchange).asJsonObject().getString("query", "");
+
+      int from = Integer.MIN_VALUE;
+      int to = Integer.MAX_VALUE;
+      Matcher matcher = WIQL_RANGE_PATTERN.matcher(query);
+      if (matcher.find()) {
+        from = Integer.parseInt(matcher.group(1));
+        to = Integer.parseInt(matcher.group(2));
+      }
+
+      JsonArrayBuilder workItems = Json.createArrayBuilder();
+      for (int id = Math.max(from, FIRST_WORK_ITEM_ID); id < Math.min(to, nextWorkItemId_.get()); id++) {
+        if (workItems_.containsKey(id))
+          workItems.add(Json.createObjectBuilder().add("id", id));
+      }
+
+      sendJson(exchange, Json.createObjectBuilder().add("workItems", workItems).build());
+    }
+
+    // Batch read
+    else if (resource.equals("workitemsbatch")) {
+      List<Integer> ids = new ArrayList<>();
+      for (JsonValue id : readJson(exchange).asJsonObject().getJsonArray("ids"))
+        ids.add(((JsonNumber) id).intValue());
+
+      sendJson(exchange, getWorkItems(ids));
+    }
+
+    // List read
+    else if (resource.equals("workitems") && segments.length == 4) {
+      List<Integer> ids = new ArrayList<>();
+      for (String id : parameters.getOrDefault("ids", "").split(",")) {
+        if (!id.isEmpty())
+          ids.add(Integer.parseInt(id));
+      }
+
+      sendJson(exchange, getWorkItems(ids));
+    }
+
+    // Create
+    else if (resource.equals("workitems") && segments[4].startsWith("$")) {
+      String type = URLDecoder.decode(rawSegments[4].substring(1), StandardCharsets.UTF_8);
+      JsonArray patch = readJson(exchange).asJsonArray();
+
+      String title = "";
+      for (JsonValue value : patch) {
+        JsonObject operation = value.asJsonObject();
+        if (operation.getString("path", "").equals("/fields/System.Title"))
+          title = operation.getString("value", "");
+      }
+
+      WorkItem workItem = new WorkItem(nextWorkItemId_.getAndIncrement(), type, title);
+      applyPatch(workItem, patch);
+      workItems_.put(workItem.id_, workItem);
+
+      sendJson(exchange, toJson(workItem));
+    }
+
+    // Single work item
+    else if (resource.equals("workitems")) {
+      WorkItem workItem;
+      try {
+        workItem = workItems_.get(Integer.parseInt(segments[4]));
+      }
+      catch (NumberFormatException exception) {
+        workItem = null;
+      }
+
+      if (workItem == null) {
+        sendNotFound(exchange);
+      }
+
+      else if (segments.length > 5 && segments[5].equals("comments")) {
+        readBody(exchange);
+        long commentId = nComments_.incrementAndGet();
+        workItem.nComments_.incrementAndGet();
+        sendJson(exchange, Json.createObjectBuilder().add("id", commentId).add("workItemId", workItem.id_).build());
+      }
+
+      else if (method.equals("PATCH")) {
+        applyPatch(workItem, readJson(exchange).asJsonArray());
+        sendJson(exchange, toJson(workItem));
+      }
+
+      else if (method.equals("DELETE")) {
+        workItems_.remove(workItem.id_);
+        send(exchange, 204, new byte[0]);
+      }
+
+      else {
+        sendJson(exchange, toJson(workItem));
+      }
+    }
+
+    else {
+      sendNotFound(exchange);
+    }
+  }
+}
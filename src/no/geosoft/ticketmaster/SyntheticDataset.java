@@ -0,0 +1,577 @@
+package no.geosoft.ticketmaster;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+
+/**
+ * A generated set of issues as served by StubServer.
+ * <p>
+ * Issues are generated on request from their index and a seed, so the
+ * dataset is deterministic and holds nothing in memory regardless of its size.
+ * Every tenth issue is an epic, and the issues following it are its children.
+ * In addition each issue links to other random issues of the dataset, and
+ * refers to them by key in its Jira description and first comment.
+ * <p>
+ * The same dataset is available both in Jira and in YouTrack form.
+ *
+ * @author <a href="mailto:jacob.dreyer@geosoft.no">Jacob Dreyer</a>
+ */
+public final class SyntheticDataset
+{
+  /** Number of issues in each epic, including the epic itself. */
+  private static final int EPIC_SIZE = 10;
+
+  /** Number of distinct users. */
+  private static final int N_USERS = 10;
+
+  /** Time of the first issue. */
+  private static final long START_TIME = 1672531200000L; // 2023-01-01
+
+  /** Jira issue types. Epics are given by position. */
+  private static final String[] JIRA_TYPES = {"Story", "Bug", "Task", "Sub-task"};
+
+  /** Jira priorities. */
+  private static final String[] JIRA_PRIORITIES = {"Critical", "Major", "Normal", "Minor", "Undefined"};
+
+  /** Jira states. */
+  private static final String[] JIRA_STATES = {"Backlog", "To Do", "In Progress", "Code Review", "Ready for Test", "Test", "PO Review", "Blocked", "Done"};
+
+  /** Jira link types. */
+  private static final String[] JIRA_LINK_TYPES = {"Blocks", "Clones", "Duplicate", "Relates", "Depends", "Causes"};
+
+  /** YouTrack link types. Subtask is given by position. */
+  private static final String[] YOUTRACK_LINK_TYPES = {"Relates", "Depend", "Duplicate"};
+
+  /** Words for summaries and text. */
+  private static final String[] WORDS = {"crash", "when", "opening", "the", "log", "view", "with", "empty", "curve",
+                                         "data", "export", "fails", "for", "large", "files", "add", "support", "new",
+                                         "format", "in", "plot", "scale", "is", "wrong", "after", "zoom"};
+
+  /** Number of issues. */
+  private final int nIssues_;
+
+  /** Number of comments per issue. */
+  private final int nComments_;
+
+  /** Average number of links per issue. */
+  private final double linkDensity_;
+
+  /** Number of attachments per issue. */
+  private final int nAttachments_;
+
+  /** Average attachment size in bytes. */
+  private final int attachmentSize_;
+
+  /** Seed of the generator. */
+  private final long seed_;
+
+  /**
+   * Create a synthetic dataset.
+   *
+   * @param nIssues         Number of issues. [0,&gt;.
+   * @param nComments       Number of comments per issue. [0,&gt;.
+   * @param linkDensity     Average number of links (apart from parent) per issue. [0,&gt;.
+   * @param nAttachments    Number of attachments per issue. [0,&gt;.
+   * @param attachmentSize  Average attachment size in bytes. Actual sizes vary
+   *                        between half and one and a half of this. [0,&gt;.
+   * @param seed            Seed of the random generator. Equal seeds gives equal datasets.
+   * @throws IllegalArgumentException  If any of the counts or sizes is negative.
+   */
+  public SyntheticDataset(int nIssues, int nComments, double linkDensity, int nAttachments, int attachmentSize, long seed)
+  {
+    if (nIssues < 0)
+      throw new IllegalArgumentException("Invalid nIssues: " + nIssues);
+
+    if (nComments < 0)
+      throw new IllegalArgumentException("Invalid nComments: " + nComments);
+
+    if (linkDensity < 0.0)
+      throw new IllegalArgumentException("Invalid linkDensity: " + linkDensity);
+
+    if (nAttachments < 0)
+      throw new IllegalArgumentException("Invalid nAttachments: " + nAttachments);
+
+    if (attachmentSize < 0)
+      throw new IllegalArgumentException("Invalid attachmentSize: " + attachmentSize);
+
+    nIssues_ = nIssues;
+    nComments_ = nComments;
+    linkDensity_ = linkDensity;
+    nAttachments_ = nAttachments;
+    attachmentSize_ = attachmentSize;
+    seed_ = seed;
+  }
+
+  /**
+   * Return number of issues in this dataset.
+   *
+   * @return  Number of issues in this dataset. [0,&gt;.
+   */
+  public int getNIssues()
+  {
+    return nIssues_;
+  }
+
+  /**
+   * Return number of attachments per issue.
+   *
+   * @return  Number of attachments per issue. [0,&gt;.
+   */
+  public int getNAttachments()
+  {
+    return nAttachments_;
+  }
+
+  /**
+   * Return a random generator for the specified issue.
+   *
+   * @param issueNo  Issue number.
+   * @param salt     Distinguish between several generators of the same issue.
+   * @return         Random generator. Never null.
+   */
+  private Random newRandom(int issueNo, int salt)
+  {
+    return new Random(seed_ * 31 + issueNo * 7919L + salt);
+  }
+
+  /**
+   * Return a random text of the specified number of words.
+   *
+   * @param random  Random generator. Non-null.
+   * @param nWords  Number of words.
+   * @return        Random text. Never null.
+   */
+  private static String newText(Random random, int nWords)
+  {
+    StringBuilder s = new StringBuilder();
+    for (int i = 0; i < nWords; i++) {
+      if (i > 0)
+        s.append(' ');
+      s.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+
+    return s.toString();
+  }
+
+  /**
+   * Return the parent of the specified issue.
+   *
+   * @param issueNo  Issue to get parent of.
+   * @return         Number of parent issue, or -1 if none.
+   */
+  private static int getParentNo(int issueNo)
+  {
+    return issueNo % EPIC_SIZE == 0 ? -1 : issueNo - issueNo % EPIC_SIZE;
+  }
+
+  /**
+   * Return the issues linked from the specified issue.
+   *
+   * @param issueNo  Issue to get links of.
+   * @return         Numbers of linked issues. Never null.
+   */
+  private int[] getLinkedIssueNos(int issueNo)
+  {
+    if (nIssues_ < 2)
+      return new int[0];
+
+    Random random = newRandom(issueNo, 1);
+
+    int nLinks = (int) linkDensity_;
+    if (random.nextDouble() < linkDensity_ - nLinks)
+      nLinks++;
+
+    int[] linkedIssueNos = new int[nLinks];
+    for (int i = 0; i < nLinks; i++) {
+      int linkedIssueNo = random.nextInt(nIssues_ - 1);
+      linkedIssueNos[i] = linkedIssueNo < issueNo ? linkedIssueNo : linkedIssueNo + 1;
+    }
+
+    return linkedIssueNos;
+  }
+
+  /**
+   * Return the size of an attachment, drawn from the specified
+   * random generator as the first step of its content generation.
+   *
+   * @param random  Random generator of the attachment. Non-null.
+   * @return        The attachment size in bytes. [0,&gt;.
+   */
+  private int getAttachmentSize(Random random)
+  {
+    assert random != null : "random cannot be null";
+
+    return attachmentSize_ / 2 + (attachmentSize_ > 0 ? random.nextInt(attachmentSize_ + 1) : 0);
+  }
+
+  /**
+   * Return the size of the specified attachment, i.e. the length
+   * of its content as returned by getAttachmentContent().
+   *
+   * @param issueNo       Issue of attachment.
+   * @param attachmentNo  Attachment number within issue.
+   * @return              The attachment size in bytes. [0,&gt;.
+   */
+  public int getAttachmentSize(int issueNo, int attachmentNo)
+  {
+    return getAttachmentSize(newRandom(issueNo, 100 + attachmentNo));
+  }
+
+  /**
+   * Return the content of the specified attachment.
+   *
+   * @param issueNo       Issue of attachment.
+   * @param attachmentNo  Attachment number within issue.
+   * @return              The attachment content. Never null.
+   */
+  public byte[] getAttachmentContent(int issueNo, int attachmentNo)
+  {
+    Random random = newRandom(issueNo, 100 + attachmentNo);
+
+    byte[] content = new byte[getAttachmentSize(random)];
+    random.nextBytes(content);
+
+    return content;
+  }
+
+  /**
+   * Return the Jira ID of the specified issue.
+   *
+   * @param issueNo  Issue number.
+   * @return         Jira ID of issue. Never null.
+   */
+  private static String getJiraId(int issueNo)
+  {
+    return Integer.toString(10000 + issueNo);
+  }
+
+  /**
+   * Return the Jira key of the specified issue.
+   *
+   * @param issueNo  Issue number.
+   * @return         Jira key of issue. Never null.
+   */
+  private static String getJiraKey(int issueNo)
+  {
+    return "SYN-" + (issueNo + 1);
+  }
+
+  /**
+   * Return the references of the specified issue to the issues it links to,
+   * as in a rendered Jira description: Every other as a link to the issue,
+   * the rest as plain text keys.
+   *
+   * @param issueNo  Issue to get references of.
+   * @param baseUrl  Base URL of the Jira instance. Non-null.
+   * @return         The references as HTML. Empty if none. Never null.
+   */
+  private String getJiraReferences(int issueNo, String baseUrl)
+  {
+    assert baseUrl != null : "baseUrl cannot be null";
+
+    int[] linkedIssueNos = getLinkedIssueNos(issueNo);
+    if (linkedIssueNos.length == 0)
+      return "";
+
+    StringBuilder s = new StringBuilder("<p>See");
+    for (int i = 0; i < linkedIssueNos.length; i++) {
+      String key = getJiraKey(linkedIssueNos[i]);
+      s.append(i > 0 ? ", " : " ");
+      if (i % 2 == 0)
+        s.append("<a href=\"" + baseUrl + "/browse/" + key + "\">" + key + "</a>");
+      else
+        s.append(key);
+    }
+    s.append(".</p>");
+
+    return s.toString();
+  }
+
+  /**
+   * Return the Jira time stamp of the specified time.
+   *
+   * @param time  Time to format.
+   * @return      Time stamp as Jira formats them. Never null.
+   */
+  private static String toJiraTime(long time)
+  {
+    return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date(time));
+  }
+
+  /**
+   * Return the specified user in Jira form.
+   *
+   * @param userNo  User number.
+   * @return        Jira user. Never null.
+   */
+  private static JsonObject newJiraUser(int userNo)
+  {
+    return Json.createObjectBuilder()
+      .add("accountId", "account-" + userNo)
+      .add("displayName", "User " + userNo)
+      .build();
+  }
+
+  /**
+   * Find the issue number of the specified Jira key.
+   *
+   * @param key  Jira key or ID. Non-null.
+   * @return     The corresponding issue number, or -1 if not part of the dataset.
+   */
+  public int findJiraIssueNo(String key)
+  {
+    assert key != null : "key cannot be null";
+
+    try {
+      int issueNo = key.startsWith("SYN-") ? Integer.parseInt(key.substring(4)) - 1 : Integer.parseInt(key) - 10000;
+      return issueNo >= 0 && issueNo < nIssues_ ? issueNo : -1;
+    }
+    catch (NumberFormatException exception) {
+      return -1;
+    }
+  }
+
+  /**
+   * Return the specified issue in the form returned by the Jira REST API.
+   *
+   * @param issueNo  Issue number. [0,nIssues&gt;.
+   * @param baseUrl  Base URL of the Jira server. Used for attachment URLs. Non-null.
+   * @return         The requested issue. Never null.
+   * @throws IllegalArgumentException  If issueNo is out of bounds or baseUrl is null.
+   */
+  public JsonObject getJiraIssue(int issueNo, String baseUrl)
+  {
+    if (issueNo < 0 || issueNo >= nIssues_)
+      throw new IllegalArgumentException("Invalid issueNo: " + issueNo);
+
+    if (baseUrl == null)
+      throw new IllegalArgumentException("baseUrl cannot be null");
+
+    Random random = newRandom(issueNo, 0);
+
+    long createdTime = START_TIME + issueNo * 3600000L;
+    int parentNo = getParentNo(issueNo);
+    String type = parentNo == -1 ? "Epic" : JIRA_TYPES[random.nextInt(JIRA_TYPES.length)];
+
+    JsonObjectBuilder fields = Json.createObjectBuilder()
+      .add("issuetype", Json.createObjectBuilder().add("name", type))
+      .add("creator", newJiraUser(random.nextInt(N_USERS)))
+      .add("reporter", newJiraUser(random.nextInt(N_USERS)))
+      .add("created", toJiraTime(createdTime))
+      .add("summary", newText(random, 3 + random.nextInt(8)))
+      .add("priority", Json.createObjectBuilder().add("name", JIRA_PRIORITIES[random.nextInt(JIRA_PRIORITIES.length)]))
+      .add("status", Json.createObjectBuilder().add("name", JIRA_STATES[random.nextInt(JIRA_STATES.length)]));
+
+    if (random.nextBoolean())
+      fields.add("assignee", newJiraUser(random.nextInt(N_USERS)));
+    else
+      fields.add("assignee", JsonValue.NULL);
+
+    // Comments, raw and rendered
+    JsonArrayBuilder comments = Json.createArrayBuilder();
+    JsonArrayBuilder renderedComments = Json.createArrayBuilder();
+    for (int i = 0; i < nComments_; i++) {
+      String commentId = Long.toString(100000L * (issueNo + 1) + i);
+      String text = newText(random, 5 + random.nextInt(40));
+      String time = toJiraTime(createdTime + (i + 1) * 60000L);
+
+      comments.add(Json.createObjectBuilder()
+                   .add("id", commentId)
+                   .add("author", newJiraUser(random.nextInt(N_USERS)))
+                   .add("updateAuthor", newJiraUser(random.nextInt(N_USERS)))
+                   .add("created", time)
+                   .add("updated", time)
+                   .add("body", text));
+
+      renderedComments.add(Json.createObjectBuilder()
+                           .add("id", commentId)
+                           .add("body", "<p>" + text + "</p>" + (i == 0 ? getJiraReferences(issueNo, baseUrl) : "")));
+    }
+    fields.add("comment", Json.createObjectBuilder().add("comments", comments));
+
+    fields.add("labels", Json.createArrayBuilder().add(WORDS[random.nextInt(WORDS.length)]));
+
+    if (parentNo != -1)
+      fields.add("parent", Json.createObjectBuilder().add("id", getJiraId(parentNo)));
+
+    // Links
+    JsonArrayBuilder links = Json.createArrayBuilder();
+    for (int linkedIssueNo : getLinkedIssueNos(issueNo)) {
+      String direction = random.nextBoolean() ? "inwardIssue" : "outwardIssue";
+      links.add(Json.createObjectBuilder()
+                .add("type", Json.createObjectBuilder().add("name", JIRA_LINK_TYPES[random.nextInt(JIRA_LINK_TYPES.length)]))
+                .add(direction, Json.createObjectBuilder().add("id", getJiraId(linkedIssueNo)).add("key", getJiraKey(linkedIssueNo))));
+    }
+    fields.add("issuelinks", links);
+
+    // Attachments
+    JsonArrayBuilder attachments = Json.createArrayBuilder();
+    for (int i = 0; i < nAttachments_; i++) {
+      String attachmentId = issueNo + "-" + i;
+      attachments.add(Json.createObjectBuilder()
+                      .add("id", attachmentId)
+                      .add("filename", "attachment-" + attachmentId + ".bin")
+                      .add("mimeType", "application/octet-stream")
+                      .add("size", getAttachmentSize(issueNo, i))
+                      .add("author", newJiraUser(random.nextInt(N_USERS)))
+                      .add("created", toJiraTime(createdTime))
+                      .add("content", baseUrl + "/rest/api/3/attachment/content/" + attachmentId));
+    }
+    fields.add("attachment", attachments);
+
+    JsonObjectBuilder renderedFields = Json.createObjectBuilder()
+      .add("description", "<p>" + newText(random, 20 + random.nextInt(200)) + "</p>" + getJiraReferences(issueNo, baseUrl))
+      .add("comment", Json.createObjectBuilder().add("comments", renderedComments));
+
+    return Json.createObjectBuilder()
+      .add("id", getJiraId(issueNo))
+      .add("key", getJiraKey(issueNo))
+      .add("fields", fields)
+      .add("renderedFields", renderedFields)
+      .build();
+  }
+
+  /**
+   * Return the YouTrack ID of the specified issue.
+   *
+   * @param issueNo  Issue number.
+   * @return         YouTrack ID of issue. Never null.
+   */
+  private static String getYouTrackId(int issueNo)
+  {
+    return "2-" + issueNo;
+  }
+
+  /**
+   * Return the specified user in YouTrack form.
+   *
+   * @param userNo  User number.
+   * @return        YouTrack user. Never null.
+   */
+  private static JsonObject newYouTrackUser(int userNo)
+  {
+    return Json.createObjectBuilder()
+      .add("id", "1-" + userNo)
+      .add("login", "user" + userNo)
+      .add("fullName", "User " + userNo)
+      .add("email", "user" + userNo + "@example.com")
+      .build();
+  }
+
+  /**
+   * Return the specified range of YouTrack users.
+   *
+   * @param skip  Number of users to skip.
+   * @param top   Maximum number of users to return.
+   * @return      The requested users. Empty when exhausted. Never null.
+   */
+  public JsonArray getYouTrackUsers(int skip, int top)
+  {
+    JsonArrayBuilder users = Json.createArrayBuilder();
+    for (int userNo = Math.max(0, skip); userNo < Math.min(N_USERS, skip + top); userNo++)
+      users.add(newYouTrackUser(userNo));
+
+    return users.build();
+  }
+
+  /**
+   * Find the issue number of the specified YouTrack ID.
+   *
+   * @param id  YouTrack ID. Non-null.
+   * @return    The corresponding issue number, or -1 if not part of the dataset.
+   */
+  public int findYouTrackIssueNo(String id)
+  {
+    assert id != null : "id cannot be null";
+
+    try {
+      int issueNo = id.startsWith("2-") ? Integer.parseInt(id.substring(2)) : Integer.parseInt(id.substring(id.indexOf('-') + 1)) - 1;
+      return issueNo >= 0 && issueNo < nIssues_ ? issueNo : -1;
+    }
+    catch (NumberFormatException exception) {
+      return -1;
+    }
+  }
+
+  /**
+   * Return the specified issue in the form returned by the YouTrack REST API.
+   *
+   * @param issueNo  Issue number. [0,nIssues&gt;.
+   * @return         The requested issue. Never null.
+   * @throws IllegalArgumentException  If issueNo is out of bounds.
+   */
+  public JsonObject getYouTrackIssue(int issueNo)
+  {
+    if (issueNo < 0 || issueNo >= nIssues_)
+      throw new IllegalArgumentException("Invalid issueNo: " + issueNo);
+
+    Random random = newRandom(issueNo, 0);
+
+    long createdTime = START_TIME + issueNo * 3600000L;
+    int parentNo = getParentNo(issueNo);
+
+    JsonObjectBuilder issue = Json.createObjectBuilder()
+      .add("id", getYouTrackId(issueNo))
+      .add("idReadable", "SYT-" + (issueNo + 1))
+      .add("summary", newText(random, 3 + random.nextInt(8)))
+      .add("description", newText(random, 20 + random.nextInt(200)))
+      .add("created", createdTime)
+      .add("reporter", newYouTrackUser(random.nextInt(N_USERS)))
+      .add("customFields", Json.createArrayBuilder());
+
+    // Comments
+    JsonArrayBuilder comments = Json.createArrayBuilder();
+    for (int i = 0; i < nComments_; i++) {
+      comments.add(Json.createObjectBuilder()
+                   .add("id", "4-" + (100000L * (issueNo + 1) + i))
+                   .add("textPreview", newText(random, 5 + random.nextInt(40)))
+                   .add("author", newYouTrackUser(random.nextInt(N_USERS)))
+                   .add("created", createdTime + (i + 1) * 60000L)
+                   .add("deleted", false));
+    }
+    issue.add("comments", comments);
+
+    // Links, including the parent relation as YouTrack reports it
+    JsonArrayBuilder links = Json.createArrayBuilder();
+    if (parentNo != -1) {
+      links.add(Json.createObjectBuilder()
+                .add("id", "107-" + issueNo + "s")
+                .add("direction", "INWARD")
+                .add("linkType", Json.createObjectBuilder().add("name", "Subtask"))
+                .add("issues", Json.createArrayBuilder().add(Json.createObjectBuilder().add("id", getYouTrackId(parentNo)))));
+
+      issue.add("parent", Json.createObjectBuilder()
+                .add("issues", Json.createArrayBuilder().add(Json.createObjectBuilder().add("id", getYouTrackId(parentNo)))));
+    }
+
+    int[] linkedIssueNos = getLinkedIssueNos(issueNo);
+    for (int i = 0; i < linkedIssueNos.length; i++) {
+      links.add(Json.createObjectBuilder()
+                .add("id", "107-" + issueNo + "-" + i)
+                .add("direction", random.nextBoolean() ? "INWARD" : "OUTWARD")
+                .add("linkType", Json.createObjectBuilder().add("name", YOUTRACK_LINK_TYPES[random.nextInt(YOUTRACK_LINK_TYPES.length)]))
+                .add("issues", Json.createArrayBuilder().add(Json.createObjectBuilder().add("id", getYouTrackId(linkedIssueNos[i])))));
+    }
+    issue.add("links", links);
+
+    // Attachments
+    JsonArrayBuilder attachments = Json.createArrayBuilder();
+    for (int i = 0; i < nAttachments_; i++) {
+      attachments.add(Json.createObjectBuilder()
+                      .add("name", "attachment-" + issueNo + "-" + i + ".bin")
+                      .add("url", "/api/files/" + issueNo + "-" + i)
+                      .add("size", getAttachmentSize(issueNo, i)));
+    }
+    issue.add("attachments", attachments);
+
+    return issue.build();
+  }
+}
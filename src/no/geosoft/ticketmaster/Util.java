@@ -9,11 +9,13 @@ import java.io.StringWriter;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
 import java.time.OffsetDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.util.Date;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.logging.Level;
@@ -31,8 +33,8 @@ public final class Util
   /** The logger instance. */
   private static final Logger logger_ = Logger.getLogger(Util.class.getName());
 
-  /** Common date format. */
-  static final DateFormat DATE_FORMAT = new SimpleDateFormat("dd.MM.yyyy HH:mm");
+  /** Common date format. Thread safe. */
+  static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm").withZone(ZoneId.systemDefault());
 
   private Util()
   {
@@ -42,7 +44,6 @@ public final class Util
   public static void reportMemory()
   {
     Runtime runtime = Runtime.getRuntime();
-    runtime.gc();
 
     long totalMemory = runtime.totalMemory();
     long freeMemory = runtime.freeMemory();
@@ -74,13 +75,13 @@ public final class Util
     return value != null && value.getValueType() == JsonValue.ValueType.OBJECT ? (JsonObject) value : null;
   }
 
-  public static Date getTime(String dateString)
+  public static Instant getTime(String dateString)
   {
     if (dateString == null)
       return null;
 
     try {
-      return ISO8601DateParser.parse(dateString);
+      return Instant.ofEpochMilli(ISO8601DateParser.parseMillis(dateString));
     }
     catch (Exception exception) {
       assert false : "Programming error";
@@ -88,7 +89,7 @@ public final class Util
     }
   }
 
-  public static String toString(Date time)
+  public static String toString(Instant time)
   {
     return time != null ? ISO8601DateParser.toString(time) : null;
   }
@@ -121,6 +122,31 @@ public final class Util
     }
   }
 
+  /**
+   * Return the SHA-256 based digest of the specified text.
+   *
+   * @param text  Text to digest. Non-null.
+   * @return      The first 64 bits of the SHA-256 hash of the text.
+   */
+  static long digest(String text)
+  {
+    assert text != null : "text cannot be null";
+
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+
+      long digest = 0L;
+      for (int i = 0; i < 8; i++)
+        digest = (digest << 8) | (hash[i] & 0xff);
+
+      return digest;
+    }
+    catch (NoSuchAlgorithmException exception) {
+      // SHA-256 is required of every Java platform
+      throw new AssertionError(exception);
+    }
+  }
+
   public static String normalizeUrl(String url)
   {
     return url.toLowerCase().replaceAll("/+$", "");
@@ -1,30 +1,26 @@
 package no.geosoft.ticketmaster;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.StringReader;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonNumber;
 import javax.json.JsonObject;
-import javax.json.JsonReader;
+import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
 import javax.json.stream.JsonParsingException;
 
@@ -33,16 +29,21 @@ public final class YouTrack
   /** The logger instance. */
   private static final Logger logger_ = Logger.getLogger(YouTrack.class.getName());
 
-  /** YouTrack base URL. */
-  private static final String BASE_URL = "<url>";
+  /** YouTrack base URL. Can be overridden (e.g. by a stub server) through the ticketmaster.youtrack.url property. */
+  private static final String BASE_URL = System.getProperty("ticketmaster.youtrack.url", "<url>");
 
   /**
-   * Personal access token on you track. Used as credentials for accessing the REST API.
+   * Personal access tokens on you track. Used as credentials for accessing the REST API.
+   * Requests are spread across the tokens to multiply the per-user rate limit.
    */
-  private static final String TOKEN = "<PAT>";
+  private static final String[] TOKENS = {
+    "<PAT>",
+  };
 
-  /** HTTP authorization header. */
-  private static final String AUTHORIZATION_HEADER = "Bearer " + TOKEN;
+  /** HTTP authorization header of each token. */
+  private static final List<String> AUTHORIZATION_HEADERS = Stream.of(TOKENS)
+    .map(token -> "Bearer " + token)
+    .toList();
 
   /** Fields to export. See https://www.jetbrains.com/help/youtrack/devportal/api-entity-Issue.html */
   private static final String ISSUE_FIELDS_RAW = """
@@ -74,12 +75,26 @@ public final class YouTrack
   /** All issues from the back-end system. */
   private final List<YouTrackIssue> issues_ = new ArrayList<>();
 
+  /** The client used for all reads from the back-end. */
+  private final RestClient client_;
+
+  /**
+   * Create an instance <em>representing</em> the YouTrack back-end.
+   *
+   * @param responseCache  Cache for recording or replaying back-end responses.
+   *                       Null if responses should not be cached.
+   */
+  public YouTrack(ResponseCache responseCache)
+  {
+    client_ = new RestClient(new CredentialPool("YouTrack", AUTHORIZATION_HEADERS), responseCache);
+  }
+
   /**
    * Create an instance <em>representing</em> the YouTrack back-end.
    */
   public YouTrack()
   {
-    // Nothing
+    this(null);
   }
 
   private void resolveParentLinks()
@@ -95,7 +110,7 @@ public final class YouTrack
         continue;
       }
 
-      logger_.log(Level.INFO, "Update YouTrack link " + issue.getIdReadable() + " -> " + parentIssue.getIdReadable() + " (parent)");
+      logger_.log(Level.INFO, () -> "Update YouTrack link " + issue.getIdReadable() + " -> " + parentIssue.getIdReadable() + " (parent)");
       issue.setParentIssue(parentIssue);
     }
   }
@@ -114,7 +129,7 @@ public final class YouTrack
           continue;
         }
 
-        logger_.log(Level.INFO, "Update YouTrack link " + issue.getIdReadable() + " -> " + linkedIssue.getIdReadable() + " (" + link.getType() + ")");
+        logger_.log(Level.INFO, () -> "Update YouTrack link " + issue.getIdReadable() + " -> " + linkedIssue.getIdReadable() + " (" + link.getType() + ")");
         link.setLinkedIssue(linkedIssue);
       }
     }
@@ -164,42 +179,48 @@ public final class YouTrack
   }
 
   /**
-   * Pull the attachment at the specified URL and return as an array of bytes.
+   * Resolve the developer and tester of the specified issue.
+   *
+   * @param issue  Issue to resolve users of. Non-null.
+   */
+  private void resolveUsers(YouTrackIssue issue)
+  {
+    assert issue != null : "issue cannot be null";
+
+    // Resolve developer
+    String developerId = issue.getCustomDeveloperId();
+    YouTrackUser developer = findUser(developerId);
+    issue.setDeveloper(developer);
+
+    // Resolve tester
+    String testerId = issue.getCustomTesterId();
+    YouTrackUser tester = findUser(testerId);
+    issue.setTester(tester);
+  }
+
+  /**
+   * Pull the content of the specified attachment.
    *
-   * @param attachmentUrl  URL to download attachment from. Non-null.
-   * @return               Content of URL as a n array of bytes. Never null.
-   * @throws IOExceptiob  If attachmentUrl is null.
+   * @param attachment  Attachment to pull content of. Non-null.
+   * @return            The attachment binary content, or null if the pull failed.
    */
-  private byte[] pullAttachment(YouTrackAttachment attachment)
+  private AttachmentContent pullAttachment(YouTrackAttachment attachment)
   {
     assert attachment != null : "attachment cannot be null";
 
     String urlString = BASE_URL + attachment.getUrl();
-    URL url = Util.newUrl(urlString);
-
-    HttpURLConnection connection = null;
-    InputStream inputStream = null;
 
     try {
-      connection = (HttpURLConnection) url.openConnection();
-      connection.setRequestMethod("GET");
-      connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
+      AttachmentContent content = client_.getContent(urlString, attachment.getSize());
 
-      inputStream = connection.getInputStream();
-      byte[] bytes = inputStream.readAllBytes();
+      logger_.log(Level.INFO, () -> "Attachment pulled successfully: " + content.getSize() + " bytes");
 
-      logger_.log(Level.INFO, "Attachment pulled successfully: " + bytes.length + " bytes");
-
-      return bytes;
+      return content;
     }
     catch (IOException exception) {
       logger_.log(Level.WARNING, "Attachment pull failed", exception);
       return null;
     }
-    finally {
-      Util.close(inputStream);
-      Util.close(connection);
-    }
   }
 
 
@@ -216,21 +237,8 @@ public final class YouTrack
 
       logger_.log(Level.INFO, "Pulling YouTrack users " + skip + " to " + (skip + top - 1) + "...");
 
-      URL url = Util.newUrl(urlString);
-
-      HttpURLConnection connection = null;
-      InputStream inputStream = null;
-      JsonReader reader = null;
-
       try {
-        connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("GET");
-        connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
-        connection.setRequestProperty("Accept", "application/json");
-
-        inputStream = connection.getInputStream();
-        reader = Json.createReader(inputStream);
-        JsonArray jsonArray = reader.readArray();
+        JsonArray jsonArray = client_.getJson(urlString).asJsonArray();
 
         if (jsonArray.isEmpty())
           break;
@@ -247,14 +255,9 @@ public final class YouTrack
         logger_.log(Level.WARNING, "User pull failed", exception);
         return null;
       }
-      finally {
-        Util.close(reader);
-        Util.close(inputStream);
-        Util.close(connection);
-      }
     }
 
-    logger_.log(Level.INFO, users.size() + " YouTrack users read successfully");
+    logger_.log(Level.INFO, () -> users.size() + " YouTrack users read successfully");
     return users;
   }
 
@@ -267,25 +270,13 @@ public final class YouTrack
   private YouTrackUser pullUser(String userId)
   {
     String urlString = BASE_URL + "/api/users/" + userId + "?fields=id,login,email,name";
-    URL url = Util.newUrl(urlString);
-
-    HttpURLConnection connection = null;
-    InputStream inputStream = null;
-    JsonReader reader = null;
 
     try {
-      connection = (HttpURLConnection) url.openConnection();
-      connection.setRequestMethod("GET");
-      connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
-      connection.setRequestProperty("Accept", "application/json");
-
-      inputStream = connection.getInputStream();
-      reader = Json.createReader(inputStream);
-      JsonObject jsonObject = reader.readObject();
+      JsonObject jsonObject = client_.getJson(urlString).asJsonObject();
 
       YouTrackUser user = new YouTrackUser(jsonObject);
 
-      logger_.log(Level.INFO, "YouTrack user read successfully: " + user);
+      logger_.log(Level.INFO, () -> "YouTrack user read successfully: " + user);
 
       return user;
     }
@@ -293,11 +284,6 @@ public final class YouTrack
       logger_.log(Level.WARNING, "User pull failed", exception);
       return null;
     }
-    finally {
-      Util.close(reader);
-      Util.close(inputStream);
-      Util.close(connection);
-    }
   }
 
   /**
@@ -311,23 +297,9 @@ public final class YouTrack
     assert id != null : "id cannot be null";
 
     String urlString = BASE_URL + "/api/issues/" + id + "?fields=" + ISSUE_FIELDS;
-    URL url = Util.newUrl(urlString);
-
-    HttpURLConnection connection = null;
-    InputStream responseStream = null;
-    JsonReader reader = null;
 
     try {
-      connection = (HttpURLConnection) url.openConnection();
-      connection.setRequestMethod("GET");
-      connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
-      connection.setRequestProperty("Accept", "application/json");
-
-      responseStream = connection.getInputStream();
-      InputStreamReader utf8Reader = new InputStreamReader(responseStream, StandardCharsets.UTF_8);
-      reader = Json.createReader(responseStream);
-
-      JsonObject issueJson = reader.readObject();
+      JsonObject issueJson = client_.getJson(urlString).asJsonObject();
 
       // System.out.println(Util.toPretty(issueJson));
 
@@ -337,11 +309,6 @@ public final class YouTrack
       logger_.log(Level.WARNING, "Unable to extract", exception);
       return null;
     }
-    finally {
-      Util.close(reader);
-      Util.close(responseStream);
-      Util.close(connection);
-    }
   }
 
   /**
@@ -360,24 +327,10 @@ public final class YouTrack
 
     while (true) {
       String urlString = BASE_URL + "/api/issues?fields=" + ISSUE_FIELDS + "&$top=" + top + "&$skip=" + skip;
-      URL url = Util.newUrl(urlString);
-
       logger_.log(Level.INFO, "Pulling YouTrack issues " + skip + " to " + (skip + top - 1) + "...");
 
-      HttpURLConnection connection = null;
-      InputStream responseStream = null;
-      JsonReader reader = null;
-
       try {
-        connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("GET");
-        connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
-        connection.setRequestProperty("Accept", "application/json");
-
-        responseStream = connection.getInputStream();
-        reader = Json.createReader(responseStream);
-        JsonArray issuesArray = reader.readArray();
-        reader.close();
+        JsonArray issuesArray = client_.getJson(urlString).asJsonArray();
 
         if (issuesArray.isEmpty())
           break;
@@ -386,16 +339,7 @@ public final class YouTrack
           JsonObject issueJson = value.asJsonObject();
 
           YouTrackIssue issue = new YouTrackIssue(issueJson);
-
-          // Resolve developer
-          String developerId = issue.getCustomDeveloperId();
-          YouTrackUser developer = findUser(developerId);
-          issue.setDeveloper(developer);
-
-          // Resolve tester
-          String testerId = issue.getCustomTesterId();
-          YouTrackUser tester = findUser(testerId);
-          issue.setTester(tester);
+          resolveUsers(issue);
 
           issues.add(issue);
         }
@@ -413,11 +357,6 @@ public final class YouTrack
         logger_.log(Level.WARNING, "Unable to extract", exception);
         break;
       }
-      finally {
-        Util.close(reader);
-        Util.close(responseStream);
-        Util.close(connection);
-      }
     }
 
     return issues;
@@ -436,7 +375,7 @@ public final class YouTrack
       throw new IllegalArgumentException("issue cannot be null");
 
     for (YouTrackAttachment attachment : issue.getAttachments()) {
-      byte[] content = pullAttachment(attachment);
+      AttachmentContent content = pullAttachment(attachment);
       attachment.setContent(content);
     }
   }
@@ -447,36 +386,16 @@ public final class YouTrack
   private void listFields()
   {
     String urlString = BASE_URL + "/api/admin/customFieldSettings/customFields?fields=id,name,fieldType(id,localizedName)";
-    URL url = Util.newUrl(urlString);
-
-    HttpURLConnection connection = null;
-    InputStream responseStream = null;
-    JsonReader reader = null;
 
     System.out.println(urlString);
 
     try {
-      connection = (HttpURLConnection) url.openConnection();
-      connection.setRequestMethod("GET");
-      connection.setRequestProperty("Authorization", AUTHORIZATION_HEADER);
-      connection.setRequestProperty("Accept", "application/json");
-
-      responseStream = connection.getInputStream();
-      InputStreamReader utf8Reader = new InputStreamReader(responseStream, StandardCharsets.UTF_8);
-      reader = Json.createReader(utf8Reader);
-
-      JsonValue json = reader.read();
-
+      JsonValue json = client_.getJson(urlString);
       System.out.println(Util.toPretty(json));
     }
     catch (IOException exception) {
       logger_.log(Level.WARNING, "Unable to list fields", exception);
     }
-    finally {
-      Util.close(reader);
-      Util.close(responseStream);
-      Util.close(connection);
-    }
   }
 
   /**
@@ -558,6 +477,149 @@ public final class YouTrack
     return getIssues(Integer.MAX_VALUE);
   }
 
+  /**
+   * Create the JSON representation of the specified user, as
+   * understood by the YouTrackUser constructor.
+   *
+   * @param user  User to create JSON of. Non-null.
+   * @return      JSON object of user. Never null.
+   */
+  private static JsonObject toJson(YouTrackUser user)
+  {
+    assert user != null : "user cannot be null";
+
+    JsonObjectBuilder builder = Json.createObjectBuilder();
+    if (user.getId() != null)
+      builder.add("id", user.getId());
+    if (user.getLogin() != null)
+      builder.add("login", user.getLogin());
+    if (user.getFullName() != null)
+      builder.add("fullName", user.getFullName());
+    if (user.getEmail() != null)
+      builder.add("email", user.getEmail());
+
+    return builder.build();
+  }
+
+  /**
+   * Save all loaded users and issues, including the resolved parent and
+   * link references of the issues, to the specified snapshot file.
+   * <p>
+   * The first snapshot record holds the users. The following records hold
+   * the issue JSON together with the index of its parent issue and the
+   * index of each linked issue.
+   *
+   * @param file  File to write. Non-null.
+   * @throws IllegalArgumentException  If file is null.
+   * @throws IOException  If the snapshot cannot be written.
+   */
+  public void saveSnapshot(File file)
+    throws IOException
+  {
+    if (file == null)
+      throw new IllegalArgumentException("file cannot be null");
+
+    Map<YouTrackIssue,Integer> indices = new IdentityHashMap<>();
+    for (int i = 0; i < issues_.size(); i++)
+      indices.put(issues_.get(i), i);
+
+    try (Snapshot.Writer writer = new Snapshot.Writer(file)) {
+      JsonArrayBuilder usersBuilder = Json.createArrayBuilder();
+      for (YouTrackUser user : users_)
+        usersBuilder.add(toJson(user));
+
+      writer.write(Json.createObjectBuilder().add("users", usersBuilder).build());
+
+      for (YouTrackIssue issue : issues_) {
+        YouTrackIssue parentIssue = issue.getParentIssue();
+        Integer parentIndex = parentIssue != null ? indices.get(parentIssue) : null;
+
+        JsonObjectBuilder linksBuilder = Json.createObjectBuilder();
+        for (YouTrackLink link : issue.getLinks()) {
+          Integer linkedIndex = link.getLinkedIssue() != null ? indices.get(link.getLinkedIssue()) : null;
+          if (linkedIndex != null)
+            linksBuilder.add(link.getLinkedIssueId(), linkedIndex);
+        }
+
+        JsonObject record = Json.createObjectBuilder()
+          .add("issue", issue.getJsonObject())
+          .add("parent", parentIndex != null ? parentIndex : -1)
+          .add("links", linksBuilder)
+          .build();
+
+        writer.write(record);
+      }
+    }
+
+    logger_.log(Level.INFO, () -> issues_.size() + " issues saved to snapshot " + file);
+  }
+
+  /**
+   * Load users and issues from the specified snapshot file, replacing any
+   * already loaded. Parent and link references are restored as they were
+   * when the snapshot was saved.
+   *
+   * @param file  Snapshot file to load. Non-null.
+   * @throws IllegalArgumentException  If file is null.
+   * @throws IOException  If the snapshot cannot be read.
+   */
+  public void loadSnapshot(File file)
+    throws IOException
+  {
+    if (file == null)
+      throw new IllegalArgumentException("file cannot be null");
+
+    users_.clear();
+    issues_.clear();
+
+    try (Snapshot.Reader reader = new Snapshot.Reader(file)) {
+      if (reader.size() == 0)
+        throw new IOException("Empty snapshot: " + file);
+
+      JsonArray usersArray = reader.read(0).asJsonObject().getJsonArray("users");
+      for (JsonValue userValue : usersArray)
+        users_.add(new YouTrackUser(userValue.asJsonObject()));
+
+      int nIssues = reader.size() - 1;
+      int[] parentIndices = new int[nIssues];
+      JsonObject[] links = new JsonObject[nIssues];
+
+      for (int i = 0; i < nIssues; i++) {
+        JsonObject record = reader.read(i + 1).asJsonObject();
+
+        YouTrackIssue issue = new YouTrackIssue(record.getJsonObject("issue"));
+        resolveUsers(issue);
+        issues_.add(issue);
+
+        parentIndices[i] = record.getInt("parent");
+        links[i] = record.getJsonObject("links");
+      }
+
+      // Restore references
+      for (int i = 0; i < nIssues; i++) {
+        YouTrackIssue issue = issues_.get(i);
+
+        if (parentIndices[i] >= 0)
+          issue.setParentIssue(issues_.get(parentIndices[i]));
+
+        for (YouTrackLink link : issue.getLinks()) {
+          String linkedIssueId = link.getLinkedIssueId();
+          JsonNumber linkedIndex = linkedIssueId != null ? links[i].getJsonNumber(linkedIssueId) : null;
+          if (linkedIndex != null)
+            link.setLinkedIssue(issues_.get(linkedIndex.intValue()));
+        }
+      }
+    }
+    catch (IOException | RuntimeException exception) {
+      // Don't leave a partially loaded state behind
+      users_.clear();
+      issues_.clear();
+      throw exception;
+    }
+
+    logger_.log(Level.INFO, () -> issues_.size() + " issues loaded from snapshot " + file);
+  }
+
   public static void main(String[] arguments)
   {
     YouTrack youTrack = new YouTrack();
@@ -1,6 +1,8 @@
 package no.geosoft.ticketmaster;
 
+import javax.json.JsonNumber;
 import javax.json.JsonObject;
+import javax.json.JsonValue;
 
 /**
  * Class modelling a YouTrack attachment.
@@ -15,12 +17,18 @@ public final class YouTrackAttachment
   /** ULR to the attachment. */
   private final String url_;
 
-  private byte[] content_;
+  /** Attachment size in bytes. -1 if unknown. */
+  private final long size_;
+
+  private AttachmentContent content_;
 
   public YouTrackAttachment(JsonObject jsonObject)
   {
     name_ = jsonObject.getString("name", null);
     url_ = jsonObject.getString("url", null);
+
+    JsonValue size = jsonObject.get("size");
+    size_ = size instanceof JsonNumber ? ((JsonNumber) size).longValue() : -1L;
   }
 
   public String getName()
@@ -39,12 +47,22 @@ public final class YouTrackAttachment
     return url_;
   }
 
-  public void setContent(byte[] content)
+  /**
+   * Return size of this attachment as reported by YouTrack.
+   *
+   * @return  Size of attachment in bytes, or -1 if unknown.
+   */
+  public long getSize()
+  {
+    return size_;
+  }
+
+  public void setContent(AttachmentContent content)
   {
     content_ = content;
   }
 
-  public byte[] getContent()
+  public AttachmentContent getContent()
   {
     return content_;
   }
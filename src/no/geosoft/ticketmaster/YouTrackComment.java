@@ -1,6 +1,6 @@
 package no.geosoft.ticketmaster;
 
-import java.util.Date;
+import java.time.Instant;
 
 import javax.json.JsonObject;
 import javax.json.JsonNumber;
@@ -16,7 +16,7 @@ public final class YouTrackComment implements Comparable<YouTrackComment>
 
   private final String text_;
 
-  private final Date createdTime_;
+  private final Instant createdTime_;
 
   private final boolean isDeleted_;
 
@@ -34,7 +34,7 @@ public final class YouTrackComment implements Comparable<YouTrackComment>
     isDeleted_ = jsonObject.getBoolean("deleted", false);
 
     JsonNumber createdTime = jsonObject.getJsonNumber("created");
-    createdTime_ = createdTime != null ? new Date(createdTime.longValue()) : null;
+    createdTime_ = createdTime != null ? Instant.ofEpochMilli(createdTime.longValue()) : null;
   }
 
   public String getId()
@@ -47,9 +47,9 @@ public final class YouTrackComment implements Comparable<YouTrackComment>
     return text_;
   }
 
-  public Date getCreatedTime()
+  public Instant getCreatedTime()
   {
-    return createdTime_ != null ? new Date(createdTime_.getTime()) : null;
+    return createdTime_;
   }
 
   public boolean isDeleted()
@@ -65,8 +65,8 @@ public final class YouTrackComment implements Comparable<YouTrackComment>
   @Override
   public int compareTo(YouTrackComment youTrackComment)
   {
-    Date time1 = createdTime_;
-    Date time2 = youTrackComment.createdTime_;
+    Instant time1 = createdTime_;
+    Instant time2 = youTrackComment.createdTime_;
 
     return time1 != null && time2 != null ? time1.compareTo(time2) : 1;
   }
@@ -1,9 +1,9 @@
 package no.geosoft.ticketmaster;
 
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Date;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.logging.Logger;
@@ -37,7 +37,7 @@ public final class YouTrackIssue
   private final Set<YouTrackComment> comments_ = new TreeSet<>();
 
   // created
-  private final Date createdTime_;
+  private final Instant createdTime_;
 
   // customFields
   private final String custom<Name1>_;
@@ -77,7 +77,7 @@ public final class YouTrackIssue
   private final List<String> tags_ = new ArrayList<>();
 
   // updated
-  private final Date updatedTime_;
+  private final Instant updatedTime_;
 
   // updater
   private final YouTrackUser updatedBy_;
@@ -88,8 +88,13 @@ public final class YouTrackIssue
   // type
   private final String type_;
 
+  // The JSON object this issue was created from
+  private final JsonObject jsonObject_;
+
   public YouTrackIssue(JsonObject jsonObject)
   {
+    jsonObject_ = jsonObject;
+
     // id
     id_ = jsonObject.getString("id", null);
 
@@ -113,7 +118,7 @@ public final class YouTrackIssue
 
     // created
     JsonNumber createdTime = jsonObject.getJsonNumber("created");
-    createdTime_ = createdTime != null ? new Date(createdTime.longValue()) : null;
+    createdTime_ = createdTime != null ? Instant.ofEpochMilli(createdTime.longValue()) : null;
 
     String custom<Name> = null;
     String custom<Name> = null;
@@ -194,7 +199,7 @@ public final class YouTrackIssue
 
     // Updated
     JsonNumber updatedTime = jsonObject.getJsonNumber("updated");
-    updatedTime_ = updatedTime != null ? new Date(updatedTime.longValue()) : null;
+    updatedTime_ = updatedTime != null ? Instant.ofEpochMilli(updatedTime.longValue()) : null;
 
     // Updater
     JsonObject updatedBy = jsonObject.getJsonObject("updater");
@@ -207,6 +212,11 @@ public final class YouTrackIssue
     type_ = jsonObject.getString("$type", null);
   }
 
+  public JsonObject getJsonObject()
+  {
+    return jsonObject_;
+  }
+
   public String getId()
   {
     return id_;
@@ -262,9 +272,9 @@ public final class YouTrackIssue
     return reportedBy_;
   }
 
-  public Date getCreatedTime()
+  public Instant getCreatedTime()
   {
-    return createdTime_ != null ? new Date(createdTime_.getTime()) : null;
+    return createdTime_;
   }
 
   public YouTrackUser getUpdatedBy()
@@ -272,9 +282,9 @@ public final class YouTrackIssue
     return updatedBy_;
   }
 
-  public Date getUpdatedTime()
+  public Instant getUpdatedTime()
   {
-    return updatedTime_ != null ? new Date(updatedTime_.getTime()) : null;
+    return updatedTime_;
   }
 
   public List<String> getTags()
@@ -16,6 +16,9 @@
 #
 # The JSON array can be created by MappingTool.java.
 #
+# For large repositories use GitHistoryRewriter.java instead, which rewrites
+# a git fast-export stream in one pass.
+#
 import json
 import re
 